@@ -0,0 +1,2 @@
+@echo off
+java -classpath "%CLASSPATH%;.;bin;bin/lib/simulators.jar;bin/lib/common.jar;bin/lib/translators.jar;bin/lib/benchmarks.jar" benchmarks.BenchmarkRunner %*
@@ -0,0 +1,2 @@
+#!/bin/sh
+java -classpath "$CLASSPATH:.:bin:BuiltIn:bin/lib/simulators.jar:bin/lib/common.jar:bin/lib/translators.jar" simulators.TestRunner "$@"
@@ -0,0 +1,3 @@
+@echo off
+cd %0\..
+java -classpath "%CLASSPATH%;bin;bin/lib/translators.jar;bin/lib/common.jar;bin/lib/simulators.jar" translators.VMTranslator.VMTranslator %1
@@ -0,0 +1,24 @@
+// Fills the screen with black and white alternately, forever.
+// Run by the CPU emulator benchmarks.
+
+(RESTART)
+    @SCREEN
+    D=A
+    @address
+    M=D
+    @color
+    M=!M
+(FILL)
+    @color
+    D=M
+    @address
+    A=M
+    M=D
+    @address
+    MD=M+1
+    @KBD
+    D=D-A
+    @FILL
+    D;JLT
+    @RESTART
+    0;JMP
@@ -0,0 +1,39 @@
+// Multiplies R0 by R1 into R2 by repeated addition, forever, with
+// R0 incremented and R1 cycling through 0..31 after each multiplication.
+// Run by the CPU emulator and gate benchmarks.
+
+    @R0
+    M=1
+    @R1
+    M=1
+(LOOP)
+    @R2
+    M=0
+    @R1
+    D=M
+    @n
+    M=D
+(ADD)
+    @n
+    D=M
+    @NEXT
+    D;JEQ
+    @R0
+    D=M
+    @R2
+    M=D+M
+    @n
+    M=M-1
+    @ADD
+    0;JMP
+(NEXT)
+    @R0
+    M=M+1
+    @R1
+    D=M+1
+    @31
+    D=D&A
+    @R1
+    M=D
+    @LOOP
+    0;JMP
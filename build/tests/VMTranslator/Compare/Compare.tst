@@ -0,0 +1,16 @@
+// Runs the translation of Compare.vm on the CPU emulator. Translate Compare.vm
+// with the VM translator first. CompareVME.tst runs Compare.vm on the VM emulator,
+// and both are compared to the same Compare.cmp.
+
+load Compare.asm,
+output-file Compare.out,
+compare-to Compare.cmp,
+output-list RAM[5]%D1.6.1 RAM[6]%D1.6.1 RAM[7]%D1.6.1 RAM[8]%D1.6.1
+            RAM[9]%D1.6.1 RAM[10]%D1.6.1 RAM[11]%D1.6.1 RAM[12]%D1.6.1;
+
+set RAM[0] 256;
+
+repeat 1000 {
+  ticktock;
+}
+output;
@@ -0,0 +1,15 @@
+// Runs Compare.vm on the VM emulator. Compare.tst runs its translation on the
+// CPU emulator, and both are compared to the same Compare.cmp.
+
+load Compare.vm,
+output-file Compare.out,
+compare-to Compare.cmp,
+output-list RAM[5]%D1.6.1 RAM[6]%D1.6.1 RAM[7]%D1.6.1 RAM[8]%D1.6.1
+            RAM[9]%D1.6.1 RAM[10]%D1.6.1 RAM[11]%D1.6.1 RAM[12]%D1.6.1;
+
+set sp 256;
+
+repeat 100 {
+  vmstep;
+}
+output;
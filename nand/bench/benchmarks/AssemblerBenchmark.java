@@ -0,0 +1,82 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package benchmarks;
+
+import java.io.*;
+
+import translators.assembler.AssemblyParser;
+
+/**
+ * Measures the lines per second of the assembler, translating a generated program.
+ * The program is made of blocks that load variables and constants, compute with the
+ * D and M registers, and jump to labels (backwards and forwards).
+ */
+public class AssemblerBenchmark extends Benchmark {
+
+    // The number of blocks in the generated program
+    private static final int BLOCKS_COUNT = 500;
+
+    // The generated program file, and the number of its lines
+    private File program;
+    private int linesCount;
+
+    /**
+     * Constructs a new assembler benchmark.
+     */
+    public AssemblerBenchmark(String name) {
+        super(name, "lines");
+    }
+
+    public void setUp() throws IOException {
+        program = File.createTempFile("Bench", ".asm");
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(program)));
+        writer.println("// A program generated by the assembler benchmark");
+        linesCount = 1;
+        for (int i = 0; i < BLOCKS_COUNT; i++) {
+            String[] block = {
+                "(BLOCK" + i + ")",
+                "    @var" + (i % 100),
+                "    D=M // load a variable",
+                "    @" + (i * 7 % 32768),
+                "    D=D+A",
+                "    @R" + (i % 16),
+                "    M=D",
+                "    AM=M-1",
+                "    D=D|M",
+                "    @BLOCK" + (i + 1) % BLOCKS_COUNT,
+                "    D;JGT",
+                "    @BLOCK" + i / 2,
+                "    0;JMP",
+                ""
+            };
+            for (int j = 0; j < block.length; j++)
+                writer.println(block[j]);
+            linesCount += block.length;
+        }
+        writer.close();
+    }
+
+    public long run() throws Exception {
+        new AssemblyParser(program.getPath(), false);
+        return linesCount;
+    }
+
+    public void tearDown() {
+        program.delete();
+    }
+}
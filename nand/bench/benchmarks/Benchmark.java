@@ -0,0 +1,73 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package benchmarks;
+
+/**
+ * A benchmark: an operation whose throughput is measured by the BenchmarkRunner.
+ * The runner calls setUp once, then run repeatedly (for the warmup and measurement
+ * iterations), and then tearDown. Each call to run performs some operations, whose
+ * number it returns, and the score is the number of operations per second.
+ */
+public abstract class Benchmark {
+
+    // The name of the benchmark
+    private String name;
+
+    // The name of the measured operations (in plural)
+    private String unit;
+
+    /**
+     * Constructs a new benchmark with the given name, which measures operations with
+     * the given name.
+     */
+    protected Benchmark(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    /**
+     * Returns the name of the benchmark.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the name of the measured operations (for example "instructions").
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * Prepares the benchmark to run.
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Performs some operations and returns their number.
+     */
+    public abstract long run() throws Exception;
+
+    /**
+     * Releases what the benchmark used.
+     */
+    public void tearDown() throws Exception {
+    }
+}
@@ -0,0 +1,360 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package benchmarks;
+
+import java.io.*;
+import java.util.Vector;
+import java.util.regex.*;
+
+/**
+ * Runs the benchmarks of the simulators and translators, and reports their scores
+ * (operations per second) in JSON format, in the layout of JMH's JSON results, so they
+ * can be tracked over time by the same tools. Each benchmark is run for a number of
+ * warmup iterations (whose scores are not reported), and then a number of measurement
+ * iterations, each of which calls the benchmark for a given time. The score is the mean
+ * of the measurement iterations, and its error is the half width of its 99.9% confidence
+ * interval.
+ * The benchmarks read their chips and programs from the benchmarks data dir, and the
+ * built-in chips from the builtInChips dir (whose name is also the package of the
+ * built-in chips classes), so the program should run from the dir that contains both.
+ */
+public class BenchmarkRunner {
+
+    // The default numbers of iterations and their time (in milliseconds)
+    private static final int DEFAULT_WARMUP_ITERATIONS = 3;
+    private static final int DEFAULT_ITERATIONS = 5;
+    private static final int DEFAULT_ITERATION_TIME = 1000;
+
+    // The default dirs of the benchmarks data and of the built-in chips
+    private static final String DEFAULT_DATA_DIR = "benchmarks";
+    private static final String DEFAULT_BUILTIN_DIR = "builtInChips";
+
+    // The quantiles of Student's t distribution for a two sided 99.9% confidence
+    // interval, by degrees of freedom (1-30). The normal quantile is used above 30.
+    private static final double[] T_QUANTILES = {
+        636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+        4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+        3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+    };
+    private static final double NORMAL_QUANTILE = 3.291;
+
+    // The result of running a single benchmark
+    private static class Result {
+        Benchmark benchmark;
+        double[] scores; // per measurement iteration
+        double score;
+        double error;
+    }
+
+    // Returns all the benchmarks, which use the given dirs.
+    private static Vector<Benchmark> createBenchmarks(File dataDir, File builtInDir) {
+        Vector<Benchmark> benchmarks = new Vector<Benchmark>();
+        File hdlDir = new File(dataDir, "hdl");
+        File programsDir = new File(dataDir, "programs");
+        File vmDir = new File(dataDir, "vm");
+
+        // the chips, the dirs of their HDL files and their operations (there are no
+        // built-in CPU and Computer chips)
+        String[] chips = {"Add16", "ALU", "CPU", "Computer"};
+        String[] chipDirs = {"add16", "alu", "cpu", "computer"};
+        String[] chipUnits = {"evaluations", "evaluations", "cycles", "cycles"};
+        for (int i = 0; i < chips.length; i++) {
+            String name = "gates." + chips[i];
+            File chipDir = new File(hdlDir, chipDirs[i]);
+            File program = chips[i].equals("Computer") ? new File(programsDir, "Mult.asm") : null;
+            if (new File(builtInDir, chips[i] + ".hdl").exists())
+                benchmarks.addElement(new GateBenchmark(name + ".builtIn", chipUnits[i], chips[i],
+                                                        hdlDir, program, GateBenchmark.BUILT_IN,
+                                                        builtInDir));
+            benchmarks.addElement(new GateBenchmark(name + ".tree", chipUnits[i], chips[i],
+                                                    chipDir, program, GateBenchmark.TREE,
+                                                    builtInDir));
+            benchmarks.addElement(new GateBenchmark(name + ".flat", chipUnits[i], chips[i],
+                                                    chipDir, program, GateBenchmark.FLAT,
+                                                    builtInDir));
+        }
+
+        String[] programs = {"Mult", "Fill"};
+        for (int i = 0; i < programs.length; i++) {
+            File program = new File(programsDir, programs[i] + ".asm");
+            benchmarks.addElement(new CPUEmulatorBenchmark("cpu." + programs[i] + ".step",
+                                                           program, false));
+            benchmarks.addElement(new CPUEmulatorBenchmark("cpu." + programs[i] + ".repeat",
+                                                           program, true));
+        }
+
+        String[] vmPrograms = {"Loop", "Calls"};
+        for (int i = 0; i < vmPrograms.length; i++) {
+            File programDir = new File(vmDir, vmPrograms[i]);
+            benchmarks.addElement(new VMEmulatorBenchmark("vm." + vmPrograms[i] + ".step",
+                                                          programDir, false));
+            benchmarks.addElement(new VMEmulatorBenchmark("vm." + vmPrograms[i] + ".repeat",
+                                                          programDir, true));
+        }
+
+        benchmarks.addElement(new AssemblerBenchmark("assembler.translate"));
+        benchmarks.addElement(new JackCompilerBenchmark("jack.compileClass"));
+
+        return benchmarks;
+    }
+
+    // Runs the given benchmark for the given numbers of iterations, each taking the
+    // given time (in milliseconds), and returns its result.
+    private static Result runBenchmark(Benchmark benchmark, int warmupIterations,
+                                       int iterations, int iterationTime) throws Exception {
+        Result result = new Result();
+        result.benchmark = benchmark;
+        result.scores = new double[iterations];
+
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < warmupIterations; i++)
+                runIteration(benchmark, iterationTime);
+            for (int i = 0; i < iterations; i++)
+                result.scores[i] = runIteration(benchmark, iterationTime);
+        } finally {
+            benchmark.tearDown();
+        }
+
+        double sum = 0;
+        for (int i = 0; i < iterations; i++)
+            sum += result.scores[i];
+        result.score = sum / iterations;
+
+        if (iterations > 1) {
+            double squaresSum = 0;
+            for (int i = 0; i < iterations; i++)
+                squaresSum += (result.scores[i] - result.score) * (result.scores[i] - result.score);
+            double deviation = Math.sqrt(squaresSum / (iterations - 1));
+            double quantile = iterations - 1 <= T_QUANTILES.length ?
+                              T_QUANTILES[iterations - 2] : NORMAL_QUANTILE;
+            result.error = quantile * deviation / Math.sqrt(iterations);
+        }
+        else
+            result.error = Double.NaN;
+
+        return result;
+    }
+
+    // Calls the given benchmark until the given time (in milliseconds) passes, and
+    // returns the number of operations per second.
+    private static double runIteration(Benchmark benchmark, int iterationTime) throws Exception {
+        long operations = 0;
+        long startTime = System.nanoTime();
+        long endTime = startTime + iterationTime * 1000000L;
+        long time;
+        do {
+            operations += benchmark.run();
+            time = System.nanoTime();
+        } while (time < endTime);
+
+        return operations * 1e9 / (time - startTime);
+    }
+
+    // Writes the given results in JSON format, in the layout of JMH's results
+    private static void writeJSONReport(Result[] results, int warmupIterations,
+                                        int iterations, int iterationTime, PrintWriter out) {
+        out.println("[");
+        for (int i = 0; i < results.length; i++) {
+            Result result = results[i];
+            out.println("    {");
+            out.println("        \"benchmark\" : " + jsonString(result.benchmark.getName()) + ",");
+            out.println("        \"mode\" : \"thrpt\",");
+            out.println("        \"threads\" : 1,");
+            out.println("        \"forks\" : 0,");
+            out.println("        \"jdkVersion\" : " +
+                        jsonString(System.getProperty("java.version")) + ",");
+            out.println("        \"vmName\" : " + jsonString(System.getProperty("java.vm.name")) + ",");
+            out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+            out.println("        \"warmupTime\" : \"" + iterationTime + " ms\",");
+            out.println("        \"measurementIterations\" : " + iterations + ",");
+            out.println("        \"measurementTime\" : \"" + iterationTime + " ms\",");
+            out.println("        \"primaryMetric\" : {");
+            out.println("            \"score\" : " + jsonNumber(result.score) + ",");
+            out.println("            \"scoreError\" : " + jsonNumber(result.error) + ",");
+            out.println("            \"scoreConfidence\" : [" +
+                        jsonNumber(result.score - result.error) + ", " +
+                        jsonNumber(result.score + result.error) + "],");
+            out.println("            \"scoreUnit\" : " +
+                        jsonString(result.benchmark.getUnit() + "/s") + ",");
+            out.print("            \"rawData\" : [[");
+            for (int j = 0; j < result.scores.length; j++)
+                out.print((j > 0 ? ", " : "") + jsonNumber(result.scores[j]));
+            out.println("]]");
+            out.println("        }");
+            out.println("    }" + (i < results.length - 1 ? "," : ""));
+        }
+        out.println("]");
+    }
+
+    // Returns the given number as a JSON number ("NaN" if it's not a number, as JMH writes)
+    private static String jsonNumber(double number) {
+        return Double.isNaN(number) ? "\"NaN\"" : String.valueOf(number);
+    }
+
+    // Returns the given text as a JSON string
+    private static String jsonString(String text) {
+        StringBuffer result = new StringBuffer(text.length() + 2);
+        result.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\')
+                result.append('\\').append(c);
+            else if (c < ' ')
+                result.append(String.format("\\u%04x", (int)c));
+            else
+                result.append(c);
+        }
+        result.append('"');
+        return result.toString();
+    }
+
+    // Prints the usage message and exits
+    private static void usage() {
+        System.err.println("Usage: java BenchmarkRunner [-warmup <iterations>] " +
+                           "[-iterations <count>] [-time <milliseconds>] " +
+                           "[-data <dir>] [-builtIn <dir>] [-report <file>] " +
+                           "[-list] [<regexp>...]");
+        System.exit(-1);
+    }
+
+    // Returns the given option value as a positive integer, or exits if it isn't one
+    private static int parsePositive(String value) {
+        int result = 0;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            usage();
+        }
+        if (result < 1)
+            usage();
+        return result;
+    }
+
+    /**
+     * The command line benchmarks program. Runs the benchmarks whose names match one of
+     * the given regular expressions (all the benchmarks if none are given).
+     */
+    public static void main(String[] args) {
+        int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+        int iterations = DEFAULT_ITERATIONS;
+        int iterationTime = DEFAULT_ITERATION_TIME;
+        File dataDir = new File(DEFAULT_DATA_DIR);
+        File builtInDir = new File(DEFAULT_BUILTIN_DIR);
+        String reportName = null;
+        boolean list = false;
+
+        int argIndex = 0;
+        for (; argIndex < args.length && args[argIndex].startsWith("-"); argIndex++) {
+            String option = args[argIndex];
+            if (option.equals("-list")) {
+                list = true;
+                continue;
+            }
+
+            if (argIndex == args.length - 1)
+                usage();
+            String value = args[++argIndex];
+            if (option.equals("-warmup")) {
+                try {
+                    warmupIterations = Integer.parseInt(value);
+                } catch (NumberFormatException nfe) {
+                    usage();
+                }
+                if (warmupIterations < 0)
+                    usage();
+            } else if (option.equals("-iterations"))
+                iterations = parsePositive(value);
+            else if (option.equals("-time"))
+                iterationTime = parsePositive(value);
+            else if (option.equals("-data"))
+                dataDir = new File(value);
+            else if (option.equals("-builtIn"))
+                builtInDir = new File(value);
+            else if (option.equals("-report"))
+                reportName = value;
+            else
+                usage();
+        }
+
+        Pattern[] patterns = new Pattern[args.length - argIndex];
+        try {
+            for (int i = 0; i < patterns.length; i++)
+                patterns[i] = Pattern.compile(args[argIndex + i]);
+        } catch (PatternSyntaxException pse) {
+            System.err.println("Illegal regular expression: " + pse.getPattern());
+            System.exit(-1);
+        }
+
+        if (!dataDir.isDirectory() || !builtInDir.isDirectory()) {
+            System.err.println("Could not find the benchmarks data dir or the built-in " +
+                               "chips dir");
+            System.exit(-1);
+        }
+
+        // the built-in chips dir is also the package of their classes, so it stays relative
+        Vector<Benchmark> allBenchmarks = createBenchmarks(dataDir.getAbsoluteFile(), builtInDir);
+        Vector<Benchmark> benchmarks = new Vector<Benchmark>();
+        for (int i = 0; i < allBenchmarks.size(); i++) {
+            Benchmark benchmark = allBenchmarks.elementAt(i);
+            boolean matches = patterns.length == 0;
+            for (int j = 0; j < patterns.length && !matches; j++)
+                matches = patterns[j].matcher(benchmark.getName()).find();
+            if (matches)
+                benchmarks.addElement(benchmark);
+        }
+
+        if (list) {
+            for (int i = 0; i < benchmarks.size(); i++)
+                System.out.println(benchmarks.elementAt(i).getName());
+            System.exit(0);
+        }
+
+        Result[] results = new Result[benchmarks.size()];
+        for (int i = 0; i < results.length; i++) {
+            Benchmark benchmark = benchmarks.elementAt(i);
+            try {
+                results[i] = runBenchmark(benchmark, warmupIterations, iterations,
+                                          iterationTime);
+            } catch (Exception e) {
+                System.err.println("Benchmark " + benchmark.getName() + " failed: " + e);
+                System.exit(-1);
+            }
+
+            if (reportName != null)
+                System.out.println(String.format("%-24s %16.1f +- %-14.1f %s/s",
+                                                 benchmark.getName(), results[i].score,
+                                                 results[i].error, benchmark.getUnit()));
+        }
+
+        try {
+            PrintWriter out = reportName != null ?
+                new PrintWriter(new BufferedWriter(new FileWriter(reportName))) :
+                new PrintWriter(new OutputStreamWriter(System.out));
+            writeJSONReport(results, warmupIterations, iterations, iterationTime, out);
+            out.flush();
+            if (reportName != null)
+                out.close();
+        } catch (IOException ioe) {
+            System.err.println("Could not write the report: " + ioe.getMessage());
+            System.exit(-1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,77 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package benchmarks;
+
+import java.io.File;
+
+import simulators.CPUEmulator.CPUEmulator;
+import simulators.controllers.HackController;
+
+/**
+ * Measures the instructions per second of the CPU emulator, running a program which
+ * never ends. The instructions are executed either one by one, as the ticktock commands
+ * of a script, or together, as a repeated ticktock command.
+ */
+public class CPUEmulatorBenchmark extends Benchmark {
+
+    // The number of instructions in each run
+    private static final int INSTRUCTIONS_PER_RUN = 10000;
+
+    // The ticktock command
+    private static final String[] TICKTOCK = {"ticktock"};
+
+    // The program file
+    private File program;
+
+    // True if the instructions are executed by a repeated command
+    private boolean repeated;
+
+    // The emulator
+    private CPUEmulator emulator;
+
+    /**
+     * Constructs a new CPU emulator benchmark that runs the given program (.asm or .hack).
+     * If repeated is true, the instructions are executed by a repeated command.
+     */
+    public CPUEmulatorBenchmark(String name, File program, boolean repeated) {
+        super(name, "instructions");
+        this.program = program;
+        this.repeated = repeated;
+    }
+
+    public void setUp() throws Exception {
+        emulator = new CPUEmulator();
+        emulator.setAnimationMode(HackController.NO_DISPLAY_CHANGES);
+        emulator.setWorkingDir(program);
+        emulator.doCommand(new String[]{"load", program.getName()});
+    }
+
+    public long run() throws Exception {
+        if (repeated)
+            emulator.doRepeatedCommand(TICKTOCK, INSTRUCTIONS_PER_RUN);
+        else
+            for (int i = 0; i < INSTRUCTIONS_PER_RUN; i++)
+                emulator.doCommand(TICKTOCK);
+
+        return INSTRUCTIONS_PER_RUN;
+    }
+
+    public void tearDown() {
+        emulator = null;
+    }
+}
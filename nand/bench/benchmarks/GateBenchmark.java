@@ -0,0 +1,170 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package benchmarks;
+
+import java.io.File;
+import java.util.Random;
+
+import simulators.hardwareSimulator.gates.*;
+
+/**
+ * Measures the simulation of a chip by its gates: the evaluations of a combinational
+ * chip for random input values, or the clock cycles (tick and tock) of a clocked chip.
+ * The chip is either a built-in chip, or a chip from an HDL file, which is simulated by
+ * its tree of parts or by a flat netlist.
+ */
+public class GateBenchmark extends Benchmark {
+
+    /**
+     * The chip is loaded from the built-in chips dir.
+     */
+    public static final int BUILT_IN = 1;
+
+    /**
+     * The chip is loaded from its HDL file and simulated by its tree of parts.
+     */
+    public static final int TREE = 2;
+
+    /**
+     * The chip is loaded from its HDL file and simulated by a flat netlist.
+     */
+    public static final int FLAT = 3;
+
+    // The number of evaluations or clock cycles in each run
+    private static final int OPERATIONS_PER_RUN = 100;
+
+    // The number of different vectors of input values
+    private static final int VECTORS_COUNT = 256;
+
+    // The name of an input pin that is kept 0, so that clocked chips keep running
+    private static final String RESET_PIN = "reset";
+
+    // The seed of the random input values
+    private static final long SEED = 2005;
+
+    // The name of the chip
+    private String chipName;
+
+    // The dir of the chip's HDL files (a dir without HDL files for built-in chips)
+    private File hdlDir;
+
+    // The program which is loaded into the ROM32K part of the chip (null if none)
+    private File program;
+
+    // How the chip is loaded and simulated
+    private int engine;
+
+    // The dir of the built-in chips
+    private File builtInDir;
+
+    // The simulated gate and its clock
+    private Gate gate;
+    private Node clockNode;
+
+    // The input pins of the gate, and the vectors of values that are set to them
+    private Node[] inputNodes;
+    private short[][] inputValues;
+
+    // The index of the next vector of input values
+    private int nextVector;
+
+    /**
+     * Constructs a new gate benchmark of the given chip, whose HDL files are in the given
+     * dir, simulated by the given engine (BUILT_IN, TREE or FLAT). The unit is the name of
+     * the operations: "evaluations" for a combinational chip or "cycles" for a clocked
+     * chip. For a built-in chip, the dir must not contain HDL files of the chip or its
+     * parts. If program isn't null, it's loaded into the chip's ROM32K part. The built-in
+     * chips are in builtInDir.
+     */
+    public GateBenchmark(String name, String unit, String chipName, File hdlDir,
+                         File program, int engine, File builtInDir) {
+        super(name, unit);
+        this.chipName = chipName;
+        this.hdlDir = hdlDir;
+        this.program = program;
+        this.engine = engine;
+        this.builtInDir = builtInDir;
+    }
+
+    public void setUp() throws Exception {
+        GatesManager manager = GatesManager.getInstance();
+        manager.enableChipsGUI(false);
+        manager.setBuiltInDir(builtInDir);
+        manager.setWorkingDir(hdlDir);
+        manager.removeAllChips();
+
+        GateClass gateClass = GateClass.getGateClass(chipName, false);
+        if (engine == FLAT && gateClass instanceof CompositeGateClass)
+            gate = ((CompositeGateClass)gateClass).newFlatInstance();
+        else
+            gate = gateClass.newInstance();
+
+        if (program != null) {
+            BuiltInGateWithGUI[] chips = manager.getChips();
+            for (int i = 0; i < chips.length; i++)
+                if (chips[i].getGateClass().getName().equals("ROM32K")) {
+                    manager.setWorkingDir(program.getParentFile());
+                    chips[i].doCommand(new String[]{"load", program.getName()});
+                }
+        }
+
+        inputNodes = gate.getInputNodes();
+        inputValues = new short[VECTORS_COUNT][inputNodes.length];
+        Random random = new Random(SEED);
+        for (int i = 0; i < inputNodes.length; i++) {
+            PinInfo info = gateClass.getPinInfo(GateClass.INPUT_PIN_TYPE, i);
+            if (info.name.equals(RESET_PIN))
+                continue;
+
+            int mask = (1 << info.width) - 1;
+            for (int j = 0; j < VECTORS_COUNT; j++)
+                inputValues[j][i] = (short)(random.nextInt() & mask);
+        }
+
+        clockNode = manager.getClockNode();
+        clockNode.set((short)1);
+        gate.eval();
+        nextVector = 0;
+    }
+
+    public long run() {
+        boolean clocked = gate.getGateClass().isClocked();
+        for (int i = 0; i < OPERATIONS_PER_RUN; i++) {
+            short[] values = inputValues[nextVector];
+            nextVector = (nextVector + 1) % VECTORS_COUNT;
+            for (int j = 0; j < inputNodes.length; j++)
+                inputNodes[j].set(values[j]);
+
+            if (clocked) {
+                clockNode.set((short)0);
+                gate.tick();
+                clockNode.set((short)1);
+                gate.tock();
+            }
+            else
+                gate.eval();
+        }
+
+        return OPERATIONS_PER_RUN;
+    }
+
+    public void tearDown() {
+        GatesManager.getInstance().removeAllChips();
+        gate = null;
+    }
+}
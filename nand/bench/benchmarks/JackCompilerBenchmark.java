@@ -0,0 +1,109 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package benchmarks;
+
+import java.io.*;
+
+import translators.jackCompiler.*;
+
+/**
+ * Measures the lines per second of the Jack compiler, compiling a generated class.
+ * The class is made of functions with local variables, let, if, while and do statements,
+ * arithmetic and logical expressions, array accesses, strings and calls.
+ */
+public class JackCompilerBenchmark extends Benchmark {
+
+    // The number of functions in the generated class
+    private static final int FUNCTIONS_COUNT = 400;
+
+    // The name of the generated class
+    private static final String CLASS_NAME = "Bench";
+
+    // The generated class source, and the number of its lines
+    private String source;
+    private int linesCount;
+
+    // The stream to which the compiler's errors and warnings are written (none are
+    // expected), and the writer of the compiled code
+    private PrintStream errors;
+    private PrintWriter output;
+
+    /**
+     * Constructs a new Jack compiler benchmark.
+     */
+    public JackCompilerBenchmark(String name) {
+        super(name, "lines");
+    }
+
+    public void setUp() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("// A class generated by the Jack compiler benchmark\n");
+        buffer.append("class " + CLASS_NAME + " {\n");
+        buffer.append("    static int count;\n");
+        buffer.append("    static Array values;\n\n");
+        for (int i = 0; i < FUNCTIONS_COUNT; i++) {
+            buffer.append("    /** Computes a value from x and y. */\n");
+            buffer.append("    function int f" + i + "(int x, int y) {\n");
+            buffer.append("        var int i, sum;\n");
+            buffer.append("        var boolean done;\n");
+            buffer.append("        var String name;\n");
+            buffer.append("        let sum = (x * " + (i + 3) + ") + (y / 2) - " + i + ";\n");
+            buffer.append("        let i = 0;\n");
+            buffer.append("        let done = false;\n");
+            buffer.append("        while ((i < y) & ~done) {\n");
+            buffer.append("            let values[i] = values[i] + (sum & 255);\n");
+            buffer.append("            if ((sum > 1000) | (sum < -1000)) {\n");
+            buffer.append("                let done = true;\n");
+            buffer.append("            } else {\n");
+            buffer.append("                let sum = sum + " + CLASS_NAME + ".f" +
+                          (i + 1) % FUNCTIONS_COUNT + "(i, x);\n");
+            buffer.append("            }\n");
+            buffer.append("            let i = i + 1;\n");
+            buffer.append("        }\n");
+            buffer.append("        let name = \"f" + i + "\";\n");
+            buffer.append("        do Output.printString(name);\n");
+            buffer.append("        let count = count + 1;\n");
+            buffer.append("        return sum;\n");
+            buffer.append("    }\n\n");
+        }
+        buffer.append("}\n");
+        source = buffer.toString();
+
+        linesCount = 0;
+        for (int i = 0; i < source.length(); i++)
+            if (source.charAt(i) == '\n')
+                linesCount++;
+
+        OutputStream nullStream = new OutputStream() {
+            public void write(int b) {
+            }
+        };
+        errors = new PrintStream(nullStream);
+        output = new PrintWriter(nullStream);
+    }
+
+    public long run() {
+        CompilationEngine engine = new CompilationEngine();
+        engine.setErrorStream(errors);
+        if (!engine.compileClass(new JackTokenizer(new StringReader(source)),
+                                 new VMWriter(output), CLASS_NAME, CLASS_NAME + ".jack"))
+            throw new RuntimeException("The generated class has errors");
+
+        return linesCount;
+    }
+}
@@ -0,0 +1,78 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package benchmarks;
+
+import java.io.File;
+
+import simulators.VMEmulator.VMEmulator;
+import simulators.controllers.HackController;
+
+/**
+ * Measures the vm instructions per second of the VM emulator, running a program which
+ * never ends. The instructions are executed either one by one, as the vmstep commands
+ * of a script, or together, as a repeated vmstep command (which uses the program
+ * compiled into JVM bytecode).
+ */
+public class VMEmulatorBenchmark extends Benchmark {
+
+    // The number of vm instructions in each run
+    private static final int INSTRUCTIONS_PER_RUN = 10000;
+
+    // The vmstep command
+    private static final String[] VMSTEP = {"vmstep"};
+
+    // The dir of the program's vm files
+    private File programDir;
+
+    // True if the instructions are executed by a repeated command
+    private boolean repeated;
+
+    // The emulator
+    private VMEmulator emulator;
+
+    /**
+     * Constructs a new VM emulator benchmark that runs the program in the given dir.
+     * If repeated is true, the instructions are executed by a repeated command.
+     */
+    public VMEmulatorBenchmark(String name, File programDir, boolean repeated) {
+        super(name, "instructions");
+        this.programDir = programDir;
+        this.repeated = repeated;
+    }
+
+    public void setUp() throws Exception {
+        emulator = new VMEmulator();
+        emulator.setAnimationMode(HackController.NO_DISPLAY_CHANGES);
+        emulator.setWorkingDir(programDir);
+        emulator.doCommand(new String[]{"load"});
+    }
+
+    public long run() throws Exception {
+        if (repeated)
+            emulator.doRepeatedCommand(VMSTEP, INSTRUCTIONS_PER_RUN);
+        else
+            for (int i = 0; i < INSTRUCTIONS_PER_RUN; i++)
+                emulator.doCommand(VMSTEP);
+
+        return INSTRUCTIONS_PER_RUN;
+    }
+
+    public void tearDown() {
+        emulator = null;
+    }
+}
@@ -17,6 +17,8 @@
 
 package builtInChips;
 
+import java.io.*;
+
 import simulators.hardwareSimulator.gates.BuiltInGate;
 
 /**
@@ -37,4 +39,12 @@ public class Bit extends BuiltInGate {
     protected void clockDown() {
         outputPins[0].set(state);
     }
+
+    protected void writeInternalState(DataOutputStream out) throws IOException {
+        out.writeShort(state);
+    }
+
+    protected void readInternalState(DataInputStream in) throws IOException {
+        state = in.readShort();
+    }
 }
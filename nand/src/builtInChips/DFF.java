@@ -17,6 +17,8 @@
 
 package builtInChips;
 
+import java.io.*;
+
 import simulators.hardwareSimulator.gates.*;
 
 /**
@@ -34,4 +36,12 @@ public class DFF extends BuiltInGate {
     protected void clockDown() {
         outputPins[0].set(state);
     }
+
+    protected void writeInternalState(DataOutputStream out) throws IOException {
+        out.writeShort(state);
+    }
+
+    protected void readInternalState(DataInputStream in) throws IOException {
+        state = in.readShort();
+    }
 }
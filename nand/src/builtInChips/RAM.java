@@ -18,12 +18,15 @@
 package builtInChips;
 
 import java.awt.*;
+import java.io.*;
 
 
 import simulators.ComputerParts.*;
 import simulators.GUI.*;
 import simulators.hardwareSimulator.gates.*;
 
+import common.SnapshotValues;
+
 /**
  * RAM chip of a variable size, each memory location is 16 bit-wide.
  * The output is the value stored at the memory location specified by address.
@@ -79,6 +82,16 @@ public abstract class RAM extends BuiltInGateWithGUI implements ComputerPartEven
         reCompute();
     }
 
+    protected void writeInternalState(DataOutputStream out) throws IOException {
+        SnapshotValues.write(out, values, 0, values.length);
+    }
+
+    protected void readInternalState(DataInputStream in) throws IOException {
+        SnapshotValues.read(in, values, 0, values.length);
+        if (memoryGUI != null)
+            memoryGUI.setContents(values);
+    }
+
     public Component getGUIComponent() {
         return memoryGUI;
     }
@@ -18,6 +18,7 @@
 package builtInChips;
 
 import java.awt.*;
+import java.io.*;
 
 import simulators.CPUEmulator.*;
 import simulators.ComputerParts.*;
@@ -30,6 +31,7 @@ import translators.assembler.AssemblyTranslator;
 import translators.assembler.AsmProgram.AsmLine;
 
 import common.Definitions;
+import common.SnapshotValues;
 
 
 /**
@@ -71,6 +73,16 @@ public class ROM32K extends BuiltInGateWithGUI
             gui.setPointer(address);
     }
 
+    protected void writeInternalState(DataOutputStream out) throws IOException {
+        SnapshotValues.write(out, values, 0, values.length);
+    }
+
+    protected void readInternalState(DataInputStream in) throws IOException {
+        SnapshotValues.read(in, values, 0, values.length);
+        if (gui != null)
+            gui.setContents(values);
+    }
+
     public Component getGUIComponent() {
         return gui;
     }
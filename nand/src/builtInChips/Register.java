@@ -17,6 +17,8 @@
 
 package builtInChips;
 
+import java.io.*;
+
 import simulators.hardwareSimulator.gates.*;
 
 /**
@@ -37,4 +39,12 @@ public class Register extends BuiltInGate {
     protected void clockDown() {
         outputPins[0].set(value);
     }
+
+    protected void writeInternalState(DataOutputStream out) throws IOException {
+        out.writeShort(value);
+    }
+
+    protected void readInternalState(DataInputStream in) throws IOException {
+        value = in.readShort();
+    }
 }
@@ -18,6 +18,7 @@
 package builtInChips;
 
 import java.awt.*;
+import java.io.*;
 
 
 import simulators.ComputerParts.*;
@@ -65,6 +66,16 @@ public class RegisterWithGUI extends BuiltInGateWithGUI implements ComputerPartE
         outputPins[0].set(value);
     }
 
+    protected void writeInternalState(DataOutputStream out) throws IOException {
+        out.writeShort(value);
+    }
+
+    protected void readInternalState(DataInputStream in) throws IOException {
+        value = in.readShort();
+        if (gui != null)
+            gui.setValueAt(0, value);
+    }
+
     public Component getGUIComponent() {
         return gui;
     }
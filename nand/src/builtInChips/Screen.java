@@ -18,11 +18,13 @@
 package builtInChips;
 
 import java.awt.*;
+import java.io.*;
 
 import simulators.GUI.components.*;
 import simulators.hardwareSimulator.gates.*;
 
 import common.Definitions;
+import common.SnapshotValues;
 
 
 /**
@@ -67,6 +69,16 @@ public class Screen extends BuiltInGateWithGUI {
         reCompute();
     }
 
+    protected void writeInternalState(DataOutputStream out) throws IOException {
+        SnapshotValues.write(out, values, 0, values.length);
+    }
+
+    protected void readInternalState(DataInputStream in) throws IOException {
+        SnapshotValues.read(in, values, 0, values.length);
+        if (gui != null)
+            gui.setContents(values);
+    }
+
     public Component getGUIComponent() {
         return gui;
     }
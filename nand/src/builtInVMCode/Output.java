@@ -32,15 +32,16 @@ public class Output extends JackOSClass {
 	private static final int N_ROWS = SCREEN_HEIGHT/11;
 	private static final int START_ADDRESS = SCREEN_WIDTH>>4;
 
-    static int wordInLine, address;
-    static boolean firstInWord;
-	static int map[][];
+	// The bitmaps of the characters
+	private static final int map[][] = new int[127][11];
 
-	public static void init() {
-        firstInWord = true;
-        address = START_ADDRESS;
-        wordInLine = 0;
-		map = new int[127][11];
+	// The cursor of a running program
+	private static class Cursor {
+		int wordInLine, address;
+		boolean firstInWord;
+	}
+
+	static {
         create(0, 63, 63, 63, 63, 63, 63, 63, 63, 63, 0, 0);
         create(32, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
         create(33, 12, 30, 30, 30, 12, 12, 0, 12, 12, 0, 0);
@@ -139,6 +140,23 @@ public class Output extends JackOSClass {
         create(126, 38, 45, 25, 0, 0, 0, 0, 0, 0, 0, 0);
     }
 
+	// Returns the cursor of the running program
+	private static Cursor cursor() {
+		Cursor cursor = (Cursor)getProgramState(Output.class);
+		if (cursor == null) {
+			cursor = new Cursor();
+			setProgramState(Output.class, cursor);
+		}
+		return cursor;
+	}
+
+	public static void init() {
+		Cursor cursor = cursor();
+        cursor.firstInWord = true;
+        cursor.address = START_ADDRESS;
+        cursor.wordInLine = 0;
+    }
+
     private static void create(int c, int line0, int line1, int line2,
 							   int line3, int line4, int line5,
 							   int line6, int line7, int line8,
@@ -158,19 +176,18 @@ public class Output extends JackOSClass {
 
     private static void drawChar(int c) throws TerminateVMProgramThrowable {
 		if (c < 32 || c >= 127) c = 0;
+		Cursor cursor = cursor();
 		int mask;
 		int shift;
-		if (firstInWord) {
+		if (cursor.firstInWord) {
 			mask = 0xFF00;
 			shift = 0;
 		} else {
 			mask = 0x00FF;
 			shift = 8;
 		}
-        for (int i=0, j=address; i<11; ++i, j+=(SCREEN_WIDTH>>4)) {
-			writeMemory(SCREEN_START_ADDRESS+j,
-						(readMemory(SCREEN_START_ADDRESS+j)&mask) |
-						(map[c][i]<<shift));
+        for (int i=0, j=cursor.address; i<11; ++i, j+=(SCREEN_WIDTH>>4)) {
+			updateMemory(SCREEN_START_ADDRESS+j, 1, mask, map[c][i]<<shift);
         }
     }
 
@@ -179,9 +196,10 @@ public class Output extends JackOSClass {
         if (row < 0 || row >= N_ROWS || col < 0 || col >= N_COLS) {
 			callFunction("Sys.error", OUTPUT_MOVECURSOR_ILLEGAL_POSITION);
         }
-        wordInLine = col / 2;
-        address = START_ADDRESS + (row * (11*(SCREEN_WIDTH>>4))) + wordInLine;
-        firstInWord = ((col&1) == 0);
+        Cursor cursor = cursor();
+        cursor.wordInLine = col / 2;
+        cursor.address = START_ADDRESS + (row * (11*(SCREEN_WIDTH>>4))) + cursor.wordInLine;
+        cursor.firstInWord = ((col&1) == 0);
         drawChar(' ');
     }
 
@@ -192,16 +210,17 @@ public class Output extends JackOSClass {
 			backSpace();
 		} else {
 			drawChar(c);
-			if (!firstInWord) {
-				++wordInLine;
-				++address;
-				if (wordInLine == (SCREEN_WIDTH>>4)) {
+			Cursor cursor = cursor();
+			if (!cursor.firstInWord) {
+				++cursor.wordInLine;
+				++cursor.address;
+				if (cursor.wordInLine == (SCREEN_WIDTH>>4)) {
 					println();
 				} else {
-					firstInWord = !firstInWord;
+					cursor.firstInWord = !cursor.firstInWord;
 				}
 			} else {
-				firstInWord = !firstInWord;
+				cursor.firstInWord = !cursor.firstInWord;
 			}
 		}
     }
@@ -222,29 +241,31 @@ public class Output extends JackOSClass {
     }
 
     public static void println() throws TerminateVMProgramThrowable {
-        address = (address + 11*(SCREEN_WIDTH>>4)) - wordInLine;
-        wordInLine = 0;
-        firstInWord = true;
-        if (address == START_ADDRESS+N_ROWS*11*(SCREEN_WIDTH>>4)) {
-            address = START_ADDRESS;
+        Cursor cursor = cursor();
+        cursor.address = (cursor.address + 11*(SCREEN_WIDTH>>4)) - cursor.wordInLine;
+        cursor.wordInLine = 0;
+        cursor.firstInWord = true;
+        if (cursor.address == START_ADDRESS+N_ROWS*11*(SCREEN_WIDTH>>4)) {
+            cursor.address = START_ADDRESS;
         }
     }
 
     public static void backSpace() throws TerminateVMProgramThrowable {
-        if (firstInWord) {
-            if (wordInLine > 0) {
-                --wordInLine;
-				--address;
+        Cursor cursor = cursor();
+        if (cursor.firstInWord) {
+            if (cursor.wordInLine > 0) {
+                --cursor.wordInLine;
+				--cursor.address;
 			} else {
-				wordInLine = (SCREEN_WIDTH>>4)-1;
-				if (address == START_ADDRESS) {
-					address = START_ADDRESS+N_ROWS*11*(SCREEN_WIDTH>>4);
+				cursor.wordInLine = (SCREEN_WIDTH>>4)-1;
+				if (cursor.address == START_ADDRESS) {
+					cursor.address = START_ADDRESS+N_ROWS*11*(SCREEN_WIDTH>>4);
 				}
-				address -= 10*(SCREEN_WIDTH>>4) + 1;
+				cursor.address -= 10*(SCREEN_WIDTH>>4) + 1;
 			}
-			firstInWord = false;
+			cursor.firstInWord = false;
         } else {
-            firstInWord = true;
+            cursor.firstInWord = true;
         }
         drawChar(' ');
     }
@@ -25,32 +25,62 @@ import simulators.VMEmulator.TerminateVMProgramThrowable;
  */
 
 public class Screen extends JackOSClass {
-	private static boolean black;
+	// The drawing color of a running program
+	private static class Color {
+		boolean black;
+	}
+
+	// Returns the drawing color of the running program
+	private static Color color() {
+		Color color = (Color)getProgramState(Screen.class);
+		if (color == null) {
+			color = new Color();
+			setProgramState(Screen.class, color);
+		}
+		return color;
+	}
 
 	public static void init() {
-		black = true;
+		color().black = true;
     }
 
     public static void clearScreen() throws TerminateVMProgramThrowable {
-		for (int i=SCREEN_START_ADDRESS; i<=SCREEN_END_ADDRESS; ++i) {
-			writeMemory(i, 0);
-		}
+		fillMemory(SCREEN_START_ADDRESS,
+				   SCREEN_END_ADDRESS - SCREEN_START_ADDRESS + 1, 0);
     }
 
     private static void updateLocation(int address, int mask)
 			throws TerminateVMProgramThrowable {
+		updateLocations(address, 1, mask);
+    }
+
+	// Updates length consecutive screen words with the same mask
+    private static void updateLocations(int address, int length, int mask)
+			throws TerminateVMProgramThrowable {
 		address += SCREEN_START_ADDRESS;
-		int value = readMemory(address);
-		if (black) {
-			value |= mask;
+		if (color().black) {
+			updateMemory(address, length, 0xFFFF, mask);
+		} else {
+			updateMemory(address, length, ~mask, 0);
+		}
+    }
+
+	// Updates the words of one row of a horizontal span, which starts at
+	// the given address and ends wordsDiff words after it
+    private static void updateRow(int address, int wordsDiff,
+								  int firstWordMask, int lastWordMask)
+			throws TerminateVMProgramThrowable {
+		if (wordsDiff == 0) {
+			updateLocation(address, lastWordMask & firstWordMask);
 		} else {
-			value &= ~mask;
+			updateLocation(address, firstWordMask);
+			updateLocations(address + 1, wordsDiff - 1, 0xFFFF);
+			updateLocation(address + wordsDiff, lastWordMask);
 		}
-		writeMemory(address, value);
     }
 
     public static void setColor(short color) {
-		black = (color!=0);
+		color().black = (color!=0);
     }
 
     public static void drawPixel(short x, short y)
@@ -137,20 +167,8 @@ public class Screen extends JackOSClass {
 		int lastWordMask = 0xFFFF>>>(15-(x2&15));
         int address = (y1 * (SCREEN_WIDTH>>4)) + x1Word;
         int wordsDiff = x2Word - x1Word;
-		if (wordsDiff == 0) {
-			int mask = lastWordMask&firstWordMask;
-			for (;y1<=y2;++y1,address+=(SCREEN_WIDTH>>4)) {
-				updateLocation(address, lastWordMask&firstWordMask);
-			}
-		} else {
-			for (;y1<=y2;++y1,address += (SCREEN_WIDTH>>4)-wordsDiff) {
-				int lastAddressInLine = address + wordsDiff;
-				updateLocation(address, firstWordMask);
-				for (++address; address < lastAddressInLine; ++address) {
-					updateLocation(address, 0xFFFF);
-				}
-				updateLocation(address, lastWordMask);
-			}
+		for (;y1<=y2;++y1,address+=(SCREEN_WIDTH>>4)) {
+			updateRow(address, wordsDiff, firstWordMask, lastWordMask);
 		}
     }
 
@@ -164,21 +182,8 @@ public class Screen extends JackOSClass {
 		int wordsDiff = maxXWord - minXWord;
 		int address1 = (y1 * (SCREEN_WIDTH>>4)) + minXWord;
 		int address2 = (y2 * (SCREEN_WIDTH>>4)) + minXWord;
-		if (wordsDiff == 0) {
-			updateLocation(address1, lastWordMask & firstWordMask);
-			updateLocation(address2, lastWordMask & firstWordMask);
-		} else {
-			int lastAddressInLine1 = address1 + wordsDiff;
-			updateLocation(address1, firstWordMask);
-			updateLocation(address2, firstWordMask);
-			for (++address1, ++address2;address1 < lastAddressInLine1;
-				 ++address1, ++address2) {
-				updateLocation(address1, 0xFFFF);
-				updateLocation(address2, 0xFFFF);
-			}
-			updateLocation(address1, lastWordMask);
-			updateLocation(address2, lastWordMask);
-		}
+		updateRow(address1, wordsDiff, firstWordMask, lastWordMask);
+		updateRow(address2, wordsDiff, firstWordMask, lastWordMask);
     }
 
     public static void drawCircle(short x, short y, short radius)
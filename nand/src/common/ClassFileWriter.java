@@ -0,0 +1,441 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package common;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A minimal writer of JVM class files, used for translating simulated code into JVM
+ * bytecode at runtime. The class file is written in version 49 format, which doesn't
+ * require stack map frames, so the code of a method is just a sequence of instructions.
+ * Class names are given in their internal form (e.g. "java/lang/Object").
+ * Branch offsets are limited to 16 bits, so a method's code must be shorter than 32K.
+ */
+public class ClassFileWriter implements JVMOpcodes {
+
+    /**
+     * Access flags.
+     */
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PRIVATE = 0x0002;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    // Constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // The constant pool entries
+    private ByteArrayOutputStream constantsBytes;
+    private DataOutputStream constants;
+
+    // The number of constant pool entries (including the unused entry 0)
+    private int constantsCount;
+
+    // The indice of the constant pool entries, by a description of the entry
+    private Hashtable<String, Integer> constantsIndice;
+
+    // The fields and methods of the class
+    private DataOutputStream fields, methods;
+    private ByteArrayOutputStream fieldsBytes, methodsBytes;
+    private int fieldsCount, methodsCount;
+
+    // The name, super class and interfaces of the class
+    private int thisClass, superClass;
+    private int[] interfaces;
+
+    // The code of the current method
+    private ByteArrayOutputStream code;
+
+    // The access flags, name and descriptor indice of the current method
+    private int methodAccess, methodName, methodDescriptor;
+
+    // The code offsets of the marked labels (-1 if not marked yet)
+    private int[] labels;
+    private int labelsCount;
+
+    // The branches to labels: the offset of the branch instruction, the offset of its
+    // branch offset in the code, the size of the branch offset (2 or 4) and the label,
+    // per branch
+    private int[] branches;
+    private int branchesCount;
+
+    /**
+     * Constructs a new class file writer of a class with the given name, super class and
+     * interfaces (may be null).
+     */
+    public ClassFileWriter(String className, String superName, String[] interfaceNames) {
+        constantsBytes = new ByteArrayOutputStream();
+        constants = new DataOutputStream(constantsBytes);
+        constantsCount = 1;
+        constantsIndice = new Hashtable<String, Integer>();
+
+        fieldsBytes = new ByteArrayOutputStream();
+        fields = new DataOutputStream(fieldsBytes);
+        methodsBytes = new ByteArrayOutputStream();
+        methods = new DataOutputStream(methodsBytes);
+
+        thisClass = classConstant(className);
+        superClass = classConstant(superName);
+        interfaces = new int[interfaceNames != null ? interfaceNames.length : 0];
+        for (int i = 0; i < interfaces.length; i++)
+            interfaces[i] = classConstant(interfaceNames[i]);
+    }
+
+    /**
+     * Adds a field with the given access flags, name and descriptor.
+     */
+    public void addField(int access, String name, String descriptor) {
+        try {
+            fields.writeShort(access);
+            fields.writeShort(utf8Constant(name));
+            fields.writeShort(utf8Constant(descriptor));
+            fields.writeShort(0);
+        } catch (IOException ioe) {}
+        fieldsCount++;
+    }
+
+    /**
+     * Starts the code of a new method with the given access flags, name and descriptor.
+     */
+    public void beginMethod(int access, String name, String descriptor) {
+        methodAccess = access;
+        methodName = utf8Constant(name);
+        methodDescriptor = utf8Constant(descriptor);
+        code = new ByteArrayOutputStream();
+        labels = new int[16];
+        labelsCount = 0;
+        branches = new int[64];
+        branchesCount = 0;
+    }
+
+    /**
+     * Ends the code of the current method, with the given maximal stack depth and
+     * number of local variables (including the parameters).
+     * Throws IllegalStateException if a branch refers to an unmarked label, or if the
+     * code is too long.
+     */
+    public void endMethod(int maxStack, int maxLocals) {
+        byte[] bytes = code.toByteArray();
+        if (bytes.length >= 32768)
+            throw new IllegalStateException("Method code is too long");
+
+        for (int i = 0; i < branchesCount; i += 4) {
+            int target = labels[branches[i + 3]];
+            if (target == -1)
+                throw new IllegalStateException("Branch to an unmarked label");
+
+            int offset = target - branches[i];
+            int position = branches[i + 1];
+            for (int shift = (branches[i + 2] - 1) * 8; shift >= 0; shift -= 8)
+                bytes[position++] = (byte)(offset >> shift);
+        }
+
+        try {
+            methods.writeShort(methodAccess);
+            methods.writeShort(methodName);
+            methods.writeShort(methodDescriptor);
+            methods.writeShort(1);
+            methods.writeShort(utf8Constant("Code"));
+            methods.writeInt(12 + bytes.length);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(bytes.length);
+            methods.write(bytes);
+            methods.writeShort(0); // exception table
+            methods.writeShort(0); // attributes
+        } catch (IOException ioe) {}
+        methodsCount++;
+        code = null;
+    }
+
+    /**
+     * Returns the bytes of the class file.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(constantsCount);
+            constantsBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i = 0; i < interfaces.length; i++)
+                out.writeShort(interfaces[i]);
+            out.writeShort(fieldsCount);
+            fieldsBytes.writeTo(out);
+            out.writeShort(methodsCount);
+            methodsBytes.writeTo(out);
+            out.writeShort(0);
+        } catch (IOException ioe) {}
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the current offset in the code of the current method.
+     */
+    public int getCodeSize() {
+        return code.size();
+    }
+
+    /**
+     * Emits an instruction with no operands.
+     */
+    public void op(int opcode) {
+        code.write(opcode);
+    }
+
+    /**
+     * Emits an instruction that pushes the given int constant, in its shortest form.
+     */
+    public void pushInt(int value) {
+        if (value >= -1 && value <= 5)
+            code.write(ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(value);
+        }
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.write(SIPUSH);
+            writeShort(value);
+        }
+        else {
+            code.write(LDC_W);
+            writeShort(constant(CONSTANT_INTEGER, String.valueOf(value), value, -1));
+        }
+    }
+
+    /**
+     * Emits an instruction that pushes the given string constant.
+     */
+    public void pushString(String value) {
+        code.write(LDC_W);
+        writeShort(constant(CONSTANT_STRING, value, utf8Constant(value), -1));
+    }
+
+    /**
+     * Emits a local variable instruction (xLOAD, xSTORE) with the given variable index.
+     */
+    public void varOp(int opcode, int index) {
+        code.write(opcode);
+        code.write(index);
+    }
+
+    /**
+     * Emits an IINC instruction of the given local variable by the given amount
+     * (-128..127).
+     */
+    public void iinc(int index, int amount) {
+        code.write(IINC);
+        code.write(index);
+        code.write(amount);
+    }
+
+    /**
+     * Emits a field instruction (GETFIELD, PUTFIELD, GETSTATIC, PUTSTATIC).
+     */
+    public void fieldOp(int opcode, String owner, String name, String descriptor) {
+        code.write(opcode);
+        writeShort(memberConstant(CONSTANT_FIELDREF, owner, name, descriptor));
+    }
+
+    /**
+     * Emits a method invocation instruction (INVOKEVIRTUAL, INVOKESPECIAL,
+     * INVOKESTATIC, INVOKEINTERFACE).
+     */
+    public void methodOp(int opcode, String owner, String name, String descriptor) {
+        code.write(opcode);
+        if (opcode == INVOKEINTERFACE) {
+            writeShort(memberConstant(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor));
+            code.write(argumentsSize(descriptor) + 1);
+            code.write(0);
+        }
+        else
+            writeShort(memberConstant(CONSTANT_METHODREF, owner, name, descriptor));
+    }
+
+    /**
+     * Emits a type instruction (NEW, CHECKCAST) of the given class.
+     */
+    public void typeOp(int opcode, String className) {
+        code.write(opcode);
+        writeShort(classConstant(className));
+    }
+
+    /**
+     * Returns a new label, to be marked later.
+     */
+    public int newLabel() {
+        if (labelsCount == labels.length) {
+            int[] newLabels = new int[labels.length * 2];
+            System.arraycopy(labels, 0, newLabels, 0, labels.length);
+            labels = newLabels;
+        }
+
+        labels[labelsCount] = -1;
+        return labelsCount++;
+    }
+
+    /**
+     * Marks the given label at the current code offset.
+     */
+    public void mark(int label) {
+        labels[label] = code.size();
+    }
+
+    /**
+     * Emits a branch instruction (IFxx, IF_ICMPxx, GOTO) to the given label.
+     */
+    public void jump(int opcode, int label) {
+        addBranch(code.size(), code.size() + 1, 2, label);
+        code.write(opcode);
+        writeShort(0);
+    }
+
+    /**
+     * Emits a TABLESWITCH instruction on the values low..low+targets.length-1, to the
+     * given labels, and to the given default label for other values.
+     */
+    public void tableSwitch(int low, int defaultLabel, int[] targets) {
+        int start = code.size();
+        code.write(TABLESWITCH);
+        while (code.size() % 4 != 0)
+            code.write(0);
+
+        addBranch(start, code.size(), 4, defaultLabel);
+        writeInt(0);
+        writeInt(low);
+        writeInt(low + targets.length - 1);
+        for (int i = 0; i < targets.length; i++) {
+            addBranch(start, code.size(), 4, targets[i]);
+            writeInt(0);
+        }
+    }
+
+    // Records a branch from the given instruction to the given label, whose offset
+    // (of the given size) is written at the given position.
+    private void addBranch(int instruction, int position, int size, int label) {
+        if (branchesCount == branches.length) {
+            int[] newBranches = new int[branches.length * 2];
+            System.arraycopy(branches, 0, newBranches, 0, branches.length);
+            branches = newBranches;
+        }
+
+        branches[branchesCount++] = instruction;
+        branches[branchesCount++] = position;
+        branches[branchesCount++] = size;
+        branches[branchesCount++] = label;
+    }
+
+    // Writes a 16-bit value to the code
+    private void writeShort(int value) {
+        code.write(value >> 8);
+        code.write(value);
+    }
+
+    // Writes a 32-bit value to the code
+    private void writeInt(int value) {
+        writeShort(value >> 16);
+        writeShort(value);
+    }
+
+    // Returns the number of words taken by the arguments of the given method descriptor
+    private static int argumentsSize(String descriptor) {
+        int size = 0;
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D')
+                size += 2;
+            else {
+                size++;
+                while (c == '[')
+                    c = descriptor.charAt(++i);
+                if (c == 'L')
+                    i = descriptor.indexOf(';', i);
+            }
+        }
+
+        return size;
+    }
+
+    // Returns the index of the UTF8 constant of the given string
+    private int utf8Constant(String value) {
+        return constant(CONSTANT_UTF8, value, -1, -1);
+    }
+
+    // Returns the index of the class constant of the given class
+    private int classConstant(String className) {
+        return constant(CONSTANT_CLASS, className, utf8Constant(className), -1);
+    }
+
+    // Returns the index of the field or method reference constant of the given member
+    private int memberConstant(int tag, String owner, String name, String descriptor) {
+        int nameAndType = constant(CONSTANT_NAME_AND_TYPE, name + " " + descriptor,
+                                   utf8Constant(name), utf8Constant(descriptor));
+        return constant(tag, owner + "." + name + " " + descriptor, classConstant(owner),
+                        nameAndType);
+    }
+
+    // Returns the index of the constant with the given tag and description, and adds it
+    // to the pool if it doesn't exist. Integer constants are given by their value,
+    // UTF8 constants by their description, and other constants by the indice of the
+    // constants they refer to.
+    private int constant(int tag, String description, int value1, int value2) {
+        String key = tag + ":" + description;
+        Integer index = constantsIndice.get(key);
+        if (index != null)
+            return index.intValue();
+
+        try {
+            constants.writeByte(tag);
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    constants.writeUTF(description);
+                    break;
+                case CONSTANT_INTEGER:
+                    constants.writeInt(value1);
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                    constants.writeShort(value1);
+                    break;
+                default:
+                    constants.writeShort(value1);
+                    constants.writeShort(value2);
+            }
+        } catch (IOException ioe) {}
+
+        constantsIndice.put(key, Integer.valueOf(constantsCount));
+        return constantsCount++;
+    }
+}
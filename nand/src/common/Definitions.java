@@ -391,8 +391,8 @@ public class Definitions {
     public static final short F11_KEY = 151;
     public static final short F12_KEY = 152;
 
-    // the single instance
-    private static Definitions instance;
+    // the single instance (created eagerly, so that it is safely shared by threads)
+    private static final Definitions instance = new Definitions();
 
     // the translation table from pointer names to addresses
     private Hashtable<String, Short> addresses;
@@ -410,8 +410,6 @@ public class Definitions {
      * Returns the single instance of the definitions object.
      */
     public static Definitions getInstance() {
-        if (instance == null)
-            instance = new Definitions();
         return instance;
     }
 
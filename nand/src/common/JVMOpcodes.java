@@ -0,0 +1,85 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package common;
+
+/**
+ * The opcodes of the JVM instructions emitted by the ClassFileWriter.
+ */
+public interface JVMOpcodes {
+
+    int ICONST_0 = 3;
+    int BIPUSH = 16;
+    int SIPUSH = 17;
+    int LDC_W = 19;
+    int ILOAD = 21;
+    int ALOAD = 25;
+    int IALOAD = 46;
+    int AALOAD = 50;
+    int SALOAD = 53;
+    int ISTORE = 54;
+    int ASTORE = 58;
+    int IASTORE = 79;
+    int AASTORE = 83;
+    int SASTORE = 86;
+    int POP = 87;
+    int DUP = 89;
+    int DUP_X1 = 90;
+    int DUP_X2 = 91;
+    int SWAP = 95;
+    int IADD = 96;
+    int ISUB = 100;
+    int IMUL = 104;
+    int IDIV = 108;
+    int INEG = 116;
+    int ISHL = 120;
+    int ISHR = 122;
+    int IAND = 126;
+    int IOR = 128;
+    int IXOR = 130;
+    int IINC = 132;
+    int I2S = 147;
+    int IFEQ = 153;
+    int IFNE = 154;
+    int IFLT = 155;
+    int IFGE = 156;
+    int IFGT = 157;
+    int IFLE = 158;
+    int IF_ICMPEQ = 159;
+    int IF_ICMPNE = 160;
+    int IF_ICMPLT = 161;
+    int IF_ICMPGE = 162;
+    int IF_ICMPGT = 163;
+    int IF_ICMPLE = 164;
+    int GOTO = 167;
+    int TABLESWITCH = 170;
+    int IRETURN = 172;
+    int ARETURN = 176;
+    int RETURN = 177;
+    int GETSTATIC = 178;
+    int PUTSTATIC = 179;
+    int GETFIELD = 180;
+    int PUTFIELD = 181;
+    int INVOKEVIRTUAL = 182;
+    int INVOKESPECIAL = 183;
+    int INVOKESTATIC = 184;
+    int INVOKEINTERFACE = 185;
+    int NEW = 187;
+    int ARRAYLENGTH = 190;
+    int ATHROW = 191;
+    int CHECKCAST = 192;
+}
@@ -0,0 +1,87 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package common;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * A static service of writing arrays of values to snapshots of a simulator's state,
+ * and reading them back. The values are written compactly, as runs of a repeated value
+ * (which are only counted) followed by runs of other values, since most of the memory
+ * of a simulated computer is usually empty (e.g. zeros in the RAM and no-operations in
+ * the ROM).
+ */
+public class SnapshotValues {
+
+    // The minimal number of equal consecutive values that ends a run of other values
+    private static final int MIN_REPEATED_RUN = 8;
+
+    /**
+     * Writes the values in the given range of the given array to the given stream.
+     */
+    public static void write(DataOutputStream out, short[] values, int start, int length)
+     throws IOException {
+        int end = start + length;
+        int i = start;
+        while (i < end) {
+            int repeatedStart = i;
+            short repeated = values[i];
+            while (i < end && values[i] == repeated)
+                i++;
+
+            // the run of other values may repeat a value a few times, but not at its end
+            int otherStart = i;
+            int equal = 0;
+            while (i < end && equal < MIN_REPEATED_RUN) {
+                equal = (values[i] == values[i - 1] ? equal + 1 : 1);
+                i++;
+            }
+            i -= equal;
+
+            out.writeInt(otherStart - repeatedStart);
+            out.writeShort(repeated);
+            out.writeInt(i - otherStart);
+            for (int j = otherStart; j < i; j++)
+                out.writeShort(values[j]);
+        }
+    }
+
+    /**
+     * Reads values that were written by write() into the given range of the given array.
+     * Throws IOException if the values don't fit the range.
+     */
+    public static void read(DataInputStream in, short[] values, int start, int length)
+     throws IOException {
+        int end = start + length;
+        int i = start;
+        while (i < end) {
+            int repeatedCount = in.readInt();
+            short repeated = in.readShort();
+            int otherCount = in.readInt();
+            if (repeatedCount <= 0 || otherCount < 0 || repeatedCount > end - i ||
+                otherCount > end - i - repeatedCount)
+                throw new IOException("Illegal values");
+
+            Arrays.fill(values, i, i + repeatedCount, repeated);
+            i += repeatedCount;
+            for (int j = 0; j < otherCount; j++)
+                values[i++] = in.readShort();
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.CPUEmulator;
+
+import java.lang.invoke.MethodHandles;
+import common.ClassFileWriter;
+import common.JVMOpcodes;
+import common.Definitions;
+
+/**
+ * Translates basic blocks of decoded Hack instructions (see FastCPU) into JVM bytecode.
+ * A block starts at a given address and ends after a jump instruction, before a leader
+ * (an instruction after a jump or a constant jump target), or before an instruction that
+ * can't be translated (an illegal instruction, a computation that is unknown to the
+ * assembler or an instruction that always fails). Each block is defined as a hidden class
+ * which extends CompiledBlock, and keeps the A and D registers in local variables.
+ * Address checks which fail make the block return before the failing instruction, so the
+ * error is reported by the interpreter.
+ */
+class BlockCompiler implements JVMOpcodes {
+
+    // The maximal number of instructions in a block
+    private static final int MAX_BLOCK_LENGTH = 256;
+
+    // The name of the blocks' super class
+    private static final String SUPER_NAME = "simulators/CPUEmulator/CompiledBlock";
+
+    // Local variables of the execute method
+    private static final int RAM = 1;
+    private static final int REGISTERS = 2;
+    private static final int A = 3;
+    private static final int D = 4;
+    private static final int OUT = 5;
+
+    // The decoded instructions, and the ROM values they were decoded from
+    private int[] decoded;
+    private short[] decodedValues;
+
+    // The size of the RAM
+    private int ramSize;
+
+    // true for addresses that start basic blocks (null if not computed yet)
+    private boolean[] leaders;
+
+    // The writer of the current block
+    private ClassFileWriter writer;
+
+    // The labels where the current block returns before failing instructions, by
+    // offset in the block (-1 if none)
+    private int[] bailLabels;
+
+    // The value of A if known at the current instruction, -1 otherwise
+    private int knownA;
+
+    // true if A is known to be a legal RAM address at the current instruction
+    private boolean isACheckedAddress;
+
+    /**
+     * Constructs a new block compiler of the given decoded instructions (and the ROM
+     * values they were decoded from), with the given RAM size.
+     */
+    public BlockCompiler(int[] decoded, short[] decodedValues, int ramSize) {
+        this.decoded = decoded;
+        this.decodedValues = decodedValues;
+        this.ramSize = ramSize;
+    }
+
+    /**
+     * Should be called when the instructions change: the leaders are re-computed.
+     */
+    public void invalidate() {
+        leaders = null;
+    }
+
+    /**
+     * Returns the basic block which starts at the given address, or null if the
+     * instruction at the address can't be translated.
+     */
+    public CompiledBlock compile(int start) {
+        if (leaders == null)
+            computeLeaders();
+
+        int length = getBlockLength(start);
+        if (length == 0)
+            return null;
+
+        writer = new ClassFileWriter("simulators/CPUEmulator/HackBlock", SUPER_NAME, null);
+        writer.beginMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V");
+        writer.varOp(ALOAD, 0);
+        writer.methodOp(INVOKESPECIAL, SUPER_NAME, "<init>", "()V");
+        writer.op(RETURN);
+        writer.endMethod(1, 1);
+
+        writer.beginMethod(0, "execute", "([S[S)I");
+        writer.varOp(ALOAD, REGISTERS);
+        writer.pushInt(0);
+        writer.op(SALOAD);
+        writer.varOp(ISTORE, A);
+        writer.varOp(ALOAD, REGISTERS);
+        writer.pushInt(1);
+        writer.op(SALOAD);
+        writer.varOp(ISTORE, D);
+
+        bailLabels = new int[length];
+        for (int i = 0; i < length; i++)
+            bailLabels[i] = -1;
+        knownA = -1;
+        isACheckedAddress = false;
+
+        int lastCInstruction = -1;
+        boolean jumped = false;
+        for (int i = 0; i < length; i++) {
+            int instruction = decoded[start + i];
+            switch (instruction & 0x7) {
+                case FastCPU.KIND_A:
+                    knownA = instruction >>> 16;
+                    writer.pushInt(knownA);
+                    writer.varOp(ISTORE, A);
+                    isACheckedAddress = (knownA < ramSize);
+                    break;
+                case FastCPU.KIND_C:
+                    jumped = compileC(instruction, i, start + i);
+                    lastCInstruction = decodedValues[start + i] & 0xffff;
+                    break;
+            }
+        }
+
+        if (!jumped)
+            returnAddress(start + length);
+
+        for (int i = 0; i < length; i++)
+            if (bailLabels[i] != -1) {
+                writer.mark(bailLabels[i]);
+                returnAddress(-(start + i) - 1);
+            }
+
+        writer.endMethod(10, OUT + 1);
+
+        CompiledBlock block;
+        try {
+            Class<?> blockClass = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(),
+                                                                          true).lookupClass();
+            block = (CompiledBlock)blockClass.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            return null;
+        } finally {
+            writer = null;
+        }
+
+        block.start = start;
+        block.length = length;
+        block.lastCInstruction = lastCInstruction;
+        return block;
+    }
+
+    // Computes the leaders: addresses after jump instructions and constant jump targets
+    // (of jump instructions which follow A instructions).
+    private void computeLeaders() {
+        leaders = new boolean[decoded.length];
+        for (int i = 0; i < decoded.length; i++)
+            if (isJump(decoded[i])) {
+                if (i + 1 < decoded.length)
+                    leaders[i + 1] = true;
+                if (i > 0 && (decoded[i - 1] & 0x7) == FastCPU.KIND_A) {
+                    int target = decoded[i - 1] >>> 16;
+                    if (target < decoded.length)
+                        leaders[target] = true;
+                }
+            }
+    }
+
+    // Returns the number of instructions in the block which starts at the given address.
+    // The last ROM address is never included, so a block never continues past it.
+    private int getBlockLength(int start) {
+        int a = -1;
+        int length = 0;
+        for (int address = start; length < MAX_BLOCK_LENGTH && address < decoded.length - 1;
+             address++) {
+            if (address != start && leaders[address])
+                break;
+
+            int instruction = decoded[address];
+            int kind = instruction & 0x7;
+            if (kind == FastCPU.KIND_ILLEGAL || kind == FastCPU.KIND_UNKNOWN_EXP ||
+                    (kind == FastCPU.KIND_C && a != -1 && alwaysFails(instruction, a)))
+                break;
+
+            length++;
+            if (kind == FastCPU.KIND_A)
+                a = instruction >>> 16;
+            else if (kind == FastCPU.KIND_C) {
+                if (isJump(instruction))
+                    break;
+                if ((((instruction >> 8) & 0x7) & FastCPU.DEST_A) != 0)
+                    a = -1;
+            }
+        }
+
+        return length;
+    }
+
+    // Returns true if the given decoded C instruction always fails when A has the
+    // given value.
+    private boolean alwaysFails(int instruction, int a) {
+        boolean usesM = (instruction & 0x4000) != 0 ||
+                        (((instruction >> 8) & 0x7) & FastCPU.DEST_M) != 0;
+        boolean jumpsToA = ((instruction >> 11) & 0x7) == 0x7 &&
+                           (((instruction >> 8) & 0x7) & FastCPU.DEST_A) == 0;
+        return (usesM && a >= ramSize) || (jumpsToA && a >= Definitions.ROM_SIZE);
+    }
+
+    // Returns true if the given decoded instruction is a C instruction with a jump.
+    private static boolean isJump(int instruction) {
+        return (instruction & 0x7) == FastCPU.KIND_C && ((instruction >> 11) & 0x7) != 0;
+    }
+
+    // Translates the given decoded C instruction, at the given offset in the block and
+    // the given address. Returns true if the instruction is a jump (and the block ends).
+    private boolean compileC(int instruction, int offset, int address) {
+        boolean indirect = (instruction & 0x4000) != 0;
+        int dest = (instruction >> 8) & 0x7;
+        int jump = (instruction >> 11) & 0x7;
+
+        if ((indirect || (dest & FastCPU.DEST_M) != 0) && !isACheckedAddress) {
+            checkRange(A, ramSize, offset);
+            isACheckedAddress = true;
+        }
+
+        compute((instruction >> 3) & 0x1f, indirect, instruction >>> 16);
+        writer.varOp(ISTORE, OUT);
+
+        // check the jump address before anything is written
+        int newA = ((dest & FastCPU.DEST_A) != 0) ? OUT : A;
+        boolean isNewAKnown = (newA == A && knownA != -1);
+        if (jump != 0 && !(isNewAKnown && knownA < Definitions.ROM_SIZE)) {
+            int noJump = writer.newLabel();
+            if (jump != 0x7) {
+                writer.varOp(ILOAD, OUT);
+                writer.jump(getJumpOpcode(0x7 & ~jump), noJump);
+            }
+            if (isNewAKnown)
+                writer.jump(GOTO, getBailLabel(offset));
+            else
+                checkRange(newA, Definitions.ROM_SIZE, offset);
+            writer.mark(noJump);
+        }
+
+        if ((dest & FastCPU.DEST_M) != 0) {
+            writer.varOp(ALOAD, RAM);
+            writer.varOp(ILOAD, A);
+            writer.varOp(ILOAD, OUT);
+            writer.op(SASTORE);
+        }
+        if ((dest & FastCPU.DEST_A) != 0) {
+            writer.varOp(ILOAD, OUT);
+            writer.varOp(ISTORE, A);
+            knownA = -1;
+            isACheckedAddress = false;
+        }
+        if ((dest & FastCPU.DEST_D) != 0) {
+            writer.varOp(ILOAD, OUT);
+            writer.varOp(ISTORE, D);
+        }
+
+        if (jump == 0)
+            return false;
+
+        if (jump != 0x7) {
+            int noJump = writer.newLabel();
+            writer.varOp(ILOAD, OUT);
+            writer.jump(getJumpOpcode(0x7 & ~jump), noJump);
+            returnRegister(A);
+            writer.mark(noJump);
+            returnAddress(address + 1);
+        }
+        else
+            returnRegister(A);
+
+        return true;
+    }
+
+    // Returns the opcode which branches if the jump condition with the given jump bits
+    // holds for the value on the stack. The jump bits are 1..6.
+    private static int getJumpOpcode(int jump) {
+        switch (jump) {
+            case FastCPU.JUMP_POSITIVE:
+                return IFGT;
+            case FastCPU.JUMP_ZERO:
+                return IFEQ;
+            case FastCPU.JUMP_ZERO | FastCPU.JUMP_POSITIVE:
+                return IFGE;
+            case FastCPU.JUMP_NEGATIVE:
+                return IFLT;
+            case FastCPU.JUMP_NEGATIVE | FastCPU.JUMP_POSITIVE:
+                return IFNE;
+            default:
+                return IFLE;
+        }
+    }
+
+    // Emits a check that the given local variable is in the range 0..size-1, which
+    // returns before the instruction at the given offset if it isn't.
+    private void checkRange(int variable, int size, int offset) {
+        int bail = getBailLabel(offset);
+        writer.varOp(ILOAD, variable);
+        writer.jump(IFLT, bail);
+        writer.varOp(ILOAD, variable);
+        writer.pushInt(size);
+        writer.jump(IF_ICMPGE, bail);
+    }
+
+    // Returns the label that returns before the instruction at the given offset.
+    private int getBailLabel(int offset) {
+        if (bailLabels[offset] == -1)
+            bailLabels[offset] = writer.newLabel();
+
+        return bailLabels[offset];
+    }
+
+    // Emits code that pushes X (A or M).
+    private void pushX(boolean indirect) {
+        if (indirect)
+            writer.varOp(ALOAD, RAM);
+        if (knownA != -1)
+            writer.pushInt(knownA);
+        else
+            writer.varOp(ILOAD, A);
+        if (indirect)
+            writer.op(SALOAD);
+    }
+
+    // Emits code that computes the given ALU function (with the given control bits) and
+    // pushes the result.
+    private void compute(int function, boolean indirect, int controlBits) {
+        switch (function) {
+            case FastCPU.ALU_ZERO:
+                writer.pushInt(0);
+                return;
+            case FastCPU.ALU_ONE:
+                writer.pushInt(1);
+                return;
+            case FastCPU.ALU_MINUS_ONE:
+                writer.pushInt(-1);
+                return;
+            case FastCPU.ALU_D:
+                writer.varOp(ILOAD, D);
+                return;
+            case FastCPU.ALU_X:
+                pushX(indirect);
+                return;
+            case FastCPU.ALU_NOT_D:
+                writer.varOp(ILOAD, D);
+                writer.pushInt(-1);
+                writer.op(IXOR);
+                return;
+            case FastCPU.ALU_NOT_X:
+                pushX(indirect);
+                writer.pushInt(-1);
+                writer.op(IXOR);
+                return;
+            case FastCPU.ALU_MINUS_D:
+                writer.varOp(ILOAD, D);
+                writer.op(INEG);
+                break;
+            case FastCPU.ALU_MINUS_X:
+                pushX(indirect);
+                writer.op(INEG);
+                break;
+            case FastCPU.ALU_D_PLUS_ONE:
+                writer.varOp(ILOAD, D);
+                writer.pushInt(1);
+                writer.op(IADD);
+                break;
+            case FastCPU.ALU_X_PLUS_ONE:
+                pushX(indirect);
+                writer.pushInt(1);
+                writer.op(IADD);
+                break;
+            case FastCPU.ALU_D_MINUS_ONE:
+                writer.varOp(ILOAD, D);
+                writer.pushInt(1);
+                writer.op(ISUB);
+                break;
+            case FastCPU.ALU_X_MINUS_ONE:
+                pushX(indirect);
+                writer.pushInt(1);
+                writer.op(ISUB);
+                break;
+            case FastCPU.ALU_D_PLUS_X:
+                writer.varOp(ILOAD, D);
+                pushX(indirect);
+                writer.op(IADD);
+                break;
+            case FastCPU.ALU_D_MINUS_X:
+                writer.varOp(ILOAD, D);
+                pushX(indirect);
+                writer.op(ISUB);
+                break;
+            case FastCPU.ALU_X_MINUS_D:
+                pushX(indirect);
+                writer.varOp(ILOAD, D);
+                writer.op(ISUB);
+                break;
+            case FastCPU.ALU_D_AND_X:
+                writer.varOp(ILOAD, D);
+                pushX(indirect);
+                writer.op(IAND);
+                return;
+            case FastCPU.ALU_D_OR_X:
+                writer.varOp(ILOAD, D);
+                pushX(indirect);
+                writer.op(IOR);
+                return;
+            default:
+                writer.varOp(ILOAD, D);
+                pushX(indirect);
+                for (int bit = 0x20; bit != 0; bit >>= 1)
+                    writer.pushInt((controlBits & bit) != 0 ? 1 : 0);
+                writer.methodOp(INVOKESTATIC, "common/Definitions", "computeALU",
+                                "(SSZZZZZZ)S");
+                return;
+        }
+
+        // arithmetic results may overflow 16 bits
+        writer.op(I2S);
+    }
+
+    // Emits code that stores A and D in the registers array and returns the value of the
+    // given local variable.
+    private void returnRegister(int variable) {
+        storeRegisters();
+        writer.varOp(ILOAD, variable);
+        writer.op(IRETURN);
+    }
+
+    // Emits code that stores A and D in the registers array and returns the given value.
+    private void returnAddress(int value) {
+        storeRegisters();
+        writer.pushInt(value);
+        writer.op(IRETURN);
+    }
+
+    // Emits code that stores A and D in the registers array.
+    private void storeRegisters() {
+        writer.varOp(ALOAD, REGISTERS);
+        writer.pushInt(0);
+        writer.varOp(ILOAD, A);
+        writer.op(SASTORE);
+        writer.varOp(ALOAD, REGISTERS);
+        writer.pushInt(1);
+        writer.varOp(ILOAD, D);
+        writer.op(SASTORE);
+    }
+}
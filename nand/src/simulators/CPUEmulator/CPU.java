@@ -56,6 +56,9 @@ public class CPU
     // An assembler transltor
     protected AssemblyTranslator assemblerTranslator;
 
+    // The profiler that counts the executed instructions (null if not profiling)
+    protected CPUProfiler profiler;
+
     /**
      * Constructs a new cpu with the given ROM, RAM, A, D, PC & ALU.
      */
@@ -130,6 +133,20 @@ public class CPU
         return time;
     }
 
+    /**
+     * Sets the profiler that counts the executed instructions (null to stop profiling).
+     */
+    public void setProfiler(CPUProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Returns the profiler that counts the executed instructions (null if not profiling).
+     */
+    public CPUProfiler getProfiler() {
+        return profiler;
+    }
+
     /**
      * Restarts the program from the beginning.
      */
@@ -149,6 +166,19 @@ public class CPU
         time = 0;
     }
 
+    /**
+     * Sets the registers and the time that passed since the program started running,
+     * when a snapshot of the computer's state is restored. Should be called after the
+     * contents of the RAM and the ROM were restored.
+     */
+    public void setState(short a, short d, short pc, long time) {
+        A.setValueAt(0, a, true);
+        D.setValueAt(0, d, true);
+        PC.setValueAt(0, pc, true);
+        alu.reset();
+        this.time = time;
+    }
+
     /**
      * Executes the current instruction (ROM at pc).
      * Throws ProgramException if the current instruction is illegal or
@@ -156,7 +186,8 @@ public class CPU
 	 * address or jump when A is an illegal address).
      */
     public void executeInstruction() throws ProgramException {
-        short instruction = rom.getValueAt(PC.get());
+        short address = PC.get();
+        short instruction = rom.getValueAt(address);
         boolean pcChanged = false;
 
         if ((instruction & 0x8000) == 0)
@@ -178,6 +209,12 @@ public class CPU
             PC.setValueAt(0, newPC, true);
         }
 
+        if (profiler != null) {
+            profiler.instructionExecuted(address);
+            if (pcChanged)
+                profiler.jumpTaken(address, PC.get());
+        }
+
         time++;
     }
 
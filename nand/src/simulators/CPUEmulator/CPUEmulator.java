@@ -17,11 +17,14 @@
 
 package simulators.CPUEmulator;
 
+import java.io.*;
+
 import simulators.ComputerParts.*;
 import simulators.Events.*;
 import simulators.controllers.*;
 import common.Conversions;
 import common.Definitions;
+import common.SnapshotValues;
 
 
 /**
@@ -38,6 +41,15 @@ import common.Definitions;
  * Recognizes the following commands:
  * load <HACK file name> - loads the given file into the ROM
  * TickTock - advances the clock by one time unit (executes one instruction)
+ * profile on [<report file>] - starts counting the executed instructions from zero. If a
+ *                              file is given, the report is written to it when the
+ *                              execution stops
+ * profile off - stops counting the executed instructions
+ * profile report <report file> - writes the report of the counted instructions, as text
+ *                                and as collapsed stacks (to <report file>.folded)
+ * snapshot <name> - takes a snapshot of the RAM, the ROM, the registers and the time,
+ *                   in memory or in the given file (if the name ends with .snapshot)
+ * restore <name> - restores the state of the computer from the given snapshot
  */
 public class CPUEmulator extends HackSimulator implements ComputerPartErrorEventListener {
 
@@ -54,6 +66,15 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     private static final String COMMAND_TICKTOCK = "ticktock";
     private static final String COMMAND_ROMLOAD = "load";
     private static final String COMMAND_SETVAR = "set";
+    private static final String COMMAND_PROFILE = "profile";
+
+    // Arguments of the profile command
+    private static final String PROFILE_ON = "on";
+    private static final String PROFILE_OFF = "off";
+    private static final String PROFILE_REPORT = "report";
+
+    // The extension added to the name of the collapsed stacks file of a profile report
+    private static final String FOLDED_EXTENSION = ".folded";
 
     // The simulating cpu
     private CPU cpu;
@@ -70,6 +91,14 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     // The current animation mode
     private int animationMode;
 
+    // The CPU as a fast CPU, when there is no GUI (null otherwise)
+    private FastCPU fastCPU;
+
+    // The profiler of the program (null if profiling was never started), and the file
+    // where its report is written when the execution stops (null if none)
+    private CPUProfiler profiler;
+    private String profileFileName;
+
     /**
      * Constructs a new CPU Emulator with no GUI component.
      */
@@ -98,7 +127,8 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
         Bus bus = new Bus(null);
         bus.reset();
 
-        cpu = new CPU(ram, rom, A, D, PC, alu, bus);
+        fastCPU = new FastCPU(ram, rom, A, D, PC, alu, bus);
+        cpu = fastCPU;
 
         init();
     }
@@ -178,6 +208,53 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             throw new VariableException("Unknown variable", varName);
     }
 
+    /**
+     * Returns a handle for reading the numeric value of the given variable
+     * (A, D, PC, RAM[i] or ROM[i]), or null if there is no such variable.
+     */
+    public VariableHandle getVariableHandle(String varName) {
+        try {
+            if (varName.equals(VAR_A))
+                return new VariableHandle() {
+                    public short get() {
+                        return cpu.getA().get();
+                    }
+                };
+            else if (varName.equals(VAR_D))
+                return new VariableHandle() {
+                    public short get() {
+                        return cpu.getD().get();
+                    }
+                };
+            else if (varName.equals(VAR_PC))
+                return new VariableHandle() {
+                    public short get() {
+                        return cpu.getPC().get();
+                    }
+                };
+            else if (varName.startsWith(VAR_RAM + "[")) {
+                final short index = getRamIndex(varName);
+                return new VariableHandle() {
+                    public short get() {
+                        return cpu.getRAM().getValueAt(index);
+                    }
+                };
+            }
+            else if (varName.startsWith(VAR_ROM + "[")) {
+                final short index = getRomIndex(varName);
+                return new VariableHandle() {
+                    public short get() {
+                        return cpu.getROM().getValueAt(index);
+                    }
+                };
+            }
+        } catch (VariableException ve) {
+        } catch (NumberFormatException nfe) {
+        }
+
+        return null;
+    }
+
     /**
      * Sets the given variable with the given value.
      * Throws VariableException if the variable name or value are not legal.
@@ -216,6 +293,8 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
                 numValue = Integer.parseInt(value);
                 check_value(varName, numValue);
                 cpu.getROM().setValueAt(index, (short)numValue, false);
+                if (fastCPU != null)
+                    fastCPU.invalidate(index);
             }
             else
                 throw new VariableException("Unknown variable", varName);
@@ -262,10 +341,107 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             cpu.initProgram();
             setAnimationMode(oldAnimationMode);
         }
-        else
+        else if (command[0].equals(COMMAND_PROFILE))
+            doProfileCommand(command);
+        else if (!doSnapshotCommand(command))
             throw new CommandException("Unknown simulator command", command);
     }
 
+    protected void writeState(DataOutputStream out) throws IOException {
+        SnapshotValues.write(out, cpu.getRAM().getContents(), 0, Definitions.RAM_SIZE);
+        SnapshotValues.write(out, cpu.getROM().getContents(), 0, Definitions.ROM_SIZE);
+        out.writeShort(cpu.getA().get());
+        out.writeShort(cpu.getD().get());
+        out.writeShort(cpu.getPC().get());
+        out.writeLong(cpu.getTime());
+    }
+
+    protected void readState(DataInputStream in) throws IOException {
+        short[] ram = new short[Definitions.RAM_SIZE];
+        SnapshotValues.read(in, ram, 0, ram.length);
+        short[] rom = new short[Definitions.ROM_SIZE];
+        SnapshotValues.read(in, rom, 0, rom.length);
+        short a = in.readShort();
+        short d = in.readShort();
+        short pc = in.readShort();
+        long time = in.readLong();
+
+        cpu.getRAM().setContents(ram, 0);
+        cpu.getROM().setContents(rom, 0);
+        cpu.setState(a, d, pc, time);
+    }
+
+    // Executes the given profile command.
+    private void doProfileCommand(String[] command) throws CommandException {
+        if (command.length == 2 && command[1].equals(PROFILE_OFF)) {
+            cpu.setProfiler(null);
+            profileFileName = null;
+        }
+        else if ((command.length == 2 || command.length == 3) && command[1].equals(PROFILE_ON)) {
+            if (profiler == null)
+                profiler = new CPUProfiler();
+            else
+                profiler.reset();
+
+            cpu.setProfiler(profiler);
+            profileFileName = command.length == 3 ?
+                workingDir.getAbsolutePath() + "/" + command[2] : null;
+        }
+        else if (command.length == 3 && command[1].equals(PROFILE_REPORT)) {
+            if (profiler == null)
+                throw new CommandException("Profiling was not started", command);
+
+            try {
+                writeProfileReport(workingDir.getAbsolutePath() + "/" + command[2]);
+            } catch (IOException ioe) {
+                throw new CommandException("Could not write the profile report", command);
+            }
+        }
+        else
+            throw new CommandException("Illegal arguments to command", command);
+    }
+
+    // Writes the report of the profiler to the given file, and its collapsed stacks to
+    // the given file with the folded extension.
+    private void writeProfileReport(String fileName) throws IOException {
+        PrintWriter text = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+        PrintWriter stacks = new PrintWriter(new BufferedWriter(
+            new FileWriter(fileName + FOLDED_EXTENSION)));
+        try {
+            profiler.writeReport(cpu.getROM().getProgram(), text, stacks);
+        } finally {
+            text.close();
+            stacks.close();
+        }
+    }
+
+    /**
+     * Writes the profile report, if profiling was started with a report file.
+     */
+    public void executionStopped() {
+        if (profileFileName != null) {
+            try {
+                writeProfileReport(profileFileName);
+            } catch (IOException ioe) {
+                // the report is optional, and the script's result doesn't depend on it
+            }
+        }
+    }
+
+    /**
+     * Executes the given simulator command the given number of times, and returns true.
+     * Only the ticktock command is repeated by the fast CPU (without a GUI), using its
+     * compiled blocks. Otherwise, nothing is executed and false is returned.
+     */
+    public boolean doRepeatedCommand(String[] command, int count)
+     throws CommandException, ProgramException, VariableException {
+        if (fastCPU == null || command.length != 1 || !command[0].equals(COMMAND_TICKTOCK))
+            return false;
+
+        fastCPU.executeInstructions(count);
+        return true;
+    }
+
     // Hides all highlights in GUIs.
     private void hideHighlightes() {
         cpu.getRAM().hideHighlight();
@@ -0,0 +1,283 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.CPUEmulator;
+
+import java.io.*;
+import java.util.*;
+
+import translators.assembler.AsmProgram;
+import common.Definitions;
+
+
+/**
+ * A profiler of the programs run by the CPU. Counts the instructions executed at each
+ * ROM address and the jumps taken between addresses. The counts are reported folded by
+ * the labels of the program: each address is counted under the nearest label before it,
+ * and each backward jump forms a loop from its target to its source. The report is
+ * written as text, and as collapsed stacks (a line per stack of label and enclosing
+ * loops, separated by ';', followed by its count), which flame graph tools read.
+ */
+public class CPUProfiler {
+
+    // The number of addresses listed in the hot addresses part of the report
+    private static final int HOT_ADDRESSES_COUNT = 20;
+
+    // The initial capacity of the jumps table (a power of 2)
+    private static final int INITIAL_JUMPS_CAPACITY = 256;
+
+    // The name of the addresses before the first label
+    private static final String NO_LABEL = "(start)";
+
+    // The number of instructions executed at each address
+    private long[] counts;
+
+    // The jumps that were taken (source * ROM_SIZE + target, or -1 in empty entries),
+    // kept in an open addressing hash table, their counts and their number
+    private int[] jumps;
+    private long[] jumpCounts;
+    private int jumpsCount;
+
+    // The labels of the program, sorted by address, while writing a report
+    private TreeMap<Short, String> labels;
+
+    /**
+     * Constructs a new profiler with no counts.
+     */
+    public CPUProfiler() {
+        counts = new long[Definitions.ROM_SIZE];
+        reset();
+    }
+
+    /**
+     * Clears all the counts.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        jumps = new int[INITIAL_JUMPS_CAPACITY];
+        Arrays.fill(jumps, -1);
+        jumpCounts = new long[INITIAL_JUMPS_CAPACITY];
+        jumpsCount = 0;
+    }
+
+    /**
+     * Counts an instruction that was executed at the given address.
+     */
+    public void instructionExecuted(int address) {
+        counts[address]++;
+    }
+
+    /**
+     * Counts a jump that was taken from the given address to the given address.
+     */
+    public void jumpTaken(int source, int target) {
+        int index = findJump(source * Definitions.ROM_SIZE + target);
+        jumpCounts[index]++;
+    }
+
+    // Returns the index of the given jump in the jumps table, adding it if it's new.
+    private int findJump(int jump) {
+        int mask = jumps.length - 1;
+        int hash = jump * 0x9e3779b9;
+        int index = (hash ^ (hash >>> 16)) & mask;
+
+        while (jumps[index] != jump) {
+            if (jumps[index] == -1) {
+                if ((jumpsCount + 1) * 2 > jumps.length) {
+                    growJumps();
+                    return findJump(jump);
+                }
+
+                jumps[index] = jump;
+                jumpsCount++;
+                break;
+            }
+            index = (index + 1) & mask;
+        }
+
+        return index;
+    }
+
+    // Doubles the capacity of the jumps table.
+    private void growJumps() {
+        int[] oldJumps = jumps;
+        long[] oldCounts = jumpCounts;
+        jumps = new int[oldJumps.length * 2];
+        Arrays.fill(jumps, -1);
+        jumpCounts = new long[jumps.length];
+        jumpsCount = 0;
+
+        for (int i = 0; i < oldJumps.length; i++)
+            if (oldJumps[i] != -1)
+                jumpCounts[findJump(oldJumps[i])] = oldCounts[i];
+    }
+
+    /**
+     * Writes the report of the counts to the given writers: as text, and as collapsed
+     * stacks. The labels are taken from the given program (which may be null).
+     */
+    public void writeReport(AsmProgram program, PrintWriter text, PrintWriter stacks) {
+        labels = program != null ? program.getCodeLabels() : new TreeMap<Short, String>();
+
+        long total = 0;
+        for (int i = 0; i < counts.length; i++)
+            total += counts[i];
+
+        // the loops: {target, source, iterations, instructions}
+        Vector<long[]> loops = new Vector<long[]>();
+        for (int i = 0; i < jumps.length; i++) {
+            int source = jumps[i] / Definitions.ROM_SIZE;
+            int target = jumps[i] % Definitions.ROM_SIZE;
+            if (jumps[i] != -1 && target <= source) {
+                long instructions = 0;
+                for (int address = target; address <= source; address++)
+                    instructions += counts[address];
+                loops.addElement(new long[]{target, source, jumpCounts[i], instructions});
+            }
+        }
+
+        text.println("Instructions: " + total);
+
+        // instructions by label
+        Hashtable<String, Long> labelCounts = new Hashtable<String, Long>();
+        for (int address = 0; address < counts.length; address++)
+            if (counts[address] > 0) {
+                String label = getLabel(address);
+                Long count = labelCounts.get(label);
+                labelCounts.put(label, Long.valueOf(counts[address] +
+                                                    (count != null ? count.longValue() : 0)));
+            }
+
+        String[] labelNames = labelCounts.keySet().toArray(new String[0]);
+        final Hashtable<String, Long> sortCounts = labelCounts;
+        Arrays.sort(labelNames, new Comparator<String>() {
+            public int compare(String name1, String name2) {
+                int result = sortCounts.get(name2).compareTo(sortCounts.get(name1));
+                return result != 0 ? result : name1.compareTo(name2);
+            }
+        });
+
+        text.println();
+        text.println("Labels:");
+        text.println(String.format("%14s %8s  %s", "Instructions", "Percent", "Label"));
+        for (int i = 0; i < labelNames.length; i++) {
+            long count = labelCounts.get(labelNames[i]).longValue();
+            text.println(String.format("%14d %7.2f%%  %s", count, percent(count, total),
+                                       labelNames[i]));
+        }
+
+        // loops by instructions
+        long[][] sortedLoops = loops.toArray(new long[0][]);
+        Arrays.sort(sortedLoops, new Comparator<long[]>() {
+            public int compare(long[] loop1, long[] loop2) {
+                if (loop1[3] != loop2[3])
+                    return loop1[3] > loop2[3] ? -1 : 1;
+                return (int)(loop1[0] - loop2[0]);
+            }
+        });
+
+        text.println();
+        text.println("Loops:");
+        text.println(String.format("%14s %8s %12s  %-13s %s", "Instructions", "Percent",
+                                   "Iterations", "Addresses", "Loop"));
+        for (int i = 0; i < sortedLoops.length; i++) {
+            long[] loop = sortedLoops[i];
+            text.println(String.format("%14d %7.2f%% %12d  %-13s %s", loop[3],
+                                       percent(loop[3], total), loop[2],
+                                       loop[0] + "-" + loop[1], getLocation((int)loop[0])));
+        }
+
+        // hot addresses
+        Integer[] addresses = new Integer[counts.length];
+        for (int i = 0; i < addresses.length; i++)
+            addresses[i] = Integer.valueOf(i);
+        Arrays.sort(addresses, new Comparator<Integer>() {
+            public int compare(Integer address1, Integer address2) {
+                long count1 = counts[address1.intValue()];
+                long count2 = counts[address2.intValue()];
+                if (count1 != count2)
+                    return count1 > count2 ? -1 : 1;
+                return address1.compareTo(address2);
+            }
+        });
+
+        text.println();
+        text.println("Hot addresses:");
+        text.println(String.format("%14s %8s %8s  %s", "Instructions", "Percent",
+                                   "Address", "Location"));
+        for (int i = 0; i < HOT_ADDRESSES_COUNT && counts[addresses[i].intValue()] > 0; i++) {
+            int address = addresses[i].intValue();
+            text.println(String.format("%14d %7.2f%% %8d  %s", counts[address],
+                                       percent(counts[address], total), address,
+                                       getLocation(address)));
+        }
+
+        // collapsed stacks: the label of each address, and the loops that contain it
+        // (outermost first)
+        Arrays.sort(sortedLoops, new Comparator<long[]>() {
+            public int compare(long[] loop1, long[] loop2) {
+                long length1 = loop1[1] - loop1[0];
+                long length2 = loop2[1] - loop2[0];
+                if (length1 != length2)
+                    return length1 > length2 ? -1 : 1;
+                return (int)(loop1[0] - loop2[0]);
+            }
+        });
+
+        TreeMap<String, Long> stackCounts = new TreeMap<String, Long>();
+        for (int address = 0; address < counts.length; address++)
+            if (counts[address] > 0) {
+                StringBuffer stack = new StringBuffer(getLabel(address));
+                for (int i = 0; i < sortedLoops.length; i++)
+                    if (sortedLoops[i][0] <= address && address <= sortedLoops[i][1])
+                        stack.append(";loop:").append(getLocation((int)sortedLoops[i][0]));
+
+                String key = stack.toString();
+                Long count = stackCounts.get(key);
+                stackCounts.put(key, Long.valueOf(counts[address] +
+                                                  (count != null ? count.longValue() : 0)));
+            }
+
+        Iterator<Map.Entry<String, Long>> entries = stackCounts.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            stacks.println(entry.getKey() + " " + entry.getValue());
+        }
+
+        labels = null;
+    }
+
+    // Returns the nearest label at or before the given address.
+    private String getLabel(int address) {
+        Map.Entry<Short, String> entry = labels.floorEntry(Short.valueOf((short)address));
+        return entry != null ? entry.getValue() : NO_LABEL;
+    }
+
+    // Returns the location of the given address: its label, and the offset from the label
+    // (if any).
+    private String getLocation(int address) {
+        Map.Entry<Short, String> entry = labels.floorEntry(Short.valueOf((short)address));
+        int offset = entry != null ? address - entry.getKey().intValue() : address;
+        return (entry != null ? entry.getValue() : NO_LABEL) +
+               (offset > 0 ? "+" + offset : "");
+    }
+
+    // Returns the given count as a percent of the given total.
+    private static double percent(long count, long total) {
+        return total > 0 ? 100.0 * count / total : 0;
+    }
+}
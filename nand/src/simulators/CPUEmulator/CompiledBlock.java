@@ -0,0 +1,43 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.CPUEmulator;
+
+/**
+ * A basic block of Hack instructions (a straight run of instructions which may end with a
+ * jump), translated into JVM bytecode by the BlockCompiler.
+ */
+abstract class CompiledBlock {
+
+    // The ROM address of the first instruction in the block
+    int start;
+
+    // The number of instructions in the block
+    int length;
+
+    // The last C instruction in the block (-1 if none)
+    int lastCInstruction;
+
+    /**
+     * Executes the instructions of the block on the given RAM contents and the given
+     * values of the A and D registers (registers[0] and registers[1]), which are
+     * updated. Returns the address of the next instruction. If one of the instructions
+     * can't be executed (since it would cause an error), the execution stops before it
+     * and -address-1 is returned.
+     */
+    abstract int execute(short[] ram, short[] registers);
+}
@@ -0,0 +1,471 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.CPUEmulator;
+
+import simulators.ComputerParts.*;
+import simulators.controllers.*;
+import translators.assembler.AssemblerException;
+import translators.assembler.AssemblyTranslator;
+import common.Definitions;
+
+/**
+ * A CPU with no GUI, which executes instructions without passing values through the bus
+ * and the ALU. The instructions in the ROM are decoded once into a compact form (with the
+ * ALU function, the destination and the jump condition), and executed directly on the
+ * contents of the RAM and the ROM. While running, the values of the A, D and PC registers
+ * are kept in fields, and are written back to the registers only when the execution
+ * pauses, i.e. when one of the registers or the time is requested.
+ * The ALU's inputs and output are not updated. C instructions whose computation is not
+ * known to the assembler are executed by the regular CPU, since their result depends on
+ * the ALU's previous command.
+ * When running many instructions at once (executeInstructions), basic blocks which are
+ * entered frequently are translated into JVM bytecode by the BlockCompiler. The blocks
+ * are cached by their start address, and are discarded when the ROM changes (through
+ * invalidate() or initProgram()).
+ */
+public class FastCPU extends CPU
+{
+    // Kinds of decoded instructions
+    static final int KIND_A = 0;
+    static final int KIND_C = 1;
+    static final int KIND_NOP = 2;
+    static final int KIND_ILLEGAL = 3;
+    static final int KIND_UNKNOWN_EXP = 4;
+
+    // ALU functions of C instructions, where X is A or M
+    static final int ALU_ZERO = 0;
+    static final int ALU_ONE = 1;
+    static final int ALU_MINUS_ONE = 2;
+    static final int ALU_D = 3;
+    static final int ALU_X = 4;
+    static final int ALU_NOT_D = 5;
+    static final int ALU_NOT_X = 6;
+    static final int ALU_MINUS_D = 7;
+    static final int ALU_MINUS_X = 8;
+    static final int ALU_D_PLUS_ONE = 9;
+    static final int ALU_X_PLUS_ONE = 10;
+    static final int ALU_D_MINUS_ONE = 11;
+    static final int ALU_X_MINUS_ONE = 12;
+    static final int ALU_D_PLUS_X = 13;
+    static final int ALU_D_MINUS_X = 14;
+    static final int ALU_X_MINUS_D = 15;
+    static final int ALU_D_AND_X = 16;
+    static final int ALU_D_OR_X = 17;
+    // any other combination of the ALU's control bits
+    static final int ALU_GENERIC = 18;
+
+    // The control bits (zx nx zy ny f no) of the ALU functions, by function
+    private static final int[] ALU_CONTROL_BITS = {
+        0x2a, 0x3f, 0x3a, 0x0c, 0x30, 0x0d, 0x31, 0x0f, 0x33,
+        0x1f, 0x37, 0x0e, 0x32, 0x02, 0x13, 0x07, 0x00, 0x15
+    };
+
+    // Masks of the destination and jump fields in a decoded instruction
+    static final int DEST_A = 0x4;
+    static final int DEST_D = 0x2;
+    static final int DEST_M = 0x1;
+    static final int JUMP_NEGATIVE = 0x4;
+    static final int JUMP_ZERO = 0x2;
+    static final int JUMP_POSITIVE = 0x1;
+
+    // The number of times a block is entered before it is compiled
+    private static final int COMPILE_THRESHOLD = 50;
+
+    // The ALU function of each combination of the ALU's control bits
+    private static final int[] ALU_FUNCTIONS = new int[64];
+
+    static {
+        for (int i = 0; i < ALU_FUNCTIONS.length; i++)
+            ALU_FUNCTIONS[i] = ALU_GENERIC;
+        for (int i = 0; i < ALU_CONTROL_BITS.length; i++)
+            ALU_FUNCTIONS[ALU_CONTROL_BITS[i]] = i;
+    }
+
+    // The contents of the RAM and the ROM
+    private short[] ram, program;
+
+    // The decoded instructions, and the ROM values they were decoded from.
+    // Bits 0-2: kind, 3-7: ALU function, 8-10: destination, 11-13: jump condition,
+    // 14: M is an input, 16-21: ALU control bits. For A instructions, bits 16-31
+    // hold the value.
+    private int[] decoded;
+    private short[] decodedValues;
+
+    // The values of the registers while running
+    private short a, d, pc;
+
+    // true if the registers are kept in the fields
+    private boolean running;
+
+    // The last C instruction that was executed without setting the ALU's command
+    // (-1 if none)
+    private int aluInstruction = -1;
+
+    // The compiled blocks by their start address (null if not compiled), and the number
+    // of times each address was reached by executeInstructions without a block
+    private CompiledBlock[] blocks;
+    private int[] blockCounters;
+
+    // The translator of blocks
+    private BlockCompiler compiler;
+
+    // The values of the A and D registers, passed to the compiled blocks
+    private short[] blockRegisters;
+
+    /**
+     * Constructs a new fast cpu with the given ROM, RAM, A, D, PC & ALU.
+     */
+    public FastCPU(RAM ram, ROM rom, PointerAddressRegisterAdapter A, Register D,
+                   PointerAddressRegisterAdapter PC, ALU alu, Bus bus) {
+        super(ram, rom, A, D, PC, alu, bus);
+        this.ram = ram.getContents();
+        program = rom.getContents();
+
+        decoded = new int[program.length];
+        decodedValues = new short[program.length];
+        for (int i = 0; i < program.length; i++)
+            decode(i);
+
+        blocks = new CompiledBlock[program.length];
+        blockCounters = new int[program.length];
+        compiler = new BlockCompiler(decoded, decodedValues, this.ram.length);
+        blockRegisters = new short[2];
+    }
+
+    /**
+     * Returns the A register.
+     */
+    public Register getA() {
+        pause();
+        return A;
+    }
+
+    /**
+     * Returns the D register.
+     */
+    public Register getD() {
+        pause();
+        return D;
+    }
+
+    /**
+     * Returns the PC register.
+     */
+    public Register getPC() {
+        pause();
+        return PC;
+    }
+
+    /**
+     * Returns the time that passed since the program started running.
+     */
+    public long getTime() {
+        pause();
+        return time;
+    }
+
+    /**
+     * Restarts the program from the beginning.
+     */
+    public void initProgram() {
+        running = false;
+        super.initProgram();
+        invalidateProgram();
+    }
+
+    /**
+     * Sets the registers and the time, when a snapshot of the computer's state is
+     * restored. Discards the compiled blocks, since the ROM may have been replaced.
+     */
+    public void setState(short a, short d, short pc, long time) {
+        running = false;
+        super.setState(a, d, pc, time);
+        aluInstruction = -1;
+        invalidateProgram();
+    }
+
+    /**
+     * Should be called after the ROM at the given address is changed: discards the
+     * compiled blocks which contain the address.
+     */
+    public void invalidate(int address) {
+        decode(address);
+        for (int i = 0; i < program.length; i++)
+            if (blocks[i] != null && i <= address && address < i + blocks[i].length) {
+                blocks[i] = null;
+                blockCounters[i] = 0;
+            }
+        compiler.invalidate();
+    }
+
+    /**
+     * Executes the given number of instructions (or until an exception is thrown), using
+     * the compiled blocks.
+     */
+    public void executeInstructions(long count) throws ProgramException {
+        resume();
+
+        // the compiled blocks don't count their instructions
+        if (profiler != null) {
+            for (; count > 0; count--)
+                executeInstruction();
+            return;
+        }
+
+        while (count > 0) {
+            CompiledBlock block = blocks[pc];
+            if (block == null && ++blockCounters[pc] == COMPILE_THRESHOLD)
+                block = blocks[pc] = compiler.compile(pc);
+
+            if (block == null || block.length > count) {
+                executeInstruction();
+                count--;
+                continue;
+            }
+
+            blockRegisters[0] = a;
+            blockRegisters[1] = d;
+            int next = block.execute(ram, blockRegisters);
+            a = blockRegisters[0];
+            d = blockRegisters[1];
+
+            if (next >= 0) {
+                pc = (short)next;
+                time += block.length;
+                count -= block.length;
+                if (block.lastCInstruction != -1)
+                    aluInstruction = block.lastCInstruction;
+            }
+            else {
+                // the instruction at -next-1 fails: executes the instructions before it,
+                // and then executes it to report the error.
+                pc = (short)(-next - 1);
+                time += pc - block.start;
+                count -= pc - block.start;
+                for (int i = pc - 1; i >= block.start; i--)
+                    if ((decoded[i] & 0x7) == KIND_C) {
+                        aluInstruction = decodedValues[i] & 0xffff;
+                        break;
+                    }
+
+                executeInstruction();
+                count--;
+            }
+        }
+    }
+
+    /**
+     * Executes the current instruction (ROM at pc).
+     * Throws ProgramException if the current instruction is illegal or
+     * if it causes an illegal effect (read/write from M when A is an illegal
+     * address or jump when A is an illegal address).
+     */
+    public void executeInstruction() throws ProgramException {
+        resume();
+
+        if (program[pc] != decodedValues[pc])
+            decode(pc);
+
+        short address = pc;
+        int instruction = decoded[pc];
+        boolean pcChanged = false;
+
+        switch (instruction & 0x7) {
+            case KIND_A:
+                a = (short)(instruction >> 16);
+                break;
+
+            case KIND_C:
+                short x;
+                if ((instruction & 0x4000) != 0) {
+                    if (a < 0 || a >= ram.length)
+                        throw new ProgramException("At line " + pc +
+                                                   ": Expression involves M but A=" +
+                                                   a + " is an illegal memory address.");
+                    x = ram[a];
+                }
+                else
+                    x = a;
+
+                short out = compute((instruction >> 3) & 0x1f, d, x, instruction >> 16);
+                aluInstruction = decodedValues[pc] & 0xffff;
+
+                int dest = (instruction >> 8) & 0x7;
+                if ((dest & DEST_M) != 0) {
+                    if (a < 0 || a >= ram.length)
+                        throw new ProgramException("At line " + pc +
+                                                   ": Destination is M but A=" +
+                                                   a + " is an illegal memory address.");
+                    ram[a] = out;
+                }
+                if ((dest & DEST_A) != 0)
+                    a = out;
+                if ((dest & DEST_D) != 0)
+                    d = out;
+
+                int jump = (instruction >> 11) & 0x7;
+                if ((jump & (out < 0 ? JUMP_NEGATIVE :
+                             out == 0 ? JUMP_ZERO : JUMP_POSITIVE)) != 0) {
+                    if (a < 0 || a >= Definitions.ROM_SIZE)
+                        throw new ProgramException("At line " + pc +
+                                                   ": Jump requested but A=" + a +
+                                                   " is an illegal program address.");
+                    pc = a;
+                    pcChanged = true;
+                }
+                break;
+
+            case KIND_ILLEGAL:
+                throw new ProgramException("At line " + pc + ": Illegal instruction");
+
+            case KIND_UNKNOWN_EXP:
+                if (aluInstruction != -1) {
+                    setALUCommand((short)aluInstruction);
+                    aluInstruction = -1;
+                }
+                pause();
+                super.executeInstruction();
+                return;
+        }
+
+        if (!pcChanged) {
+            short newPC = (short)(pc + 1);
+            if (newPC < 0 || newPC >= Definitions.ROM_SIZE)
+                throw new ProgramException("At line " + pc +
+                                           ": Can't continue past last line");
+            pc = newPC;
+        }
+
+        if (profiler != null) {
+            profiler.instructionExecuted(address);
+            if (pcChanged)
+                profiler.jumpTaken(address, pc);
+        }
+
+        time++;
+    }
+
+    // Decodes the instructions of the ROM that were changed, and discards all the
+    // compiled blocks (the program may have been replaced).
+    private void invalidateProgram() {
+        for (int i = 0; i < program.length; i++) {
+            if (program[i] != decodedValues[i])
+                decode(i);
+            blocks[i] = null;
+            blockCounters[i] = 0;
+        }
+        compiler.invalidate();
+    }
+
+    // Reads the values of the registers into the fields, if not running.
+    private void resume() {
+        if (!running) {
+            a = A.get();
+            d = D.get();
+            pc = PC.get();
+            running = true;
+        }
+    }
+
+    // Writes the values of the registers back to the registers, if running.
+    private void pause() {
+        if (running) {
+            running = false;
+            A.setValueAt(0, a, true);
+            D.setValueAt(0, d, true);
+            PC.setValueAt(0, pc, true);
+        }
+    }
+
+    // Sets the ALU's command according to the computation of the given C instruction.
+    private void setALUCommand(short instruction) {
+        try {
+            alu.setCommand(assemblerTranslator.getExpByCode((short)(instruction & 0xffc0)),
+                           (instruction & 0x0800) > 0, (instruction & 0x0400) > 0,
+                           (instruction & 0x0200) > 0, (instruction & 0x0100) > 0,
+                           (instruction & 0x0080) > 0, (instruction & 0x0040) > 0);
+        } catch (AssemblerException ae) {}
+    }
+
+    // Decodes the instruction at the given ROM address.
+    private void decode(int address) {
+        short instruction = program[address];
+        int result;
+
+        if ((instruction & 0x8000) == 0)
+            result = KIND_A | (instruction << 16);
+        else if ((instruction & 0xe000) == 0xe000 && !isKnownExp(instruction))
+            result = KIND_UNKNOWN_EXP;
+        else if ((instruction & 0xe000) == 0xe000) {
+            int controlBits = (instruction >> 6) & 0x3f;
+            result = KIND_C | (ALU_FUNCTIONS[controlBits] << 3) | (controlBits << 16);
+            if ((instruction & 0x1000) != 0)
+                result |= 0x4000;
+            result |= ((instruction >> 3) & 0x7) << 8;
+            result |= (instruction & 0x7) << 11;
+        }
+        else if (instruction == AssemblyTranslator.NOP)
+            result = KIND_NOP;
+        else
+            result = KIND_ILLEGAL;
+
+        decoded[address] = result;
+        decodedValues[address] = instruction;
+    }
+
+    // Returns true if the computation of the given C instruction is known to the assembler.
+    private boolean isKnownExp(short instruction) {
+        try {
+            assemblerTranslator.getExpByCode((short)(instruction & 0xffc0));
+            return true;
+        } catch (AssemblerException ae) {
+            return false;
+        }
+    }
+
+    // Returns the output of the given ALU function on the given inputs.
+    private static short compute(int function, short d, short x, int controlBits) {
+        switch (function) {
+            case ALU_ZERO:        return 0;
+            case ALU_ONE:         return 1;
+            case ALU_MINUS_ONE:   return -1;
+            case ALU_D:           return d;
+            case ALU_X:           return x;
+            case ALU_NOT_D:       return (short)~d;
+            case ALU_NOT_X:       return (short)~x;
+            case ALU_MINUS_D:     return (short)-d;
+            case ALU_MINUS_X:     return (short)-x;
+            case ALU_D_PLUS_ONE:  return (short)(d + 1);
+            case ALU_X_PLUS_ONE:  return (short)(x + 1);
+            case ALU_D_MINUS_ONE: return (short)(d - 1);
+            case ALU_X_MINUS_ONE: return (short)(x - 1);
+            case ALU_D_PLUS_X:    return (short)(d + x);
+            case ALU_D_MINUS_X:   return (short)(d - x);
+            case ALU_X_MINUS_D:   return (short)(x - d);
+            case ALU_D_AND_X:     return (short)(d & x);
+            case ALU_D_OR_X:      return (short)(d | x);
+            default:
+                return Definitions.computeALU(d, x, (controlBits & 0x20) != 0,
+                                              (controlBits & 0x10) != 0,
+                                              (controlBits & 0x08) != 0,
+                                              (controlBits & 0x04) != 0,
+                                              (controlBits & 0x02) != 0,
+                                              (controlBits & 0x01) != 0);
+        }
+    }
+}
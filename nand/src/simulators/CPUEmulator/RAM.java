@@ -78,6 +78,37 @@ public class RAM extends PointedMemory
         }
     }
 
+    /**
+     * Should be called after the values in the range start..start+length-1 were changed
+     * directly in the contents array. Updates the GUIs (including the screen) and the
+     * memory segments whose pointers are in the range.
+     */
+    public void valuesChanged(int start, int length) {
+        super.valuesChanged(start, length);
+        if (animate)
+            return; // updated by setValueAt
+
+        if (screen != null) {
+            int from = Math.max(start, Definitions.SCREEN_START_ADDRESS);
+            int to = Math.min(start + length, Definitions.SCREEN_START_ADDRESS +
+                                              Definitions.SCREEN_SIZE_IN_WORDS);
+            for (int address = from; address < to; address++)
+                screen.setValueAt((short)(address - Definitions.SCREEN_START_ADDRESS),
+                                  mem[address]);
+        }
+
+        if (segments != null)
+            for (int address = start; address < start + length; address++)
+                if (segments[address] != null) {
+                    for (int i = 0; i < segments[address].length; i++) {
+                        if (segments[address][i] instanceof PointedMemorySegment)
+                            ((PointedMemorySegment)segments[address][i]).setPointerAddress(mem[address]);
+                        else
+                            segments[address][i].setStartAddress(mem[address]);
+                    }
+                }
+    }
+
     /**
      * Sets a name for the label at the given address
      */
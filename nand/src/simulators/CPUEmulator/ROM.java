@@ -78,6 +78,13 @@ public class ROM extends PointedMemory implements ProgramEventListener
         }
     }
 
+    /**
+     * Returns the program that was loaded into the ROM (null if none).
+     */
+    public AsmProgram getProgram() {
+        return contents;
+    }
+
     /**
      * Loads the given program file (HACK or ASM) into the ROM.
      */
@@ -89,6 +96,11 @@ public class ROM extends PointedMemory implements ProgramEventListener
         try {
             contents = AssemblyTranslator.loadProgram(fileName);
 
+            // copy the program's instructions into the memory
+            for (int i = 0; i < size; i++)
+                mem[i] = nullValue;
+            contents.getCode(mem);
+
             if (displayChanges) {
                 ((ROMComponent)gui).setContents(contents);
 
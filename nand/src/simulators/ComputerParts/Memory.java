@@ -94,6 +94,20 @@ public class Memory extends InteractiveValueComputerPart implements ClearEventLi
         refreshGUI();
     }
 
+    /**
+     * Should be called after the values in the range start..start+length-1 were changed
+     * directly in the contents array. With animation, each value is updated in the GUI
+     * separately (as by setValueAt). Otherwise, the GUI is updated once for the range.
+     */
+    public void valuesChanged(int start, int length) {
+        if (animate) {
+            for (int i = start; i < start + length; i++)
+                setValueAt(i, mem[i], false);
+        }
+        else if (displayChanges)
+            gui.setValuesAt(mem, start, length);
+    }
+
     /**
      * Returns the size of the memory.
      */
@@ -47,6 +47,12 @@ public interface MemoryGUI extends InteractiveValueComputerPartGUI {
      */
     public void setContents(short[] values);
 
+    /**
+     * Sets the contents of the memory in the range start..start+length-1 with the
+     * values at the same indice in the given values array, and repaints once.
+     */
+    public void setValuesAt(short[] values, int start, int length);
+
     /**
      * Selects the commands in the range fromIndex..toIndex
      */
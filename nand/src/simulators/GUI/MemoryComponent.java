@@ -325,6 +325,17 @@ public class MemoryComponent extends JPanel implements MemoryGUI {
         notifyRepaintListeners();
     }
 
+    /**
+     * Sets the contents of the memory in the range start..start+length-1 with the
+     * values at the same indice in the given values array, and repaints once.
+     */
+    public void setValuesAt(short[] values, int start, int length) {
+        for (int i = start; i < start + length; i++)
+            updateTable(values[i], i);
+        repaint();
+        notifyRepaintListeners();
+    }
+
     /**
      * Resets the contents of this MemoryComponent.
      */
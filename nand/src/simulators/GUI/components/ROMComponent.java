@@ -166,14 +166,14 @@ public class ROMComponent extends PointedMemoryComponent implements ROMGUI {
      * Returns the value (in a string representation) at a specific address.
      */
     public String getValueStr (short address) {
-        return translateValueToString(contents.getLine((int) address).value());
+        return translateValueToString(contents.getValue((int) address));
     }
 
     /**
      * Returns the value (in a short representation) at a specific address.
      */
     public short getValueAsShort (short address) {
-        return contents.getLine((int) address).value();
+        return contents.getValue((int) address);
     }
 
     /**
@@ -355,11 +355,11 @@ public class ROMComponent extends PointedMemoryComponent implements ROMGUI {
 				if (row<contents.size()) {
 					if (dataFormat == ASM_FORMAT)
 						try {
-							return AssemblyTranslator.getInstance().codeToText(contents.getLine(row).value());
+							return AssemblyTranslator.getInstance().codeToText(contents.getValue(row));
 						} catch (AssemblerException e) {
 							assert(false);
 						}
-					return Format.translateValueToString(contents.getLine(row).value(), dataFormat);
+					return Format.translateValueToString(contents.getValue(row), dataFormat);
 				}
 				
 				else return AsmProgram.NULL_VALUE;
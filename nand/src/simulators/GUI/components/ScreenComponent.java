@@ -19,6 +19,7 @@ package simulators.GUI.components;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.*;
 import javax.swing.*;
 
 import simulators.CPUEmulator.*;
@@ -27,7 +28,9 @@ import common.Definitions;
 
 
 /**
- * A Screen GUI component.
+ * A Screen GUI component. The pixels are kept in a 1-bit image, which is updated
+ * in place when a screen word changes. The rows that changed since the last refresh
+ * are repainted at constant intervals (so the frame rate is limited by the clock).
  */
 public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener {
 
@@ -35,14 +38,22 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
     private static final int ANIMATION_CLOCK_INTERVALS = 50;
     private static final int STATIC_CLOCK_INTERVALS = 500;
 
-    // The screen memory array
-    private short[] data;
+    // The number of bytes of the image in each screen row
+    private static final int BYTES_PER_ROW = Definitions.SCREEN_WIDTH / 8;
 
-    // redraw flag
-    private boolean redraw = true;
+    // The number of words in each screen row
+    private static final int WORDS_PER_ROW = Definitions.SCREEN_WIDTH /
+                                             Definitions.BITS_PER_WORD;
 
-    // screen location at a given index
-    private int[] x, y;
+    // The screen image (white for 0 bits, black for 1 bits) and its pixel bytes
+    private BufferedImage image;
+    private byte[] pixels;
+
+    // The range of rows that changed since the last repaint (empty if first > last)
+    private int firstChangedRow, lastChangedRow;
+
+    // The location of the screen in the component
+    private int left, top;
 
     // The screen redrawing timer
     protected Timer timer;
@@ -62,22 +73,15 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
                                        Definitions.SCREEN_HEIGHT + borderHeight));
         setSize(Definitions.SCREEN_WIDTH + borderWidth,
                 Definitions.SCREEN_HEIGHT + borderHeight);
+        left = borderInsets.left;
+        top = borderInsets.top;
 
-        data = new short[Definitions.SCREEN_SIZE];
-        x = new int[Definitions.SCREEN_SIZE];
-        y = new int[Definitions.SCREEN_SIZE];
-        x[0] = borderInsets.left;
-        y[0] = borderInsets.top;
-
-        // updates pixels indice
-        for (int i = 1; i < Definitions.SCREEN_SIZE; i++) {
-            x[i] = x[i - 1] + Definitions.BITS_PER_WORD;
-            y[i] = y[i - 1];
-            if (x[i] == Definitions.SCREEN_WIDTH + borderInsets.left) {
-                x[i] = borderInsets.left;
-                y[i]++;
-            }
-        }
+        byte[] colors = new byte[]{(byte)0xff, 0};
+        image = new BufferedImage(Definitions.SCREEN_WIDTH, Definitions.SCREEN_HEIGHT,
+                                  BufferedImage.TYPE_BYTE_BINARY,
+                                  new IndexColorModel(1, 2, colors, colors, colors));
+        pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        setAllChanged();
 
         timer = new Timer(STATIC_CLOCK_INTERVALS, this);
         timer.start();
@@ -88,8 +92,19 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      * (Assumes legal index)
      */
     public void setValueAt(int index, short value) {
-        data[index] = value;
-        redraw = true;
+        // The first pixel of a word is its least significant bit, while the first
+        // pixel of an image byte is its most significant bit.
+        int reversed = Integer.reverse(value) >>> 16;
+        int row = index / WORDS_PER_ROW;
+        int offset = row * BYTES_PER_ROW + (index % WORDS_PER_ROW) * 2;
+        byte first = (byte)(reversed >> 8);
+        byte second = (byte)reversed;
+
+        if (pixels[offset] != first || pixels[offset + 1] != second) {
+            pixels[offset] = first;
+            pixels[offset + 1] = second;
+            setRowChanged(row);
+        }
     }
 
     /**
@@ -97,28 +112,26 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      * (Assumes that the length of the values array equals the screen memory size.
      */
     public void setContents(short[] values) {
-        data = values;
-        redraw = true;
+        int length = Math.min(values.length, Definitions.SCREEN_SIZE_IN_WORDS);
+        for (int i = 0; i < length; i++)
+            setValueAt(i, values[i]);
     }
 
     /**
      * Resets the content of this component.
      */
     public void reset(){
-        for (int i = 0; i < data.length; i++)
-            data[i] = 0;
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = 0;
 
-        redraw = true;
+        setAllChanged();
     }
 
     /**
      * Refreshes this component.
      */
     public void refresh() {
-        if (redraw) {
-            repaint();
-            redraw = false;
-        }
+        repaintChangedRows();
     }
 
     /**
@@ -139,34 +152,42 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      * Called at constant intervals
      */
     public void actionPerformed(ActionEvent e) {
-        if (redraw) {
-            repaint();
-            redraw = false;
-        }
+        repaintChangedRows();
     }
 
     /**
      * Called when the screen needs to be painted.
      */
     public void paintComponent(Graphics g) {
-
         super.paintComponent(g);
+        g.drawImage(image, left, top, null);
+    }
+
+    // Adds the given row to the range of changed rows
+    private synchronized void setRowChanged(int row) {
+        if (row < firstChangedRow)
+            firstChangedRow = row;
+        if (row > lastChangedRow)
+            lastChangedRow = row;
+    }
 
-        for (int i = 0; i < Definitions.SCREEN_SIZE; i++) {
-            if (data[i] != 0) {
-                if (data[i] == 0xffff) // draw a full line
-                    g.drawLine(x[i], y[i], x[i] + 15, y[i]);
-                else {
-                    short value = data[i];
-                    for (int j = 0; j < 16; j++) {
-                        if ((value & 0x1) == 1)
-                            // since there's no drawPixel, uses drawLine to draw one pixel
-                            g.drawLine(x[i] + j, y[i], x[i] + j, y[i]);
-
-                        value = (short)(value >> 1);
-                    }
-                }
-            }
+    // Sets all the rows as changed
+    private synchronized void setAllChanged() {
+        firstChangedRow = 0;
+        lastChangedRow = Definitions.SCREEN_HEIGHT - 1;
+    }
+
+    // Repaints the rows that changed since the last repaint (if any)
+    private void repaintChangedRows() {
+        int first, last;
+        synchronized (this) {
+            first = firstChangedRow;
+            last = lastChangedRow;
+            firstChangedRow = Definitions.SCREEN_HEIGHT;
+            lastChangedRow = -1;
         }
+
+        if (first <= last)
+            repaint(left, top + first, Definitions.SCREEN_WIDTH, last - first + 1);
     }
 }
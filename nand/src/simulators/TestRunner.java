@@ -0,0 +1,373 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.*;
+
+import simulators.controllers.*;
+import simulators.CPUEmulator.CPUEmulator;
+import simulators.VMEmulator.VMEmulator;
+import simulators.hardwareSimulator.HardwareSimulator;
+import simulators.hardwareSimulator.gates.GateClass;
+import simulators.hardwareSimulator.gates.GatesManager;
+
+/**
+ * Runs a suite of test scripts (.tst files) without a GUI, in parallel, and
+ * reports the result of each script in JUnit XML or JSON format.
+ * Each script is run by its own simulator and controller: the hardware
+ * simulator, the CPU emulator or the VM emulator, according to the file loaded
+ * by the script's first load command (or as forced by the -simulator option).
+ * With the -compiled option, compiled chips are kept in the given dir, so that
+ * later runs don't need to parse the HDL files that didn't change.
+ */
+public class TestRunner {
+
+    // Simulator kinds
+    private static final int AUTO = 0;
+    private static final int HARDWARE = 1;
+    private static final int CPU = 2;
+    private static final int VM = 3;
+
+    // The result of running a single script
+    private static class Result {
+        File script;
+        String simulatorName;
+        long time; // in milliseconds
+        String message; // null if the script passed
+        int comparisonFailureLine;
+    }
+
+    // Runs a single script on a thread of the pool
+    private static class ScriptRun implements Callable<Result> {
+        private File script;
+        private int simulatorKind;
+
+        ScriptRun(File script, int simulatorKind) {
+            this.script = script;
+            this.simulatorKind = simulatorKind;
+        }
+
+        public Result call() {
+            Result result = new Result();
+            result.script = script;
+            long startTime = System.currentTimeMillis();
+
+            // the hardware simulator's gates must not be shared with other threads
+            GatesManager.useSeparateInstance(true);
+            try {
+                HackSimulator simulator = createSimulator(simulatorKind, script);
+                result.simulatorName = simulator.getName();
+                HackController controller =
+                    new HackController(simulator, script.getPath(), 0, false);
+
+                result.message = controller.getErrorMessage();
+                result.comparisonFailureLine = controller.getComparisonFailureLine();
+                if (result.message == null && !controller.isScriptEnded())
+                    result.message = "Script stopped before its end";
+            } catch (Throwable t) {
+                result.message = "Unexpected error: " + t;
+            } finally {
+                GatesManager.useSeparateInstance(false);
+            }
+
+            result.time = System.currentTimeMillis() - startTime;
+            return result;
+        }
+    }
+
+    // Creates the simulator of the given kind. If the kind is AUTO, chooses
+    // it according to the file loaded by the given script.
+    private static HackSimulator createSimulator(int kind, File script) {
+        if (kind == AUTO)
+            kind = getSimulatorKind(script);
+
+        switch (kind) {
+            case HARDWARE:
+                return new HardwareSimulator();
+            case CPU:
+                return new CPUEmulator();
+            default:
+                return new VMEmulator();
+        }
+    }
+
+    // Returns the kind of simulator that runs the given script, according to
+    // the file loaded by its first load command: a chip (.hdl) is loaded by
+    // the hardware simulator, a program (.asm or .hack) by the CPU emulator and
+    // vm files or directories by the VM emulator.
+    private static int getSimulatorKind(File script) {
+        try {
+            Script parsedScript = new Script(script.getPath());
+            for (int i = 0; i < parsedScript.getLength(); i++) {
+                Command command = parsedScript.getCommandAt(i);
+                if (command.getCode() != Command.SIMULATOR_COMMAND)
+                    continue;
+
+                String[] args = (String[])command.getArg();
+                if (!args[0].equals("load"))
+                    continue;
+
+                if (args.length < 2)
+                    return VM;
+
+                String fileName = args[1].toLowerCase();
+                if (fileName.endsWith(".hdl"))
+                    return HARDWARE;
+                else if (fileName.endsWith(".asm") || fileName.endsWith(".hack"))
+                    return CPU;
+                else
+                    return VM;
+            }
+        } catch (ScriptException se) {
+        } catch (ControllerException ce) {
+        }
+
+        // no load command (or the script is illegal, which its run will report)
+        return VM;
+    }
+
+    // Adds the test scripts in the given file (a script or a directory
+    // that is searched recursively) to the given vector, sorted by name.
+    private static void findScripts(File file, Vector<File> scripts) {
+        if (!file.isDirectory()) {
+            scripts.addElement(file);
+            return;
+        }
+
+        File[] files = file.listFiles();
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].isDirectory())
+                findScripts(files[i], scripts);
+            else if (files[i].getName().endsWith(".tst"))
+                scripts.addElement(files[i]);
+        }
+    }
+
+    // Writes the given results in JUnit XML format
+    private static void writeJUnitReport(Result[] results, int failures, int errors,
+                                         long time, PrintWriter out) {
+        out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.println("<testsuite name=\"TestRunner\" tests=\"" + results.length +
+                    "\" failures=\"" + failures + "\" errors=\"" + errors +
+                    "\" time=\"" + seconds(time) + "\">");
+
+        for (int i = 0; i < results.length; i++) {
+            Result result = results[i];
+            File parent = result.script.getParentFile();
+            out.print("  <testcase classname=\"" +
+                      xmlEscape(parent != null ? parent.getPath() : "") +
+                      "\" name=\"" + xmlEscape(result.script.getName()) +
+                      "\" time=\"" + seconds(result.time) + "\"");
+            if (result.message == null)
+                out.println("/>");
+            else {
+                out.println(">");
+                out.println("    <" + (result.comparisonFailureLine > 0 ? "failure" : "error") +
+                            " message=\"" + xmlEscape(result.message) + "\"/>");
+                out.println("  </testcase>");
+            }
+        }
+
+        out.println("</testsuite>");
+    }
+
+    // Writes the given results in JSON format
+    private static void writeJSONReport(Result[] results, int failures, int errors,
+                                        long time, PrintWriter out) {
+        out.println("{");
+        out.println("  \"tests\": " + results.length + ",");
+        out.println("  \"failures\": " + failures + ",");
+        out.println("  \"errors\": " + errors + ",");
+        out.println("  \"time\": " + seconds(time) + ",");
+        out.println("  \"results\": [");
+
+        for (int i = 0; i < results.length; i++) {
+            Result result = results[i];
+            out.print("    {\"script\": " + jsonString(result.script.getPath()) +
+                      ", \"simulator\": " + jsonString(result.simulatorName) +
+                      ", \"passed\": " + (result.message == null) +
+                      ", \"time\": " + seconds(result.time) +
+                      ", \"comparisonFailureLine\": " + result.comparisonFailureLine +
+                      ", \"message\": " + jsonString(result.message) + "}");
+            out.println(i < results.length - 1 ? "," : "");
+        }
+
+        out.println("  ]");
+        out.println("}");
+    }
+
+    // Returns the given time in milliseconds as a string of seconds
+    private static String seconds(long time) {
+        return String.valueOf(time / 1000.0);
+    }
+
+    // Returns the given text escaped for an XML attribute value
+    private static String xmlEscape(String text) {
+        StringBuffer result = new StringBuffer(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&': result.append("&amp;"); break;
+                case '<': result.append("&lt;"); break;
+                case '>': result.append("&gt;"); break;
+                case '"': result.append("&quot;"); break;
+                default: result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    // Returns the given text as a JSON string (or null)
+    private static String jsonString(String text) {
+        if (text == null)
+            return "null";
+
+        StringBuffer result = new StringBuffer(text.length() + 2);
+        result.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\')
+                result.append('\\').append(c);
+            else if (c < ' ')
+                result.append(String.format("\\u%04x", (int)c));
+            else
+                result.append(c);
+        }
+        result.append('"');
+        return result.toString();
+    }
+
+    // Prints the usage message and exits
+    private static void usage() {
+        System.err.println("Usage: java TestRunner [-threads <count>] " +
+                           "[-simulator hardware|cpu|vm] [-format junit|json] " +
+                           "[-report <file>] [-compiled <dir>] <tst-file or dir>...");
+        System.exit(-1);
+    }
+
+    /**
+     * The command line test runner program.
+     */
+    public static void main(String[] args) {
+        int threadsCount = Runtime.getRuntime().availableProcessors();
+        int simulatorKind = AUTO;
+        boolean json = false;
+        String reportName = null;
+
+        int argIndex = 0;
+        for (; argIndex < args.length - 1 && args[argIndex].startsWith("-"); argIndex += 2) {
+            String option = args[argIndex];
+            String value = args[argIndex + 1];
+            if (option.equals("-threads")) {
+                try {
+                    threadsCount = Integer.parseInt(value);
+                } catch (NumberFormatException nfe) {
+                    usage();
+                }
+                if (threadsCount < 1)
+                    usage();
+            } else if (option.equals("-simulator")) {
+                if (value.equals("hardware"))
+                    simulatorKind = HARDWARE;
+                else if (value.equals("cpu"))
+                    simulatorKind = CPU;
+                else if (value.equals("vm"))
+                    simulatorKind = VM;
+                else
+                    usage();
+            } else if (option.equals("-format")) {
+                if (value.equals("json"))
+                    json = true;
+                else if (!value.equals("junit"))
+                    usage();
+            } else if (option.equals("-report")) {
+                reportName = value;
+            } else if (option.equals("-compiled")) {
+                GateClass.setCompiledDir(new File(value));
+            } else
+                usage();
+        }
+
+        if (argIndex == args.length)
+            usage();
+
+        Vector<File> scripts = new Vector<File>();
+        for (; argIndex < args.length; argIndex++) {
+            File file = new File(args[argIndex]);
+            if (!file.exists()) {
+                System.err.println("Could not find file or directory: " + args[argIndex]);
+                System.exit(-1);
+            }
+            findScripts(file, scripts);
+        }
+
+        long startTime = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threadsCount);
+        Vector<Future<Result>> futures = new Vector<Future<Result>>(scripts.size());
+        for (int i = 0; i < scripts.size(); i++)
+            futures.addElement(pool.submit(new ScriptRun(scripts.elementAt(i), simulatorKind)));
+
+        Result[] results = new Result[futures.size()];
+        int failures = 0;
+        int errors = 0;
+        for (int i = 0; i < results.length; i++) {
+            try {
+                results[i] = futures.elementAt(i).get();
+            } catch (InterruptedException ie) {
+                System.exit(-1);
+            } catch (ExecutionException ee) { // ScriptRun catches all its errors
+                throw new RuntimeException(ee.getCause());
+            }
+
+            if (results[i].message != null) {
+                if (results[i].comparisonFailureLine > 0)
+                    failures++;
+                else
+                    errors++;
+            }
+        }
+        pool.shutdown();
+        long time = System.currentTimeMillis() - startTime;
+
+        try {
+            PrintWriter out = reportName != null ?
+                new PrintWriter(new BufferedWriter(new FileWriter(reportName))) :
+                new PrintWriter(new OutputStreamWriter(System.out));
+            if (json)
+                writeJSONReport(results, failures, errors, time, out);
+            else
+                writeJUnitReport(results, failures, errors, time, out);
+            out.flush();
+            if (reportName != null)
+                out.close();
+        } catch (IOException ioe) {
+            System.err.println("Could not write the report: " + ioe.getMessage());
+            System.exit(-1);
+        }
+
+        if (reportName != null)
+            System.out.println(results.length + " scripts, " + failures + " failures, " +
+                               errors + " errors (" + seconds(time) + " seconds)");
+
+        System.exit(failures + errors > 0 ? 1 : 0);
+    }
+}
@@ -18,8 +18,11 @@
 package simulators.VMEmulator;
 
 import java.io.File;
+import java.lang.invoke.*;
 import java.lang.reflect.*;
+import java.util.Hashtable;
 
+import simulators.CPUEmulator.RAM;
 import simulators.controllers.ProgramException;
 
 import common.Definitions;
@@ -28,6 +31,14 @@ import common.Definitions;
  * A class that runs built-in VM code as a coroutine so that
  * built-in code may pause and call VM code that the user may debug and step
  * through.
+ * Since most built-in functions never call VM code, a function is first
+ * called directly on the VM emulator's thread. If it requests a call to VM
+ * code (or an infinite loop), its memory writes are undone and it is run
+ * again as a coroutine on the built-in thread - from then on, the function
+ * is always run on the built-in thread. This assumes that built-in functions
+ * don't change other state before requesting calls, as in the built-in OS.
+ * The implementing methods are resolved once per function name, into method
+ * handles that take the parameters as a short array and return a short.
  */
 public class BuiltInFunctionsRunner implements Runnable {
 
@@ -47,13 +58,68 @@ public class BuiltInFunctionsRunner implements Runnable {
 	}
     private class ProgramToBuiltInRequest {
 		int request;
-		Method functionObject;
-		Object[] params;
+		BuiltInFunction function;
+		short[] params;
 		short returnValue;
 	};
 	private BuiltInToProgramRequest builtInToProgram;
 	private ProgramToBuiltInRequest programToBuiltIn;
 
+	// A resolved built-in function
+	private static class BuiltInFunction {
+		// The name of the implementing method
+		String name;
+
+		// The number of parameters
+		int paramsCount;
+
+		// Calls the implementing method with the parameters in a short array
+		// and returns the return value as a short
+		MethodHandle handle;
+
+		// true if the function requested a call when called directly
+		boolean mayCallBack;
+	}
+
+	// Thrown in a directly called built-in function that requests a call
+	private static class ResumeOnBuiltInThreadError extends Error {
+		private static final long serialVersionUID = 1L;
+
+		ResumeOnBuiltInThreadError() {
+			super(null, null, false, false);
+		}
+	}
+	private static final ResumeOnBuiltInThreadError RESUME_ON_BUILT_IN_THREAD =
+		new ResumeOnBuiltInThreadError();
+
+	// Converts boolean return values to shorts
+	private static final MethodHandle BOOLEAN_TO_SHORT;
+
+	static {
+		try {
+			BOOLEAN_TO_SHORT = MethodHandles.lookup().findStatic(
+				BuiltInFunctionsRunner.class, "booleanToShort",
+				MethodType.methodType(short.class, boolean.class));
+		} catch (ReflectiveOperationException roe) {
+			throw new ExceptionInInitializerError(roe);
+		}
+	}
+
+	// The resolved built-in functions, by function name
+	private Hashtable<String, BuiltInFunction> builtInFunctions;
+
+	// true while a built-in function is called directly on the VM emulator's
+	// thread
+	private boolean isDirectCall;
+
+	// The memory writes of the current direct call, as pairs of address and
+	// previous value, so that they can be undone
+	private short[] directWrites;
+	private int directWritesCount;
+
+	// The error of the current direct call (null if none)
+	private String directCallError;
+
 	// The thread that runs the built-in code
 	private Thread thread;
 
@@ -62,6 +128,10 @@ public class BuiltInFunctionsRunner implements Runnable {
 
 	// The built-in dir
 	private File builtInDir;
+
+	// The states that the built-in classes keep for the running program,
+	// by implementing class
+	private Hashtable<Class<?>, Object> programStates;
 	
 	/********************** Code common to both threads *****/
 
@@ -93,6 +163,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 		this.builtInDir = builtInDir;
 		builtInToProgram = new BuiltInToProgramRequest();
 		programToBuiltIn = new ProgramToBuiltInRequest();
+		builtInFunctions = new Hashtable<String, BuiltInFunction>();
+		programStates = new Hashtable<Class<?>, Object>();
+		directWrites = new short[64];
 		thread = new Thread(this);
 		synchronized (this) {
 			thread.start();
@@ -101,6 +174,21 @@ public class BuiltInFunctionsRunner implements Runnable {
 		}
     }
 
+	/**
+	 * Returns the state that the given built-in class keeps for the running
+	 * program, or null if it has none.
+	 */
+	Object getProgramState(Class<?> implementingClass) {
+		return programStates.get(implementingClass);
+	}
+
+	/**
+	 * Sets the state that the given built-in class keeps for the running program.
+	 */
+	void setProgramState(Class<?> implementingClass, Object state) {
+		programStates.put(implementingClass, state);
+	}
+
 	/**
 	 * Called by the VM emulator. Tells the built-in code runner thread
 	 * to exit all currently running built-in functions. Returns after
@@ -130,6 +218,29 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 * Throws a ProgramException if no built-in implementation was found.
 	 */
 	public void callBuiltInFunction(String functionName, short[] params) throws ProgramException {
+		BuiltInFunction function = builtInFunctions.get(functionName);
+		if (function == null || function.paramsCount != params.length) {
+			function = resolveBuiltInFunction(functionName, params.length);
+			builtInFunctions.put(functionName, function);
+		}
+
+		if (!function.mayCallBack && callDirectly(function, params))
+			return;
+
+		programToBuiltIn.request = CALL_REQUEST;
+		programToBuiltIn.params = params;
+		programToBuiltIn.function = function;
+
+		sendBuiltInRequestAndWaitForAnswer();
+	}
+
+	/**
+	 * Searches for a built-in vm function by its name and number of
+	 * parameters, and returns it.
+	 * Throws a ProgramException if no built-in implementation was found.
+	 */
+	private BuiltInFunction resolveBuiltInFunction(String functionName, int paramsCount)
+			throws ProgramException {
         int dotLocation = functionName.indexOf(".");
         if (dotLocation == -1) {
             throw new ProgramException("Illegal function name: " + functionName);
@@ -163,11 +274,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 			throw new ProgramException("Built-in implementation for "+className+" is not a subclass of BuiltInVMClass");
 		}
 
-		// Find the implementing method & fill in the request
-		Class[] paramsClasses = new Class[params.length];
-		Object[] requestParams = new Object[params.length];
-		for (int i=0; i<params.length; ++i) {
-			requestParams[i] = new Short(params[i]);
+		// Find the implementing method
+		Class[] paramsClasses = new Class[paramsCount];
+		for (int i=0; i<paramsCount; ++i) {
 			paramsClasses[i] = short.class;
 		}
 
@@ -176,18 +285,78 @@ public class BuiltInFunctionsRunner implements Runnable {
 			functionObject =
 				implementingClass.getDeclaredMethod(methodName, paramsClasses);
 		} catch (NoSuchMethodException nsme) {
-			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for function "+methodName+" in class "+className+" taking "+params.length+" argument"+(params.length==1?"":"s")+".");
+			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for function "+methodName+" in class "+className+" taking "+paramsCount+" argument"+(paramsCount==1?"":"s")+".");
 		}
 		Class returnType = functionObject.getReturnType();
 		if (returnType != short.class && returnType != void.class &&
 			returnType != char.class && returnType != boolean.class) {
-			throw new ProgramException("Can't find "+className+".vm and the built-in implementation for "+functionName+" taking "+params.length+" arguments doesn't return short/char/void/boolean.");
+			throw new ProgramException("Can't find "+className+".vm and the built-in implementation for "+functionName+" taking "+paramsCount+" arguments doesn't return short/char/void/boolean.");
 		}
-		programToBuiltIn.request = CALL_REQUEST;
-		programToBuiltIn.params = requestParams;
-		programToBuiltIn.functionObject = functionObject;
-			
-		sendBuiltInRequestAndWaitForAnswer();
+
+		BuiltInFunction function = new BuiltInFunction();
+		function.name = methodName;
+		function.paramsCount = paramsCount;
+		try {
+			function.handle = MethodHandles.lookup().unreflect(functionObject);
+		} catch (IllegalAccessException iae) {
+			throw new ProgramException("Error trying to run the built-in implementation of "+methodName);
+		}
+
+		// Convert the return value to a short
+		if (returnType == char.class) {
+			function.handle = MethodHandles.explicitCastArguments(function.handle,
+				function.handle.type().changeReturnType(short.class));
+		} else if (returnType == boolean.class) {
+			function.handle = MethodHandles.filterReturnValue(function.handle,
+															  BOOLEAN_TO_SHORT);
+		} else if (returnType == void.class) {
+			function.handle = MethodHandles.filterReturnValue(function.handle,
+				MethodHandles.constant(short.class, Short.valueOf((short)0)));
+		}
+		function.handle = function.handle.asSpreader(short[].class, paramsCount);
+
+		return function;
+	}
+
+	/**
+	 * Calls the given built-in function with the given params on this thread,
+	 * and returns its value to the cpu. Returns false if the function
+	 * requested a call, in which case its memory writes are undone and it
+	 * should be run on the built-in thread.
+	 * Throws a ProgramException if the function caused an error.
+	 */
+	private boolean callDirectly(BuiltInFunction function, short[] params)
+			throws ProgramException {
+		short returnValue;
+		isDirectCall = true;
+		directWritesCount = 0;
+		directCallError = null;
+		BuiltInVMClass.associateForThread(this);
+		try {
+			returnValue = (short)function.handle.invokeExact(params);
+		} catch (ResumeOnBuiltInThreadError e) {
+			for (int i = directWritesCount - 2; i >= 0; i -= 2) {
+				cpu.getRAM().setValueAt(directWrites[i], directWrites[i + 1], false);
+			}
+			function.mayCallBack = true;
+			return false;
+		} catch (TerminateVMProgramThrowable e) {
+			// thrown only after an error
+			throw new ProgramException(directCallError);
+		} catch (Throwable t) {
+			throw new ProgramException("The built-in implementation of "+function.name+" caused an exception: "+t.toString());
+		} finally {
+			isDirectCall = false;
+			BuiltInVMClass.dissociateForThread();
+		}
+
+		cpu.returnFromBuiltInFunction(returnValue);
+		return true;
+	}
+
+	// Returns the short value of the given boolean return value
+	private static short booleanToShort(boolean value) {
+		return value ? (short)-1 : 0;
 	}
 
 	/**
@@ -259,49 +428,29 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 * necessary cleanups, and rethrow it.
      */
 	public short builtInFunctionRequestsCall(String functionName, short[] params) throws TerminateVMProgramThrowable {
+		if (isDirectCall) {
+			throw RESUME_ON_BUILT_IN_THREAD;
+		}
 		builtInToProgram.request = CALL_REQUEST;
 		builtInToProgram.details = functionName;
 		builtInToProgram.params = params;
 		// Wait for a command and loop while we're getting call commands
 		for(continueOtherThread(); programToBuiltIn.request == CALL_REQUEST;
 			continueOtherThread()) {
+			// programToBuiltIn might be overwritten until the return
+			// from the call. Save what's needed.
+			functionName = programToBuiltIn.function.name;
 			try { // Try to run the built-in implementation
-				// programToBuiltIn might be overwritten until the return
-				// from the call. Save what's needed.
-				Class returnType = programToBuiltIn.functionObject.getReturnType();
-				functionName =
-					programToBuiltIn.functionObject.getName();
-				// Execute
-				Object returnValue =
-					programToBuiltIn.functionObject.invoke(null,
-														   programToBuiltIn.params);
+				short returnValue = (short)programToBuiltIn.function.handle.invokeExact(
+					programToBuiltIn.params);
 				builtInToProgram.request = RETURN_REQUEST;
-				if (returnType == short.class) {
-					builtInToProgram.returnValue = ((Short)returnValue).shortValue();
-				} else if (returnType == char.class) {
-					builtInToProgram.returnValue = (short)((Character)returnValue).charValue();
-				} else if (returnType == boolean.class) {
-					if (((Boolean)returnValue).booleanValue()) {
-						builtInToProgram.returnValue = (short)-1;
-					} else {
-						builtInToProgram.returnValue = 0;
-					}
-				} else { // returnType == void.class
-					builtInToProgram.returnValue = 0;
-				}
-			} catch (IllegalAccessException iae) {
-				// Error running - abort VM program
+				builtInToProgram.returnValue = returnValue;
+			} catch (TerminateVMProgramThrowable e) {
+				throw e;
+			} catch (Throwable t) {
+				// Error in the built-in function - abort VM program
 				builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
-				builtInToProgram.details = "Error trying to run the built-in implementation of "+functionName;
-			} catch (InvocationTargetException ita) {
-				// Rethrow a TerminateVMProgramThrowable object that was thrown
-				try {
-					throw (TerminateVMProgramThrowable)ita.getTargetException();
-				} catch (ClassCastException cce) {
-					// Error in the built-in function - abort VM program
-					builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
-					builtInToProgram.details = "The built-in implementation of "+functionName+" caused an exception: "+ita.getTargetException().toString();
-				}
+				builtInToProgram.details = "The built-in implementation of "+functionName+" caused an exception: "+t.toString();
 			}
 		}
 		if (programToBuiltIn.request == RETURN_REQUEST) {
@@ -321,12 +470,36 @@ public class BuiltInFunctionsRunner implements Runnable {
         if (!((address >= Definitions.HEAP_START_ADDRESS && address <= Definitions.HEAP_END_ADDRESS) ||
               (address >= Definitions.SCREEN_START_ADDRESS && address <= Definitions.SCREEN_END_ADDRESS) ||
               address == 0)) {
-			builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
-			builtInToProgram.details = "A built-in function tried to access memory outside the Heap or Screen range";
-			continueOtherThread();
-			// now programToBuiltIn.request == END_PROGRAM_REQUEST
+			illegalMemoryAccess();
+		}
+	}
+
+	/**
+	 * Makes sure a range of length addresses, starting at the given address,
+	 * that a built-in function requested to write/read from is legal
+	 * (the Heap and the Screen are contiguous). If not - handled as in
+	 * checkMemoryAddress.
+	 */
+	private void checkMemoryRange(int address, int length) throws TerminateVMProgramThrowable {
+		if (length < 0 ||
+			!((address >= Definitions.HEAP_START_ADDRESS &&
+			   address + length - 1 <= Definitions.SCREEN_END_ADDRESS) ||
+			  (address == 0 && length <= 1))) {
+			illegalMemoryAccess();
+		}
+	}
+
+	// Aborts the VM program after an illegal memory access by a built-in function
+	private void illegalMemoryAccess() throws TerminateVMProgramThrowable {
+		if (isDirectCall) {
+			directCallError = "A built-in function tried to access memory outside the Heap or Screen range";
 			throw new TerminateVMProgramThrowable();
 		}
+		builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
+		builtInToProgram.details = "A built-in function tried to access memory outside the Heap or Screen range";
+		continueOtherThread();
+		// now programToBuiltIn.request == END_PROGRAM_REQUEST
+		throw new TerminateVMProgramThrowable();
 	}
 
 	/**
@@ -340,6 +513,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 */
 	public void builtInFunctionRequestsInfiniteLoop(String message)
 			throws TerminateVMProgramThrowable {
+		if (isDirectCall) {
+			throw RESUME_ON_BUILT_IN_THREAD;
+		}
 		builtInToProgram.request = INFINITE_LOOP_REQUEST;
 		builtInToProgram.details = message;
 		continueOtherThread();
@@ -353,9 +529,28 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 */
 	public void builtInFunctionRequestsMemoryWrite(short address, short value) throws TerminateVMProgramThrowable {
 		checkMemoryAddress(address);
+		if (isDirectCall) {
+			journalDirectWrites(address, 1);
+		}
 		cpu.getRAM().setValueAt(address, value, false);
 	}
 
+	// Records the current values of the given range of the memory,
+	// so that the writes of a direct call can be undone.
+	private void journalDirectWrites(int address, int length) {
+		if (directWritesCount + length * 2 > directWrites.length) {
+			short[] newWrites = new short[Math.max(directWrites.length * 2,
+												   directWritesCount + length * 2)];
+			System.arraycopy(directWrites, 0, newWrites, 0, directWritesCount);
+			directWrites = newWrites;
+		}
+		short[] mem = cpu.getRAM().getContents();
+		for (int i = address; i < address + length; i++) {
+			directWrites[directWritesCount++] = (short)i;
+			directWrites[directWritesCount++] = mem[i];
+		}
+	}
+
 	/**
      * Called by a built-in function through the BuiltInVMClass class.
 	 * Returns the contents of the given address in the VM memory.
@@ -364,4 +559,57 @@ public class BuiltInFunctionsRunner implements Runnable {
 		checkMemoryAddress(address);
 		return cpu.getRAM().getValueAt(address);
 	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Reads length values, starting at the given address in the VM memory,
+	 * into the given buffer starting at the given offset.
+	 */
+	public void builtInFunctionRequestsMemoryRead(int address, short[] buffer,
+												  int offset, int length)
+			throws TerminateVMProgramThrowable {
+		checkMemoryRange(address, length);
+		System.arraycopy(cpu.getRAM().getContents(), address, buffer, offset, length);
+	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Writes length values from the given buffer, starting at the given
+	 * offset, to the VM memory starting at the given address.
+	 * The memory is updated at once and its GUI is notified once for the
+	 * whole range.
+	 */
+	public void builtInFunctionRequestsMemoryWrite(int address, short[] buffer,
+												   int offset, int length)
+			throws TerminateVMProgramThrowable {
+		checkMemoryRange(address, length);
+		if (isDirectCall) {
+			journalDirectWrites(address, length);
+		}
+		RAM ram = cpu.getRAM();
+		System.arraycopy(buffer, offset, ram.getContents(), address, length);
+		ram.valuesChanged(address, length);
+	}
+
+	/**
+     * Called by a built-in function through the BuiltInVMClass class.
+	 * Replaces each of length words, starting at the given address in the
+	 * VM memory, with (word & andMask) | orMask.
+	 * The memory is updated at once and its GUI is notified once for the
+	 * whole range.
+	 */
+	public void builtInFunctionRequestsMemoryUpdate(int address, int length,
+													short andMask, short orMask)
+			throws TerminateVMProgramThrowable {
+		checkMemoryRange(address, length);
+		if (isDirectCall) {
+			journalDirectWrites(address, length);
+		}
+		RAM ram = cpu.getRAM();
+		short[] mem = ram.getContents();
+		for (int i = address; i < address + length; i++) {
+			mem[i] = (short)((mem[i] & andMask) | orMask);
+		}
+		ram.valuesChanged(address, length);
+	}
 }
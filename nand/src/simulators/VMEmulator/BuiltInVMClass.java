@@ -17,8 +17,6 @@
 
 package simulators.VMEmulator;
 
-import java.util.Hashtable;
-
 import common.Definitions;
 
 /**
@@ -28,7 +26,9 @@ import common.Definitions;
  * should be static.
  */
 public abstract class BuiltInVMClass {
-	private static Hashtable builtInFunctionsRunnerByThread = new Hashtable();
+	// The BuiltInFunctionsRunner of each thread that runs built-in code
+	private static ThreadLocal<BuiltInFunctionsRunner> builtInFunctionsRunnerByThread =
+		new ThreadLocal<BuiltInFunctionsRunner>();
 
 	/* Some definitions regarding the memory. */
     public static final short SCREEN_START_ADDRESS = Definitions.SCREEN_START_ADDRESS;
@@ -51,7 +51,7 @@ public abstract class BuiltInVMClass {
 	 */
     protected static void writeMemory(int address, int value)
 			throws TerminateVMProgramThrowable {
-		((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsMemoryWrite((short)address, (short)value);
+		runner().builtInFunctionRequestsMemoryWrite((short)address, (short)value);
 	}
 
 	/**
@@ -61,7 +61,49 @@ public abstract class BuiltInVMClass {
 	 */
     protected static short readMemory(int address)
 			throws TerminateVMProgramThrowable {
-		return ((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsMemoryRead((short)address);
+		return runner().builtInFunctionRequestsMemoryRead((short)address);
+	}
+
+	/**
+	 * Reads length values from the VM memory, starting at the given address,
+	 * into the given buffer starting at the given offset.
+	 */
+	protected static void readMemory(int address, short[] buffer, int offset,
+									 int length)
+			throws TerminateVMProgramThrowable {
+		runner().builtInFunctionRequestsMemoryRead(address, buffer, offset, length);
+	}
+
+	/**
+	 * Writes length values from the given buffer, starting at the given
+	 * offset, to the VM memory starting at the given address.
+	 * The memory GUI is notified once for the whole range (unless animated).
+	 */
+	protected static void writeMemory(int address, short[] buffer, int offset,
+									  int length)
+			throws TerminateVMProgramThrowable {
+		runner().builtInFunctionRequestsMemoryWrite(address, buffer, offset, length);
+	}
+
+	/**
+	 * Sets length words of the VM memory, starting at the given address,
+	 * to the given value.
+	 */
+	protected static void fillMemory(int address, int length, int value)
+			throws TerminateVMProgramThrowable {
+		runner().builtInFunctionRequestsMemoryUpdate(address, length,
+													 (short)0, (short)value);
+	}
+
+	/**
+	 * Replaces each of length words of the VM memory, starting at the given
+	 * address, with (word & andMask) | orMask.
+	 */
+	protected static void updateMemory(int address, int length,
+									   int andMask, int orMask)
+			throws TerminateVMProgramThrowable {
+		runner().builtInFunctionRequestsMemoryUpdate(address, length,
+													 (short)andMask, (short)orMask);
 	}
 
 	/**
@@ -75,7 +117,7 @@ public abstract class BuiltInVMClass {
 	protected static short callFunction(String functionName,
 		   								short[] params)
 			throws TerminateVMProgramThrowable {
-		return ((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsCall(functionName, params);
+		return runner().builtInFunctionRequestsCall(functionName, params);
 	}
 
 	protected static short callFunction(String functionName)
@@ -127,12 +169,37 @@ public abstract class BuiltInVMClass {
 	 */
 	protected static void infiniteLoop(String message)
 			throws TerminateVMProgramThrowable {
-		((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsInfiniteLoop(message);
+		runner().builtInFunctionRequestsInfiniteLoop(message);
+	}
+
+
+	/**
+	 * Returns the state that the given implementing class keeps for the
+	 * currently running program, or null if it has not set one yet.
+	 * Implementing classes should keep data that persists between calls
+	 * in such a state rather than in static fields, since several programs
+	 * may run at the same time (in different threads).
+	 */
+	protected static Object getProgramState(Class<?> implementingClass) {
+		return runner().getProgramState(implementingClass);
+	}
+
+	/**
+	 * Sets the state that the given implementing class keeps for the
+	 * currently running program.
+	 */
+	protected static void setProgramState(Class<?> implementingClass, Object state) {
+		runner().setProgramState(implementingClass, state);
 	}
 
 
 	/* Methods for internal use: */
 
+	// Returns the BuiltInFunctionsRunner associated with the current thread
+	private static BuiltInFunctionsRunner runner() {
+		return builtInFunctionsRunnerByThread.get();
+	}
+
 	/**
 	 * The following function should not be called by an implementing class:
 	 *
@@ -144,7 +211,18 @@ public abstract class BuiltInVMClass {
 	 * methods.
 	 */
 	static final void associateForThread(BuiltInFunctionsRunner bifr) {
-		builtInFunctionsRunnerByThread.put(Thread.currentThread(), bifr);
+		builtInFunctionsRunnerByThread.set(bifr);
+	}
+
+	/**
+	 * The following function should not be called by an implementing class:
+	 *
+	 * Called by a BuiltInFunctionsRunner after calling a built-in function
+	 * directly from the current thread, to remove the association of the
+	 * thread.
+	 */
+	static final void dissociateForThread() {
+		builtInFunctionsRunnerByThread.remove();
 	}
 
 }
@@ -26,6 +26,7 @@ import simulators.controllers.*;
 import translators.VMTranslator.*;
 
 import common.Definitions;
+import common.SnapshotValues;
 
 
 /**
@@ -65,12 +66,24 @@ public class CPU {
     // A mapping from memory segment codes to the MemorySegment objects (not including stack).
     private MemorySegment[] segments;
 
-    // A stack of method frame addresses
-    private Vector stackFrames;
+    // The initial capacity of the stack of method frame addresses
+    private static final int INITIAL_STACK_FRAMES_CAPACITY = 64;
+
+    // A stack of method frame addresses and its used size
+    private int[] stackFrames;
+    private int stackFramesCount;
 
     // The last instruction that was executed.
     private VMEmulatorInstruction currentInstruction;
 
+    // The compiled code of each instruction of the program (null if not compiled),
+    // and the state array that is passed to it
+    private CompiledVMCode[] compiledCode;
+    private int[] compiledState;
+
+    // The profiler of the program's functions (null if not profiling)
+    private VMProfiler profiler;
+
 	// Runner for built-in vm code
 	private BuiltInFunctionsRunner builtInFunctionsRunner;
 
@@ -108,7 +121,7 @@ public class CPU {
         segments[HVMInstructionSet.THAT_SEGMENT_CODE] = thatSegment;
         segments[HVMInstructionSet.TEMP_SEGMENT_CODE] = tempSegment;
 
-        stackFrames = new Vector();
+        stackFrames = new int[INITIAL_STACK_FRAMES_CAPACITY];
 
         if (program.getGUI() != null) {
             builtInFunctionsRunner =
@@ -134,7 +147,9 @@ public class CPU {
         staticSegment.setEnabledRange(Definitions.VAR_START_ADDRESS,
 			   						  Definitions.VAR_END_ADDRESS - 1, true);
         setSP(Definitions.STACK_START_ADDRESS);
-		stackFrames.clear();
+		stackFramesCount = 0;
+        if (profiler != null)
+            profiler.callStackCleared();
         if (builtInFunctionsRunner != null) {
             builtInFunctionsRunner.killAllRunningBuiltInFunctions();
         }
@@ -213,6 +228,10 @@ public class CPU {
         if (currentInstruction == null)
             throw new ProgramException("No more instructions to execute");
 
+        // the function instruction is counted in the function it enters
+        if (profiler != null && currentInstruction.getOpCode() != HVMInstructionSet.FUNCTION_CODE)
+            profiler.instructionExecuted();
+
         switch (currentInstruction.getOpCode()) {
             case HVMInstructionSet.ADD_CODE:
                 add();
@@ -261,17 +280,243 @@ public class CPU {
                     throw new ProgramException("Missing return in " + callStack.getTopFunction());
 
                 function(currentInstruction.getArg0());
+                if (profiler != null)
+                    profiler.instructionExecuted();
                 break;
             case HVMInstructionSet.RETURN_CODE:
                 returnFromFunction();
                 break;
             case HVMInstructionSet.CALL_CODE:
                 callFunction(currentInstruction.getArg0(), currentInstruction.getArg1(),
-                           currentInstruction.getStringArg(), false);
+                           currentInstruction.getFunction(), false);
                 break;
         }
     }
 
+    /**
+     * Sets the profiler that counts the executed instructions and the function calls
+     * (or null to stop profiling). The compiled code is not used while profiling.
+     */
+    public void setProfiler(VMProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Returns the profiler (null if not profiling).
+     */
+    public VMProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Writes the state of the computer to the given stream: the RAM, the program counters,
+     * the call stack, the stack frames and the memory segments. The size of the program and
+     * the names of the called functions are written as well, to be checked on restore.
+     * Throws ProgramException if a built-in function is running, since its state is kept
+     * by its own thread.
+     */
+    public void writeState(DataOutputStream out) throws IOException, ProgramException {
+        out.writeInt(program.getSize());
+        out.writeInt(callStack.getSize());
+        for (int i = 0; i < callStack.getSize(); i++) {
+            VMFunction function = callStack.getFunctionAt(i);
+            if (function.isBuiltIn())
+                throw new ProgramException("Can't take a snapshot while the built-in function " +
+                                           function + " is running");
+            out.writeInt(function.getId());
+            out.writeUTF(function.getName());
+        }
+
+        SnapshotValues.write(out, ram.getContents(), 0, Definitions.RAM_SIZE);
+        out.writeShort(program.getPC());
+        out.writeShort(program.getCurrentPC());
+        out.writeShort(program.getPreviousPC());
+
+        out.writeInt(stackFramesCount);
+        for (int i = 0; i < stackFramesCount; i++)
+            out.writeInt(stackFrames[i]);
+
+        MemorySegment[] allSegments = getAllSegments();
+        for (int i = 0; i < allSegments.length; i++) {
+            int[] range = allSegments[i].getEnabledRange();
+            out.writeInt(allSegments[i].getStartAddress());
+            out.writeInt(range[0]);
+            out.writeInt(range[1]);
+        }
+    }
+
+    /**
+     * Reads the state of the computer from the given stream, as written by writeState(),
+     * and restores it.
+     * Throws ProgramException if the state doesn't match the loaded program (in which case
+     * nothing is restored).
+     */
+    public void readState(DataInputStream in) throws IOException, ProgramException {
+        if (in.readInt() != program.getSize())
+            throw new ProgramException("The snapshot doesn't match the loaded program");
+
+        VMFunction[] functions = new VMFunction[in.readInt()];
+        for (int i = 0; i < functions.length; i++) {
+            int id = in.readInt();
+            String name = in.readUTF();
+            if (id < 0 || id >= program.getFunctionsCount() ||
+                !program.getFunctionAt(id).getName().equals(name))
+                throw new ProgramException("The snapshot doesn't match the loaded program");
+            functions[i] = program.getFunctionAt(id);
+        }
+
+        short[] contents = new short[Definitions.RAM_SIZE];
+        SnapshotValues.read(in, contents, 0, contents.length);
+        short nextPC = in.readShort();
+        short currentPC = in.readShort();
+        short previousPC = in.readShort();
+
+        int[] frames = new int[in.readInt()];
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = in.readInt();
+
+        MemorySegment[] allSegments = getAllSegments();
+        int[][] segmentStates = new int[allSegments.length][];
+        for (int i = 0; i < segmentStates.length; i++)
+            segmentStates[i] = new int[]{in.readInt(), in.readInt(), in.readInt()};
+
+        // a running built-in function doesn't belong to the restored state
+        if (builtInFunctionsRunner != null)
+            builtInFunctionsRunner.killAllRunningBuiltInFunctions();
+
+        // the pointers in the RAM also set the addresses of their segments
+        ram.setContents(contents, 0);
+
+        // setting the PC shifts its current and previous values
+        program.setPC(previousPC);
+        program.setPC(currentPC);
+        program.setPC(nextPC);
+        currentInstruction = (currentPC >= 0 && currentPC < program.getSize()) ?
+                             program.getInstructions()[currentPC] : null;
+
+        callStack.setFunctions(functions);
+        if (profiler != null)
+            profiler.callStackRestored(callStack);
+
+        stackFrames = new int[Math.max(frames.length, INITIAL_STACK_FRAMES_CAPACITY)];
+        System.arraycopy(frames, 0, stackFrames, 0, frames.length);
+        stackFramesCount = frames.length;
+
+        for (int i = 0; i < allSegments.length; i++) {
+            allSegments[i].setStartAddress(segmentStates[i][0]);
+            allSegments[i].setEnabledRange(segmentStates[i][1], segmentStates[i][2], true);
+        }
+    }
+
+    // Returns all the memory segments, including the stacks and the static segment,
+    // whose start addresses and enabled ranges are a part of the state.
+    private MemorySegment[] getAllSegments() {
+        return new MemorySegment[]{stackSegment, workingStackSegment, staticSegment,
+                                   localSegment, argSegment, thisSegment, thatSegment,
+                                   tempSegment};
+    }
+
+    /**
+     * Compiles the program into JVM bytecode, which is then used by executeInstructions.
+     * Should only be called without a GUI, since the compiled code doesn't update it.
+     */
+    public void compileProgram() {
+        compiledCode = new VMCompiler(program.getInstructions(), program.getSize()).compileProgram();
+        compiledState = new int[CompiledVMCode.STATE_SIZE];
+    }
+
+    /**
+     * Discards the compiled program (should be called when the program changes).
+     */
+    public void discardCompiledProgram() {
+        compiledCode = null;
+    }
+
+    /**
+     * Returns true if the program is compiled.
+     */
+    public boolean isProgramCompiled() {
+        return compiledCode != null;
+    }
+
+    /**
+     * Executes the given number of instructions, as the same number of calls to
+     * executeInstruction would. The compiled code of the program is used where possible,
+     * and the other instructions are executed by executeInstruction.
+     */
+    public void executeInstructions(int count) throws ProgramException {
+        int[] state = compiledState;
+
+        while (count > 0) {
+            short pc = program.getPC();
+            CompiledVMCode code = (compiledCode != null && profiler == null && pc >= 0 && pc < compiledCode.length) ?
+                                  compiledCode[pc] : null;
+            if (code == null || !loadCompiledState(state, count)) {
+                executeInstruction();
+                count--;
+                continue;
+            }
+
+            code.execute(ram.getContents(), state);
+            storeCompiledState(state);
+            count = state[CompiledVMCode.STEPS];
+
+            // the code stopped before an instruction it can't execute
+            int next = state[CompiledVMCode.NEXT_PC];
+            if (count > 0 && next >= code.start && next < code.start + code.length) {
+                executeInstruction();
+                count--;
+            }
+        }
+    }
+
+    // Puts the program counters, the given number of steps, the stack pointer and the
+    // segments in the given state array of the compiled code. Returns false if a segment
+    // includes the pointers, which the compiled code can't access.
+    private boolean loadCompiledState(int[] state, int steps) {
+        state[CompiledVMCode.NEXT_PC] = program.getPC();
+        state[CompiledVMCode.CURRENT_PC] = program.getCurrentPC();
+        state[CompiledVMCode.LAST_PC] = -1;
+        state[CompiledVMCode.STEPS] = steps;
+        state[CompiledVMCode.SP] = getSP();
+
+        return loadSegmentState(state, CompiledVMCode.LOCAL_START, localSegment) &&
+               loadSegmentState(state, CompiledVMCode.ARG_START, argSegment) &&
+               loadSegmentState(state, CompiledVMCode.THIS_START, thisSegment) &&
+               loadSegmentState(state, CompiledVMCode.THAT_START, thatSegment) &&
+               loadSegmentState(state, CompiledVMCode.STATIC_START, staticSegment) &&
+               loadSegmentState(state, CompiledVMCode.TEMP_START, tempSegment);
+    }
+
+    // Puts the start address and the enabled range of the given segment in the given
+    // state array, from the given index. Returns false if the range includes the pointers.
+    private boolean loadSegmentState(int[] state, int index, MemorySegment segment) {
+        int[] range = segment.getEnabledRange();
+        state[index] = segment.getStartAddress();
+        state[index + 1] = range[0];
+        state[index + 2] = range[1];
+        return range[0] > range[1] || range[0] > Definitions.THAT_POINTER_ADDRESS;
+    }
+
+    // Updates the program, the stack pointer and the this and that segments from the
+    // given state array of the compiled code.
+    private void storeCompiledState(int[] state) {
+        program.setExecutionPoint((short)state[CompiledVMCode.NEXT_PC],
+                                  (short)state[CompiledVMCode.CURRENT_PC]);
+        if (state[CompiledVMCode.LAST_PC] != -1)
+            currentInstruction = program.getInstructions()[state[CompiledVMCode.LAST_PC]];
+
+        setSP((short)state[CompiledVMCode.SP]);
+        ram.setValueAt(Definitions.THIS_POINTER_ADDRESS,
+                       ram.getValueAt(Definitions.THIS_POINTER_ADDRESS), true);
+        thisSegment.setEnabledRange(state[CompiledVMCode.THIS_START + 1],
+                                    state[CompiledVMCode.THIS_START + 2], true);
+        ram.setValueAt(Definitions.THAT_POINTER_ADDRESS,
+                       ram.getValueAt(Definitions.THAT_POINTER_ADDRESS), true);
+        thatSegment.setEnabledRange(state[CompiledVMCode.THAT_START + 1],
+                                    state[CompiledVMCode.THAT_START + 2], true);
+    }
+
     /**
      * integer addition (binary operation).
      */
@@ -416,13 +661,15 @@ public class CPU {
             pushValue(MAIN_STACK, (short)0);
         }
 
-        String functionName = currentInstruction.getStringArg();
+        VMFunction function = currentInstruction.getFunction();
 
         // adds the new function to the top of the call stack.
-        callStack.pushFunction(functionName);
+        callStack.pushFunction(function);
+        if (profiler != null)
+            profiler.functionEntered(function);
 
         // sets the static segment range
-        setStaticRange(functionName);
+        setStaticRange(function);
     }
 
 	/**
@@ -473,12 +720,13 @@ public class CPU {
 
         // removes the top function from the call stack
         callStack.popFunction();
+        if (profiler != null)
+            profiler.functionExited();
 
         // check whether there is a "calling frame"
-        if (stackFrames.size() > 0) {
+        if (stackFramesCount > 0) {
             // retrieve stack frame address of old function
-            int frameAddress = ((Integer)stackFrames.lastElement()).intValue();
-            stackFrames.removeElementAt(stackFrames.size() - 1);
+            int frameAddress = stackFrames[--stackFramesCount];
             workingStackSegment.setStartAddress(frameAddress);
 
             // disable non relevant range of the local segment - enable only the locals
@@ -504,8 +752,8 @@ public class CPU {
 			builtInFunctionsRunner.returnToBuiltInFunction(popValue(METHOD_STACK));
 		} else if (returnAddress >= 0 && returnAddress < program.getSize()) {
             // sets the static segment range
-			if (stackFrames.size() > 0) {
-				setStaticRange(callStack.getTopFunction());
+			if (stackFramesCount > 0) {
+				setStaticRange(callStack.getTop());
 			} else {
 				staticSegment.setStartAddress(Definitions.VAR_START_ADDRESS);
 				staticSegment.setEnabledRange(Definitions.VAR_START_ADDRESS,
@@ -530,7 +778,7 @@ public class CPU {
 			pushValue(METHOD_STACK, params[i]);
 		}
 		callFunction(program.getAddress(functionName), (short)params.length,
-					 functionName, true);
+					 program.getFunction(functionName), true);
 	}
 	
     /**
@@ -541,9 +789,14 @@ public class CPU {
 	 * this function through callFunctionFromBuiltIn.
 	 * If address is -1 then a native function should be looked up and called.
      */
-    public void callFunction(short address, short numberOfArguments, String functionName, boolean callerIsBuiltIn)
+    public void callFunction(short address, short numberOfArguments, VMFunction function, boolean callerIsBuiltIn)
      throws ProgramException {
-        stackFrames.addElement(new Integer(workingStackSegment.getStartAddress()));
+        if (stackFramesCount == stackFrames.length) {
+            int[] newStackFrames = new int[stackFramesCount * 2];
+            System.arraycopy(stackFrames, 0, newStackFrames, 0, stackFramesCount);
+            stackFrames = newStackFrames;
+        }
+        stackFrames[stackFramesCount++] = workingStackSegment.getStartAddress();
         workingStackSegment.setStartAddress(getSP() + 5);
 
 		if (callerIsBuiltIn) {
@@ -567,7 +820,9 @@ public class CPU {
 			localSegment.setEnabledRange(localSegment.getStartAddress(),
 										 localSegment.getStartAddress()-1,
 										 true); // no local variables
-			callStack.pushFunction(functionName + " (built-in)");
+			callStack.pushFunction(function);
+			if (profiler != null)
+				profiler.functionEntered(function);
 			staticSegment.setEnabledRange(0, -1, true); // empty static segment
 			// Read parameters from the stack
 			short[] params = new short[numberOfArguments];
@@ -575,7 +830,7 @@ public class CPU {
 				params[i] = argSegment.getValueAt(i);
 			}
 			// Call the built-in implementation
-			builtInFunctionsRunner.callBuiltInFunction(functionName, params);
+			builtInFunctionsRunner.callBuiltInFunction(function.getName(), params);
 		} else if (address >= 0 || address < program.getSize()) {
 			program.setPC(address);
 			program.setPC(address); // make sure previouspc isn't pc-1
@@ -592,15 +847,14 @@ public class CPU {
     }
 
     /**
-     * Sets the static segment range according to the the given function (file) name.
+     * Sets the static segment range according to the given function's class.
      */
-    protected void setStaticRange(String functionName) throws ProgramException {
-        int dotLocation = functionName.indexOf(".");
-        if (dotLocation == -1)
+    protected void setStaticRange(VMFunction function) throws ProgramException {
+        String functionName = (function != null ? function.getName() : "");
+        if (functionName.indexOf(".") == -1)
             throw new ProgramException("Illegal function name: " + functionName);
 
-        String className = functionName.substring(0, dotLocation);
-        int[] range = program.getStaticRange(className);
+        int[] range = function.getStaticRange();
         if (range == null)
             throw new ProgramException("Function name doesn't match class name: " + functionName);
 
@@ -24,12 +24,17 @@ import simulators.ComputerParts.*;
 
 
 /**
- * A call stack. Holds a vector of called function names.
+ * A call stack. Holds an array of the called functions. The vector of their names
+ * is created only when the stack is displayed.
  */
 public class CallStack extends ComputerPart {
 
-    // the vector of function names.
-    private Vector names;
+    // The initial capacity of the functions array
+    private static final int INITIAL_CAPACITY = 64;
+
+    // the array of functions and its used size.
+    private VMFunction[] functions;
+    private int size;
 
     // the stack gui
     private CallStackGUI gui;
@@ -39,7 +44,7 @@ public class CallStack extends ComputerPart {
      */
     public CallStack(CallStackGUI gui) {
         super(gui != null);
-        names = new Vector();
+        functions = new VMFunction[INITIAL_CAPACITY];
         this.gui = gui;
     }
 
@@ -47,35 +52,79 @@ public class CallStack extends ComputerPart {
      * Returns the name of the function at the top of the stack.
      */
     public String getTopFunction() {
-        return (names.size() > 0 ? (String)names.elementAt(names.size() - 1) : "");
+        return (size > 0 ? functions[size - 1].toString() : "");
+    }
+
+    /**
+     * Returns the function at the top of the stack, or null if the stack is empty.
+     */
+    public VMFunction getTop() {
+        return (size > 0 ? functions[size - 1] : null);
+    }
+
+    /**
+     * Returns the number of functions in the stack.
+     */
+    public int getSize() {
+        return size;
     }
 
     /**
-     * Adds the given function name at the top of the stack.
+     * Returns the function at the given index of the stack (0 is the bottom).
      */
-    public void pushFunction(String functionName) {
-        names.addElement(functionName);
+    public VMFunction getFunctionAt(int index) {
+        return functions[index];
+    }
+
+    /**
+     * Adds the given function at the top of the stack.
+     */
+    public void pushFunction(VMFunction function) {
+        if (size == functions.length) {
+            VMFunction[] newFunctions = new VMFunction[size * 2];
+            System.arraycopy(functions, 0, newFunctions, 0, size);
+            functions = newFunctions;
+        }
+
+        functions[size++] = function;
         if (displayChanges)
-            gui.setContents(names);
+            gui.setContents(getNames());
     }
 
     /**
      * Removes the function at the top of the stack.
      */
     public void popFunction() {
-        if (names.size() > 0) {
-            names.removeElementAt(names.size() - 1);
+        if (size > 0) {
+            functions[--size] = null;
             if (displayChanges)
-                gui.setContents(names);
+                gui.setContents(getNames());
         }
     }
 
+    /**
+     * Replaces the contents of the stack with the given functions (the first is the bottom).
+     */
+    public void setFunctions(VMFunction[] newFunctions) {
+        for (int i = 0; i < size; i++)
+            functions[i] = null;
+        if (newFunctions.length > functions.length)
+            functions = new VMFunction[newFunctions.length];
+
+        System.arraycopy(newFunctions, 0, functions, 0, newFunctions.length);
+        size = newFunctions.length;
+        if (displayChanges)
+            gui.setContents(getNames());
+    }
+
     /**
      * Resets the contents of the computer part.
      */
     public void reset() {
         super.reset();
-        names.removeAllElements();
+        for (int i = 0; i < size; i++)
+            functions[i] = null;
+        size = 0;
     }
 
     /**
@@ -87,6 +136,14 @@ public class CallStack extends ComputerPart {
 
     public void refreshGUI() {
         if (displayChanges)
-            gui.setContents(names);
+            gui.setContents(getNames());
+    }
+
+    // Returns a vector of the names of the functions in the stack.
+    private Vector<String> getNames() {
+        Vector<String> names = new Vector<String>(size);
+        for (int i = 0; i < size; i++)
+            names.addElement(functions[i].toString());
+        return names;
     }
 }
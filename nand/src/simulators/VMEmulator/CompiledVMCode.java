@@ -0,0 +1,57 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.VMEmulator;
+
+/**
+ * A range of vm instructions (usually a whole function), translated into JVM bytecode
+ * by the VMCompiler. The code runs on the RAM contents and on a state array, which
+ * holds the program counters, the number of steps to run, the stack pointer and the
+ * start address and enabled range of each memory segment.
+ */
+abstract class CompiledVMCode {
+
+    // The indice of the values in the state array
+    static final int NEXT_PC = 0;
+    static final int CURRENT_PC = 1;
+    static final int LAST_PC = 2; // the address of the last executed instruction (-1 if none)
+    static final int STEPS = 3;
+    static final int SP = 4;
+    static final int LOCAL_START = 5; // followed by the low and high enabled addresses
+    static final int ARG_START = 8;
+    static final int THIS_START = 11;
+    static final int THAT_START = 14;
+    static final int STATIC_START = 17;
+    static final int TEMP_START = 20;
+    static final int STATE_SIZE = 23;
+
+    // The address of the first instruction in the code
+    int start;
+
+    // The number of instructions in the code
+    int length;
+
+    /**
+     * Executes the instructions of the code on the given RAM contents, starting at the
+     * next pc of the given state, until the given number of steps were executed or until
+     * an instruction that can't be executed by the code is reached: a function, call or
+     * return instruction, an instruction that would cause an error, or an instruction
+     * outside the code. The state is updated, and its next pc is the address of the
+     * instruction which wasn't executed.
+     */
+    abstract void execute(short[] ram, int[] state);
+}
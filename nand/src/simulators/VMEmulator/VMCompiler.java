@@ -0,0 +1,596 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.VMEmulator;
+
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import common.ClassFileWriter;
+import common.JVMOpcodes;
+import common.Definitions;
+import translators.VMTranslator.HVMInstructionSet;
+
+/**
+ * Translates the functions of a vm program into JVM bytecode. Each function is defined
+ * as a hidden class which extends CompiledVMCode, and keeps the stack pointer and the
+ * start addresses and enabled ranges of the memory segments in local variables.
+ * Function, call and return instructions are left to the interpreter (the CPU), which
+ * also maintains the call stack and the segments of the called function. Instructions
+ * which would fail (stack overflow, out of segment space or an illegal this or that
+ * pointer) make the code return before them, so the error is reported by the interpreter.
+ * A function whose method would be too long for the JVM to compile is split in two.
+ */
+class VMCompiler implements JVMOpcodes {
+
+    // The maximal size of the code of a method. Longer methods aren't compiled by the JVM.
+    private static final int MAX_CODE_SIZE = 8000;
+
+    // The name of the code's super class
+    private static final String SUPER_NAME = "simulators/VMEmulator/CompiledVMCode";
+
+    // Local variables of the execute method: the parameters, the values of the state
+    // array (in the same order) and two temporary variables
+    private static final int RAM = 1;
+    private static final int STATE = 2;
+    private static final int FIRST_STATE_VARIABLE = 3;
+    private static final int LOCATION = FIRST_STATE_VARIABLE + CompiledVMCode.STATE_SIZE;
+    private static final int VALUE = LOCATION + 1;
+
+    // The instructions of the program and their number
+    private VMEmulatorInstruction[] instructions;
+    private int length;
+
+    // The writer of the current code
+    private ClassFileWriter writer;
+
+    // The address range of the current code
+    private int start, end;
+
+    // The labels of the instructions of the current code, and the labels where the code
+    // returns before them
+    private int[] instructionLabels, stopLabels;
+
+    // The labels where the current code returns before instructions outside it, by address
+    private Hashtable<Integer, Integer> outsideStopLabels;
+
+    /**
+     * Constructs a new compiler of the given instructions (of which the first given
+     * length are used).
+     */
+    public VMCompiler(VMEmulatorInstruction[] instructions, int length) {
+        this.instructions = instructions;
+        this.length = length;
+    }
+
+    /**
+     * Compiles the program and returns the compiled code of each instruction, by address
+     * (null for instructions which couldn't be compiled).
+     */
+    public CompiledVMCode[] compileProgram() {
+        CompiledVMCode[] result = new CompiledVMCode[length];
+        int functionStart = 0;
+        for (int address = 1; address <= length; address++)
+            if (address == length ||
+                    instructions[address].getOpCode() == HVMInstructionSet.FUNCTION_CODE) {
+                compileRange(functionStart, address, result);
+                functionStart = address;
+            }
+
+        return result;
+    }
+
+    // Compiles the instructions in the given address range into the given array. If the
+    // range can't be compiled as one method, it is split in two.
+    private void compileRange(int rangeStart, int rangeEnd, CompiledVMCode[] result) {
+        if (rangeStart == rangeEnd)
+            return;
+
+        CompiledVMCode code = compile(rangeStart, rangeEnd);
+        if (code != null) {
+            for (int address = rangeStart; address < rangeEnd; address++)
+                result[address] = code;
+        }
+        else if (rangeEnd - rangeStart > 1) {
+            int middle = (rangeStart + rangeEnd) / 2;
+            compileRange(rangeStart, middle, result);
+            compileRange(middle, rangeEnd, result);
+        }
+    }
+
+    // Returns the compiled code of the instructions in the given address range, or null
+    // if its method is too long.
+    private CompiledVMCode compile(int codeStart, int codeEnd) {
+        start = codeStart;
+        end = codeEnd;
+
+        writer = new ClassFileWriter("simulators/VMEmulator/VMCode", SUPER_NAME, null);
+        writer.beginMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V");
+        writer.varOp(ALOAD, 0);
+        writer.methodOp(INVOKESPECIAL, SUPER_NAME, "<init>", "()V");
+        writer.op(RETURN);
+        writer.endMethod(1, 1);
+
+        writer.beginMethod(0, "execute", "([S[I)V");
+        for (int i = 0; i < CompiledVMCode.STATE_SIZE; i++) {
+            writer.varOp(ALOAD, STATE);
+            writer.pushInt(i);
+            writer.op(IALOAD);
+            writer.varOp(ISTORE, FIRST_STATE_VARIABLE + i);
+        }
+
+        instructionLabels = new int[end - start];
+        stopLabels = new int[end - start];
+        for (int i = 0; i < instructionLabels.length; i++) {
+            instructionLabels[i] = writer.newLabel();
+            stopLabels[i] = writer.newLabel();
+        }
+        outsideStopLabels = new Hashtable<Integer, Integer>();
+        int exit = writer.newLabel();
+
+        // start at the next pc
+        loadState(CompiledVMCode.NEXT_PC);
+        writer.pushInt(start);
+        writer.op(ISUB);
+        writer.tableSwitch(0, exit, instructionLabels);
+
+        for (int address = start; address < end; address++) {
+            writer.mark(instructionLabels[address - start]);
+            compileInstruction(address);
+        }
+
+        for (int address = start; address < end; address++) {
+            writer.mark(stopLabels[address - start]);
+            stopBefore(address, exit);
+        }
+
+        Enumeration<Integer> addresses = outsideStopLabels.keys();
+        while (addresses.hasMoreElements()) {
+            Integer address = addresses.nextElement();
+            writer.mark(outsideStopLabels.get(address).intValue());
+            stopBefore(address.intValue(), exit);
+        }
+
+        writer.mark(exit);
+        for (int i = 0; i < CompiledVMCode.STATE_SIZE; i++) {
+            writer.varOp(ALOAD, STATE);
+            writer.pushInt(i);
+            loadState(i);
+            writer.op(IASTORE);
+        }
+        writer.op(RETURN);
+
+        if (writer.getCodeSize() > MAX_CODE_SIZE) {
+            writer = null;
+            return null;
+        }
+
+        writer.endMethod(8, VALUE + 1);
+
+        CompiledVMCode code;
+        try {
+            Class<?> codeClass = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(),
+                                                                         true).lookupClass();
+            code = (CompiledVMCode)codeClass.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            return null;
+        } finally {
+            writer = null;
+        }
+
+        code.start = start;
+        code.length = end - start;
+        return code;
+    }
+
+    // Translates the instruction at the given address.
+    private void compileInstruction(int address) {
+        VMEmulatorInstruction instruction = instructions[address];
+        int stop = stopLabels[address - start];
+        short arg0 = instruction.getArg0();
+        short arg1 = instruction.getArg1();
+
+        switch (instruction.getOpCode()) {
+            case HVMInstructionSet.ADD_CODE:
+            case HVMInstructionSet.SUBSTRACT_CODE:
+            case HVMInstructionSet.EQUAL_CODE:
+            case HVMInstructionSet.GREATER_THAN_CODE:
+            case HVMInstructionSet.LESS_THAN_CODE:
+            case HVMInstructionSet.AND_CODE:
+            case HVMInstructionSet.OR_CODE:
+                checkSteps(stop);
+                checkSP(2, 1, stop);
+                beginStep(address);
+                compileBinary(instruction.getOpCode());
+                break;
+
+            case HVMInstructionSet.NEGATE_CODE:
+            case HVMInstructionSet.NOT_CODE:
+                checkSteps(stop);
+                checkSP(1, 1, stop);
+                beginStep(address);
+                writer.varOp(ALOAD, RAM);
+                pushSPPlus(-1);
+                writer.varOp(ALOAD, RAM);
+                pushSPPlus(-1);
+                writer.op(SALOAD);
+                if (instruction.getOpCode() == HVMInstructionSet.NEGATE_CODE)
+                    writer.op(INEG);
+                else {
+                    writer.pushInt(-1);
+                    writer.op(IXOR);
+                }
+                writer.op(SASTORE);
+                break;
+
+            case HVMInstructionSet.PUSH_CODE:
+                if (!compilePush(address, arg0, arg1, stop))
+                    return;
+                break;
+
+            case HVMInstructionSet.POP_CODE:
+                if (!compilePop(address, arg0, arg1, stop))
+                    return;
+                break;
+
+            case HVMInstructionSet.LABEL_CODE:
+                checkSteps(stop);
+                beginStep(address);
+                break;
+
+            case HVMInstructionSet.GOTO_CODE:
+                checkSteps(stop);
+                beginStep(address);
+                jumpTo(arg0, address);
+                return;
+
+            case HVMInstructionSet.IF_GOTO_CODE:
+                checkSteps(stop);
+                checkSP(1, 0, stop);
+                beginStep(address);
+                writer.iinc(FIRST_STATE_VARIABLE + CompiledVMCode.SP, -1);
+                writer.varOp(ALOAD, RAM);
+                loadState(CompiledVMCode.SP);
+                writer.op(SALOAD);
+                int noJump = writer.newLabel();
+                writer.jump(IFEQ, noJump);
+                jumpTo(arg0, address);
+                writer.mark(noJump);
+                break;
+
+            default: // function, call and return are executed by the interpreter
+                writer.jump(GOTO, stop);
+                return;
+        }
+
+        continueAt(address, getNextAddress(address));
+    }
+
+    // Translates a push instruction of the given segment and index at the given address.
+    // Returns false if the instruction is always executed by the interpreter.
+    private boolean compilePush(int address, short segment, short index, int stop) {
+        switch (segment) {
+            case HVMInstructionSet.CONST_SEGMENT_CODE:
+                checkSteps(stop);
+                checkSP(0, 1, stop);
+                beginStep(address);
+                writer.varOp(ALOAD, RAM);
+                loadState(CompiledVMCode.SP);
+                writer.pushInt(index);
+                writer.op(SASTORE);
+                break;
+
+            case HVMInstructionSet.POINTER_SEGMENT_CODE:
+                checkSteps(stop);
+                if (index != 0 && index != 1) { // does nothing
+                    beginStep(address);
+                    return true;
+                }
+                checkSP(0, 1, stop);
+                beginStep(address);
+                writer.varOp(ALOAD, RAM);
+                loadState(CompiledVMCode.SP);
+                writer.varOp(ALOAD, RAM);
+                writer.pushInt(index == 0 ? Definitions.THIS_POINTER_ADDRESS :
+                                            Definitions.THAT_POINTER_ADDRESS);
+                writer.op(SALOAD);
+                writer.op(SASTORE);
+                break;
+
+            default:
+                int segmentStart = getSegmentStart(segment);
+                if (segmentStart == -1) {
+                    writer.jump(GOTO, stop);
+                    return false;
+                }
+                checkSteps(stop);
+                checkSegmentIndex(segment, segmentStart, index, stop);
+                checkSP(0, 1, stop);
+                beginStep(address);
+                writer.varOp(ALOAD, RAM);
+                loadState(CompiledVMCode.SP);
+                writer.varOp(ALOAD, RAM);
+                writer.varOp(ILOAD, LOCATION);
+                writer.op(SALOAD);
+                writer.op(SASTORE);
+        }
+
+        writer.iinc(FIRST_STATE_VARIABLE + CompiledVMCode.SP, 1);
+        return true;
+    }
+
+    // Translates a pop instruction of the given segment and index at the given address.
+    // Returns false if the instruction is always executed by the interpreter.
+    private boolean compilePop(int address, short segment, short index, int stop) {
+        if (segment == HVMInstructionSet.POINTER_SEGMENT_CODE) {
+            checkSteps(stop);
+            if (index != 0 && index != 1) { // does nothing
+                beginStep(address);
+                return true;
+            }
+
+            checkSP(1, 0, stop);
+            writer.varOp(ALOAD, RAM);
+            pushSPPlus(-1);
+            writer.op(SALOAD);
+            writer.varOp(ISTORE, VALUE);
+
+            int pointer, segmentStart, highAddress;
+            if (index == 0) {
+                // this must be in the heap, or not positive
+                int legal = writer.newLabel();
+                writer.varOp(ILOAD, VALUE);
+                writer.jump(IFLE, legal);
+                checkRange(VALUE, Definitions.HEAP_START_ADDRESS, Definitions.HEAP_END_ADDRESS,
+                           stop);
+                writer.mark(legal);
+                pointer = Definitions.THIS_POINTER_ADDRESS;
+                segmentStart = CompiledVMCode.THIS_START;
+                highAddress = Definitions.HEAP_END_ADDRESS;
+            }
+            else {
+                // that must be in the heap or screen. A 0 that is left to the
+                // interpreter, since the that segment would then include the pointers.
+                checkRange(VALUE, Definitions.HEAP_START_ADDRESS, Definitions.SCREEN_END_ADDRESS,
+                           stop);
+                pointer = Definitions.THAT_POINTER_ADDRESS;
+                segmentStart = CompiledVMCode.THAT_START;
+                highAddress = Definitions.SCREEN_END_ADDRESS;
+            }
+
+            beginStep(address);
+            writer.iinc(FIRST_STATE_VARIABLE + CompiledVMCode.SP, -1);
+            writer.varOp(ALOAD, RAM);
+            writer.pushInt(pointer);
+            writer.varOp(ILOAD, VALUE);
+            writer.op(SASTORE);
+
+            // the segment starts at the pointer, and is enabled from it
+            writer.varOp(ILOAD, VALUE);
+            writer.varOp(ISTORE, FIRST_STATE_VARIABLE + segmentStart);
+            writer.varOp(ILOAD, VALUE);
+            writer.varOp(ISTORE, FIRST_STATE_VARIABLE + segmentStart + 1);
+            writer.pushInt(highAddress);
+            writer.varOp(ISTORE, FIRST_STATE_VARIABLE + segmentStart + 2);
+            return true;
+        }
+
+        int segmentStart = getSegmentStart(segment);
+        if (segmentStart == -1) {
+            writer.jump(GOTO, stop);
+            return false;
+        }
+
+        checkSteps(stop);
+        checkSegmentIndex(segment, segmentStart, index, stop);
+        checkSP(1, 0, stop);
+        beginStep(address);
+        writer.iinc(FIRST_STATE_VARIABLE + CompiledVMCode.SP, -1);
+        writer.varOp(ALOAD, RAM);
+        writer.varOp(ILOAD, LOCATION);
+        writer.varOp(ALOAD, RAM);
+        loadState(CompiledVMCode.SP);
+        writer.op(SALOAD);
+        writer.op(SASTORE);
+        return true;
+    }
+
+    // Emits code that replaces the two values at the top of the stack with the result of
+    // the given binary operation on them.
+    private void compileBinary(int opCode) {
+        writer.varOp(ALOAD, RAM);
+        pushSPPlus(-2);
+        writer.varOp(ALOAD, RAM);
+        pushSPPlus(-2);
+        writer.op(SALOAD);
+        writer.varOp(ALOAD, RAM);
+        pushSPPlus(-1);
+        writer.op(SALOAD);
+
+        switch (opCode) {
+            case HVMInstructionSet.ADD_CODE:
+                writer.op(IADD);
+                break;
+            case HVMInstructionSet.SUBSTRACT_CODE:
+                writer.op(ISUB);
+                break;
+            case HVMInstructionSet.AND_CODE:
+                writer.op(IAND);
+                break;
+            case HVMInstructionSet.OR_CODE:
+                writer.op(IOR);
+                break;
+            default:
+                int isTrue = writer.newLabel();
+                int done = writer.newLabel();
+                writer.jump(opCode == HVMInstructionSet.EQUAL_CODE ? IF_ICMPEQ :
+                            opCode == HVMInstructionSet.GREATER_THAN_CODE ? IF_ICMPGT :
+                            IF_ICMPLT, isTrue);
+                writer.pushInt(0);
+                writer.jump(GOTO, done);
+                writer.mark(isTrue);
+                writer.pushInt(-1);
+                writer.mark(done);
+        }
+
+        writer.op(SASTORE);
+        writer.iinc(FIRST_STATE_VARIABLE + CompiledVMCode.SP, -1);
+    }
+
+    // Returns the index in the state array of the start address of the given segment, or
+    // -1 if the segment can't be accessed by compiled code.
+    private static int getSegmentStart(short segment) {
+        switch (segment) {
+            case HVMInstructionSet.LOCAL_SEGMENT_CODE:
+                return CompiledVMCode.LOCAL_START;
+            case HVMInstructionSet.ARG_SEGMENT_CODE:
+                return CompiledVMCode.ARG_START;
+            case HVMInstructionSet.THIS_SEGMENT_CODE:
+                return CompiledVMCode.THIS_START;
+            case HVMInstructionSet.THAT_SEGMENT_CODE:
+                return CompiledVMCode.THAT_START;
+            case HVMInstructionSet.TEMP_SEGMENT_CODE:
+                return CompiledVMCode.TEMP_START;
+            case HVMInstructionSet.STATIC_SEGMENT_CODE:
+                return CompiledVMCode.STATIC_START;
+            default:
+                return -1;
+        }
+    }
+
+    // Emits code that computes the address of the given index in the given segment
+    // (whose start address is at the given state index) into the location variable, and
+    // returns before the current instruction if the address is out of the segment space:
+    // the heap for the this segment, the enabled range for other segments.
+    private void checkSegmentIndex(short segment, int segmentStart, short index, int stop) {
+        loadState(segmentStart);
+        writer.pushInt(index);
+        writer.op(IADD);
+        writer.op(I2S);
+        writer.varOp(ISTORE, LOCATION);
+
+        if (segment == HVMInstructionSet.THIS_SEGMENT_CODE)
+            checkRange(LOCATION, Definitions.HEAP_START_ADDRESS, Definitions.HEAP_END_ADDRESS,
+                       stop);
+        else {
+            writer.varOp(ILOAD, LOCATION);
+            loadState(segmentStart + 1);
+            writer.jump(IF_ICMPLT, stop);
+            writer.varOp(ILOAD, LOCATION);
+            loadState(segmentStart + 2);
+            writer.jump(IF_ICMPGT, stop);
+        }
+    }
+
+    // Emits a check that the stack has the given number of values to pop and room for the
+    // given number of values to push, which returns before the current instruction if it
+    // doesn't. The stack pointer must stay in the stack range after each pop and push.
+    private void checkSP(int pops, int pushes, int stop) {
+        checkRange(FIRST_STATE_VARIABLE + CompiledVMCode.SP,
+                   Definitions.STACK_START_ADDRESS + Math.max(pops, 1 - pushes),
+                   Definitions.STACK_END_ADDRESS + Math.min(pops, 1) - pushes, stop);
+    }
+
+    // Emits a check that the given local variable is in the range low..high, which returns
+    // before the current instruction if it isn't.
+    private void checkRange(int variable, int low, int high, int stop) {
+        writer.varOp(ILOAD, variable);
+        writer.pushInt(low);
+        writer.jump(IF_ICMPLT, stop);
+        writer.varOp(ILOAD, variable);
+        writer.pushInt(high);
+        writer.jump(IF_ICMPGT, stop);
+    }
+
+    // Emits a check that there are steps left, which returns before the current
+    // instruction if there aren't.
+    private void checkSteps(int stop) {
+        loadState(CompiledVMCode.STEPS);
+        writer.jump(IFLE, stop);
+    }
+
+    // Emits code that counts the step of the instruction at the given address and sets
+    // it as the current and last instruction.
+    private void beginStep(int address) {
+        writer.iinc(FIRST_STATE_VARIABLE + CompiledVMCode.STEPS, -1);
+        writer.pushInt(address);
+        writer.op(DUP);
+        writer.varOp(ISTORE, FIRST_STATE_VARIABLE + CompiledVMCode.CURRENT_PC);
+        writer.varOp(ISTORE, FIRST_STATE_VARIABLE + CompiledVMCode.LAST_PC);
+    }
+
+    // Emits a jump of the instruction at the given address to the given target. As in
+    // the interpreter (VMProgram.setPC), the current pc becomes the next address.
+    private void jumpTo(int target, int address) {
+        writer.pushInt(getNextAddress(address));
+        writer.varOp(ISTORE, FIRST_STATE_VARIABLE + CompiledVMCode.CURRENT_PC);
+        if (target >= start && target < end)
+            writer.jump(GOTO, instructionLabels[target - start]);
+        else
+            writer.jump(GOTO, getOutsideStopLabel(target));
+    }
+
+    // Emits code that continues from the instruction at the given address to the given
+    // next address. The instructions are translated in order, so the next instruction
+    // needs no jump.
+    private void continueAt(int address, int nextAddress) {
+        if (nextAddress >= end)
+            writer.jump(GOTO, getOutsideStopLabel(nextAddress));
+        else if (nextAddress != address + 1)
+            writer.jump(GOTO, instructionLabels[nextAddress - start]);
+    }
+
+    // Returns the address of the instruction after the given one, skipping labels (as in
+    // VMProgram.getNextInstruction).
+    private int getNextAddress(int address) {
+        do {
+            address++;
+        } while (address < length &&
+                 instructions[address].getOpCode() == HVMInstructionSet.LABEL_CODE);
+
+        return address;
+    }
+
+    // Returns the label where the code returns before the given address, outside the code.
+    private int getOutsideStopLabel(int address) {
+        Integer label = outsideStopLabels.get(Integer.valueOf(address));
+        if (label == null) {
+            label = Integer.valueOf(writer.newLabel());
+            outsideStopLabels.put(Integer.valueOf(address), label);
+        }
+
+        return label.intValue();
+    }
+
+    // Emits code that sets the next pc to the given address and jumps to the given exit.
+    private void stopBefore(int address, int exit) {
+        writer.pushInt(address);
+        writer.varOp(ISTORE, FIRST_STATE_VARIABLE + CompiledVMCode.NEXT_PC);
+        writer.jump(GOTO, exit);
+    }
+
+    // Emits code that pushes the stack pointer plus the given amount.
+    private void pushSPPlus(int amount) {
+        loadState(CompiledVMCode.SP);
+        writer.pushInt(amount);
+        writer.op(IADD);
+    }
+
+    // Emits code that pushes the local variable of the given state value.
+    private void loadState(int index) {
+        writer.varOp(ILOAD, FIRST_STATE_VARIABLE + index);
+    }
+}
@@ -46,6 +46,21 @@ import common.Definitions;
  * temp[i] - the contents of the i'th element in the Temp segment (short)
  * currentFunction - the name of the current function (String) - READ ONLY
  * line - <function name>.<index in function> (String) - READ ONLY
+ *
+ * Recognizes the following commands:
+ * load [<VM file or directory name>] - loads the given vm program
+ * vmstep - executes the current vm instruction
+ * profile on [<report file>] - starts counting the executed instructions and the function
+ *                              calls from zero. If a file is given, the report is written
+ *                              to it when the execution stops
+ * profile off - stops counting the executed instructions and the function calls
+ * profile report <report file> - writes the report of the counts per function, as text
+ *                                and as collapsed stacks (to <report file>.folded)
+ * snapshot <name> - takes a snapshot of the RAM, the program counter, the call stack and
+ *                   the memory segments, in memory or in the given file (if the name ends
+ *                   with .snapshot). Not allowed while a built-in function is running
+ * restore <name> - restores the state of the emulator from the given snapshot, which
+ *                  must have been taken with the same program loaded
  */
 public class VMEmulator extends HackSimulator
  implements ComputerPartErrorEventListener {
@@ -66,6 +81,15 @@ public class VMEmulator extends HackSimulator
     private static final String COMMAND_VMSTEP = "vmstep";
     private static final String COMMAND_ROMLOAD = "load";
     private static final String COMMAND_SETVAR = "set";
+    private static final String COMMAND_PROFILE = "profile";
+
+    // Arguments of the profile command
+    private static final String PROFILE_ON = "on";
+    private static final String PROFILE_OFF = "off";
+    private static final String PROFILE_REPORT = "report";
+
+    // The extension added to the name of the collapsed stacks file of a profile report
+    private static final String FOLDED_EXTENSION = ".folded";
 
     // The CPU
     private CPU cpu;
@@ -82,6 +106,11 @@ public class VMEmulator extends HackSimulator
     // The current animation mode
     private int animationMode;
 
+    // The profiler of the program (null if profiling was never started), and the file
+    // where its report is written when the execution stops (null if none)
+    private VMProfiler profiler;
+    private String profileFileName;
+
     /**
      * Constructs a new VM Emulator with no GUI component.
      */
@@ -342,6 +371,64 @@ public class VMEmulator extends HackSimulator
             throw new VariableException("Unknown variable", varName);
     }
 
+    /**
+     * Returns a handle for reading the numeric value of the given variable
+     * (a segment pointer, SP, a segment entry or RAM[i]), or null if there
+     * is no such variable or it isn't numeric.
+     */
+    public VariableHandle getVariableHandle(String varName) {
+        try {
+            if (varName.equals(VAR_LOCAL))
+                return getRamHandle(Definitions.LOCAL_POINTER_ADDRESS);
+            else if (varName.equals(VAR_ARGUMENT))
+                return getRamHandle(Definitions.ARG_POINTER_ADDRESS);
+            else if (varName.equals(VAR_THIS))
+                return getRamHandle(Definitions.THIS_POINTER_ADDRESS);
+            else if (varName.equals(VAR_THAT))
+                return getRamHandle(Definitions.THAT_POINTER_ADDRESS);
+            else if (varName.equals(VAR_SP))
+                return new VariableHandle() {
+                    public short get() {
+                        return cpu.getSP();
+                    }
+                };
+            else if (varName.startsWith(VAR_LOCAL + "["))
+                return getSegmentHandle(HVMInstructionSet.LOCAL_SEGMENT_CODE, getRamIndex(varName));
+            else if (varName.startsWith(VAR_ARGUMENT + "["))
+                return getSegmentHandle(HVMInstructionSet.ARG_SEGMENT_CODE, getRamIndex(varName));
+            else if (varName.startsWith(VAR_THIS + "["))
+                return getSegmentHandle(HVMInstructionSet.THIS_SEGMENT_CODE, getRamIndex(varName));
+            else if (varName.startsWith(VAR_THAT + "["))
+                return getSegmentHandle(HVMInstructionSet.THAT_SEGMENT_CODE, getRamIndex(varName));
+            else if (varName.startsWith(VAR_TEMP + "["))
+                return getSegmentHandle(HVMInstructionSet.TEMP_SEGMENT_CODE, getRamIndex(varName));
+            else if (varName.startsWith(VAR_RAM + "["))
+                return getRamHandle(getRamIndex(varName));
+        } catch (VariableException ve) {
+        } catch (NumberFormatException nfe) {
+        }
+
+        return null;
+    }
+
+    // Returns a handle of the RAM value at the given address
+    private VariableHandle getRamHandle(final short address) {
+        return new VariableHandle() {
+            public short get() {
+                return cpu.getRAM().getValueAt(address);
+            }
+        };
+    }
+
+    // Returns a handle of the value at the given index of the given segment
+    private VariableHandle getSegmentHandle(final short segmentCode, final short index) {
+        return new VariableHandle() {
+            public short get() {
+                return cpu.getSegmentAt(segmentCode, index);
+            }
+        };
+    }
+
     /**
      * Sets the given variable with the given value.
      * Throws VariableException if the variable name or value are not legal.
@@ -469,13 +556,97 @@ public class VMEmulator extends HackSimulator
 
             String fileName = workingDir + (command.length == 1 ? "" : "/" + command[1]);
 
+            cpu.discardCompiledProgram();
             cpu.getProgram().loadProgram(fileName);
             cpu.boot();
+            if (gui == null)
+                cpu.compileProgram();
         }
-        else
+        else if (command[0].equals(COMMAND_PROFILE))
+            doProfileCommand(command);
+        else if (!doSnapshotCommand(command))
             throw new CommandException("Unknown simulator command", command);
     }
 
+    protected void writeState(DataOutputStream out) throws IOException, ProgramException {
+        cpu.writeState(out);
+    }
+
+    protected void readState(DataInputStream in) throws IOException, ProgramException {
+        cpu.readState(in);
+    }
+
+    // Executes the given profile command.
+    private void doProfileCommand(String[] command) throws CommandException {
+        if (command.length == 2 && command[1].equals(PROFILE_OFF)) {
+            cpu.setProfiler(null);
+            profileFileName = null;
+        }
+        else if ((command.length == 2 || command.length == 3) && command[1].equals(PROFILE_ON)) {
+            if (profiler == null)
+                profiler = new VMProfiler();
+            profiler.reset(cpu.getCallStack());
+
+            cpu.setProfiler(profiler);
+            profileFileName = command.length == 3 ?
+                workingDir.getAbsolutePath() + "/" + command[2] : null;
+        }
+        else if (command.length == 3 && command[1].equals(PROFILE_REPORT)) {
+            if (profiler == null)
+                throw new CommandException("Profiling was not started", command);
+
+            try {
+                writeProfileReport(workingDir.getAbsolutePath() + "/" + command[2]);
+            } catch (IOException ioe) {
+                throw new CommandException("Could not write the profile report", command);
+            }
+        }
+        else
+            throw new CommandException("Illegal arguments to command", command);
+    }
+
+    // Writes the report of the profiler to the given file, and its collapsed stacks to
+    // the given file with the folded extension.
+    private void writeProfileReport(String fileName) throws IOException {
+        PrintWriter text = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+        PrintWriter stacks = new PrintWriter(new BufferedWriter(
+            new FileWriter(fileName + FOLDED_EXTENSION)));
+        try {
+            profiler.writeReport(cpu.getProgram(), text, stacks);
+        } finally {
+            text.close();
+            stacks.close();
+        }
+    }
+
+    /**
+     * Writes the profile report, if profiling was started with a report file.
+     */
+    public void executionStopped() {
+        if (profileFileName != null) {
+            try {
+                writeProfileReport(profileFileName);
+            } catch (IOException ioe) {
+                // the report is optional, and the script's result doesn't depend on it
+            }
+        }
+    }
+
+    /**
+     * Executes the given simulator command the given number of times, and returns true.
+     * Only the vmstep command is repeated (without a GUI), using the compiled code of
+     * the program. Otherwise, nothing is executed and false is returned.
+     */
+    public boolean doRepeatedCommand(String[] command, int count)
+     throws CommandException, ProgramException, VariableException {
+        if (!cpu.isProgramCompiled() || command.length != 1 ||
+                !command[0].equals(COMMAND_VMSTEP))
+            return false;
+
+        cpu.executeInstructions(count);
+        return true;
+    }
+
     // Hides all highlights in GUIs.
     private void hideHighlightes() {
         cpu.getRAM().hideHighlight();
@@ -27,6 +27,9 @@ public class VMEmulatorInstruction extends HVMInstruction {
     // The index of the instruction in its containing function.
     private short indexInFunction;
 
+    // The function of a function or call instruction
+    private VMFunction function;
+
     /**
      * Constructs a new instruction with two arguments and the index in function.
      */
@@ -58,4 +61,20 @@ public class VMEmulatorInstruction extends HVMInstruction {
     public short getIndexInFunction() {
         return indexInFunction;
     }
+
+    /**
+     * Sets the function of this instruction: the declared function of a function
+     * instruction or the called function of a call instruction.
+     */
+    public void setFunction(VMFunction function) {
+        this.function = function;
+    }
+
+    /**
+     * Returns the function of this instruction (null if not a function or call
+     * instruction).
+     */
+    public VMFunction getFunction() {
+        return function;
+    }
 }
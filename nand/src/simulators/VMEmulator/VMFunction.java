@@ -0,0 +1,98 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.VMEmulator;
+
+/**
+ * A function of a vm program, as resolved when the program is loaded: its name,
+ * id, number of local variables and the address range of its class's static
+ * variables.
+ */
+public class VMFunction {
+
+    // The id of the function: its index in the functions of the program
+    private int id;
+
+    // The full name of the function
+    private String name;
+
+    // The number of local variables of the function
+    private short numberOfLocals;
+
+    // The static variables address range of the function's class (null if
+    // the function name doesn't match any class of the program)
+    private int[] staticRange;
+
+    // True if the function has no vm implementation
+    private boolean builtIn;
+
+    /**
+     * Constructs a new function with the given id, name, number of local
+     * variables, static range (or null) and built-in flag.
+     */
+    public VMFunction(int id, String name, short numberOfLocals, int[] staticRange,
+                      boolean builtIn) {
+        this.id = id;
+        this.name = name;
+        this.numberOfLocals = numberOfLocals;
+        this.staticRange = staticRange;
+        this.builtIn = builtIn;
+    }
+
+    /**
+     * Returns the id of the function.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the full name of the function.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of local variables of the function.
+     */
+    public short getNumberOfLocals() {
+        return numberOfLocals;
+    }
+
+    /**
+     * Returns the static variables address range of the function's class, or
+     * null if the function name doesn't match any class of the program.
+     */
+    public int[] getStaticRange() {
+        return staticRange;
+    }
+
+    /**
+     * Returns true if the function is a built-in function.
+     */
+    public boolean isBuiltIn() {
+        return builtIn;
+    }
+
+    /**
+     * Returns the name of the function as displayed in the call stack.
+     */
+    public String toString() {
+        return builtIn ? name + " (built-in)" : name;
+    }
+}
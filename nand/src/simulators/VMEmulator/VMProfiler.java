@@ -0,0 +1,357 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.VMEmulator;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * A profiler of the functions of a vm program. Keeps a calling context tree: a node
+ * for each path of function calls that was reached, with the number of instructions
+ * executed in it and the number of times it was entered. The running program only
+ * moves between the nodes (found by the function ids) and counts, so the report is
+ * computed from the tree when it is written: the self and inclusive instruction counts
+ * and the call counts of each function, the calls between functions, and the
+ * collapsed stacks (a line per path of function names, separated by ';', followed by
+ * its instructions count), which flame graph tools read. Built-in functions execute
+ * no vm instructions, so only their call counts are reported, separately from the
+ * functions of the program.
+ */
+public class VMProfiler {
+
+    // The initial capacity of the tree and of the children table (a power of 2)
+    private static final int INITIAL_CAPACITY = 256;
+
+    // The name of the root of the tree (before any function is called)
+    private static final String TOP_NAME = "(top)";
+
+    // The nodes of the tree: the parent node and function id of each node, and its
+    // counts of instructions and calls. Node 0 is the root, which has no function.
+    private int[] parents;
+    private int[] functions;
+    private long[] instructions;
+    private long[] calls;
+    private int nodesCount;
+
+    // The children of the nodes in an open addressing hash table, whose keys are
+    // parent node * 2^32 + function id (-1 in empty entries)
+    private long[] childKeys;
+    private int[] childNodes;
+
+    // The node of the current function
+    private int currentNode;
+
+    /**
+     * Constructs a new profiler with no counts.
+     */
+    public VMProfiler() {
+        reset(null);
+    }
+
+    /**
+     * Clears all the counts. The current function is the top of the given call stack
+     * (which may be null, if there is no current function).
+     */
+    public void reset(CallStack callStack) {
+        parents = new int[INITIAL_CAPACITY];
+        functions = new int[INITIAL_CAPACITY];
+        instructions = new long[INITIAL_CAPACITY];
+        calls = new long[INITIAL_CAPACITY];
+        functions[0] = -1;
+        nodesCount = 1;
+
+        childKeys = new long[INITIAL_CAPACITY];
+        Arrays.fill(childKeys, -1);
+        childNodes = new int[INITIAL_CAPACITY];
+
+        currentNode = 0;
+        if (callStack != null)
+            callStackRestored(callStack);
+    }
+
+    /**
+     * Counts an instruction executed in the current function.
+     */
+    public void instructionExecuted() {
+        instructions[currentNode]++;
+    }
+
+    /**
+     * Counts a call to the given function, which becomes the current function.
+     */
+    public void functionEntered(VMFunction function) {
+        currentNode = getChild(currentNode, function.getId());
+        calls[currentNode]++;
+    }
+
+    /**
+     * Returns from the current function to its caller.
+     */
+    public void functionExited() {
+        if (currentNode != 0)
+            currentNode = parents[currentNode];
+    }
+
+    /**
+     * Returns to the top of the tree, when the call stack is cleared.
+     */
+    public void callStackCleared() {
+        currentNode = 0;
+    }
+
+    /**
+     * Makes the top of the given call stack the current function, when the whole call
+     * stack is replaced (e.g. by a restored snapshot). The counts are kept.
+     */
+    public void callStackRestored(CallStack callStack) {
+        currentNode = 0;
+        for (int i = 0; i < callStack.getSize(); i++)
+            currentNode = getChild(currentNode, callStack.getFunctionAt(i).getId());
+    }
+
+    // Returns the child of the given node with the given function id, adding it if
+    // it's new.
+    private int getChild(int node, int function) {
+        long key = ((long)node << 32) | function;
+        int mask = childKeys.length - 1;
+        long hash = key * 0x9e3779b97f4a7c15L;
+        int index = (int)(hash ^ (hash >>> 32)) & mask;
+
+        while (childKeys[index] != key) {
+            if (childKeys[index] == -1) {
+                if (nodesCount * 2 > childKeys.length) {
+                    grow();
+                    return getChild(node, function);
+                }
+
+                childKeys[index] = key;
+                childNodes[index] = nodesCount;
+                parents[nodesCount] = node;
+                functions[nodesCount] = function;
+                return nodesCount++;
+            }
+            index = (index + 1) & mask;
+        }
+
+        return childNodes[index];
+    }
+
+    // Doubles the capacity of the tree and of the children table.
+    private void grow() {
+        int capacity = childKeys.length * 2;
+        parents = copyOf(parents, capacity);
+        functions = copyOf(functions, capacity);
+        long[] newInstructions = new long[capacity];
+        System.arraycopy(instructions, 0, newInstructions, 0, nodesCount);
+        instructions = newInstructions;
+        long[] newCalls = new long[capacity];
+        System.arraycopy(calls, 0, newCalls, 0, nodesCount);
+        calls = newCalls;
+
+        long[] oldKeys = childKeys;
+        int[] oldNodes = childNodes;
+        childKeys = new long[capacity];
+        Arrays.fill(childKeys, -1);
+        childNodes = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != -1) {
+                long hash = oldKeys[i] * 0x9e3779b97f4a7c15L;
+                int index = (int)(hash ^ (hash >>> 32)) & mask;
+                while (childKeys[index] != -1)
+                    index = (index + 1) & mask;
+                childKeys[index] = oldKeys[i];
+                childNodes[index] = oldNodes[i];
+            }
+    }
+
+    // Returns a copy of the given array with the given length.
+    private int[] copyOf(int[] array, int length) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, nodesCount);
+        return result;
+    }
+
+    /**
+     * Writes the report of the counts to the given writers: as text, and as collapsed
+     * stacks. The functions are taken from the given program.
+     */
+    public void writeReport(VMProgram program, PrintWriter text, PrintWriter stacks) {
+        int functionsCount = program.getFunctionsCount();
+        final long[] self = new long[functionsCount];
+        final long[] inclusive = new long[functionsCount];
+        final long[] functionCalls = new long[functionsCount];
+
+        // the instructions of each node and its descendants (which are added after it)
+        long[] totals = new long[nodesCount];
+        for (int node = nodesCount - 1; node >= 0; node--) {
+            totals[node] += instructions[node];
+            if (node > 0)
+                totals[parents[node]] += totals[node];
+        }
+
+        // the calls between functions, by caller id + 1 (0 for the top) and callee id
+        long[][] edges = new long[functionsCount + 1][];
+        for (int node = 1; node < nodesCount; node++) {
+            int function = functions[node];
+            if (function >= functionsCount)
+                continue; // a function of a program that was replaced
+
+            self[function] += instructions[node];
+            functionCalls[function] += calls[node];
+
+            // recursive calls are included in the outermost call
+            boolean outermost = true;
+            for (int ancestor = parents[node]; ancestor > 0; ancestor = parents[ancestor])
+                if (functions[ancestor] == function) {
+                    outermost = false;
+                    break;
+                }
+            if (outermost)
+                inclusive[function] += totals[node];
+
+            int caller = functions[parents[node]] + 1;
+            if (edges[caller] == null)
+                edges[caller] = new long[functionsCount];
+            edges[caller][function] += calls[node];
+        }
+
+        text.println("Instructions: " + totals[0]);
+        if (instructions[0] > 0)
+            text.println("Outside functions: " + instructions[0]);
+
+        // the functions of the program, sorted by self instructions
+        Integer[] ids = new Integer[functionsCount];
+        for (int i = 0; i < functionsCount; i++)
+            ids[i] = Integer.valueOf(i);
+        Arrays.sort(ids, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                int id1 = o1.intValue();
+                int id2 = o2.intValue();
+                if (self[id1] != self[id2])
+                    return self[id1] > self[id2] ? -1 : 1;
+                if (inclusive[id1] != inclusive[id2])
+                    return inclusive[id1] > inclusive[id2] ? -1 : 1;
+                return id1 - id2;
+            }
+        });
+
+        text.println();
+        text.println("Functions:");
+        text.println(String.format("%14s %8s %14s %8s %10s  %s", "Self", "Percent",
+                                   "Inclusive", "Percent", "Calls", "Function"));
+        for (int i = 0; i < functionsCount; i++) {
+            int id = ids[i].intValue();
+            VMFunction function = program.getFunctionAt(id);
+            if (function.isBuiltIn() || functionCalls[id] == 0 && inclusive[id] == 0)
+                continue;
+
+            text.println(String.format("%14d %7.2f%% %14d %7.2f%% %10d  %s", self[id],
+                                       percent(self[id], totals[0]), inclusive[id],
+                                       percent(inclusive[id], totals[0]),
+                                       functionCalls[id], function.getName()));
+        }
+
+        // the called built-in functions, sorted by calls
+        Vector<Integer> builtInIds = new Vector<Integer>();
+        for (int id = 0; id < functionsCount; id++)
+            if (program.getFunctionAt(id).isBuiltIn() && functionCalls[id] > 0)
+                builtInIds.addElement(Integer.valueOf(id));
+        Collections.sort(builtInIds, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                int id1 = o1.intValue();
+                int id2 = o2.intValue();
+                if (functionCalls[id1] != functionCalls[id2])
+                    return functionCalls[id1] > functionCalls[id2] ? -1 : 1;
+                return id1 - id2;
+            }
+        });
+
+        if (!builtInIds.isEmpty()) {
+            text.println();
+            text.println("Built-in functions (calls only):");
+            text.println(String.format("%10s  %s", "Calls", "Function"));
+            for (int i = 0; i < builtInIds.size(); i++) {
+                int id = builtInIds.elementAt(i).intValue();
+                text.println(String.format("%10d  %s", functionCalls[id],
+                                           program.getFunctionAt(id).getName()));
+            }
+        }
+
+        // the calls between functions, sorted by count
+        Vector<long[]> sortedEdges = new Vector<long[]>();
+        for (int caller = 0; caller <= functionsCount; caller++)
+            if (edges[caller] != null)
+                for (int callee = 0; callee < functionsCount; callee++)
+                    if (edges[caller][callee] > 0)
+                        sortedEdges.addElement(new long[]{edges[caller][callee],
+                                                          caller - 1, callee});
+        long[][] edgesArray = sortedEdges.toArray(new long[0][]);
+        Arrays.sort(edgesArray, new Comparator<long[]>() {
+            public int compare(long[] edge1, long[] edge2) {
+                for (int i = 0; i < edge1.length; i++)
+                    if (edge1[i] != edge2[i])
+                        return (i == 0 ? edge1[i] > edge2[i] : edge1[i] < edge2[i]) ? -1 : 1;
+                return 0;
+            }
+        });
+
+        text.println();
+        text.println("Calls:");
+        text.println(String.format("%10s  %s", "Calls", "Caller -> Callee"));
+        for (int i = 0; i < edgesArray.length; i++) {
+            long[] edge = edgesArray[i];
+            String caller = edge[1] == -1 ? TOP_NAME :
+                            program.getFunctionAt((int)edge[1]).toString();
+            text.println(String.format("%10d  %s -> %s", edge[0], caller,
+                                       program.getFunctionAt((int)edge[2]).toString()));
+        }
+
+        // the collapsed stacks, by path
+        String[] paths = new String[nodesCount];
+        TreeMap<String, Long> stackCounts = new TreeMap<String, Long>();
+        for (int node = 0; node < nodesCount; node++) {
+            if (node == 0)
+                paths[node] = TOP_NAME;
+            else if (functions[node] >= functionsCount)
+                paths[node] = paths[parents[node]] + ";?";
+            else {
+                String name = program.getFunctionAt(functions[node]).getName();
+                paths[node] = parents[node] == 0 ? name : paths[parents[node]] + ";" + name;
+            }
+
+            if (instructions[node] > 0) {
+                Long count = stackCounts.get(paths[node]);
+                stackCounts.put(paths[node], Long.valueOf(instructions[node] +
+                                                          (count != null ? count.longValue() : 0)));
+            }
+        }
+
+        Iterator<Map.Entry<String, Long>> entries = stackCounts.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            stacks.println(entry.getKey() + " " + entry.getValue());
+        }
+    }
+
+    // Returns the given count as a percent of the given total.
+    private static double percent(long count, long total) {
+        return total > 0 ? 100.0 * count / total : 0;
+    }
+}
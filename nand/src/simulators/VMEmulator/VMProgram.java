@@ -69,6 +69,10 @@ public class VMProgram extends InteractiveComputerPart
 
 	// Addresses of functions by name
 	private Hashtable functions;
+
+    // The resolved functions (VMFunction objects) by name and by id
+    private Hashtable<String, VMFunction> resolvedFunctions;
+    private Vector<VMFunction> resolvedFunctionsList;
 	private short infiniteLoopForBuiltInsAddress;
 	
     // The current index of the static variables
@@ -92,6 +96,8 @@ public class VMProgram extends InteractiveComputerPart
         listeners = new Vector();
         staticRange = new Hashtable();
 		functions = new Hashtable();
+        resolvedFunctions = new Hashtable<String, VMFunction>();
+        resolvedFunctionsList = new Vector<VMFunction>();
 
         if (hasGUI) {
             gui.addProgramListener(this);
@@ -130,6 +136,8 @@ public class VMProgram extends InteractiveComputerPart
         // First scan
 		staticRange.clear();
 		functions.clear();
+        resolvedFunctions.clear();
+        resolvedFunctionsList.removeAllElements();
 		builtInAccessStatus = BUILTIN_ACCESS_UNDECIDED;
         Hashtable symbols = new Hashtable();
 		nextPC = 0;
@@ -237,6 +245,8 @@ public class VMProgram extends InteractiveComputerPart
 			nextPC++;
 		}
 
+        resolveFunctions();
+
 		if (!addCallBuiltInSysInit) {
 			Short sysInitAddress = (Short)symbols.get("Sys.init");
 			if (sysInitAddress == null) // Single file, no Sys.init - start at 0
@@ -540,6 +550,65 @@ public class VMProgram extends InteractiveComputerPart
         return (int[])staticRange.get(className);
     }
 
+    /**
+     * Returns the function with the given name, resolved for this program.
+     */
+    public VMFunction getFunction(String functionName) {
+        return getFunction(functionName, (short)0);
+    }
+
+    /**
+     * Returns the number of functions that were resolved for this program.
+     */
+    public int getFunctionsCount() {
+        return resolvedFunctionsList.size();
+    }
+
+    /**
+     * Returns the resolved function with the given id.
+     */
+    public VMFunction getFunctionAt(int id) {
+        return resolvedFunctionsList.elementAt(id);
+    }
+
+    // Returns the function with the given name, resolving it with the given
+    // number of local variables if it wasn't resolved yet.
+    private VMFunction getFunction(String functionName, short numberOfLocals) {
+        VMFunction function = resolvedFunctions.get(functionName);
+        if (function == null) {
+            int[] range = null;
+            int dotLocation = functionName.indexOf(".");
+            if (dotLocation != -1) {
+                Object classRange = staticRange.get(functionName.substring(0, dotLocation));
+                if (classRange instanceof int[])
+                    range = (int[])classRange;
+            }
+
+            function = new VMFunction(resolvedFunctionsList.size(), functionName,
+                                      numberOfLocals, range,
+                                      functions.get(functionName) == null);
+            resolvedFunctions.put(functionName, function);
+            resolvedFunctionsList.addElement(function);
+        }
+
+        return function;
+    }
+
+    // Sets the function of each function and call instruction, so that calls
+    // don't need to look up function names and static ranges when they run.
+    private void resolveFunctions() {
+        for (int i = 0; i < instructionsLength; i++) {
+            if (instructions[i].getOpCode() == HVMInstructionSet.FUNCTION_CODE)
+                instructions[i].setFunction(getFunction(instructions[i].getStringArg(),
+                                                        instructions[i].getArg0()));
+        }
+
+        for (int i = 0; i < instructionsLength; i++) {
+            if (instructions[i].getOpCode() == HVMInstructionSet.CALL_CODE)
+                instructions[i].setFunction(getFunction(instructions[i].getStringArg()));
+        }
+    }
+
     /**
      * Returns the size of the program.
      */
@@ -547,6 +616,11 @@ public class VMProgram extends InteractiveComputerPart
         return instructionsLength;
     }
 
+    // Returns the instructions of the program (of which the first getSize() are used)
+    VMEmulatorInstruction[] getInstructions() {
+        return instructions;
+    }
+
 	public short getAddress(String functionName) throws ProgramException {
 		Short address = (Short)functions.get(functionName);
 		if (address != null) {
@@ -612,6 +686,14 @@ public class VMProgram extends InteractiveComputerPart
         setGUIPC();
     }
 
+    // Sets the next and current program counters, after the given instructions were
+    // executed by compiled code
+    void setExecutionPoint(short nextPC, short currentPC) {
+        this.currentPC = currentPC;
+        this.nextPC = nextPC;
+        setGUIPC();
+    }
+
     /**
      * Sets the program counter to a specially created infinite loop in the
 	 * end of the programs for access by built-in functions, de-facto halting
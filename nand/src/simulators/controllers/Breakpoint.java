@@ -28,6 +28,16 @@ public class Breakpoint {
     // The desired value
     private String value;
 
+    // The variable of the breakpoint
+    private VariableAccessor variable;
+
+    // True if the desired value is the decimal form of a short, which is the
+    // only form a value read from a variable handle may equal
+    private boolean numericValue;
+
+    // The desired value, as a short (if numericValue is true)
+    private short shortValue;
+
     // The status of the breakpoint
     private boolean reached;
 
@@ -38,6 +48,14 @@ public class Breakpoint {
         this.varName = varName;
         this.value = value;
         reached = false;
+        variable = new VariableAccessor(varName);
+
+        try {
+            shortValue = Short.parseShort(value);
+            numericValue = String.valueOf(shortValue).equals(value);
+        } catch (NumberFormatException nfe) {
+            numericValue = false;
+        }
     }
 
     /**
@@ -54,6 +72,19 @@ public class Breakpoint {
         return value;
     }
 
+    /**
+     * Returns true if the variable currently has the breakpoint value in the
+     * given simulator.
+     * Throws VariableException if the variable name is not legal.
+     */
+    public boolean matches(HackSimulator simulator) throws VariableException {
+        VariableHandle handle = variable.getHandle(simulator);
+        if (handle != null)
+            return numericValue && handle.get() == shortValue;
+        else
+            return simulator.getValue(varName).equals(value);
+    }
+
     /**
      * sets the breakpoint "off" - puts it into "not reached" state.
      */
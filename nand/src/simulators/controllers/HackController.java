@@ -26,9 +26,10 @@ import common.Definitions;
 
 import java.awt.event.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Vector;
-import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
 
 /**
  * A Controller for HackSimulators. Executes scripts written in a special scripting language
@@ -49,9 +50,15 @@ public class HackController
     public static final float[] SPEED_FUNCTION = {0f, 0.35f, 0.63f, 0.87f, 1f};
 
     /**
-     * The speed function for fast forward mode.
+     * The time slices (in ms) for fast forward mode: the time that the script
+     * runs before it pauses to let the GUI respond, for each speed unit.
      */
-    public static final int[] FASTFORWARD_SPEED_FUNCTION = {500, 1000, 2000, 4000, 15000};
+    public static final int[] FASTFORWARD_TIME_SLICES = {1, 2, 5, 10, 50};
+
+    /**
+     * The pause (in ms) between two time slices of fast forward mode.
+     */
+    public static final int FASTFORWARD_PAUSE = 1;
 
     // ANIMATION MODES:
 
@@ -122,8 +129,14 @@ public class HackController
     // Initial speed unit
     private static final int INITIAL_SPEED_UNIT = 3;
 
-    // A helper string with spaces
-    private static final String SPACES = "                                        ";
+    // The size of the output file buffer
+    private static final int OUTPUT_BUFFER_SIZE = 65536;
+
+    // The initial size of the output line buffer
+    private static final int LINE_BUFFER_SIZE = 256;
+
+    // The maximal number of output commands that are executed in one batch
+    private static final int MAX_BATCH_OUTPUTS = 4096;
 
     // The contorller's GUI
     protected ControllerGUI gui;
@@ -153,8 +166,17 @@ public class HackController
     // The output desination
     private PrintWriter output;
 
-    // The comparison source
-    private BufferedReader comparisonFile;
+    // The number of output lines after which the output file is flushed
+    // (0 - only when the script stops or ends)
+    private int outputFlushInterval;
+
+    // The characters of the current output line, and its length
+    private char[] lineBuffer = new char[LINE_BUFFER_SIZE];
+    private int lineLength;
+
+    // The comparison source, mapped into memory (its position is the start
+    // of the next compared line)
+    private ByteBuffer comparisonFile;
 
     // Index of repeat or while start command
     private int loopCommandIndex;
@@ -192,11 +214,12 @@ public class HackController
     // The set numeric format task object
     private SetNumericFormatTask setNumericFormatTask;
 
-    // True if the system is in fast forward.
-    private boolean fastForwardRunning;
+    // True if the system is in fast forward. Volatile so that a stop request
+    // is seen by the running thread without locking the controller.
+    private volatile boolean fastForwardRunning;
 
     // True if the system is in Single Step.
-    private boolean singleStepRunning;
+    private volatile boolean singleStepRunning;
 
     // True if the script ended.
     private boolean scriptEnded;
@@ -213,22 +236,62 @@ public class HackController
     // The number of the line in which the comparison failed (if it failed).
     private int comparisonFailureLine;
 
+    // True if the controller runs as a standalone program (without a GUI), which
+    // prints its messages, exits on errors and saves the working dir.
+    private boolean standalone;
+
+    // The first error message (if any) of a controller that is not standalone
+    private String errorMessage;
+
     // The echo that was displayed (if any) when single step was stopped in the middle.
     private String lastEcho;
 
     // The default script file object
     private File defaultScriptFile;
 
+    // The index of the first command after the last run of commands that couldn't be
+    // executed as a batch
+    private int noBatchIndex;
+
     /**
      * Constructs a new HackController with the given script file name.
      * The script will be executed and the final result will be printed.
      */
     public HackController(HackSimulator simulator, String scriptFileName) {
+        this(simulator, scriptFileName, 0);
+    }
+
+    /**
+     * Constructs a new HackController with the given script file name, which
+     * is executed as the above constructor does. The output file is flushed
+     * after every outputFlushInterval output lines, or only when the script
+     * stops or ends if outputFlushInterval is 0.
+     */
+    public HackController(HackSimulator simulator, String scriptFileName,
+                          int outputFlushInterval) {
+        this(simulator, scriptFileName, outputFlushInterval, true);
+    }
+
+    /**
+     * Constructs a new HackController with the given script file name, which
+     * is executed as the above constructor does. If standalone is false, the
+     * controller doesn't print its messages, exit on errors or save the working
+     * dir: the script just stops on the first error or comparison failure, which
+     * can be queried afterwards (see getErrorMessage). Several such controllers
+     * may run at the same time in different threads.
+     */
+    public HackController(HackSimulator simulator, String scriptFileName,
+                          int outputFlushInterval, boolean standalone) {
+        this.simulator = simulator;
+        this.outputFlushInterval = outputFlushInterval;
+        this.standalone = standalone;
+
         File file = new File(scriptFileName);
-        if (!file.exists())
+        if (!file.exists()) {
             displayMessage(scriptFileName + " doesn't exist", true);
+            return;
+        }
 
-        this.simulator = simulator;
         animationMode = NO_DISPLAY_CHANGES;
         simulator.setAnimationMode(animationMode);
         simulator.addListener(this);
@@ -239,14 +302,20 @@ public class HackController
             saveWorkingDir(file);
         } catch (ScriptException se) {
             displayMessage(se.getMessage(), true);
+            return;
         } catch (ControllerException ce) {
             displayMessage(ce.getMessage(), true);
+            return;
         }
 
         fastForwardRunning = true;
 
+        // no other thread uses this controller, so it runs at full speed
         while (fastForwardRunning)
-            singleStep();
+            doSingleStep();
+
+        if (!standalone && output != null)
+            output.close();
     }
 
     /**
@@ -258,6 +327,7 @@ public class HackController
 
         this.gui = gui;
         this.simulator = simulator;
+        outputFlushInterval = 1; // the GUI displays the output file
         singleStepTask = new SingleStepTask();
         fastForwardTask = new FastForwardTask();
         setAnimationModeTask = new SetAnimationModeTask();
@@ -324,6 +394,7 @@ public class HackController
 
             lastEcho = "";
             currentCommandIndex = 0;
+            noBatchIndex = 0;
             gui.setCurrentScriptLine(script.getLineNumberAt(0));
 
         } catch (ControllerException e) {
@@ -343,6 +414,11 @@ public class HackController
         }
         singleStepRunning = false;
 
+        if (output != null)
+            output.flush();
+
+        simulator.executionStopped();
+
         if (gui != null) {
             gui.enableSingleStep();
             gui.enableFastForward();
@@ -381,9 +457,15 @@ public class HackController
         }
     }
 
+    // Executes a single step from the script while locking the controller.
+    private synchronized void singleStep() {
+        doSingleStep();
+        notifyAll();
+    }
+
     // Executes a single step from the script, checks for a breakpoint and
     // sets the status of the system accordingly.
-    private synchronized void singleStep() {
+    private void doSingleStep() {
 
         singleStepLocked = true;
 
@@ -405,8 +487,7 @@ public class HackController
             // Check Breakpoints
             for (int i = 0; i < breakpoints.size(); i++) {
                 Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(i);
-                String currentValue = simulator.getValue(breakpoint.getVarName());
-                if (currentValue.equals(breakpoint.getValue())) {
+                if (breakpoint.matches(simulator)) {
                     // if value is equal and the breakpoint wasn't reached before, turn it on
                     if (!breakpoint.isReached()) {
                         breakpoint.on();
@@ -433,7 +514,6 @@ public class HackController
         }
 
         singleStepLocked = false;
-        notifyAll();
     }
 
     // Displays the message of the given exception and stops the script's execution.
@@ -449,6 +529,21 @@ public class HackController
         Command command;
         boolean redo;
 
+        // without a GUI and breakpoints, a loop which repeats a single simulator command
+        // may be executed by the simulator
+        if (gui == null && breakpoints.size() == 0) {
+            command = repeatStep();
+            if (command != null)
+                return command.getTerminator();
+        }
+
+        // without a GUI, a run of simulator and output commands may be executed as a batch
+        if (gui == null && currentCommandIndex >= noBatchIndex) {
+            command = batchStep();
+            if (command != null)
+                return command.getTerminator();
+        }
+
         do {
             command = script.getCommandAt(currentCommandIndex);
             redo = false;
@@ -506,25 +601,19 @@ public class HackController
                     gui.disableFastForward();
                 }
 
-                try {
-                    if (output != null)
-                        output.close();
-
-                    if (comparisonFile != null) {
-                        if (comparisonFailed)
-                            displayMessage("End of script - Comparison failure at line "
-                                               + comparisonFailureLine, true);
-                        else
-                            displayMessage("End of script - Comparison ended successfully",
-                                               false);
-
-                        comparisonFile.close();
-                    }
+                if (output != null)
+                    output.close();
+
+                if (comparisonFile != null) {
+                    if (comparisonFailed)
+                        displayMessage("End of script - Comparison failure at line "
+                                           + comparisonFailureLine, true);
                     else
-                        displayMessage("End of script", false);
-                } catch (IOException ioe) {
-                    throw new ControllerException("Could not read comparison file");
+                        displayMessage("End of script - Comparison ended successfully",
+                                           false);
                 }
+                else
+                    displayMessage("End of script", false);
 
                 break;
             }
@@ -555,6 +644,107 @@ public class HackController
         return command.getTerminator();
     }
 
+    // Executes the run of simulator and output commands that starts at the current
+    // command, outside of loops, as one batch of groups in the simulator (each group
+    // ends with an output command). Returns the last executed command, or null if the
+    // simulator can't execute the run as a batch.
+    private Command batchStep() throws ControllerException, VariableException {
+        if (output == null || varList == null || isInLoop(currentCommandIndex))
+            return null;
+
+        Vector<Vector<String[]>> groups = new Vector<Vector<String[]>>();
+        Vector<String[]> group = new Vector<String[]>();
+        Vector<Integer> outputIndice = new Vector<Integer>();
+        int index = currentCommandIndex;
+        for (; groups.size() < MAX_BATCH_OUTPUTS; index++) {
+            Command command = script.getCommandAt(index);
+            if (command.getTerminator() == Command.STOP_TERMINATOR)
+                break;
+            else if (command.getCode() == Command.SIMULATOR_COMMAND)
+                group.addElement((String[])command.getArg());
+            else if (command.getCode() == Command.OUTPUT_COMMAND) {
+                groups.addElement(group);
+                group = new Vector<String[]>();
+                outputIndice.addElement(Integer.valueOf(index));
+            }
+            else
+                break;
+        }
+
+        String[][] values = null;
+        if (groups.size() > 1) {
+            String[][][] groupsArray = new String[groups.size()][][];
+            for (int i = 0; i < groupsArray.length; i++) {
+                Vector<String[]> commands = groups.elementAt(i);
+                groupsArray[i] = new String[commands.size()][];
+                commands.copyInto(groupsArray[i]);
+            }
+
+            String[] varNames = new String[varList.length];
+            for (int i = 0; i < varNames.length; i++)
+                varNames[i] = varList[i].varName;
+
+            values = simulator.doBatch(groupsArray, varNames);
+        }
+
+        if (values == null) {
+            noBatchIndex = index;
+            return null;
+        }
+
+        // output the lines until the end of the batch, or until stopped by a
+        // comparison failure
+        int last = 0;
+        formatOutputLine(values[0]);
+        outputAndCompare();
+        while (singleStepRunning && last + 1 < values.length) {
+            formatOutputLine(values[++last]);
+            outputAndCompare();
+        }
+
+        currentCommandIndex = outputIndice.elementAt(last).intValue() + 1;
+        return script.getCommandAt(currentCommandIndex - 1);
+    }
+
+    // Executes the repeat loop that starts at the current command by the simulator, if
+    // the loop repeats a single simulator command a fixed number of times. Returns the
+    // repeated command, or null if the simulator can't execute the loop this way.
+    private Command repeatStep() throws ProgramException, CommandException, VariableException {
+        Command loop = script.getCommandAt(currentCommandIndex);
+        if (loop.getCode() != Command.REPEAT_COMMAND)
+            return null;
+
+        int count = ((Integer)loop.getArg()).intValue();
+        Command command = script.getCommandAt(currentCommandIndex + 1);
+        if (count <= 0 || command.getCode() != Command.SIMULATOR_COMMAND ||
+                command.getTerminator() == Command.STOP_TERMINATOR ||
+                script.getCommandAt(currentCommandIndex + 2).getCode() !=
+                Command.END_REPEAT_COMMAND)
+            return null;
+
+        if (!simulator.doRepeatedCommand((String[])command.getArg(), count))
+            return null;
+
+        currentCommandIndex += 3;
+        return command;
+    }
+
+    // Returns true if the command at the given index is inside a repeat or while loop.
+    private boolean isInLoop(int index) {
+        for (int i = index - 1; i >= 0; i--) {
+            switch (script.getCommandAt(i).getCode()) {
+                case Command.REPEAT_COMMAND:
+                case Command.WHILE_COMMAND:
+                    return true;
+                case Command.END_REPEAT_COMMAND:
+                case Command.END_WHILE_COMMAND:
+                    return false;
+            }
+        }
+
+        return false;
+    }
+
     // Executes the controller's output-file command.
     private void doOutputFileCommand(Command command) throws ControllerException {
         currentOutputName = currentScriptFile.getParent() + "/" + (String)command.getArg();
@@ -577,7 +767,7 @@ public class HackController
             throw new ControllerException("No output file specified");
 
         varList = (VariableFormat[])command.getArg();
-        StringBuffer line = new StringBuffer("|");
+        startLine();
 
         for (int i = 0; i < varList.length; i++) {
             int space = varList[i].padL + varList[i].padR + varList[i].len;
@@ -586,11 +776,13 @@ public class HackController
             int leftSpace = (int)((space - varName.length()) / 2);
             int rightSpace = space - leftSpace - varName.length();
 
-            line.append(SPACES.substring(0, leftSpace) + varName +
-                        SPACES.substring(0, rightSpace) + '|');
+            appendSpacesToLine(leftSpace);
+            appendToLine(varName);
+            appendSpacesToLine(rightSpace);
+            appendToLine('|');
         }
 
-        outputAndCompare(line.toString());
+        outputAndCompare();
     }
 
     // Executes the controller's output command.
@@ -598,38 +790,140 @@ public class HackController
         if (output == null)
             throw new ControllerException("No output file specified");
 
-        StringBuffer line = new StringBuffer("|");
-
+        startLine();
         for (int i = 0; i < varList.length; i++) {
-            // find value string (convert to require format if necessary)
-            String value = simulator.getValue(varList[i].varName);
-            if (varList[i].format != VariableFormat.STRING_FORMAT) {
-                int numValue;
-                try {
-                    numValue = Integer.parseInt(value);
-                } catch (NumberFormatException nfe) {
-                    throw new VariableException("Variable is not numeric", varList[i].varName);
-                }
-                if (varList[i].format == VariableFormat.HEX_FORMAT)
-                    value = Conversions.decimalToHex(numValue, 4);
-                else if (varList[i].format == VariableFormat.BINARY_FORMAT)
-                    value = Conversions.decimalToBinary(numValue, 16);
+            // variables with handles are read (and formatted) as numbers
+            VariableHandle handle = varList[i].variable.getHandle(simulator);
+            if (handle != null)
+                appendValue(i, handle.get());
+            else
+                appendValue(i, simulator.getValue(varList[i].varName));
+        }
+
+        outputAndCompare();
+    }
+
+    // Formats the given values of the current variables list into the current
+    // output line, converted to the required formats.
+    private void formatOutputLine(String[] values) throws VariableException {
+        startLine();
+
+        for (int i = 0; i < varList.length; i++)
+            appendValue(i, values[i]);
+    }
+
+    // Appends the given numeric value of the i'th variable of the current
+    // variables list to the current output line, converted to the required format.
+    private void appendValue(int i, short numValue) {
+        if (varList[i].format == VariableFormat.HEX_FORMAT)
+            appendFormattedValue(i, Conversions.decimalToHex(numValue, 4));
+        else if (varList[i].format == VariableFormat.BINARY_FORMAT)
+            appendFormattedValue(i, Conversions.decimalToBinary(numValue, 16));
+        else if (varList[i].format == VariableFormat.STRING_FORMAT)
+            appendFormattedValue(i, String.valueOf(numValue));
+        else {
+            // write the decimal digits directly into the line (right aligned)
+            int length = 1;
+            for (int rest = numValue / 10; rest != 0; rest /= 10)
+                length++;
+            if (numValue < 0)
+                length++;
+
+            if (length > varList[i].len) {
+                appendFormattedValue(i, String.valueOf(numValue));
+                return;
             }
 
-            if (value.length() > varList[i].len)
-                value = value.substring(value.length() - varList[i].len);
-
-            int leftSpace = varList[i].padL +
-                            (varList[i].format == VariableFormat.STRING_FORMAT ?
-                             0 : (varList[i].len - value.length()));
-            int rightSpace = varList[i].padR +
-                            (varList[i].format == VariableFormat.STRING_FORMAT ?
-                             (varList[i].len - value.length()) : 0);
-            line.append(SPACES.substring(0, leftSpace) + value +
-                        SPACES.substring(0, rightSpace) + '|');
+            appendSpacesToLine(varList[i].padL + varList[i].len - length);
+            ensureLineCapacity(length);
+            int value = numValue;
+            int end = lineLength + length;
+            if (value < 0) {
+                lineBuffer[lineLength] = '-';
+                value = -value;
+            }
+            do {
+                lineBuffer[--end] = (char)('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            lineLength += length;
+            appendSpacesToLine(varList[i].padR);
+            appendToLine('|');
         }
+    }
+
+    // Appends the given value of the i'th variable of the current variables
+    // list to the current output line, converted to the required format.
+    private void appendValue(int i, String value) throws VariableException {
+        // find value string (convert to require format if necessary)
+        if (varList[i].format != VariableFormat.STRING_FORMAT) {
+            int numValue;
+            try {
+                numValue = Integer.parseInt(value);
+            } catch (NumberFormatException nfe) {
+                throw new VariableException("Variable is not numeric", varList[i].varName);
+            }
+            if (varList[i].format == VariableFormat.HEX_FORMAT)
+                value = Conversions.decimalToHex(numValue, 4);
+            else if (varList[i].format == VariableFormat.BINARY_FORMAT)
+                value = Conversions.decimalToBinary(numValue, 16);
+        }
+
+        appendFormattedValue(i, value);
+    }
+
+    // Appends the given value string of the i'th variable of the current
+    // variables list to the current output line, padded as required.
+    private void appendFormattedValue(int i, String value) {
+        if (value.length() > varList[i].len)
+            value = value.substring(value.length() - varList[i].len);
+
+        int leftSpace = varList[i].padL +
+                        (varList[i].format == VariableFormat.STRING_FORMAT ?
+                         0 : (varList[i].len - value.length()));
+        int rightSpace = varList[i].padR +
+                        (varList[i].format == VariableFormat.STRING_FORMAT ?
+                         (varList[i].len - value.length()) : 0);
+        appendSpacesToLine(leftSpace);
+        appendToLine(value);
+        appendSpacesToLine(rightSpace);
+        appendToLine('|');
+    }
 
-        outputAndCompare(line.toString());
+    // Starts a new output line (with the leading '|').
+    private void startLine() {
+        lineLength = 0;
+        appendToLine('|');
+    }
+
+    // Appends the given character to the current output line.
+    private void appendToLine(char c) {
+        ensureLineCapacity(1);
+        lineBuffer[lineLength++] = c;
+    }
+
+    // Appends the given string to the current output line.
+    private void appendToLine(String s) {
+        ensureLineCapacity(s.length());
+        s.getChars(0, s.length(), lineBuffer, lineLength);
+        lineLength += s.length();
+    }
+
+    // Appends the given number of spaces to the current output line.
+    private void appendSpacesToLine(int count) {
+        ensureLineCapacity(count);
+        Arrays.fill(lineBuffer, lineLength, lineLength + count, ' ');
+        lineLength += count;
+    }
+
+    // Makes sure the current output line has room for the given number of
+    // additional characters.
+    private void ensureLineCapacity(int count) {
+        if (lineLength + count > lineBuffer.length) {
+            char[] newBuffer = new char[Math.max(lineBuffer.length * 2, lineLength + count)];
+            System.arraycopy(lineBuffer, 0, newBuffer, 0, lineLength);
+            lineBuffer = newBuffer;
+        }
     }
 
     // Executes the controller's echo command.
@@ -663,30 +957,42 @@ public class HackController
         gui.setBreakpoints(breakpoints);
     }
 
-    // Compares an output line with a template line from a compare file.
-    // The template must match exactly except for '*' which may match any
-    // single character.
-    private static boolean compareLineWithTemplate(String out, String cmp) {
-        if (out.length() != cmp.length()) {
+    // Compares the current output line with the next line of the comparison
+    // file (a template line), and advances the comparison file to the line
+    // after it. The template must match exactly except for '*' which may match
+    // any single character. Returns false if there are no more template lines.
+    private boolean compareLineWithTemplate() {
+        if (!comparisonFile.hasRemaining())
             return false;
-        }
-        StringCharacterIterator outi = new StringCharacterIterator(out);
-        StringCharacterIterator cmpi = new StringCharacterIterator(cmp);
-        for (outi.first(), cmpi.first();
-             outi.current() != CharacterIterator.DONE;
-             outi.next(), cmpi.next()) {
-            if (cmpi.current() != '*' && outi.current() != cmpi.current()) {
-                return false;
+
+        boolean match = true;
+        int i = 0;
+        while (comparisonFile.hasRemaining()) {
+            char c = (char)(comparisonFile.get() & 0xFF);
+            if (c == '\n')
+                break;
+            else if (c == '\r') {
+                if (comparisonFile.hasRemaining() &&
+                        comparisonFile.get(comparisonFile.position()) == '\n')
+                    comparisonFile.get();
+                break;
             }
+
+            if (i >= lineLength || (c != '*' && c != lineBuffer[i]))
+                match = false;
+            i++;
         }
-        return true;
+
+        return match && i == lineLength;
     }
 
-    // Ouputs the given line into the output file and compares it to the current
+    // Ouputs the current line into the output file and compares it to the current
     // compare file (if exists)
-    private void outputAndCompare(String line) throws ControllerException {
-        output.println(line);
-        output.flush();
+    private void outputAndCompare() throws ControllerException {
+        output.write(lineBuffer, 0, lineLength);
+        output.println();
+        if (outputFlushInterval > 0 && (outputLinesCounter + 1) % outputFlushInterval == 0)
+            output.flush();
 
         if (gui != null) {
             gui.outputFileUpdated();
@@ -696,23 +1002,17 @@ public class HackController
         outputLinesCounter++;
 
         if (comparisonFile != null) {
-            try {
-                String compareLine = comparisonFile.readLine();
-
-                if (gui != null)
-                    gui.setCurrentComparisonLine(compareLinesCounter);
+            if (gui != null)
+                gui.setCurrentComparisonLine(compareLinesCounter);
 
-                compareLinesCounter++;
+            compareLinesCounter++;
 
-                if (!compareLineWithTemplate(line, compareLine)) {
-                    comparisonFailed = true;
-                    comparisonFailureLine = compareLinesCounter;
-                    displayMessage("Comparison failure at line " + comparisonFailureLine,
-                                       true);
-                    stopMode();
-                }
-            } catch (IOException ioe) {
-                throw new ControllerException("Could not read comparison file");
+            if (!compareLineWithTemplate()) {
+                comparisonFailed = true;
+                comparisonFailureLine = compareLinesCounter;
+                displayMessage("Comparison failure at line " + comparisonFailureLine,
+                                   true);
+                stopMode();
             }
         }
     }
@@ -724,6 +1024,9 @@ public class HackController
         script = new Script(file.getPath());
         breakpoints.removeAllElements();
         currentCommandIndex = 0;
+        noBatchIndex = 0;
+        if (output != null)
+            output.close();
         output = null;
         currentOutputName = "";
         comparisonFile = null;
@@ -744,7 +1047,10 @@ public class HackController
     // Resets the output file.
     private void resetOutputFile() throws ControllerException {
         try {
-            output = new PrintWriter(new FileWriter(currentOutputName));
+            if (output != null)
+                output.close();
+            output = new PrintWriter(new BufferedWriter(new FileWriter(currentOutputName),
+                                                        OUTPUT_BUFFER_SIZE));
             outputLinesCounter = 0;
             if (gui != null)
                 gui.setCurrentOutputLine(-1);
@@ -759,7 +1065,12 @@ public class HackController
     // Resets the comparison file.
     private void resetComparisonFile() throws ControllerException {
         try {
-            comparisonFile = new BufferedReader(new FileReader(currentComparisonName));
+            FileChannel channel = new FileInputStream(currentComparisonName).getChannel();
+            try {
+                comparisonFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close();
+            }
             compareLinesCounter = 0;
             comparisonFailed = false;
             if (gui != null)
@@ -856,9 +1167,15 @@ public class HackController
     private void displayMessage(String message, boolean error) {
         if (gui != null)
             gui.displayMessage(message, error);
+        else if (!standalone) {
+            if (error && errorMessage == null)
+                errorMessage = message;
+        }
         else {
             if (error) {
                 System.err.println(message);
+                if (output != null)
+                    output.flush();
                 System.exit(-1);
             }
             else {
@@ -890,6 +1207,9 @@ public class HackController
 
         simulator.setWorkingDir(file);
 
+        if (gui == null && !standalone)
+            return;
+
         File dir = file.isDirectory() ? file : parent;
 
         try {
@@ -899,6 +1219,36 @@ public class HackController
         } catch (IOException ioe) {}
     }
 
+    /**
+     * Returns the first error message of a controller that is not standalone,
+     * including a comparison failure, or null if the script ended without errors.
+     */
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Returns the number of the comparison file line in which the comparison
+     * failed, or 0 if it didn't fail.
+     */
+    public int getComparisonFailureLine() {
+        return comparisonFailed ? comparisonFailureLine : 0;
+    }
+
+    /**
+     * Returns true if the script was executed until its end.
+     */
+    public boolean isScriptEnded() {
+        return scriptEnded;
+    }
+
+    /**
+     * Returns the number of lines that were written to the output file.
+     */
+    public int getOutputLinesCount() {
+        return outputLinesCounter;
+    }
+
     // Returns the version string
     private static String getVersionString() {
         return " (" + Definitions.version + ")";
@@ -1097,31 +1447,26 @@ public class HackController
         }
     }
 
-    // Performs the fast forward task
+    // Performs the fast forward task: runs the script in time slices, locking
+    // the controller once per slice and pausing between slices so that the GUI
+    // can respond.
     class FastForwardTask implements Runnable {
-        public synchronized void run() {
-            try {
-                System.runFinalization();
-                System.gc();
-                wait(300);
-            } catch (InterruptedException ie) {
-            }
-
-            int count = 0;
-            int rounds = FASTFORWARD_SPEED_FUNCTION[currentSpeedUnit - 1];
-
+        public void run() {
             while (fastForwardRunning) {
-                singleStep();
-
-                // waits for 1 ms each constant amount of commands
-                if (count == rounds) {
-                    count = 0;
-                    try {
-                        wait(1);
-                    } catch (InterruptedException ie) {}
+                long sliceEnd = System.nanoTime() +
+                    FASTFORWARD_TIME_SLICES[currentSpeedUnit - 1] * 1000000L;
+
+                synchronized (HackController.this) {
+                    do {
+                        doSingleStep();
+                    } while (fastForwardRunning && System.nanoTime() < sliceEnd);
+                    HackController.this.notifyAll();
                 }
 
-                count++;
+                try {
+                    Thread.sleep(FASTFORWARD_PAUSE);
+                } catch (InterruptedException ie) {
+                }
             }
         }
     }
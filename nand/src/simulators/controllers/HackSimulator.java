@@ -18,6 +18,7 @@
 package simulators.controllers;
 
 import java.util.*;
+import java.util.zip.*;
 import java.io.*;
 
 
@@ -29,6 +30,17 @@ import simulators.Events.*;
  */
 public abstract class HackSimulator implements ProgramEventListener, ComputerPartErrorEventListener
 {
+    // The snapshot commands
+    private static final String COMMAND_SNAPSHOT = "snapshot";
+    private static final String COMMAND_RESTORE = "restore";
+
+    // The extension of the names of snapshots that are kept in files
+    private static final String SNAPSHOT_EXTENSION = ".snapshot";
+
+    // The first values of every snapshot: a magic number ("HSNP") and the format version
+    private static final int SNAPSHOT_MAGIC = 0x48534e50;
+    private static final int SNAPSHOT_VERSION = 1;
+
     // The vector of listeners
     private Vector listeners;
 
@@ -38,12 +50,19 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
     // The current working dir
     protected File workingDir;
 
+    // The version of the variable handles - changed when they become invalid
+    private int variableHandlesVersion;
+
+    // The snapshots that are kept in memory, by their names
+    private Hashtable<String, byte[]> snapshots;
+
     /**
      * Constructs a new hack simulator.
      */
     public HackSimulator() {
         listeners = new Vector();
         programListeners = new Vector();
+        snapshots = new Hashtable<String, byte[]>();
     }
 
     /**
@@ -57,6 +76,33 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
      */
     public abstract String getValue(String varName) throws VariableException;
 
+    /**
+     * Returns a handle for reading the numeric value of the given variable, or
+     * null if the simulator doesn't provide a handle for this variable (the
+     * default). Reading the handle returns the same value as getValue(varName),
+     * as long as getVariableHandlesVersion() doesn't change.
+     */
+    public VariableHandle getVariableHandle(String varName) {
+        return null;
+    }
+
+    /**
+     * Returns the version of the variable handles returned by getVariableHandle().
+     * When the version changes, the handles should be resolved again.
+     */
+    public int getVariableHandlesVersion() {
+        return variableHandlesVersion;
+    }
+
+    /**
+     * Invalidates all the variable handles returned by getVariableHandle() so far.
+     * Should be called when the variables of the simulator are replaced
+     * (e.g. when a new program or chip is loaded).
+     */
+    protected void invalidateVariableHandles() {
+        variableHandlesVersion++;
+    }
+
     /**
      * Sets the given variable with the given value.
      * Throws VariableException if the variable name or value are not legal.
@@ -103,6 +149,13 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
      */
     public abstract void prepareFastForward();
 
+    /**
+     * Called when the execution of the script stops: at its end, at a breakpoint, at a
+     * comparison failure or an error, or by the user. Does nothing by default.
+     */
+    public void executionStopped() {
+    }
+
     /**
      * Prepares the GUI of the simulator.
      * Called after the simulator is added (and displayed) to the controller's frame.
@@ -114,6 +167,166 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
      */
     public abstract String[] getVariables();
 
+    /**
+     * Executes the given groups of simulator commands, each followed by an output of the
+     * given variables, and returns the values of the variables after each group
+     * (values[group][variable]). The simulator may evaluate the groups together, as
+     * independent vectors. If the groups can't be executed this way, nothing is
+     * executed and null is returned (the default).
+     */
+    public String[][] doBatch(String[][][] groups, String[] varNames) {
+        return null;
+    }
+
+    /**
+     * Executes the given simulator command (given in args[] style) the given number of
+     * times, and returns true. If the simulator can't repeat the command by itself,
+     * nothing is executed and false is returned (the default).
+     * Throws CommandException if the command is not legal.
+     * Throws ProgramException if an error occurs in the program.
+     */
+    public boolean doRepeatedCommand(String[] command, int count)
+     throws CommandException, ProgramException, VariableException {
+        return false;
+    }
+
+    /**
+     * Returns a snapshot of the whole state of the simulator (e.g. its memory, registers
+     * and clock) as a compact binary blob, which may be restored by restoreSnapshot().
+     * The state is deflated after a short header. The loaded program or chip itself is
+     * not included.
+     * Throws ProgramException if the state can't be taken at this point.
+     */
+    public byte[] getSnapshot() throws ProgramException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(SNAPSHOT_MAGIC);
+            header.writeInt(SNAPSHOT_VERSION);
+            header.writeUTF(getName());
+            header.flush();
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(bytes)));
+            writeState(out);
+            out.close();
+        } catch (IOException ioe) { // never thrown by a byte array stream
+            throw new ProgramException("Could not take the snapshot: " + ioe.getMessage());
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores the state of the simulator from the given snapshot, which was returned by
+     * getSnapshot() of the same kind of simulator, with the same program or chip loaded.
+     * Throws ProgramException if the snapshot is illegal or doesn't match the simulator.
+     */
+    public void restoreSnapshot(byte[] snapshot) throws ProgramException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(snapshot);
+        try {
+            DataInputStream header = new DataInputStream(bytes);
+            if (header.readInt() != SNAPSHOT_MAGIC || header.readInt() != SNAPSHOT_VERSION)
+                throw new ProgramException("Illegal snapshot");
+
+            String name = header.readUTF();
+            if (!name.equals(getName()))
+                throw new ProgramException("The snapshot was taken by the " + name);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(bytes)));
+            try {
+                readState(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new ProgramException("Illegal snapshot");
+        }
+    }
+
+    /**
+     * Writes the state of the simulator to the given stream (see getSnapshot()).
+     * Throws ProgramException if the state can't be taken at this point.
+     */
+    protected abstract void writeState(DataOutputStream out)
+     throws IOException, ProgramException;
+
+    /**
+     * Reads the state of the simulator from the given stream, as written by writeState(),
+     * and restores it. The loaded program or chip is checked before any state is restored.
+     * Throws ProgramException if the state doesn't match the loaded program or chip.
+     */
+    protected abstract void readState(DataInputStream in)
+     throws IOException, ProgramException;
+
+    /**
+     * Executes the given command if it is a snapshot command, and returns true.
+     * Otherwise, nothing is executed and false is returned.
+     * The snapshot commands are:
+     * snapshot <name> - takes a snapshot of the state of the simulator
+     * restore <name> - restores the state of the simulator from the given snapshot
+     * Snapshots are kept in memory by their names, except for names with the .snapshot
+     * extension, which are files in the working dir.
+     * Throws CommandException if the command is not legal.
+     * Throws ProgramException if the snapshot can't be taken or restored.
+     */
+    protected boolean doSnapshotCommand(String[] command)
+     throws CommandException, ProgramException {
+        if (!command[0].equals(COMMAND_SNAPSHOT) && !command[0].equals(COMMAND_RESTORE))
+            return false;
+
+        if (command.length != 2)
+            throw new CommandException("Illegal number of arguments to command", command);
+
+        String name = command[1];
+        File file = name.endsWith(SNAPSHOT_EXTENSION) ?
+            new File(workingDir.getAbsolutePath() + "/" + name) : null;
+
+        if (command[0].equals(COMMAND_SNAPSHOT)) {
+            byte[] snapshot = getSnapshot();
+            if (file == null)
+                snapshots.put(name, snapshot);
+            else {
+                try {
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        out.write(snapshot);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException ioe) {
+                    throw new CommandException("Could not write the snapshot", command);
+                }
+            }
+        }
+        else {
+            byte[] snapshot = null;
+            if (file == null) {
+                snapshot = snapshots.get(name);
+                if (snapshot == null)
+                    throw new CommandException("Unknown snapshot", command);
+            }
+            else {
+                try {
+                    DataInputStream in = new DataInputStream(new FileInputStream(file));
+                    try {
+                        snapshot = new byte[(int)file.length()];
+                        in.readFully(snapshot);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException ioe) {
+                    throw new CommandException("Could not read the snapshot", command);
+                }
+            }
+
+            restoreSnapshot(snapshot);
+        }
+
+        return true;
+    }
+
     /**
      * Returns the initial animation mode of the simulator.
      */
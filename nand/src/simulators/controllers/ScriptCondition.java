@@ -59,6 +59,9 @@ public class ScriptCondition {
     // The condition arguments (may be variable names or constants).
     private String arg0, arg1;
 
+    // The variables of the arguments (null for integer constants).
+    private VariableAccessor variable0, variable1;
+
     // The comparison operator code.
     private byte comparisonOperator;
 
@@ -74,6 +77,8 @@ public class ScriptCondition {
             throw new ScriptException("A condition expected");
 
         arg0 = input.getToken();
+        if (input.getTokenType() == ScriptTokenizer.TYPE_IDENTIFIER)
+            variable0 = new VariableAccessor(arg0);
 
         // check operator
         input.advance();
@@ -110,6 +115,8 @@ public class ScriptCondition {
             throw new ScriptException("A variable name or constant expected");
 
         arg1 = input.getToken();
+        if (input.getTokenType() == ScriptTokenizer.TYPE_IDENTIFIER)
+            variable1 = new VariableAccessor(arg1);
         input.advance();
     }
 
@@ -118,37 +125,42 @@ public class ScriptCondition {
      */
     public boolean compare(HackSimulator simulator) throws ControllerException {
         boolean result = false;
-        String val0, val1;
+        String val0 = null, val1 = null;
         int num0 = 0, num1 = 0;
-        boolean isNum0, isNum1;
-
-        // find if arg0 and arg1 are variables. If so, retrieve their values.
-        // Otherwise, treat them as constants.
-        try {
-            val0 = simulator.getValue(arg0);
-        } catch (VariableException ve) {
-            val0 = arg0;
-        }
+        boolean isNum0 = false, isNum1 = false;
 
-        try {
-            val1 = simulator.getValue(arg1);
-        } catch (VariableException ve) {
-            val1 = arg1;
-        }
+        // Variables with handles are read directly as integers.
+        VariableHandle handle0 =
+            (variable0 != null ? variable0.getHandle(simulator) : null);
+        VariableHandle handle1 =
+            (variable1 != null ? variable1.getHandle(simulator) : null);
 
-        // Find if val0 and val1 are integers.
-        try {
-            num0 = Integer.parseInt(Conversions.toDecimalForm(val0));
+        if (handle0 != null) {
+            num0 = handle0.get();
             isNum0 = true;
-        } catch (NumberFormatException nfe) {
-            isNum0 = false;
+        }
+        else {
+            val0 = getValue(simulator, arg0, variable0);
+            // Find if val0 is an integer.
+            try {
+                num0 = Integer.parseInt(Conversions.toDecimalForm(val0));
+                isNum0 = true;
+            } catch (NumberFormatException nfe) {
+            }
         }
 
-        try {
-            num1 = Integer.parseInt(Conversions.toDecimalForm(val1));
+        if (handle1 != null) {
+            num1 = handle1.get();
             isNum1 = true;
-        } catch (NumberFormatException nfe) {
-            isNum1 = false;
+        }
+        else {
+            val1 = getValue(simulator, arg1, variable1);
+            // Find if val1 is an integer.
+            try {
+                num1 = Integer.parseInt(Conversions.toDecimalForm(val1));
+                isNum1 = true;
+            } catch (NumberFormatException nfe) {
+            }
         }
 
         // if both values are integers, compare them using integer comparison.
@@ -173,4 +185,19 @@ public class ScriptCondition {
             throw new ControllerException("Cannot compare an integer with a string");
         return result;
     }
+
+    // Returns the value of the given argument with the given variable (null if
+    // the argument is an integer constant): If the argument is a variable, its
+    // value is returned. Otherwise, it is treated as a constant.
+    private static String getValue(HackSimulator simulator, String arg,
+                                   VariableAccessor variable) {
+        if (variable == null)
+            return arg;
+
+        try {
+            return variable.getValue(simulator);
+        } catch (VariableException ve) {
+            return arg;
+        }
+    }
 }
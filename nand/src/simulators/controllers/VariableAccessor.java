@@ -0,0 +1,83 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.controllers;
+
+/**
+ * A variable of a script (in a breakpoint, a condition or an output list),
+ * together with its VariableHandle in the simulator it was last read from.
+ * The handle is resolved on the first read and kept until the simulator
+ * changes its variables (e.g. when a new chip is loaded), so repeated reads
+ * don't parse the variable name again.
+ */
+public class VariableAccessor {
+
+    // The variable name
+    private String varName;
+
+    // The simulator in which the handle was resolved
+    private HackSimulator simulator;
+
+    // The version of the simulator's handles when the handle was resolved
+    private int handlesVersion;
+
+    // The handle of the variable, or null if it has no handle
+    private VariableHandle handle;
+
+    /**
+     * Constructs a new VariableAccessor of the given variable name.
+     */
+    public VariableAccessor(String varName) {
+        this.varName = varName;
+    }
+
+    /**
+     * Returns the variable name.
+     */
+    public String getVarName() {
+        return varName;
+    }
+
+    /**
+     * Returns the handle of the variable in the given simulator, or null if
+     * the simulator has no handle for it. In this case the value should be
+     * read using getValue().
+     */
+    public VariableHandle getHandle(HackSimulator simulator) {
+        if (simulator != this.simulator ||
+            handlesVersion != simulator.getVariableHandlesVersion()) {
+            this.simulator = simulator;
+            handlesVersion = simulator.getVariableHandlesVersion();
+            handle = simulator.getVariableHandle(varName);
+        }
+
+        return handle;
+    }
+
+    /**
+     * Returns the value of the variable in the given simulator, as returned
+     * by the simulator's getValue().
+     * Throws VariableException if the variable name is not legal.
+     */
+    public String getValue(HackSimulator simulator) throws VariableException {
+        VariableHandle handle = getHandle(simulator);
+        if (handle != null)
+            return String.valueOf(handle.get());
+        else
+            return simulator.getValue(varName);
+    }
+}
@@ -64,6 +64,11 @@ public class VariableFormat {
      */
     public char format;
 
+    /**
+     * The variable, for reading its value from the simulator.
+     */
+    public VariableAccessor variable;
+
     /**
      * Constructs a new VariableFormat.
      */
@@ -73,5 +78,6 @@ public class VariableFormat {
         this.padL = padL;
         this.padR = padR;
         this.len = len;
+        variable = new VariableAccessor(varName);
     }
 }
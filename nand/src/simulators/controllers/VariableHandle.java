@@ -0,0 +1,32 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.controllers;
+
+/**
+ * A handle of a numeric variable of a HackSimulator, which was resolved once
+ * from the variable name (e.g. RAM[256], PC, local[3]) by
+ * HackSimulator.getVariableHandle(). Reading the value through the handle
+ * doesn't involve parsing the variable name or converting the value to a String.
+ */
+public abstract class VariableHandle {
+
+    /**
+     * Returns the current value of the variable.
+     */
+    public abstract short get();
+}
@@ -41,6 +41,26 @@ import common.Conversions;
  * tick - Clock goes up (internal state of clocked gates changes).
  * tock - Clock goes down (outputs of clocked gates are modified).
  * eval - propagate all the input values of the gate and re-compute all outputs of the gate.
+ * engine <tree|flat|batch> - selects how chips that are loaded afterwards are simulated: by
+ *                      their tree of parts (the default), or by a compiled flat netlist of
+ *                      their primitive parts (faster, but the parts' pins are not updated).
+ *                      batch is as flat, and in addition, when running a script without
+ *                      a GUI, runs of set/eval/output commands on a combinational chip are
+ *                      evaluated together, 64 vectors at a time.
+ * profile on [<report file>] - starts counting the evaluations, ticks and tocks of the loaded
+ *                      gate and its parts, and the changes of their pins, from zero (and of
+ *                      the gates that are loaded afterwards). If a file is given, the report
+ *                      is written to it when the execution stops. The parts of chips that
+ *                      are simulated by the flat or batch engines are not counted.
+ * profile off - stops counting
+ * profile report <report file> - writes the report of the counts, by gate class and by part
+ *                      instance, as text and as collapsed stacks (to <report file>.folded)
+ * snapshot <name> - takes a snapshot of the values of all the pins of the loaded gate and its
+ *                      parts, the internal state of the built-in parts (e.g. the contents of
+ *                      memories), the clock and the time, in memory or in the given file (if
+ *                      the name ends with .snapshot)
+ * restore <name> - restores the state of the loaded gate from the given snapshot, which must
+ *                      have been taken with the same gate loaded, by the same engine
  */
 public class HardwareSimulator extends HackSimulator
  implements TextFileEventListener, GateErrorEventListener,
@@ -55,6 +75,21 @@ public class HardwareSimulator extends HackSimulator
     private static final String COMMAND_LOAD = "load";
     private static final String COMMAND_EVAL = "eval";
     private static final String COMMAND_SETVAR = "set";
+    private static final String COMMAND_ENGINE = "engine";
+    private static final String COMMAND_PROFILE = "profile";
+
+    // Engine names
+    private static final String ENGINE_TREE = "tree";
+    private static final String ENGINE_FLAT = "flat";
+    private static final String ENGINE_BATCH = "batch";
+
+    // Arguments of the profile command
+    private static final String PROFILE_ON = "on";
+    private static final String PROFILE_OFF = "off";
+    private static final String PROFILE_REPORT = "report";
+
+    // The extension added to the name of the collapsed stacks file of a profile report
+    private static final String FOLDED_EXTENSION = ".folded";
 
     private static final File INITIAL_BUILTIN_DIR = new File("builtInChips");
 
@@ -88,6 +123,19 @@ public class HardwareSimulator extends HackSimulator
     // The list of recognized variables.
     private String[] vars;
 
+    // True if composite gates should be simulated by a compiled flat netlist.
+    private boolean useFlatNetlist;
+
+    // True if batches of commands should be evaluated together as vectors.
+    private boolean useBatch;
+
+    // The profiler of the gates (null if profiling was never started), true if it
+    // counts the loaded gate, and the file where its report is written when the
+    // execution stops (null if none)
+    private GateProfiler profiler;
+    private boolean profiling;
+    private String profileFileName;
+
     /**
      * Constructs a new Hardware Simulator with no gui.
      */
@@ -135,7 +183,7 @@ public class HardwareSimulator extends HackSimulator
 
     // Initializes the hardware simulator
     private void init() {
-        Gate.CLOCK_NODE.set((short)1);
+        GatesManager.getInstance().getClockNode().set((short)1);
         clockUp = false;
         time = 0;
         GatesManager.getInstance().setErrorHandler(this);
@@ -191,6 +239,26 @@ public class HardwareSimulator extends HackSimulator
         return result;
     }
 
+    /**
+     * Returns a handle for reading the value of the given pin of the current
+     * gate, or null if there is no such pin (or no gate is loaded).
+     * The handles are invalidated when a new gate is loaded.
+     */
+    public VariableHandle getVariableHandle(String varName) {
+        if (gate == null || varName.equals(VAR_TIME))
+            return null;
+
+        final Node node = gate.getNode(varName);
+        if (node == null)
+            return null;
+
+        return new VariableHandle() {
+            public short get() {
+                return node.get();
+            }
+        };
+    }
+
     // Returns the BuiltInGateWithGUI that matches the given chip name, or
     // null if doesn't exist.
     private BuiltInGateWithGUI getGUIChip(String chipName) {
@@ -301,6 +369,96 @@ public class HardwareSimulator extends HackSimulator
 
     }
 
+    /**
+     * Executes the given groups of commands, each followed by an output of the given
+     * variables, and returns the values of the variables after each group.
+     * The groups are evaluated together only in the batch engine, for a combinational
+     * chip, if every group consists of set commands of input pins and eval commands,
+     * ending with an eval, and all the variables are pins of the chip.
+     * Otherwise, nothing is executed and null is returned.
+     */
+    public String[][] doBatch(String[][][] groups, String[] varNames) {
+        if (!useBatch || !(gate instanceof FlatCompositeGate) || gate.getGateClass().isClocked())
+            return null;
+
+        GateClass gateClass = gate.getGateClass();
+        Node[] inputNodes = gate.getInputNodes();
+
+        // the index of each variable in the evaluated values,
+        // or -(pin number + 1) for input pins
+        int[] varIndice = new int[varNames.length];
+        for (int i = 0; i < varNames.length; i++) {
+            int number = gateClass.getPinNumber(varNames[i]);
+            switch (gateClass.getPinType(varNames[i])) {
+                case GateClass.INPUT_PIN_TYPE:
+                    varIndice[i] = -(number + 1);
+                    break;
+                case GateClass.OUTPUT_PIN_TYPE:
+                    varIndice[i] = number;
+                    break;
+                case CompositeGateClass.INTERNAL_PIN_TYPE:
+                    varIndice[i] = gate.getOutputNodes().length + number;
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        // find the values of the input pins in each group
+        short[] values = new short[inputNodes.length];
+        for (int i = 0; i < values.length; i++)
+            values[i] = inputNodes[i].get();
+
+        short[][] inputValues = new short[groups.length][];
+        for (int i = 0; i < groups.length; i++) {
+            String[][] commands = groups[i];
+            if (commands.length == 0 || commands[commands.length - 1].length != 1 ||
+                !commands[commands.length - 1][0].equals(COMMAND_EVAL))
+                return null;
+
+            for (int j = 0; j < commands.length - 1; j++) {
+                String[] command = commands[j];
+                if (command.length == 1 && command[0].equals(COMMAND_EVAL))
+                    continue;
+                if (command.length != 3 || !command[0].equals(COMMAND_SETVAR) ||
+                    gateClass.getPinType(command[1]) != GateClass.INPUT_PIN_TYPE)
+                    return null;
+
+                short value;
+                try {
+                    value = Short.parseShort(Conversions.toDecimalForm(command[2]));
+                } catch (NumberFormatException nfe) {
+                    return null;
+                }
+
+                if (!isLegalWidth(command[1], value))
+                    return null;
+
+                values[gateClass.getPinNumber(command[1])] = value;
+            }
+
+            inputValues[i] = values.clone();
+        }
+
+        short[][] outputValues = ((FlatCompositeGate)gate).evalVectors(inputValues);
+        if (outputValues == null)
+            return null;
+
+        String[][] result = new String[groups.length][varNames.length];
+        for (int i = 0; i < groups.length; i++)
+            for (int j = 0; j < varNames.length; j++)
+                result[i][j] = String.valueOf(varIndice[j] < 0 ?
+                                              inputValues[i][-(varIndice[j] + 1)] :
+                                              outputValues[i][varIndice[j]]);
+
+        // leave the gate as after the last group
+        for (int i = 0; i < values.length; i++)
+            inputNodes[i].set(values[i]);
+        performEval();
+
+        return result;
+    }
+
     /*
      * Returns true if the width of the given value is less or equal to the width
      * of the given pin (name).
@@ -355,6 +513,26 @@ public class HardwareSimulator extends HackSimulator
                 throw new CommandException("Illegal number of arguments to command", command);
             setValue(command[1], command[2]);
         }
+        else if (command[0].equals(COMMAND_ENGINE)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+            else if (command[1].equals(ENGINE_TREE)) {
+                useFlatNetlist = false;
+                useBatch = false;
+            }
+            else if (command[1].equals(ENGINE_FLAT)) {
+                useFlatNetlist = true;
+                useBatch = false;
+            }
+            else if (command[1].equals(ENGINE_BATCH)) {
+                useFlatNetlist = true;
+                useBatch = true;
+            }
+            else
+                throw new CommandException("Unknown engine: " + command[1], command);
+        }
+        else if (command[0].equals(COMMAND_PROFILE))
+            doProfileCommand(command);
         else if (command[0].equals(COMMAND_LOAD)) {
             if (command.length != 2)
                 throw new CommandException("Illegal number of arguments to command", command);
@@ -378,7 +556,7 @@ public class HardwareSimulator extends HackSimulator
                 throw new CommandException(ge.getMessage(), command);
             }
         }
-        else {
+        else if (!doSnapshotCommand(command)) {
             boolean found = false;
 
             // try to re-direct command to a part with gui
@@ -399,6 +577,96 @@ public class HardwareSimulator extends HackSimulator
         }
     }
 
+    // Executes the given profile command.
+    private void doProfileCommand(String[] command) throws CommandException {
+        if (command.length == 2 && command[1].equals(PROFILE_OFF)) {
+            if (profiler != null)
+                profiler.detach();
+            profiling = false;
+            profileFileName = null;
+        }
+        else if ((command.length == 2 || command.length == 3) && command[1].equals(PROFILE_ON)) {
+            if (profiler == null)
+                profiler = new GateProfiler();
+            if (gate != null)
+                profiler.attach(gate);
+
+            profiling = true;
+            profileFileName = command.length == 3 ?
+                workingDir.getAbsolutePath() + "/" + command[2] : null;
+        }
+        else if (command.length == 3 && command[1].equals(PROFILE_REPORT)) {
+            if (profiler == null)
+                throw new CommandException("Profiling was not started", command);
+
+            try {
+                writeProfileReport(workingDir.getAbsolutePath() + "/" + command[2]);
+            } catch (IOException ioe) {
+                throw new CommandException("Could not write the profile report", command);
+            }
+        }
+        else
+            throw new CommandException("Illegal arguments to command", command);
+    }
+
+    protected void writeState(DataOutputStream out) throws IOException, ProgramException {
+        if (gate == null)
+            throw new ProgramException("No gate is currently loaded");
+
+        out.writeUTF(gate.getGateClass().getName());
+        out.writeBoolean(gate instanceof FlatCompositeGate);
+        out.writeInt(time);
+        out.writeBoolean(clockUp);
+        out.writeShort(GatesManager.getInstance().getClockNode().get());
+        gate.writeState(out);
+    }
+
+    protected void readState(DataInputStream in) throws IOException, ProgramException {
+        if (gate == null)
+            throw new ProgramException("No gate is currently loaded");
+
+        if (!in.readUTF().equals(gate.getGateClass().getName()) ||
+            in.readBoolean() != (gate instanceof FlatCompositeGate))
+            throw new ProgramException("The snapshot doesn't match the loaded gate");
+
+        time = in.readInt();
+        clockUp = in.readBoolean();
+        GatesManager.getInstance().restoreClock(in.readShort());
+        gate.readState(in);
+
+        if (gui != null) {
+            refresh();
+            updateTime();
+        }
+    }
+
+    // Writes the report of the profiler to the given file, and its collapsed stacks to
+    // the given file with the folded extension.
+    private void writeProfileReport(String fileName) throws IOException {
+        PrintWriter text = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+        PrintWriter stacks = new PrintWriter(new BufferedWriter(
+            new FileWriter(fileName + FOLDED_EXTENSION)));
+        try {
+            profiler.writeReport(text, stacks);
+        } finally {
+            text.close();
+            stacks.close();
+        }
+    }
+
+    /**
+     * Writes the profile report, if profiling was started with a report file.
+     */
+    public void executionStopped() {
+        if (profileFileName != null) {
+            try {
+                writeProfileReport(profileFileName);
+            } catch (IOException ioe) {
+                // the report is optional, and the script's result doesn't depend on it
+            }
+        }
+    }
+
     public void setWorkingDir(File file) {
         super.setWorkingDir(file);
         GatesManager.getInstance().setWorkingDir(file.getParentFile());
@@ -449,7 +717,7 @@ public class HardwareSimulator extends HackSimulator
             gate.eval();
 
         time = 0;
-        Gate.CLOCK_NODE.set((short)1);
+        GatesManager.getInstance().getClockNode().set((short)1);
         clockUp = false;
     }
 
@@ -522,15 +790,20 @@ public class HardwareSimulator extends HackSimulator
             displayMessage("Loading chip...", false);
 
         try {
-            // clears the gate cache, so all gates will be reloaded
-            GateClass.clearGateCache();
-
-            // find gate class and create gate
+            // find gate class (reloaded if its HDL files changed) and create gate
             gateClass = GateClass.getGateClass(gateName, containsPath);
 
             GatesManager.getInstance().removeAllChips();
             Gate oldGate = gate; // save old gate
-            gate = gateClass.newInstance(); // create new gate instance
+            // create new gate instance
+            if (useFlatNetlist && gateClass instanceof CompositeGateClass)
+                gate = ((CompositeGateClass)gateClass).newFlatInstance();
+            else
+                gate = gateClass.newInstance();
+            invalidateVariableHandles();
+
+            if (profiling)
+                profiler.attach(gate);
 
             // register as dirty gate listener (and remove the old one)
             gate.addDirtyGateListener(this);
@@ -737,7 +1010,7 @@ public class HardwareSimulator extends HackSimulator
 
     // Performs tick on the current gate
     private void performTick() {
-        Gate.CLOCK_NODE.set((short)0);
+        GatesManager.getInstance().getClockNode().set((short)0);
         gate.tick();
         clockUp = true;
 
@@ -752,7 +1025,7 @@ public class HardwareSimulator extends HackSimulator
 
     // Performs tick on the current gate
     private void performTock() {
-        Gate.CLOCK_NODE.set((short)1);
+        GatesManager.getInstance().getClockNode().set((short)1);
         gate.tock();
         clockUp = false;
         time++;
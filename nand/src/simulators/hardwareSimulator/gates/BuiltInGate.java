@@ -17,6 +17,8 @@
 
 package simulators.hardwareSimulator.gates;
 
+import java.io.*;
+
 /**
  * A BuiltIn Gate. The base class for all gates which are implemented in java.
  */
@@ -28,6 +30,29 @@ public abstract class BuiltInGate extends Gate {
 
     protected void reCompute() {}
 
+    /**
+     * Writes the internal state of the gate, which is not kept in its pins (e.g. the
+     * contents of a memory), to the given stream. Does nothing by default: gates that
+     * have an internal state should override it, together with readInternalState().
+     */
+    protected void writeInternalState(DataOutputStream out) throws IOException {}
+
+    /**
+     * Reads the internal state of the gate from the given stream, as written by
+     * writeInternalState(), and restores it. Does nothing by default.
+     */
+    protected void readInternalState(DataInputStream in) throws IOException {}
+
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        writeInternalState(out);
+    }
+
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        readInternalState(in);
+    }
+
     /**
      * Initializes the gate
      */
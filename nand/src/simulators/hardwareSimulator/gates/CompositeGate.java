@@ -17,6 +17,15 @@
 
 package simulators.hardwareSimulator.gates;
 
+import java.io.*;
+
+/**
+ * A gate which is composed of parts.
+ * Only parts that became dirty (whose non-clocked inputs changed) are re-computed. The
+ * dirty parts are kept in a queue per level (taken from the gate's class), and the queues
+ * are processed in increasing level order, so each part is re-computed after all the
+ * parts that feed it. Only clocked parts are ticked and tocked.
+ */
 public class CompositeGate extends Gate {
 
     // the internal pins
@@ -25,21 +34,81 @@ public class CompositeGate extends Gate {
     // The contained parts (Gates), sorted in topological order.
     protected Gate[] parts;
 
+    // The level of each part
+    private int[] partsLevels;
+
+    // The queues of dirty parts (indice in the parts array), per level
+    private int[][] levelQueues;
+
+    // The number of parts in each level queue
+    private int[] levelQueueSizes;
+
+    // true if the corresponding part is in its level queue
+    private boolean[] isQueued;
+
+    // The indice of the clocked parts in the parts array
+    private int[] clockedParts;
+
     protected void clockUp() {
         if (gateClass.isClocked)
-            for (int i = 0; i < parts.length; i++)
-                parts[i].tick();
+            for (int i = 0; i < clockedParts.length; i++)
+                parts[clockedParts[i]].tick();
     }
 
     protected void clockDown() {
         if (gateClass.isClocked)
-            for (int i = 0; i < parts.length; i++)
-                parts[i].tock();
+            for (int i = 0; i < clockedParts.length; i++)
+                parts[clockedParts[i]].tock();
     }
 
     protected void reCompute() {
+        for (int level = 0; level < levelQueues.length; level++) {
+            int[] queue = levelQueues[level];
+            // parts of the current level may not become dirty while the level is processed,
+            // but the size is re-read anyway, to be on the safe side.
+            for (int i = 0; i < levelQueueSizes[level]; i++) {
+                isQueued[queue[i]] = false;
+                parts[queue[i]].eval();
+            }
+            levelQueueSizes[level] = 0;
+        }
+    }
+
+    // Adds the part at the given index to the queue of its level.
+    void enqueue(int index) {
+        if (!isQueued[index]) {
+            isQueued[index] = true;
+            int level = partsLevels[index];
+            int[] queue = levelQueues[level];
+            if (levelQueueSizes[level] == queue.length) {
+                int[] newQueue = new int[queue.length * 2];
+                System.arraycopy(queue, 0, newQueue, 0, queue.length);
+                levelQueues[level] = queue = newQueue;
+            }
+            queue[levelQueueSizes[level]++] = index;
+        }
+    }
+
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        writeValues(out, internalPins);
         for (int i = 0; i < parts.length; i++)
-            parts[i].eval();
+            parts[i].writeState(out);
+    }
+
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        readValues(in, internalPins);
+
+        // the queues are rebuilt from the restored dirty parts
+        for (int level = 0; level < levelQueueSizes.length; level++)
+            levelQueueSizes[level] = 0;
+        for (int i = 0; i < parts.length; i++) {
+            isQueued[i] = false;
+            parts[i].readState(in);
+            if (parts[i].isDirty)
+                enqueue(i);
+        }
     }
 
     /**
@@ -83,6 +152,40 @@ public class CompositeGate extends Gate {
         this.internalPins = internalPins;
         this.parts = parts;
         this.gateClass = gateClass;
+
+        partsLevels = ((CompositeGateClass)gateClass).getPartsLevels();
+        int levelsCount = 0;
+        for (int i = 0; i < partsLevels.length; i++)
+            levelsCount = Math.max(levelsCount, partsLevels[i] + 1);
+
+        int[] levelSizes = new int[levelsCount];
+        for (int i = 0; i < partsLevels.length; i++)
+            levelSizes[partsLevels[i]]++;
+
+        levelQueues = new int[levelsCount][];
+        for (int i = 0; i < levelsCount; i++)
+            levelQueues[i] = new int[levelSizes[i]];
+        levelQueueSizes = new int[levelsCount];
+        isQueued = new boolean[parts.length];
+
+        int clockedCount = 0;
+        for (int i = 0; i < parts.length; i++)
+            if (parts[i].getGateClass().isClocked)
+                clockedCount++;
+        clockedParts = new int[clockedCount];
+        clockedCount = 0;
+        for (int i = 0; i < parts.length; i++)
+            if (parts[i].getGateClass().isClocked)
+                clockedParts[clockedCount++] = i;
+
+        // all the parts are initially dirty. From now on, a part is queued whenever
+        // it becomes dirty.
+        for (int i = 0; i < parts.length; i++) {
+            enqueue(i);
+            parts[i].parent = this;
+            parts[i].partIndex = i;
+        }
+
         setDirty();
     }
 
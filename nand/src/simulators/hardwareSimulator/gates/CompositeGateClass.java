@@ -17,6 +17,7 @@
 
 package simulators.hardwareSimulator.gates;
 
+import java.io.*;
 import java.util.*;
 
 import common.collections.Graph;
@@ -48,14 +49,18 @@ public class CompositeGateClass extends GateClass {
 
 
     // internal pins info
-    protected Vector internalPinsInfo;
+    protected Vector<PinInfo> internalPinsInfo;
 
     // The list of contained GateClasses (parts)
-    private Vector partsList;
+    private Vector<GateClass> partsList;
 
     // Array of indice of parts (taken from the parts vector), in a topological order.
     private int[] partsOrder;
 
+    // The level of each part in the partsOrder array: 0 if the part is not fed by other
+    // parts, otherwise one more than the maximal level of the parts that feed it.
+    private int[] partsLevels;
+
     // The set of connections between the gate and its parts
     private ConnectionSet connections;
 
@@ -68,8 +73,8 @@ public class CompositeGateClass extends GateClass {
      throws HDLException {
         super(gateName, inputPinsInfo, outputPinsInfo);
 
-        partsList = new Vector();
-        internalPinsInfo = new Vector();
+        partsList = new Vector<GateClass>();
+        internalPinsInfo = new Vector<PinInfo>();
         connections = new ConnectionSet();
         isInputClocked = new boolean[inputPinsInfo.length];
         isOutputClocked = new boolean[outputPinsInfo.length];
@@ -94,6 +99,8 @@ public class CompositeGateClass extends GateClass {
                 partsOrder[counter++] = ((Integer)topologicalOrder[i]).intValue();
         }
 
+        partsLevels = computePartsLevels();
+
         // for each input pin, check if there is a path in the graph to an output pin
         // (actually to the "master output", which all outputs connect to).
         // If there is, the input is not clocked. Otherwise, it is.
@@ -107,6 +114,149 @@ public class CompositeGateClass extends GateClass {
             isOutputClocked[i] = !graph.pathExists(inputPinsInfo, outputPinsInfo[i]);
     }
 
+    // Constructs a new CompositeGateClass with the given gate name and pins, whose
+    // parts and connections are read by the caller.
+    private CompositeGateClass(String gateName, PinInfo[] inputPinsInfo, PinInfo[] outputPinsInfo) {
+        super(gateName, inputPinsInfo, outputPinsInfo);
+    }
+
+    /**
+     * Reads a CompositeGateClass that was written by write() from the given input.
+     * Its parts are found with getGateClass according to their names.
+     * Throws an IOException if the input is illegal or doesn't match the parts.
+     */
+    static CompositeGateClass read(DataInputStream input) throws IOException, HDLException {
+        String gateName = input.readUTF();
+        CompositeGateClass result = new CompositeGateClass(gateName, readPins(input), readPins(input));
+
+        PinInfo[] internalPins = readPins(input);
+        result.internalPinsInfo = new Vector<PinInfo>(internalPins.length);
+        for (int i = 0; i < internalPins.length; i++) {
+            result.internalPinsInfo.addElement(internalPins[i]);
+            result.registerPin(internalPins[i], INTERNAL_PIN_TYPE, i);
+        }
+
+        result.isClocked = input.readBoolean();
+        result.isInputClocked = readBooleans(input, result.inputPinsInfo.length);
+        result.isOutputClocked = readBooleans(input, result.outputPinsInfo.length);
+
+        int partsCount = input.readInt();
+        result.partsList = new Vector<GateClass>(partsCount);
+        for (int i = 0; i < partsCount; i++)
+            result.partsList.addElement(getGateClass(input.readUTF(), false));
+
+        int connectionsCount = input.readInt();
+        result.connections = new ConnectionSet();
+        for (int i = 0; i < connectionsCount; i++) {
+            byte type = input.readByte();
+            int gatePinNumber = input.readInt();
+            int partNumber = input.readInt();
+            String partPinName = input.readUTF();
+            byte[] gateSubBus = readSubBus(input);
+            byte[] partSubBus = readSubBus(input);
+            if (partNumber < 0 || partNumber >= partsCount ||
+                result.partsList.elementAt(partNumber).getPinType(partPinName) ==
+                    UNKNOWN_PIN_TYPE)
+                throw new IOException("Illegal connection");
+            result.connections.add(new Connection(type, gatePinNumber, partNumber, partPinName,
+                                                  gateSubBus, partSubBus));
+        }
+
+        result.partsOrder = readInts(input, partsCount);
+        result.partsLevels = readInts(input, partsCount);
+        return result;
+    }
+
+    /**
+     * Writes this CompositeGateClass, with its resolved pins, parts, connections and
+     * parts order, to the given output, such that read() can construct it again
+     * without parsing its HDL.
+     */
+    void write(DataOutputStream output) throws IOException {
+        output.writeUTF(name);
+        writePins(output, inputPinsInfo);
+        writePins(output, outputPinsInfo);
+        PinInfo[] internalPins = new PinInfo[internalPinsInfo.size()];
+        internalPinsInfo.copyInto(internalPins);
+        writePins(output, internalPins);
+
+        output.writeBoolean(isClocked);
+        for (int i = 0; i < isInputClocked.length; i++)
+            output.writeBoolean(isInputClocked[i]);
+        for (int i = 0; i < isOutputClocked.length; i++)
+            output.writeBoolean(isOutputClocked[i]);
+
+        output.writeInt(partsList.size());
+        for (int i = 0; i < partsList.size(); i++)
+            output.writeUTF(partsList.elementAt(i).getName());
+
+        output.writeInt(connections.size());
+        Iterator connectionIter = connections.iterator();
+        while (connectionIter.hasNext()) {
+            Connection connection = (Connection)connectionIter.next();
+            output.writeByte(connection.getType());
+            output.writeInt(connection.getGatePinNumber());
+            output.writeInt(connection.getPartNumber());
+            output.writeUTF(connection.getPartPinName());
+            writeSubBus(output, connection.getGateSubBus());
+            writeSubBus(output, connection.getPartSubBus());
+        }
+
+        for (int i = 0; i < partsOrder.length; i++)
+            output.writeInt(partsOrder[i]);
+        for (int i = 0; i < partsLevels.length; i++)
+            output.writeInt(partsLevels[i]);
+    }
+
+    // Reads an array of pins (names and widths) from the given input
+    private static PinInfo[] readPins(DataInputStream input) throws IOException {
+        PinInfo[] pins = new PinInfo[input.readInt()];
+        for (int i = 0; i < pins.length; i++)
+            pins[i] = new PinInfo(input.readUTF(), input.readByte());
+        return pins;
+    }
+
+    // Writes the names and widths of the given pins to the given output
+    private static void writePins(DataOutputStream output, PinInfo[] pins) throws IOException {
+        output.writeInt(pins.length);
+        for (int i = 0; i < pins.length; i++) {
+            output.writeUTF(pins[i].name);
+            output.writeByte(pins[i].width);
+        }
+    }
+
+    // Reads a sub bus (null or low and high bits) from the given input
+    private static byte[] readSubBus(DataInputStream input) throws IOException {
+        if (!input.readBoolean())
+            return null;
+        return new byte[]{input.readByte(), input.readByte()};
+    }
+
+    // Writes the given sub bus (which may be null) to the given output
+    private static void writeSubBus(DataOutputStream output, byte[] subBus) throws IOException {
+        output.writeBoolean(subBus != null);
+        if (subBus != null) {
+            output.writeByte(subBus[0]);
+            output.writeByte(subBus[1]);
+        }
+    }
+
+    // Reads the given number of booleans from the given input
+    private static boolean[] readBooleans(DataInputStream input, int count) throws IOException {
+        boolean[] result = new boolean[count];
+        for (int i = 0; i < count; i++)
+            result[i] = input.readBoolean();
+        return result;
+    }
+
+    // Reads the given number of ints from the given input
+    private static int[] readInts(DataInputStream input, int count) throws IOException {
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++)
+            result[i] = input.readInt();
+        return result;
+    }
+
     // Reads the parts list from the given HDL input
     private void readParts(HDLTokenizer input)
      throws HDLException {
@@ -161,7 +311,7 @@ public class CompositeGateClass extends GateClass {
         }
         for (int i = 0; i < hasSource.length; i++)
             if (!hasSource[i])
-                input.HDLError(((PinInfo)internalPinsInfo.elementAt(i)).name +
+                input.HDLError(internalPinsInfo.elementAt(i).name +
                                " has no source pin");
     }
 
@@ -263,7 +413,7 @@ public class CompositeGateClass extends GateClass {
     private void addConnection(HDLTokenizer input, int partNumber, String partName,
                                String fullLeftName, String fullRightName) throws HDLException {
 
-        GateClass partGateClass = (GateClass)partsList.elementAt(partNumber);
+        GateClass partGateClass = partsList.elementAt(partNumber);
         String leftName, rightName;
         byte connectionType = 0;
 
@@ -475,11 +625,57 @@ public class CompositeGateClass extends GateClass {
         return graph;
     }
 
+    // Returns the levels of the parts, in the order of the partsOrder array.
+    // Only connections which are edges in the connections graph are considered, so the
+    // parts that feed a part always precede it in the topological order.
+    private int[] computePartsLevels() {
+        int[] positions = new int[partsOrder.length];
+        for (int i = 0; i < partsOrder.length; i++)
+            positions[partsOrder[i]] = i;
+
+        // find the part that feeds each internal pin
+        int[] internalSources = new int[internalPinsInfo.size()];
+        Arrays.fill(internalSources, -1);
+        Iterator connectionIter = connections.iterator();
+        while (connectionIter.hasNext()) {
+            Connection connection = (Connection)connectionIter.next();
+            Integer part = Integer.valueOf(connection.getPartNumber());
+            if (connection.getType() == Connection.TO_INTERNAL &&
+                isLegalFromPartEdge(connection, part))
+                internalSources[connection.getGatePinNumber()] = part.intValue();
+        }
+
+        // find the parts that feed each part
+        Vector<Vector<Integer>> feeders = new Vector<Vector<Integer>>(partsOrder.length);
+        for (int i = 0; i < partsOrder.length; i++)
+            feeders.addElement(new Vector<Integer>());
+        connectionIter = connections.iterator();
+        while (connectionIter.hasNext()) {
+            Connection connection = (Connection)connectionIter.next();
+            Integer part = Integer.valueOf(connection.getPartNumber());
+            if (connection.getType() == Connection.FROM_INTERNAL &&
+                isLegalToPartEdge(connection, part)) {
+                int source = internalSources[connection.getGatePinNumber()];
+                if (source >= 0)
+                    feeders.elementAt(positions[part.intValue()])
+                           .addElement(Integer.valueOf(positions[source]));
+            }
+        }
+
+        int[] levels = new int[partsOrder.length];
+        for (int i = 0; i < levels.length; i++)
+            for (int j = 0; j < feeders.elementAt(i).size(); j++)
+                levels[i] = Math.max(levels[i],
+                                     levels[feeders.elementAt(i).elementAt(j).intValue()] + 1);
+
+        return levels;
+    }
+
     // Returns true if an edge should be connected to the given part.
     // a connection to a clocked input is not considered as a connection
     // in the graph.
     private boolean isLegalToPartEdge(Connection connection, Integer part) {
-        GateClass partGateClass = (GateClass)partsList.elementAt(part.intValue());
+        GateClass partGateClass = partsList.elementAt(part.intValue());
         int partPinNumber = partGateClass.getPinNumber(connection.getPartPinName());
         return !partGateClass.isInputClocked[partPinNumber];
     }
@@ -488,7 +684,7 @@ public class CompositeGateClass extends GateClass {
     // a connection from a clocked output is not considered as a connection
     // in the graph.
     private boolean isLegalFromPartEdge(Connection connection, Integer part) {
-        GateClass partGateClass = (GateClass)partsList.elementAt(part.intValue());
+        GateClass partGateClass = partsList.elementAt(part.intValue());
         int partPinNumber = partGateClass.getPinNumber(connection.getPartPinName());
         return !partGateClass.isOutputClocked[partPinNumber];
     }
@@ -502,7 +698,7 @@ public class CompositeGateClass extends GateClass {
 
         if (type == INTERNAL_PIN_TYPE) {
             if (number < internalPinsInfo.size())
-                return (PinInfo)internalPinsInfo.elementAt(number);
+                return internalPinsInfo.elementAt(number);
         }
         else
             result = super.getPinInfo(type, number);
@@ -510,21 +706,66 @@ public class CompositeGateClass extends GateClass {
         return result;
     }
 
+    /**
+     * Returns the number of parts of this gate.
+     */
+    int getPartsCount() {
+        return partsList.size();
+    }
+
+    /**
+     * Returns the array of part numbers (indice in the HDL parts list), in a topological order.
+     */
+    int[] getPartsOrder() {
+        return partsOrder;
+    }
+
+    /**
+     * Returns the levels of the parts, in the order of getPartsOrder().
+     * A part's level is greater than the levels of all the parts that feed it.
+     */
+    int[] getPartsLevels() {
+        return partsLevels;
+    }
+
+    /**
+     * Returns the set of connections between the gate and its parts.
+     */
+    ConnectionSet getConnections() {
+        return connections;
+    }
+
     /**
      * Creates and returns a new instance of CompositeGate.
      */
     public Gate newInstance() throws InstantiationException {
+        CompositeGate result = new CompositeGate();
+        initInstance(result);
+        return result;
+    }
+
+    /**
+     * Creates and returns a new instance of this gate which is simulated by a compiled
+     * flat netlist of its primitive parts, rather than by walking its tree of parts.
+     */
+    public Gate newFlatInstance() throws InstantiationException {
+        FlatCompositeGate result = new FlatCompositeGate();
+        initInstance(result);
+        result.compile();
+        return result;
+    }
+
+    // Creates the nodes and parts of the given new gate instance and connects them.
+    private void initInstance(CompositeGate result) throws InstantiationException {
         Node[] inputNodes = new Node[inputPinsInfo.length];
         Node[] outputNodes = new Node[outputPinsInfo.length];
         Node[] internalNodes = new Node[internalPinsInfo.size()];
 
-        CompositeGate result = new CompositeGate();
-
         // Create instances (Gates) from all parts in the parts list (which are GateClasses).
         // The created array is sorted in the original parts order
         Gate[] parts = new Gate[partsList.size()];
         for (int i = 0; i < parts.length; i++) {
-            parts[i] = ((GateClass)partsList.elementAt(i)).newInstance();
+            parts[i] = partsList.elementAt(i).newInstance();
             if (parts[i] instanceof BuiltInGateWithGUI) // save the parent of gates with gui
                 ((BuiltInGateWithGUI)parts[i]).setParent(result);
         }
@@ -595,6 +836,7 @@ public class CompositeGateClass extends GateClass {
         // or false node to a part's input nodes.
         connectionIter = internalConnections.iterator();
         boolean isClockParticipating = false;
+        Node clockNode = GatesManager.getInstance().getClockNode();
         while (connectionIter.hasNext()) {
             Connection connection = (Connection)connectionIter.next();
             partNode = parts[connection.getPartNumber()].getNode(connection.getPartPinName());
@@ -638,8 +880,8 @@ public class CompositeGateClass extends GateClass {
 
                     break;
                 case Connection.FROM_CLOCK:
-                    partNode.set(Gate.CLOCK_NODE.get());
-                    Gate.CLOCK_NODE.addListener(partNode);
+                    partNode.set(clockNode.get());
+                    clockNode.addListener(partNode);
                     isClockParticipating = true;
                     break;
             }
@@ -648,11 +890,9 @@ public class CompositeGateClass extends GateClass {
         // If the clock special node appears in this gate, Add a dirty gate adapter
         // such that changes in clock state will cause this gate to recompute.
         if (isClockParticipating)
-            Gate.CLOCK_NODE.addListener(new DirtyGateAdapter(result));
+            clockNode.addListener(new DirtyGateAdapter(result));
 
         result.init(inputNodes, outputNodes, internalNodes, sortedParts, this);
-
-        return result;
     }
 
     // Connects the given source node to the given target node.
@@ -0,0 +1,74 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.hardwareSimulator.gates;
+
+import java.io.*;
+
+/**
+ * A composite gate which is simulated by a compiled flat netlist of its primitive
+ * (built-in) parts. The parts tree is still created, so that built-in chips with GUI
+ * and the gate's pins are shared with the regular simulation, but values are no
+ * longer propagated through the parts' nodes.
+ */
+public class FlatCompositeGate extends CompositeGate {
+
+    // The compiled netlist
+    private FlatNetlist netlist;
+
+    /**
+     * Compiles the parts tree of this gate into a flat netlist.
+     * Should be called once, after the gate was initialized.
+     */
+    void compile() throws InstantiationException {
+        netlist = new FlatNetlist(this);
+    }
+
+    /**
+     * Evaluates the gate for many independent vectors of input values at once.
+     * inputValues[i] holds the values of the input pins in vector i. Returns the values
+     * of the output pins, followed by the internal pins, per vector, or null if the
+     * vectors can't be evaluated this way. The gate's pins are not updated.
+     */
+    public short[][] evalVectors(short[][] inputValues) {
+        return netlist.evalVectors(inputValues);
+    }
+
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        netlist.writeState(out);
+    }
+
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        netlist.readState(in);
+    }
+
+    protected void clockUp() {
+        if (gateClass.isClocked)
+            netlist.clockUp();
+    }
+
+    protected void clockDown() {
+        if (gateClass.isClocked)
+            netlist.clockDown();
+    }
+
+    protected void reCompute() {
+        netlist.eval();
+    }
+}
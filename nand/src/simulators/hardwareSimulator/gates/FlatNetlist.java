@@ -0,0 +1,1011 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.hardwareSimulator.gates;
+
+import java.io.*;
+import java.util.*;
+
+import common.SnapshotValues;
+
+/**
+ * A compiled, flat representation of a composite gate.
+ * The hierarchy of composite parts is resolved into a list of primitive parts: Nand
+ * gates, which are computed inline, and other built-in gates, which are called through
+ * their java implementation. The values of all the pins are kept as wires in a single
+ * short array, and the primitive parts are evaluated in a levelized order, such that
+ * every part is computed after all the parts that feed its non-clocked inputs.
+ * Sub-bus connections are resolved at compile time into masked bit-field copies
+ * directly from the wires of the primitive parts' outputs.
+ *
+ * The combinational logic may also be evaluated for many independent vectors of input
+ * values at once. In this mode every bit of every wire is kept as a long, which holds
+ * that bit in up to 64 vectors (lanes), so a single Nand operation computes 64 vectors.
+ */
+public class FlatNetlist {
+
+    // Operation codes of the compiled program.
+    // NAND: input wire a, input wire b, output wire
+    private static final int OP_NAND = 0;
+    // BUILTIN: built-in part index
+    private static final int OP_BUILTIN = 1;
+    // GATHER: target wire, constant, pieces count, and per piece:
+    // source wire, right shift, mask, left shift
+    private static final int OP_GATHER = 2;
+
+    // Operation codes of the bit-sliced program (where a plane is wire * 16 + bit).
+    // SLICE_NAND: plane a, plane b, output plane (values of bit 0 only)
+    private static final int SLICE_NAND = 0;
+    // SLICE_WIDE_NAND: first plane a, first plane b, first output plane
+    // (all the 16 bits, for inputs that may exceed bit 0)
+    private static final int SLICE_WIDE_NAND = 1;
+    // SLICE_BUILTIN: built-in part index (computed vector by vector)
+    private static final int SLICE_BUILTIN = 2;
+    // SLICE_GATHER: first target plane, constant, pairs count, and per pair:
+    // source plane, target bit
+    private static final int SLICE_GATHER = 3;
+
+    // The number of vectors that are computed together
+    private static final int LANES = 64;
+
+    // The wire of the clock
+    private static final int CLOCK_WIRE = 0;
+
+    // The level of a primitive part whose level is being computed
+    private static final int VISITING = -2;
+
+    // The gate that is simulated
+    private CompositeGate gate;
+
+    // The clock node of the gate
+    private Node clockNode;
+
+    // The values of all the wires
+    private short[] wires;
+
+    // The program that evaluates the combinational logic of the gate
+    private int[] evalCode;
+
+    // The program that computes the clocked inputs of the built-in parts
+    private int[] latchCode;
+
+    // The built-in parts (except Nands) and the wires of their pins
+    private BuiltInGate[] builtIns;
+    private int[][] builtInInputs;
+    private int[][] builtInOutputs;
+
+    // The indice of the clocked built-in parts
+    private int[] clockedBuiltIns;
+
+    // The wires of the gate's input, output and internal pins
+    private int[] inputWires, outputWires, internalWires;
+
+    // The number of allocated wires (used while compiling)
+    private int wiresCount;
+
+    // The constant values of wires (pairs of wire and value)
+    private Vector<Integer> constantWires;
+
+    // The bit-sliced program and the bits that may be set in each wire
+    // (created on first use)
+    private int[] sliceCode;
+    private int[] wireBits;
+
+    // The bits of all the wires, per lane (used by the bit-sliced program)
+    private long[] planes;
+
+    /**
+     * Compiles the given composite gate (which must already be initialized with its
+     * parts tree) into a new flat netlist.
+     * From now on, the values of the gate's parts are no longer propagated through
+     * their nodes. Only the gate's own pins are updated.
+     */
+    public FlatNetlist(CompositeGate gate) throws InstantiationException {
+        this.gate = gate;
+        clockNode = GatesManager.getInstance().getClockNode();
+        constantWires = new Vector<Integer>();
+
+        Node[] inputNodes = gate.getInputNodes();
+        wiresCount = 1;
+        inputWires = new int[inputNodes.length];
+        for (int i = 0; i < inputWires.length; i++)
+            inputWires[i] = wiresCount++;
+
+        // collect the primitive parts and allocate the wires of their outputs
+        Vector<Leaf> leaves = new Vector<Leaf>();
+        Scope top = createScope(gate, null, 0, leaves);
+
+        Leaf[] producers = new Leaf[wiresCount];
+        for (int i = 0; i < leaves.size(); i++) {
+            Leaf leaf = leaves.elementAt(i);
+            boolean[] isOutputClocked = leaf.gate.getGateClass().isOutputClocked;
+            for (int j = 0; j < leaf.outputWires.length; j++)
+                if (!isOutputClocked[j])
+                    producers[leaf.outputWires[j]] = leaf;
+        }
+
+        // resolve the sources of all the primitive parts' inputs
+        for (int i = 0; i < leaves.size(); i++) {
+            Leaf leaf = leaves.elementAt(i);
+            leaf.inputs = new Source[leaf.gate.getInputNodes().length];
+            for (int j = 0; j < leaf.inputs.length; j++)
+                leaf.inputs[j] = resolvePartInput(leaf.scope, leaf.partNumber, j);
+        }
+
+        // sort the primitive parts by levels
+        int maxLevel = -1;
+        for (int i = 0; i < leaves.size(); i++)
+            maxLevel = Math.max(maxLevel, computeLevel(leaves.elementAt(i), producers));
+
+        Vector<Vector<Leaf>> levels = new Vector<Vector<Leaf>>(maxLevel + 1);
+        for (int i = 0; i <= maxLevel; i++)
+            levels.addElement(new Vector<Leaf>());
+        for (int i = 0; i < leaves.size(); i++) {
+            Leaf leaf = leaves.elementAt(i);
+            levels.elementAt(leaf.level).addElement(leaf);
+        }
+
+        // emit the programs
+        CodeBuffer eval = new CodeBuffer();
+        CodeBuffer latch = new CodeBuffer();
+        Vector<Leaf> builtInLeaves = new Vector<Leaf>();
+        Vector<Integer> clocked = new Vector<Integer>();
+
+        for (int l = 0; l < levels.size(); l++) {
+            Vector<Leaf> level = levels.elementAt(l);
+            for (int i = 0; i < level.size(); i++) {
+                Leaf leaf = level.elementAt(i);
+                boolean[] isInputClocked = leaf.gate.getGateClass().isInputClocked;
+                int[] inputs = new int[leaf.inputs.length];
+                for (int j = 0; j < inputs.length; j++)
+                    inputs[j] = emitSource(leaf.inputs[j], isInputClocked[j] ? latch : eval);
+
+                if (leaf.isNand) {
+                    eval.add(OP_NAND);
+                    eval.add(inputs[0]);
+                    eval.add(inputs[1]);
+                    eval.add(leaf.outputWires[0]);
+                }
+                else {
+                    eval.add(OP_BUILTIN);
+                    eval.add(builtInLeaves.size());
+                    if (leaf.gate.getGateClass().isClocked)
+                        clocked.addElement(Integer.valueOf(builtInLeaves.size()));
+                    leaf.inputWires = inputs;
+                    builtInLeaves.addElement(leaf);
+                }
+            }
+        }
+
+        Node[] outputNodes = gate.getOutputNodes();
+        outputWires = new int[outputNodes.length];
+        for (int i = 0; i < outputWires.length; i++)
+            outputWires[i] = emitSource(resolveGateOutput(top, i), eval);
+
+        // The internal nodes may be sub nodes of the parts' outputs, so they get
+        // the full value of the part's output, as in the regular parts tree.
+        Node[] internalNodes = gate.getInternalNodes();
+        internalWires = new int[internalNodes.length];
+        for (int i = 0; i < internalWires.length; i++) {
+            Connection connection = top.internalSources[i];
+            internalWires[i] = emitSource(resolvePartOutput(top, connection.getPartNumber(),
+                                          getPartPinNumber(top, connection)), eval);
+        }
+
+        evalCode = eval.toArray();
+        latchCode = latch.toArray();
+
+        builtIns = new BuiltInGate[builtInLeaves.size()];
+        builtInInputs = new int[builtIns.length][];
+        builtInOutputs = new int[builtIns.length][];
+        for (int i = 0; i < builtIns.length; i++) {
+            Leaf leaf = builtInLeaves.elementAt(i);
+            builtIns[i] = leaf.gate;
+            builtInInputs[i] = leaf.inputWires;
+            builtInOutputs[i] = leaf.outputWires;
+        }
+
+        clockedBuiltIns = new int[clocked.size()];
+        for (int i = 0; i < clockedBuiltIns.length; i++)
+            clockedBuiltIns[i] = clocked.elementAt(i).intValue();
+
+        wires = new short[wiresCount];
+        for (int i = 0; i < constantWires.size(); i += 2)
+            wires[constantWires.elementAt(i).intValue()] =
+                (short)constantWires.elementAt(i + 1).intValue();
+
+        detachNodes(leaves);
+    }
+
+    /**
+     * Returns the number of Nand gates and other built-in parts in the netlist.
+     */
+    public int getPartsCount() {
+        int count = builtIns.length;
+        for (int pc = 0; pc < evalCode.length; ) {
+            switch (evalCode[pc]) {
+                case OP_NAND:
+                    count++;
+                    pc += 4;
+                    break;
+                case OP_BUILTIN:
+                    pc += 2;
+                    break;
+                default:
+                    pc += 4 + evalCode[pc + 3] * 4;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Re-computes the values of all the wires from the gate's inputs and updates the
+     * gate's output and internal pins.
+     */
+    public void eval() {
+        Node[] inputNodes = gate.getInputNodes();
+        for (int i = 0; i < inputWires.length; i++)
+            wires[inputWires[i]] = inputNodes[i].get();
+        wires[CLOCK_WIRE] = clockNode.get();
+
+        run(evalCode);
+
+        Node[] outputNodes = gate.getOutputNodes();
+        for (int i = 0; i < outputWires.length; i++)
+            outputNodes[i].set(wires[outputWires[i]]);
+
+        Node[] internalNodes = gate.getInternalNodes();
+        for (int i = 0; i < internalWires.length; i++)
+            internalNodes[i].set(wires[internalWires[i]]);
+    }
+
+    /**
+     * Writes the values of all the wires to the given stream. The built-in parts write
+     * their own state.
+     */
+    void writeState(DataOutputStream out) throws IOException {
+        SnapshotValues.write(out, wires, 0, wires.length);
+    }
+
+    /**
+     * Reads the values of all the wires from the given stream, as written by writeState().
+     */
+    void readState(DataInputStream in) throws IOException {
+        SnapshotValues.read(in, wires, 0, wires.length);
+    }
+
+    /**
+     * Updates the internal state of all the clocked built-in parts.
+     * Assumes that eval() was called since the last change.
+     */
+    public void clockUp() {
+        wires[CLOCK_WIRE] = clockNode.get();
+        run(latchCode);
+
+        for (int i = 0; i < clockedBuiltIns.length; i++) {
+            int index = clockedBuiltIns[i];
+            BuiltInGate part = builtIns[index];
+            boolean[] isInputClocked = part.getGateClass().isInputClocked;
+            Node[] inputNodes = part.getInputNodes();
+            int[] inputs = builtInInputs[index];
+            for (int j = 0; j < inputs.length; j++)
+                if (isInputClocked[j])
+                    inputNodes[j].set(wires[inputs[j]]);
+
+            part.clockUp();
+        }
+    }
+
+    /**
+     * Updates the outputs of all the clocked built-in parts according to their
+     * internal state. eval() should be called afterwards.
+     */
+    public void clockDown() {
+        for (int i = 0; i < clockedBuiltIns.length; i++) {
+            int index = clockedBuiltIns[i];
+            BuiltInGate part = builtIns[index];
+            part.clockDown();
+
+            Node[] outputNodes = part.getOutputNodes();
+            int[] outputs = builtInOutputs[index];
+            for (int j = 0; j < outputs.length; j++)
+                wires[outputs[j]] = outputNodes[j].get();
+        }
+    }
+
+    /**
+     * Evaluates the combinational logic of the gate for many independent vectors of input
+     * values, 64 vectors at a time. inputValues[i] holds the values of the gate's input
+     * pins in vector i. Returns the values of the gate's output pins, followed by the
+     * values of its internal pins, per vector. The gate's pins are not updated.
+     * Returns null if some value doesn't fit in its pin's width, since the values of
+     * wider bits are not kept in this mode.
+     */
+    public short[][] evalVectors(short[][] inputValues) {
+        if (sliceCode == null)
+            compileSlices();
+
+        // start from the current values of all the wires (constants and the clock).
+        // Bits that may not be set in a wire are cleared, and are never set afterwards.
+        for (int wire = 0; wire < wiresCount; wire++)
+            for (int bit = 0; bit < 16; bit++)
+                planes[wire * 16 + bit] = (((wires[wire] & wireBits[wire]) >>> bit) & 0x1) == 0 ?
+                                          0 : -1L;
+
+        short[][] result = new short[inputValues.length][outputWires.length + internalWires.length];
+
+        for (int first = 0; first < inputValues.length; first += LANES) {
+            int lanes = Math.min(LANES, inputValues.length - first);
+
+            for (int i = 0; i < inputWires.length; i++) {
+                int plane = inputWires[i] * 16;
+                for (int bit = 0; bit < 16; bit++)
+                    planes[plane + bit] = 0;
+
+                for (int lane = 0; lane < lanes; lane++) {
+                    int value = inputValues[first + lane][i] & 0xFFFF;
+                    if ((value & ~wireBits[inputWires[i]]) != 0)
+                        return null;
+                    for (int bit = 0; value != 0; bit++, value >>>= 1)
+                        if ((value & 0x1) != 0)
+                            planes[plane + bit] |= 1L << lane;
+                }
+            }
+
+            if (!runSlices(lanes))
+                return null;
+
+            for (int lane = 0; lane < lanes; lane++) {
+                short[] values = result[first + lane];
+                for (int i = 0; i < outputWires.length; i++)
+                    values[i] = getLaneValue(outputWires[i], lane);
+                for (int i = 0; i < internalWires.length; i++)
+                    values[outputWires.length + i] = getLaneValue(internalWires[i], lane);
+            }
+        }
+
+        return result;
+    }
+
+    // Compiles the evaluation program into a bit-sliced program. The bits that may be
+    // set in each wire are tracked, so that most Nands are computed on a single bit,
+    // and gathers only copy bits that may be set.
+    private void compileSlices() {
+        wireBits = new int[wiresCount];
+        Arrays.fill(wireBits, 0xFFFF);
+        wireBits[CLOCK_WIRE] = 0x1;
+
+        for (int i = 0; i < inputWires.length; i++)
+            wireBits[inputWires[i]] = getWidthMask(gate.getGateClass(), GateClass.INPUT_PIN_TYPE, i);
+
+        for (int i = 0; i < constantWires.size(); i += 2)
+            wireBits[constantWires.elementAt(i).intValue()] =
+                constantWires.elementAt(i + 1).intValue() & 0xFFFF;
+
+        for (int i = 0; i < builtIns.length; i++)
+            for (int j = 0; j < builtInOutputs[i].length; j++)
+                wireBits[builtInOutputs[i][j]] =
+                    getWidthMask(builtIns[i].getGateClass(), GateClass.OUTPUT_PIN_TYPE, j);
+
+        CodeBuffer slices = new CodeBuffer();
+        int pc = 0;
+        while (pc < evalCode.length) {
+            switch (evalCode[pc]) {
+                case OP_NAND:
+                    int a = evalCode[pc + 1];
+                    int b = evalCode[pc + 2];
+                    int out = evalCode[pc + 3];
+                    if ((wireBits[a] & wireBits[b] & ~0x1) == 0) {
+                        slices.add(SLICE_NAND);
+                        wireBits[out] = 0x1;
+                    }
+                    else {
+                        slices.add(SLICE_WIDE_NAND);
+                        wireBits[out] = 0xFFFF;
+                    }
+                    slices.add(a * 16);
+                    slices.add(b * 16);
+                    slices.add(out * 16);
+                    pc += 4;
+                    break;
+
+                case OP_BUILTIN:
+                    slices.add(SLICE_BUILTIN);
+                    slices.add(evalCode[pc + 1]);
+                    pc += 2;
+                    break;
+
+                case OP_GATHER:
+                    int target = evalCode[pc + 1];
+                    int constant = evalCode[pc + 2];
+                    int end = pc + 4 + evalCode[pc + 3] * 4;
+                    int bits = constant;
+                    CodeBuffer pairs = new CodeBuffer();
+                    for (pc += 4; pc < end; pc += 4) {
+                        int wire = evalCode[pc];
+                        int rightShift = evalCode[pc + 1];
+                        int mask = evalCode[pc + 2] & (wireBits[wire] >>> rightShift);
+                        int leftShift = evalCode[pc + 3];
+                        for (int bit = 0; bit < 16; bit++)
+                            if ((mask & (1 << bit)) != 0) {
+                                pairs.add(wire * 16 + bit + rightShift);
+                                pairs.add(bit + leftShift);
+                            }
+                        bits |= mask << leftShift;
+                    }
+                    int[] pairsArray = pairs.toArray();
+                    slices.add(SLICE_GATHER);
+                    slices.add(target * 16);
+                    slices.add(constant);
+                    slices.add(pairsArray.length / 2);
+                    for (int i = 0; i < pairsArray.length; i++)
+                        slices.add(pairsArray[i]);
+                    wireBits[target] = bits & 0xFFFF;
+                    break;
+            }
+        }
+
+        sliceCode = slices.toArray();
+        planes = new long[wiresCount * 16];
+    }
+
+    // Executes the bit-sliced program on the given number of lanes.
+    // Returns false if the output of a built-in part doesn't fit in its pin's width.
+    private boolean runSlices(int lanes) {
+        int[] code = sliceCode;
+        long[] planes = this.planes;
+        int pc = 0;
+
+        while (pc < code.length) {
+            switch (code[pc]) {
+                case SLICE_NAND:
+                    planes[code[pc + 3]] = ~(planes[code[pc + 1]] & planes[code[pc + 2]]);
+                    pc += 4;
+                    break;
+
+                case SLICE_WIDE_NAND:
+                    // out = 1 - (a & b) = ~(a & b) + 2
+                    int a = code[pc + 1];
+                    int b = code[pc + 2];
+                    int out = code[pc + 3];
+                    planes[out] = ~(planes[a] & planes[b]);
+                    long carry = ~(planes[a + 1] & planes[b + 1]);
+                    planes[out + 1] = ~carry;
+                    for (int bit = 2; bit < 16; bit++) {
+                        long notBit = ~(planes[a + bit] & planes[b + bit]);
+                        planes[out + bit] = notBit ^ carry;
+                        carry &= notBit;
+                    }
+                    pc += 4;
+                    break;
+
+                case SLICE_BUILTIN:
+                    if (!callBuiltInLanes(code[pc + 1], lanes))
+                        return false;
+                    pc += 2;
+                    break;
+
+                case SLICE_GATHER:
+                    int target = code[pc + 1];
+                    int constant = code[pc + 2];
+                    for (int bit = 0; bit < 16; bit++)
+                        planes[target + bit] = ((constant >>> bit) & 0x1) == 0 ? 0 : -1L;
+                    int end = pc + 4 + code[pc + 3] * 2;
+                    for (pc += 4; pc < end; pc += 2)
+                        planes[target + code[pc + 1]] |= planes[code[pc]];
+                    break;
+            }
+        }
+
+        return true;
+    }
+
+    // Evaluates the built-in part at the given index through its nodes, once per lane.
+    // Returns false if an output doesn't fit in its pin's width.
+    private boolean callBuiltInLanes(int index, int lanes) {
+        BuiltInGate part = builtIns[index];
+        boolean[] isInputClocked = part.getGateClass().isInputClocked;
+        Node[] inputNodes = part.getInputNodes();
+        Node[] outputNodes = part.getOutputNodes();
+        int[] inputs = builtInInputs[index];
+        int[] outputs = builtInOutputs[index];
+
+        for (int i = 0; i < outputs.length; i++)
+            for (int bit = 0; bit < 16; bit++)
+                planes[outputs[i] * 16 + bit] = 0;
+
+        for (int lane = 0; lane < lanes; lane++) {
+            for (int i = 0; i < inputs.length; i++)
+                if (!isInputClocked[i])
+                    inputNodes[i].set(getLaneValue(inputs[i], lane));
+
+            part.eval();
+
+            for (int i = 0; i < outputs.length; i++) {
+                int value = outputNodes[i].get() & 0xFFFF;
+                if ((value & ~wireBits[outputs[i]]) != 0)
+                    return false;
+                for (int bit = 0; value != 0; bit++, value >>>= 1)
+                    if ((value & 0x1) != 0)
+                        planes[outputs[i] * 16 + bit] |= 1L << lane;
+            }
+        }
+
+        return true;
+    }
+
+    // Returns the value of the given wire in the given lane.
+    private short getLaneValue(int wire, int lane) {
+        int value = 0;
+        int bits = wireBits[wire];
+        for (int bit = 0; bit < 16; bit++)
+            if ((bits & (1 << bit)) != 0)
+                value |= (int)((planes[wire * 16 + bit] >>> lane) & 0x1) << bit;
+
+        return (short)value;
+    }
+
+    // Returns the mask of the bits of the given pin of the given gate class.
+    private static int getWidthMask(GateClass gateClass, byte type, int number) {
+        return SubNode.getMask((byte)0, (byte)(gateClass.getPinInfo(type, number).width - 1))
+               & 0xFFFF;
+    }
+
+    // Executes the given compiled program.
+    private void run(int[] code) {
+        short[] wires = this.wires;
+        int pc = 0;
+
+        while (pc < code.length) {
+            switch (code[pc]) {
+                case OP_NAND:
+                    wires[code[pc + 3]] = (short)(0x1 - (wires[code[pc + 1]] & wires[code[pc + 2]]));
+                    pc += 4;
+                    break;
+
+                case OP_BUILTIN:
+                    callBuiltIn(code[pc + 1]);
+                    pc += 2;
+                    break;
+
+                case OP_GATHER:
+                    int target = code[pc + 1];
+                    int value = code[pc + 2];
+                    int end = pc + 4 + code[pc + 3] * 4;
+                    for (pc += 4; pc < end; pc += 4)
+                        value |= (((wires[code[pc]] & 0xFFFF) >>> code[pc + 1]) & code[pc + 2])
+                                 << code[pc + 3];
+                    wires[target] = (short)value;
+                    break;
+            }
+        }
+    }
+
+    // Evaluates the built-in part at the given index through its nodes.
+    private void callBuiltIn(int index) {
+        BuiltInGate part = builtIns[index];
+        boolean[] isInputClocked = part.getGateClass().isInputClocked;
+        Node[] inputNodes = part.getInputNodes();
+        int[] inputs = builtInInputs[index];
+        for (int i = 0; i < inputs.length; i++)
+            if (!isInputClocked[i])
+                inputNodes[i].set(wires[inputs[i]]);
+
+        part.eval();
+
+        Node[] outputNodes = part.getOutputNodes();
+        int[] outputs = builtInOutputs[index];
+        for (int i = 0; i < outputs.length; i++)
+            wires[outputs[i]] = outputNodes[i].get();
+    }
+
+    // Creates the scope of the given composite gate instance, and recursively of its
+    // composite parts. Primitive parts are added to the given leaves vector.
+    private Scope createScope(CompositeGate compositeGate, Scope parent, int partNumber,
+                              Vector<Leaf> leaves) {
+        Scope scope = new Scope();
+        scope.gateClass = (CompositeGateClass)compositeGate.getGateClass();
+        scope.parent = parent;
+        scope.partNumber = partNumber;
+
+        int count = scope.gateClass.getPartsCount();
+        int[] order = scope.gateClass.getPartsOrder();
+        Gate[] sortedParts = compositeGate.getParts();
+        scope.parts = new Gate[count];
+        for (int i = 0; i < count; i++)
+            scope.parts[order[i]] = sortedParts[i];
+
+        // index the connections
+        scope.partSources = new Vector<Vector<Connection>>(count);
+        for (int i = 0; i < count; i++)
+            scope.partSources.addElement(new Vector<Connection>());
+        scope.internalSources = new Connection[compositeGate.getInternalNodes().length];
+        int outputsCount = compositeGate.getOutputNodes().length;
+        scope.outputSources = new Vector<Vector<Connection>>(outputsCount);
+        for (int i = 0; i < outputsCount; i++)
+            scope.outputSources.addElement(new Vector<Connection>());
+
+        Iterator<?> connectionIter = scope.gateClass.getConnections().iterator();
+        while (connectionIter.hasNext()) {
+            Connection connection = (Connection)connectionIter.next();
+            switch (connection.getType()) {
+                case Connection.TO_INTERNAL:
+                    scope.internalSources[connection.getGatePinNumber()] = connection;
+                    break;
+                case Connection.TO_OUTPUT:
+                    scope.outputSources.elementAt(connection.getGatePinNumber()).addElement(connection);
+                    break;
+                default:
+                    scope.partSources.elementAt(connection.getPartNumber()).addElement(connection);
+            }
+        }
+
+        // create the parts in topological order
+        scope.subScopes = new Scope[count];
+        scope.leaves = new Leaf[count];
+        for (int i = 0; i < count; i++) {
+            int number = order[i];
+            Gate part = scope.parts[number];
+            if (part instanceof CompositeGate)
+                scope.subScopes[number] = createScope((CompositeGate)part, scope, number, leaves);
+            else {
+                Leaf leaf = new Leaf();
+                leaf.gate = (BuiltInGate)part;
+                leaf.scope = scope;
+                leaf.partNumber = number;
+                leaf.isNand = part.getClass().getName().equals(
+                    GatesManager.getInstance().getBuiltInDir() + ".Nand");
+                leaf.outputWires = new int[part.getOutputNodes().length];
+                for (int j = 0; j < leaf.outputWires.length; j++)
+                    leaf.outputWires[j] = wiresCount++;
+                scope.leaves[number] = leaf;
+                leaves.addElement(leaf);
+            }
+        }
+
+        return scope;
+    }
+
+    // Returns the level of the given primitive part: 0 if none of its non-clocked
+    // inputs depends on other parts, or one more than the maximal level of these parts.
+    private int computeLevel(Leaf leaf, Leaf[] producers) throws InstantiationException {
+        if (leaf.level == VISITING)
+            throw new InstantiationException("This chip has a circle in its parts connections");
+
+        if (leaf.level < 0) {
+            leaf.level = VISITING;
+            int level = 0;
+            boolean[] isInputClocked = leaf.gate.getGateClass().isInputClocked;
+            for (int i = 0; i < leaf.inputs.length; i++) {
+                if (!isInputClocked[i]) {
+                    Source source = leaf.inputs[i];
+                    for (int j = 0; j < source.count; j++) {
+                        Leaf producer = producers[source.pieces[j * 4]];
+                        if (producer != null)
+                            level = Math.max(level, computeLevel(producer, producers) + 1);
+                    }
+                }
+            }
+            leaf.level = level;
+        }
+
+        return leaf.level;
+    }
+
+    // Returns the wire that holds the value of the given source. If the source is not
+    // a wire by itself, allocates a new wire and emits the code that computes it into
+    // the given code buffer.
+    private int emitSource(Source source, CodeBuffer code) {
+        if (source.isWire())
+            return source.pieces[0];
+
+        int wire = wiresCount++;
+        if (source.count == 0) {
+            constantWires.addElement(Integer.valueOf(wire));
+            constantWires.addElement(Integer.valueOf((short)source.constant));
+        }
+        else {
+            code.add(OP_GATHER);
+            code.add(wire);
+            code.add(source.constant);
+            code.add(source.count);
+            for (int i = 0; i < source.count * 4; i++)
+                code.add(source.pieces[i]);
+        }
+
+        return wire;
+    }
+
+    // Returns the source of the given input pin of the given part in the given scope.
+    private Source resolvePartInput(Scope scope, int partNumber, int pinNumber) {
+        Source result = new Source();
+        GateClass partClass = scope.parts[partNumber].getGateClass();
+        Vector<Connection> connections = scope.partSources.elementAt(partNumber);
+
+        for (int i = 0; i < connections.size(); i++) {
+            Connection connection = connections.elementAt(i);
+            if (partClass.getPinNumber(connection.getPartPinName()) != pinNumber)
+                continue;
+
+            Source source = null;
+            switch (connection.getType()) {
+                case Connection.FROM_INPUT:
+                    source = resolveGateInput(scope, connection.getGatePinNumber())
+                             .extract(connection.getGateSubBus());
+                    break;
+                case Connection.FROM_INTERNAL:
+                    Connection internalSource =
+                        scope.internalSources[connection.getGatePinNumber()];
+                    source = resolvePartOutput(scope, internalSource.getPartNumber(),
+                                               getPartPinNumber(scope, internalSource))
+                             .extract(internalSource.getPartSubBus());
+                    break;
+                case Connection.FROM_TRUE:
+                    source = Source.constant(Gate.TRUE_NODE.get()).extract(connection.getGateSubBus());
+                    break;
+                case Connection.FROM_FALSE:
+                    source = Source.constant(Gate.FALSE_NODE.get()).extract(connection.getGateSubBus());
+                    break;
+                case Connection.FROM_CLOCK:
+                    // the clock is always connected to the whole part's pin.
+                    result.or(Source.wire(CLOCK_WIRE));
+                    continue;
+            }
+
+            result.or(source.place(connection.getPartSubBus()));
+        }
+
+        return result;
+    }
+
+    // Returns the source of the given input pin of the gate of the given scope.
+    private Source resolveGateInput(Scope scope, int pinNumber) {
+        if (scope.parent == null)
+            return Source.wire(inputWires[pinNumber]);
+        else
+            return resolvePartInput(scope.parent, scope.partNumber, pinNumber);
+    }
+
+    // Returns the source of the given output pin of the gate of the given scope.
+    private Source resolveGateOutput(Scope scope, int pinNumber) {
+        Source result = new Source();
+        Vector<Connection> connections = scope.outputSources.elementAt(pinNumber);
+
+        for (int i = 0; i < connections.size(); i++) {
+            Connection connection = connections.elementAt(i);
+            result.or(resolvePartOutput(scope, connection.getPartNumber(),
+                                        getPartPinNumber(scope, connection))
+                      .extract(connection.getPartSubBus())
+                      .place(connection.getGateSubBus()));
+        }
+
+        return result;
+    }
+
+    // Returns the source of the given output pin of the given part in the given scope.
+    private Source resolvePartOutput(Scope scope, int partNumber, int pinNumber) {
+        Leaf leaf = scope.leaves[partNumber];
+        if (leaf != null)
+            return Source.wire(leaf.outputWires[pinNumber]);
+        else
+            return resolveGateOutput(scope.subScopes[partNumber], pinNumber);
+    }
+
+    // Returns the number of the part's pin of the given connection.
+    private static int getPartPinNumber(Scope scope, Connection connection) {
+        return scope.parts[connection.getPartNumber()].getGateClass()
+               .getPinNumber(connection.getPartPinName());
+    }
+
+    // Disconnects the nodes of the parts from each other, so that values are no longer
+    // propagated through the parts tree, and makes the gate the parent of all the
+    // built-in parts with GUI, so that changes through their GUI re-evaluate the netlist.
+    private void detachNodes(Vector<Leaf> leaves) {
+        for (int i = 0; i < leaves.size(); i++) {
+            Leaf leaf = leaves.elementAt(i);
+            Node[] outputNodes = leaf.gate.getOutputNodes();
+            for (int j = 0; j < outputNodes.length; j++)
+                outputNodes[j].listeners = null;
+
+            if (leaf.gate instanceof BuiltInGateWithGUI)
+                ((BuiltInGateWithGUI)leaf.gate).setParent(gate);
+        }
+
+        Node[] internalNodes = gate.getInternalNodes();
+        for (int i = 0; i < internalNodes.length; i++)
+            internalNodes[i].listeners = null;
+
+        // keep only the dirty gate adapters of the gate's inputs
+        Node[] inputNodes = gate.getInputNodes();
+        for (int i = 0; i < inputNodes.length; i++) {
+            NodeSet listeners = inputNodes[i].listeners;
+            if (listeners != null)
+                for (int j = listeners.size() - 1; j >= 0; j--)
+                    if (!(listeners.getNodeAt(j) instanceof DirtyGateAdapter))
+                        listeners.removeElementAt(j);
+        }
+    }
+
+    // A composite gate instance in the flattened hierarchy
+    private static class Scope {
+        // The class of the composite gate
+        CompositeGateClass gateClass;
+
+        // The scope of the containing gate (null at the top) and the part number in it
+        Scope parent;
+        int partNumber;
+
+        // The parts, in the original HDL order
+        Gate[] parts;
+
+        // The scopes of the composite parts and the primitive parts, by part number
+        Scope[] subScopes;
+        Leaf[] leaves;
+
+        // The connections that feed each part, each internal pin and each output pin
+        Vector<Vector<Connection>> partSources;
+        Connection[] internalSources;
+        Vector<Vector<Connection>> outputSources;
+    }
+
+    // A primitive part in the flattened hierarchy
+    private static class Leaf {
+        // The built-in gate instance
+        BuiltInGate gate;
+
+        // The scope that contains the part and its number in it
+        Scope scope;
+        int partNumber;
+
+        // true if this is a Nand gate, which is computed inline
+        boolean isNand;
+
+        // The sources of the inputs
+        Source[] inputs;
+
+        // The wires of the inputs and outputs
+        int[] inputWires;
+        int[] outputWires;
+
+        // The level of the part in the evaluation order
+        int level = -1;
+    }
+
+    // The source of a pin's value: a constant, or-ed with masked bit fields of wires.
+    // The value is: constant | (((wire >>> rightShift) & mask) << leftShift) | ...
+    private static class Source {
+        int constant;
+        int count;
+        int[] pieces = new int[4];
+
+        // Returns a source with the given constant value.
+        static Source constant(short value) {
+            Source result = new Source();
+            result.constant = value & 0xFFFF;
+            return result;
+        }
+
+        // Returns a source of the whole value of the given wire.
+        static Source wire(int wire) {
+            Source result = new Source();
+            result.addPiece(wire, 0, 0xFFFF, 0);
+            return result;
+        }
+
+        // Returns true if this source is exactly the value of a single wire.
+        boolean isWire() {
+            return constant == 0 && count == 1 && pieces[1] == 0 && pieces[2] == 0xFFFF &&
+                   pieces[3] == 0;
+        }
+
+        // Adds a piece. Pieces that contribute nothing are ignored.
+        void addPiece(int wire, int rightShift, int mask, int leftShift) {
+            mask &= (0xFFFF >>> rightShift) & (0xFFFF >>> leftShift);
+            if (mask == 0 || rightShift > 15 || leftShift > 15)
+                return;
+
+            if (pieces.length == count * 4) {
+                int[] newPieces = new int[pieces.length * 2];
+                System.arraycopy(pieces, 0, newPieces, 0, pieces.length);
+                pieces = newPieces;
+            }
+
+            pieces[count * 4] = wire;
+            pieces[count * 4 + 1] = rightShift;
+            pieces[count * 4 + 2] = mask;
+            pieces[count * 4 + 3] = leftShift;
+            count++;
+        }
+
+        // Or-s the given source into this source.
+        void or(Source other) {
+            constant |= other.constant;
+            for (int i = 0; i < other.count; i++)
+                addPiece(other.pieces[i * 4], other.pieces[i * 4 + 1],
+                         other.pieces[i * 4 + 2], other.pieces[i * 4 + 3]);
+        }
+
+        // Returns the source of the given sub bus of this source (as in SubNode).
+        // If the sub bus is null, returns this source.
+        Source extract(byte[] subBus) {
+            if (subBus == null)
+                return this;
+
+            int low = subBus[0];
+            int mask = SubNode.getMask((byte)0, (byte)(subBus[1] - low)) & 0xFFFF;
+            Source result = new Source();
+            result.constant = (constant >>> low) & mask;
+
+            for (int i = 0; i < count; i++) {
+                int wire = pieces[i * 4];
+                int rightShift = pieces[i * 4 + 1];
+                int pieceMask = pieces[i * 4 + 2];
+                int leftShift = pieces[i * 4 + 3];
+                if (leftShift >= low)
+                    result.addPiece(wire, rightShift, pieceMask & (mask >>> (leftShift - low)),
+                                    leftShift - low);
+                else
+                    result.addPiece(wire, rightShift + low - leftShift,
+                                    (pieceMask >>> (low - leftShift)) & mask, 0);
+            }
+
+            return result;
+        }
+
+        // Returns the source of a node in which this source is placed at the given sub bus
+        // (as in SubBusListeningAdapter). If the sub bus is null, returns this source.
+        Source place(byte[] subBus) {
+            if (subBus == null)
+                return this;
+
+            int low = subBus[0];
+            int mask = SubNode.getMask((byte)0, (byte)(subBus[1] - low)) & 0xFFFF;
+            Source result = new Source();
+            result.constant = ((constant & mask) << low) & 0xFFFF;
+
+            for (int i = 0; i < count; i++) {
+                int leftShift = pieces[i * 4 + 3];
+                result.addPiece(pieces[i * 4], pieces[i * 4 + 1],
+                                pieces[i * 4 + 2] & (mask >>> leftShift), leftShift + low);
+            }
+
+            return result;
+        }
+    }
+
+    // A growing buffer of compiled code
+    private static class CodeBuffer {
+        private int[] code = new int[256];
+        private int length;
+
+        void add(int value) {
+            if (length == code.length) {
+                int[] newCode = new int[code.length * 2];
+                System.arraycopy(code, 0, newCode, 0, length);
+                code = newCode;
+            }
+            code[length++] = value;
+        }
+
+        int[] toArray() {
+            int[] result = new int[length];
+            System.arraycopy(code, 0, result, 0, length);
+            return result;
+        }
+    }
+}
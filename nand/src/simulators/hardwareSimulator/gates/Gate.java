@@ -17,6 +17,7 @@
 
 package simulators.hardwareSimulator.gates;
 
+import java.io.*;
 import java.util.*;
 
 /**
@@ -34,11 +35,6 @@ public abstract class Gate {
      */
     public static final Node FALSE_NODE = new Node((short)0);
 
-    /**
-     * The special "clock" node.
-     */
-    public static final Node CLOCK_NODE = new Node();
-
     // the input pins
     protected Node[] inputPins;
 
@@ -54,6 +50,17 @@ public abstract class Gate {
     // A list of listeners to the isDirty property.
     private Vector dirtyGateListeners;
 
+    // The composite gate that contains this gate as a part (null if none)
+    CompositeGate parent;
+
+    // The index of this gate in the parts of its parent
+    int partIndex;
+
+    // The profiler that counts the activity of this gate (null if not profiled), and
+    // the index of this gate in it
+    GateProfiler profiler;
+    int profileIndex;
+
     /**
      * Adds the given listener as a listener to the isDirty property.
      */
@@ -90,14 +97,20 @@ public abstract class Gate {
 
     /**
      * Marks the gate as "dirty" - needs to be recomputed.
+     * Listeners are notified only if the gate was clean.
      */
     public void setDirty() {
-        isDirty = true;
+        if (!isDirty) {
+            isDirty = true;
 
-        // notify listeners
-        if (dirtyGateListeners != null)
-            for (int i = 0; i < dirtyGateListeners.size(); i++)
-                ((DirtyGateListener)dirtyGateListeners.elementAt(i)).gotDirty();
+            if (parent != null)
+                parent.enqueue(partIndex);
+
+            // notify listeners
+            if (dirtyGateListeners != null)
+                for (int i = 0; i < dirtyGateListeners.size(); i++)
+                    ((DirtyGateListener)dirtyGateListeners.elementAt(i)).gotDirty();
+        }
     }
 
     /**
@@ -154,6 +167,9 @@ public abstract class Gate {
      * Recomputes the gate's outputs.
      */
     private void doEval() {
+        if (profiler != null)
+            profiler.gateEvaluated(profileIndex);
+
         if (isDirty) {
             isDirty = false;
 
@@ -166,11 +182,61 @@ public abstract class Gate {
         reCompute();
     }
 
+    /**
+     * Writes the state of this gate to the given stream: whether it is dirty, the values
+     * of its pins, and the state of its parts or its internal state (in subclasses).
+     */
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeBoolean(isDirty);
+        writeValues(out, inputPins);
+        writeValues(out, outputPins);
+    }
+
+    /**
+     * Reads the state of this gate from the given stream, as written by writeState(),
+     * and restores it. The values of the pins are restored without being propagated.
+     */
+    public void readState(DataInputStream in) throws IOException {
+        boolean dirty = in.readBoolean();
+        readValues(in, inputPins);
+        readValues(in, outputPins);
+
+        if (dirty != isDirty) {
+            isDirty = dirty;
+
+            // notify listeners
+            if (dirtyGateListeners != null)
+                for (int i = 0; i < dirtyGateListeners.size(); i++) {
+                    DirtyGateListener listener =
+                        (DirtyGateListener)dirtyGateListeners.elementAt(i);
+                    if (dirty)
+                        listener.gotDirty();
+                    else
+                        listener.gotClean();
+                }
+        }
+    }
+
+    // Writes the values of the given nodes to the given stream.
+    static void writeValues(DataOutputStream out, Node[] nodes) throws IOException {
+        for (int i = 0; i < nodes.length; i++)
+            out.writeShort(nodes[i].value);
+    }
+
+    // Reads the values of the given nodes from the given stream and restores them.
+    static void readValues(DataInputStream in, Node[] nodes) throws IOException {
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i].restore(in.readShort());
+    }
+
     /**
      * First computes the gate's output (from non-clocked information) and then updates
      * the internal state of the gate (which doesn't affect the outputs)
      */
     public void tick() {
+        if (profiler != null)
+            profiler.gateTicked(profileIndex);
+
         doEval();
         clockUp();
     }
@@ -180,6 +246,9 @@ public abstract class Gate {
      * then computes the outputs from non-clocked information.
      */
     public void tock() {
+        if (profiler != null)
+            profiler.gateTocked(profileIndex);
+
         clockDown();
         doEval();
     }
@@ -62,9 +62,6 @@ public abstract class GateClass {
     // Mapping from pin names to their numbers (Integer objects)
     protected Hashtable namesToNumbers;
 
-    // a table that maps a gate name with its GateClass
-    protected static Hashtable GateClasses = new Hashtable();
-
 
     // Constructs a new GateCLass (public access through the getGateClass method)
     protected GateClass(String gateName, PinInfo[] inputPinsInfo, PinInfo[] outputPinsInfo) {
@@ -105,24 +102,25 @@ public abstract class GateClass {
             gateName = file.getName().substring(0, file.getName().lastIndexOf("."));
         }
 
-        // Try to find the gate in the "cache"
-        GateClass result = (GateClass)GateClasses.get(fileName);
-
-        // gate wasn't found in cache
-        if (result == null) {
-            HDLTokenizer input = new HDLTokenizer(fileName);
-            result = readHDL(input, gateName);
-            GateClasses.put(fileName, result);
-        }
-
-        return result;
+        // Find the gate in the cache, which loads it if needed
+        return GateClassCache.getInstance().getGateClass(fileName, gateName);
     }
 
     /**
-     * Clears the gate Cache
+     * Clears the gate Cache. Not needed for reloading changed HDL files: the
+     * cache checks whether the files changed.
      */
     public static void clearGateCache() {
-        GateClasses.clear();
+        GateClassCache.getInstance().clear();
+    }
+
+    /**
+     * Sets the dir in which compiled chips are kept, so that loading a chip
+     * whose HDL files didn't change doesn't need to parse them again, or null
+     * if compiled chips shouldn't be kept.
+     */
+    public static void setCompiledDir(File dir) {
+        GateClassCache.getInstance().setCompiledDir(dir);
     }
 
     /**
@@ -130,11 +128,11 @@ public abstract class GateClass {
      */
     public static boolean gateClassExists(String gateName) {
         String fileName = GatesManager.getInstance().getHDLFileName(gateName);
-        return (GateClasses.get(fileName) != null);
+        return (fileName != null && GateClassCache.getInstance().contains(fileName));
     }
 
     // Loads the HDL from the given input, creates the appropriate GateClass and returns it.
-    private static GateClass readHDL(HDLTokenizer input, String gateName)
+    static GateClass readHDL(HDLTokenizer input, String gateName)
      throws HDLException {
 
         // read CHIP keyword
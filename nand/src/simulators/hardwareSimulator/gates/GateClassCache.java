@@ -0,0 +1,574 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.hardwareSimulator.gates;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A cache of GateClasses, which is shared by all the hardware simulators (in all
+ * threads). A GateClass is kept by the canonical path of its HDL file, with the hash
+ * of the file's contents, and is reused as long as the file's contents and the HDL
+ * files of its parts (as found from the current working dir) didn't change. A chip
+ * is loaded only once, even if several threads need it at the same time, and the
+ * least recently used GateClasses are removed when the cache is full.
+ * GateClasses are never changed after they are loaded, so they may be shared.
+ * If a compiled dir is set, loaded CompositeGateClasses are also written to it, and
+ * are read from it instead of parsing their HDL as long as the hashes of their
+ * HDL files and of all the HDL files they depend on didn't change.
+ */
+class GateClassCache {
+
+    // The maximal number of cached GateClasses
+    private static final int CAPACITY = 1024;
+
+    // A file that was modified less than this time (in ms) before its contents
+    // were hashed may change again without a change in its modification time
+    private static final long FILE_TIME_RESOLUTION = 2000;
+
+    // The first int and the version of a compiled GateClass file
+    private static final int COMPILED_FILE_MAGIC = 0x48444c43; // "HDLC"
+    private static final int COMPILED_FILE_VERSION = 1;
+
+    // The extension of compiled GateClass files
+    private static final String COMPILED_FILE_EXTENSION = ".chip";
+
+    // The single instance
+    private static final GateClassCache instance = new GateClassCache();
+
+    // A GateClass that is loaded or being loaded
+    private static class Entry {
+        // The canonical path of the HDL file
+        String path;
+
+        // The hash of the HDL file's contents, the file's modification time and
+        // length when it was hashed, and the time in which it was hashed
+        byte[] hash;
+        long lastModified, length, hashTime;
+
+        // The thread that loads the GateClass (null when loading is done)
+        Thread loader;
+
+        // The loaded GateClass, or the error that occurred while loading it
+        GateClass gateClass;
+        HDLException error;
+
+        // The built-in dir from which a BuiltInGateClass was loaded
+        File builtInDir;
+
+        // The hash of the HDL file's contents and of the closure hashes of its parts
+        byte[] closureHash;
+
+        // The parts used by the GateClass
+        Vector<Dependency> parts = new Vector<Dependency>();
+    }
+
+    // A part name that a GateClass uses and the entry it was found in
+    private static class Dependency {
+        String gateName;
+        Entry entry;
+    }
+
+    // The GateClasses that the current thread loads (innermost last) and the
+    // entries that were validated since its outermost getGateClass call started.
+    private static class LoadContext {
+        Vector<Entry> loading = new Vector<Entry>();
+        Hashtable<Entry, Entry> validated = new Hashtable<Entry, Entry>();
+        int depth;
+    }
+
+    // The entries by their canonical paths, in least recently used order
+    private LinkedHashMap<String, Entry> entries;
+
+    // The entry that each waiting thread waits for (guarded by this)
+    private Hashtable<Thread, Entry> waitingFor;
+
+    // The load context of each thread
+    private ThreadLocal<LoadContext> loadContext;
+
+    // The dir of the compiled GateClass files (null if they are not used)
+    private volatile File compiledDir;
+
+    // Constructs the cache
+    private GateClassCache() {
+        entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > CAPACITY && eldest.getValue().loader == null;
+            }
+        };
+        waitingFor = new Hashtable<Thread, Entry>();
+        loadContext = new ThreadLocal<LoadContext>();
+    }
+
+    /**
+     * Returns the single instance of the cache.
+     */
+    static GateClassCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the GateClass of the given HDL file, loading it if it isn't cached
+     * or if it (or one of its parts) changed. gateName is the name by which the
+     * gate was found: if the GateClass is loaded as a part of another, the other
+     * depends on finding this name in the same file.
+     */
+    GateClass getGateClass(String fileName, String gateName) throws HDLException {
+        LoadContext context = loadContext.get();
+        if (context == null) {
+            context = new LoadContext();
+            loadContext.set(context);
+        }
+
+        context.depth++;
+        try {
+            Entry entry = getEntry(getCanonicalPath(fileName), fileName, gateName, context);
+
+            // the loaded GateClass is a part of the one that is being loaded
+            if (!context.loading.isEmpty())
+                addDependency(context.loading.lastElement(), gateName, entry);
+
+            return entry.gateClass;
+        } finally {
+            if (--context.depth == 0)
+                context.validated.clear();
+        }
+    }
+
+    /**
+     * Sets the dir in which compiled CompositeGateClasses are kept, or null if
+     * they shouldn't be kept.
+     */
+    void setCompiledDir(File dir) {
+        compiledDir = dir;
+    }
+
+    /**
+     * Removes all the GateClasses from the cache.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns true if a GateClass of the given HDL file is cached.
+     */
+    boolean contains(String fileName) {
+        String path;
+        try {
+            path = getCanonicalPath(fileName);
+        } catch (HDLException he) {
+            return false;
+        }
+
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            return entry != null && entry.gateClass != null;
+        }
+    }
+
+    // Returns the valid loaded entry of the given canonical path, loading it
+    // if needed.
+    private Entry getEntry(String path, String fileName, String gateName, LoadContext context)
+     throws HDLException {
+        Thread currentThread = Thread.currentThread();
+
+        while (true) {
+            Entry entry;
+            boolean load = false;
+
+            synchronized (this) {
+                entry = entries.get(path);
+                if (entry == null) {
+                    entry = new Entry();
+                    entry.path = path;
+                    entry.loader = currentThread;
+                    entries.put(path, entry);
+                    load = true;
+                }
+                else if (entry.loader != null) {
+                    waitForLoader(entry, gateName, currentThread);
+                    if (entry.error != null)
+                        throw entry.error;
+                }
+            }
+
+            if (load) {
+                loadEntry(entry, fileName, gateName, context);
+                return entry;
+            }
+
+            if (entry.gateClass != null && isValid(entry, context))
+                return entry;
+
+            // the HDL file or one of its parts changed - load it again
+            synchronized (this) {
+                if (entries.get(path) == entry)
+                    entries.remove(path);
+            }
+        }
+    }
+
+    // Waits until the given entry, which another thread loads, is loaded.
+    // Throws an HDLException if the entry depends on itself.
+    private void waitForLoader(Entry entry, String gateName, Thread currentThread)
+     throws HDLException {
+        // The loader may wait (maybe through other threads) for an entry that
+        // the current thread loads
+        Thread loader = entry.loader;
+        while (loader != null && loader != currentThread) {
+            Entry awaited = waitingFor.get(loader);
+            loader = (awaited != null ? awaited.loader : null);
+        }
+        if (loader == currentThread)
+            throw new HDLException("Chip " + gateName + " is a part of itself");
+
+        waitingFor.put(currentThread, entry);
+        try {
+            while (entry.loader != null) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    throw new HDLException("Interrupted while loading chip " + gateName);
+                }
+            }
+        } finally {
+            waitingFor.remove(currentThread);
+        }
+    }
+
+    // Loads the GateClass of the given entry, which was put in the cache by
+    // the current thread.
+    private void loadEntry(Entry entry, String fileName, String gateName, LoadContext context)
+     throws HDLException {
+        try {
+            entry.hashTime = System.currentTimeMillis();
+            File file = new File(entry.path);
+            entry.lastModified = file.lastModified();
+            entry.length = file.length();
+            byte[] contents = readFile(file, fileName);
+            entry.hash = hash(contents);
+
+            File compiledFile = getCompiledFile(entry.path);
+            boolean parsed = false;
+            context.loading.addElement(entry);
+            try {
+                if (compiledFile != null)
+                    entry.gateClass = readCompiled(compiledFile, entry, context);
+
+                if (entry.gateClass == null) {
+                    synchronized (entry.parts) {
+                        entry.parts.removeAllElements();
+                    }
+                    entry.gateClass = GateClass.readHDL(new HDLTokenizer(fileName, contents),
+                                                        gateName);
+                    parsed = true;
+                }
+            } finally {
+                context.loading.removeElementAt(context.loading.size() - 1);
+            }
+
+            if (entry.gateClass instanceof BuiltInGateClass)
+                entry.builtInDir = GatesManager.getInstance().getBuiltInDir();
+            entry.closureHash = getClosureHash(entry);
+            if (parsed && compiledFile != null && entry.gateClass instanceof CompositeGateClass)
+                writeCompiled(compiledFile, entry);
+            context.validated.put(entry, entry);
+        } catch (HDLException he) {
+            entry.error = he;
+            throw he;
+        } finally {
+            synchronized (this) {
+                if (entry.gateClass == null) {
+                    if (entry.error == null)
+                        entry.error = new HDLException("Error while loading chip " + gateName);
+                    if (entries.get(entry.path) == entry)
+                        entries.remove(entry.path);
+                }
+                entry.loader = null;
+                notifyAll();
+            }
+        }
+    }
+
+    // Returns true if the HDL files of the given loaded entry and of its parts
+    // didn't change, and the parts are still found in them.
+    private boolean isValid(Entry entry, LoadContext context) throws HDLException {
+        if (context.validated.containsKey(entry))
+            return true;
+
+        if (!isFileUnchanged(entry))
+            return false;
+
+        GatesManager gatesManager = GatesManager.getInstance();
+        if (entry.builtInDir != null && !entry.builtInDir.equals(gatesManager.getBuiltInDir()))
+            return false;
+
+        Vector<Dependency> parts;
+        synchronized (entry.parts) {
+            parts = new Vector<Dependency>(entry.parts);
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            Dependency part = parts.elementAt(i);
+            String fileName = gatesManager.getHDLFileName(part.gateName);
+            if (fileName == null || !getCanonicalPath(fileName).equals(part.entry.path) ||
+                !isValid(part.entry, context))
+                return false;
+        }
+
+        context.validated.put(entry, entry);
+        return true;
+    }
+
+    // Returns true if the contents of the HDL file of the given entry didn't change
+    private boolean isFileUnchanged(Entry entry) {
+        File file = new File(entry.path);
+
+        synchronized (entry) {
+            long lastModified = file.lastModified();
+            long length = file.length();
+            if (lastModified == 0)
+                return false;
+
+            if (lastModified == entry.lastModified && length == entry.length &&
+                lastModified < entry.hashTime - FILE_TIME_RESOLUTION)
+                return true;
+
+            long hashTime = System.currentTimeMillis();
+            try {
+                if (!Arrays.equals(hash(readFile(file, entry.path)), entry.hash))
+                    return false;
+            } catch (HDLException he) {
+                return false;
+            }
+
+            entry.lastModified = lastModified;
+            entry.length = length;
+            entry.hashTime = hashTime;
+            return true;
+        }
+    }
+
+    // Returns the compiled file of the HDL file with the given canonical path,
+    // or null if compiled files are not used.
+    private File getCompiledFile(String path) {
+        File dir = compiledDir;
+        if (dir == null)
+            return null;
+
+        byte[] pathHash;
+        try {
+            pathHash = hash(path.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException uee) {
+            return null;
+        }
+
+        StringBuffer name = new StringBuffer();
+        for (int i = 0; i < pathHash.length; i++)
+            name.append(Integer.toHexString((pathHash[i] & 0xff) | 0x100).substring(1));
+        return new File(dir, name + COMPILED_FILE_EXTENSION);
+    }
+
+    // Reads the GateClass of the given entry, which is being loaded, from the
+    // given compiled file. Returns null if the file doesn't exist or is illegal,
+    // or if the HDL file or one of the files it depends on changed since it was
+    // written. The parts of the GateClass are loaded, and added to the entry.
+    private GateClass readCompiled(File compiledFile, Entry entry, LoadContext context)
+     throws HDLException {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(compiledFile.toPath());
+        } catch (IOException ioe) {
+            return null;
+        }
+
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(contents));
+            if (input.readInt() != COMPILED_FILE_MAGIC ||
+                input.readInt() != COMPILED_FILE_VERSION ||
+                !input.readUTF().equals(entry.path) ||
+                !Arrays.equals(readHash(input), entry.hash))
+                return null;
+
+            // check that each part is found in the same file, with the same closure hash
+            GatesManager gatesManager = GatesManager.getInstance();
+            int partsCount = input.readInt();
+            for (int i = 0; i < partsCount; i++) {
+                String partName = input.readUTF();
+                String partPath = input.readUTF();
+                byte[] partClosureHash = readHash(input);
+
+                String fileName = gatesManager.getHDLFileName(partName);
+                if (fileName == null)
+                    return null;
+                String path = getCanonicalPath(fileName);
+                if (!path.equals(partPath))
+                    return null;
+
+                Entry part = getEntry(path, fileName, partName, context);
+                addDependency(entry, partName, part);
+                if (!Arrays.equals(part.closureHash, partClosureHash))
+                    return null;
+            }
+
+            byte[] bodyHash = readHash(input);
+            int bodyStart = contents.length - input.available();
+            byte[] body = Arrays.copyOfRange(contents, bodyStart, contents.length);
+            if (!Arrays.equals(hash(body), bodyHash))
+                return null;
+
+            return CompositeGateClass.read(new DataInputStream(new ByteArrayInputStream(body)));
+        } catch (IOException ioe) {
+            return null;
+        } catch (RuntimeException re) { // an illegal file
+            return null;
+        }
+    }
+
+    // Writes the given loaded entry, whose GateClass is a CompositeGateClass, to the
+    // given compiled file. The file is replaced atomically, and errors are ignored,
+    // since the file is only an optimization.
+    private void writeCompiled(File compiledFile, Entry entry) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream bodyOutput = new DataOutputStream(body);
+            ((CompositeGateClass)entry.gateClass).write(bodyOutput);
+            bodyOutput.flush();
+            byte[] bodyContents = body.toByteArray();
+
+            ByteArrayOutputStream contents = new ByteArrayOutputStream(bodyContents.length + 256);
+            DataOutputStream output = new DataOutputStream(contents);
+            output.writeInt(COMPILED_FILE_MAGIC);
+            output.writeInt(COMPILED_FILE_VERSION);
+            output.writeUTF(entry.path);
+            writeHash(output, entry.hash);
+
+            Vector<Dependency> parts;
+            synchronized (entry.parts) {
+                parts = new Vector<Dependency>(entry.parts);
+            }
+            output.writeInt(parts.size());
+            for (int i = 0; i < parts.size(); i++) {
+                Dependency part = parts.elementAt(i);
+                output.writeUTF(part.gateName);
+                output.writeUTF(part.entry.path);
+                writeHash(output, part.entry.closureHash);
+            }
+
+            writeHash(output, hash(bodyContents));
+            output.write(bodyContents);
+            output.flush();
+
+            File dir = compiledFile.getParentFile();
+            dir.mkdirs();
+            File tempFile = File.createTempFile("chip", ".tmp", dir);
+            try {
+                Files.write(tempFile.toPath(), contents.toByteArray());
+                Files.move(tempFile.toPath(), compiledFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tempFile.delete();
+            }
+        } catch (IOException ioe) {
+        }
+    }
+
+    // Returns the closure hash of the given loaded entry: the hash of its HDL
+    // file's contents, its built-in dir and the names, paths and closure hashes
+    // of its parts.
+    private static byte[] getClosureHash(Entry entry) {
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(contents);
+            writeHash(output, entry.hash);
+            output.writeUTF(entry.builtInDir != null ? entry.builtInDir.getPath() : "");
+
+            synchronized (entry.parts) {
+                for (int i = 0; i < entry.parts.size(); i++) {
+                    Dependency part = entry.parts.elementAt(i);
+                    output.writeUTF(part.gateName);
+                    output.writeUTF(part.entry.path);
+                    writeHash(output, part.entry.closureHash);
+                }
+            }
+
+            output.flush();
+            return hash(contents.toByteArray());
+        } catch (IOException ioe) { // doesn't happen with a byte array
+            throw new InternalError(ioe.toString());
+        }
+    }
+
+    // Reads a hash that was written by writeHash from the given input
+    private static byte[] readHash(DataInputStream input) throws IOException {
+        byte[] hash = new byte[input.readUnsignedByte()];
+        input.readFully(hash);
+        return hash;
+    }
+
+    // Writes the given hash to the given output
+    private static void writeHash(DataOutputStream output, byte[] hash) throws IOException {
+        output.writeByte(hash.length);
+        output.write(hash);
+    }
+
+    // Adds the given part to the parts of the given entry (if not added yet)
+    private static void addDependency(Entry entry, String gateName, Entry part) {
+        synchronized (entry.parts) {
+            for (int i = 0; i < entry.parts.size(); i++)
+                if (entry.parts.elementAt(i).gateName.equals(gateName))
+                    return;
+
+            Dependency dependency = new Dependency();
+            dependency.gateName = gateName;
+            dependency.entry = part;
+            entry.parts.addElement(dependency);
+        }
+    }
+
+    // Returns the canonical path of the given file name
+    private static String getCanonicalPath(String fileName) throws HDLException {
+        try {
+            return new File(fileName).getCanonicalPath();
+        } catch (IOException ioe) {
+            throw new HDLException("Can't find HDL file " + fileName);
+        }
+    }
+
+    // Returns the contents of the given file
+    private static byte[] readFile(File file, String fileName) throws HDLException {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException ioe) {
+            throw new HDLException("Can't find HDL file " + fileName);
+        }
+    }
+
+    // Returns the hash of the given contents
+    private static byte[] hash(byte[] contents) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(contents);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new InternalError("SHA-1 is not supported");
+        }
+    }
+}
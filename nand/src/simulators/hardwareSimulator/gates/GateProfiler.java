@@ -0,0 +1,378 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package simulators.hardwareSimulator.gates;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A profiler of the activity of a gate's parts. When attached to a gate, it counts the
+ * evaluations, ticks and tocks of each gate instance in the gate's tree of parts, and
+ * the changes of the value of each of their pins (and the number of bits that toggled).
+ * The report aggregates the counts by gate class and by instance path, where an instance
+ * is named by its class name, followed by its index among the parts of the same class
+ * (in the HDL order) if there are several. For example: RAM4K/RAM512[3]/RAM64[0].
+ * The parts of a gate which is simulated by a flat netlist are not counted.
+ */
+public class GateProfiler {
+
+    // The initial capacity of the arrays of gates and nodes
+    private static final int INITIAL_CAPACITY = 256;
+
+    // The number of instances and nodes that are listed in the report
+    private static final int TOP_COUNT = 30;
+
+    // The counted gates: the gate, the index of its parent (-1 for the top gate), its name
+    // in the parent, and its counts
+    private Gate[] gates;
+    private int[] gateParents;
+    private String[] gateNames;
+    private long[] evaluations;
+    private long[] ticks;
+    private long[] tocks;
+    private int gatesCount;
+
+    // The counted nodes: the node, the index of its gate, its pin name, and its counts
+    private Node[] nodes;
+    private int[] nodeGates;
+    private String[] nodeNames;
+    private long[] changes;
+    private long[] toggles;
+    private int nodesCount;
+
+    /**
+     * Constructs a new profiler, which is not attached to any gate.
+     */
+    public GateProfiler() {
+        clear();
+    }
+
+    /**
+     * Attaches the profiler to the given gate (and detaches it from the previous one),
+     * and clears all the counts.
+     */
+    public void attach(Gate gate) {
+        detach();
+        clear();
+        addGate(gate, -1, gate.getGateClass().getName());
+    }
+
+    /**
+     * Detaches the profiler from its gate, so nothing is counted. The counts are kept.
+     */
+    public void detach() {
+        for (int i = 0; i < gatesCount; i++)
+            if (gates[i].profiler == this)
+                gates[i].profiler = null;
+
+        for (int i = 0; i < nodesCount; i++)
+            if (nodes[i].profiler == this)
+                nodes[i].profiler = null;
+    }
+
+    // Removes all the gates and nodes.
+    private void clear() {
+        gates = new Gate[INITIAL_CAPACITY];
+        gateParents = new int[INITIAL_CAPACITY];
+        gateNames = new String[INITIAL_CAPACITY];
+        evaluations = new long[INITIAL_CAPACITY];
+        ticks = new long[INITIAL_CAPACITY];
+        tocks = new long[INITIAL_CAPACITY];
+        gatesCount = 0;
+
+        nodes = new Node[INITIAL_CAPACITY];
+        nodeGates = new int[INITIAL_CAPACITY];
+        nodeNames = new String[INITIAL_CAPACITY];
+        changes = new long[INITIAL_CAPACITY];
+        toggles = new long[INITIAL_CAPACITY];
+        nodesCount = 0;
+    }
+
+    // Adds the given gate, with the given parent and name, and its pins and parts.
+    private void addGate(Gate gate, int parent, String name) {
+        if (gatesCount == gates.length) {
+            int capacity = gatesCount * 2;
+            Gate[] newGates = new Gate[capacity];
+            System.arraycopy(gates, 0, newGates, 0, gatesCount);
+            gates = newGates;
+            String[] newNames = new String[capacity];
+            System.arraycopy(gateNames, 0, newNames, 0, gatesCount);
+            gateNames = newNames;
+            gateParents = copyOf(gateParents, capacity, gatesCount);
+            // the counts are still zero while attaching
+            evaluations = new long[capacity];
+            ticks = new long[capacity];
+            tocks = new long[capacity];
+        }
+
+        int index = gatesCount++;
+        gates[index] = gate;
+        gateParents[index] = parent;
+        gateNames[index] = name;
+        gate.profiler = this;
+        gate.profileIndex = index;
+
+        GateClass gateClass = gate.getGateClass();
+        addNodes(gate.getInputNodes(), index, gateClass, GateClass.INPUT_PIN_TYPE);
+        addNodes(gate.getOutputNodes(), index, gateClass, GateClass.OUTPUT_PIN_TYPE);
+
+        if (!(gate instanceof CompositeGate) || gate instanceof FlatCompositeGate)
+            return;
+
+        CompositeGate compositeGate = (CompositeGate)gate;
+        addNodes(compositeGate.getInternalNodes(), index, gateClass,
+                 CompositeGateClass.INTERNAL_PIN_TYPE);
+
+        // the parts in the HDL order, and the number of parts of each class
+        Gate[] parts = compositeGate.getParts();
+        int[] partsOrder = ((CompositeGateClass)gateClass).getPartsOrder();
+        Gate[] hdlParts = new Gate[parts.length];
+        Hashtable<String, Integer> classCounts = new Hashtable<String, Integer>();
+        for (int i = 0; i < parts.length; i++) {
+            hdlParts[partsOrder[i]] = parts[i];
+            String className = parts[i].getGateClass().getName();
+            Integer count = classCounts.get(className);
+            classCounts.put(className, Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+        }
+
+        Hashtable<String, Integer> classIndice = new Hashtable<String, Integer>();
+        for (int i = 0; i < hdlParts.length; i++) {
+            String className = hdlParts[i].getGateClass().getName();
+            String partName = className;
+            if (classCounts.get(className).intValue() > 1) {
+                Integer classIndex = classIndice.get(className);
+                int partIndex = classIndex != null ? classIndex.intValue() : 0;
+                classIndice.put(className, Integer.valueOf(partIndex + 1));
+                partName += "[" + partIndex + "]";
+            }
+            addGate(hdlParts[i], index, partName);
+        }
+    }
+
+    // Adds the given pin nodes of the gate at the given index, whose class and pin type
+    // are given.
+    private void addNodes(Node[] pins, int gateIndex, GateClass gateClass, byte type) {
+        for (int i = 0; i < pins.length; i++) {
+            if (pins[i] == null || pins[i].profiler == this)
+                continue;
+
+            if (nodesCount == nodes.length) {
+                int capacity = nodesCount * 2;
+                Node[] newNodes = new Node[capacity];
+                System.arraycopy(nodes, 0, newNodes, 0, nodesCount);
+                nodes = newNodes;
+                String[] newNames = new String[capacity];
+                System.arraycopy(nodeNames, 0, newNames, 0, nodesCount);
+                nodeNames = newNames;
+                nodeGates = copyOf(nodeGates, capacity, nodesCount);
+                // the counts are still zero while attaching
+                changes = new long[capacity];
+                toggles = new long[capacity];
+            }
+
+            int index = nodesCount++;
+            nodes[index] = pins[i];
+            nodeGates[index] = gateIndex;
+            nodeNames[index] = gateClass.getPinInfo(type, i).name;
+            pins[i].profiler = this;
+            pins[i].profileIndex = index;
+        }
+    }
+
+    // Returns a copy of the given array with the given length, in which the given
+    // number of elements are copied.
+    private static int[] copyOf(int[] array, int length, int count) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Counts an evaluation of the gate at the given index.
+     */
+    void gateEvaluated(int index) {
+        evaluations[index]++;
+    }
+
+    /**
+     * Counts a tick of the gate at the given index.
+     */
+    void gateTicked(int index) {
+        ticks[index]++;
+    }
+
+    /**
+     * Counts a tock of the gate at the given index.
+     */
+    void gateTocked(int index) {
+        tocks[index]++;
+    }
+
+    /**
+     * Counts a change of the node at the given index, in which the given bits toggled.
+     */
+    void nodeChanged(int index, int toggledBits) {
+        changes[index]++;
+        toggles[index] += Integer.bitCount(toggledBits & 0xffff);
+    }
+
+    /**
+     * Writes the report of the counts to the given writers: as text, and as collapsed
+     * stacks (a line per instance path, with the parts separated by ';', followed by its
+     * evaluations count), which flame graph tools read.
+     */
+    public void writeReport(PrintWriter text, PrintWriter stacks) {
+        // the paths and the evaluations of the gates with their parts (which are added
+        // after them)
+        String[] paths = new String[gatesCount];
+        for (int i = 0; i < gatesCount; i++)
+            paths[i] = gateParents[i] == -1 ? gateNames[i] :
+                       paths[gateParents[i]] + "/" + gateNames[i];
+
+        final long[] inclusive = new long[gatesCount];
+        for (int i = gatesCount - 1; i >= 0; i--) {
+            inclusive[i] += evaluations[i];
+            if (gateParents[i] != -1)
+                inclusive[gateParents[i]] += inclusive[i];
+        }
+
+        long totalTicks = 0, totalTocks = 0, totalChanges = 0, totalToggles = 0;
+        for (int i = 0; i < gatesCount; i++) {
+            totalTicks += ticks[i];
+            totalTocks += tocks[i];
+        }
+        for (int i = 0; i < nodesCount; i++) {
+            totalChanges += changes[i];
+            totalToggles += toggles[i];
+        }
+        long totalEvaluations = gatesCount > 0 ? inclusive[0] : 0;
+
+        text.println("Evaluations: " + totalEvaluations);
+        text.println("Ticks: " + totalTicks);
+        text.println("Tocks: " + totalTocks);
+        text.println("Pin changes: " + totalChanges);
+        text.println("Bit toggles: " + totalToggles);
+
+        // the counts by gate class, sorted by evaluations
+        Hashtable<String, long[]> classTotals = new Hashtable<String, long[]>();
+        for (int i = 0; i < gatesCount; i++) {
+            String className = gates[i].getGateClass().getName();
+            long[] totals = classTotals.get(className);
+            if (totals == null) {
+                totals = new long[5];
+                classTotals.put(className, totals);
+            }
+            totals[0]++;
+            totals[1] += evaluations[i];
+            totals[2] += ticks[i] + tocks[i];
+        }
+        for (int i = 0; i < nodesCount; i++) {
+            long[] totals = classTotals.get(gates[nodeGates[i]].getGateClass().getName());
+            totals[3] += changes[i];
+            totals[4] += toggles[i];
+        }
+
+        final Hashtable<String, long[]> sortedTotals = classTotals;
+        String[] classNames = classTotals.keySet().toArray(new String[0]);
+        Arrays.sort(classNames, new Comparator<String>() {
+            public int compare(String name1, String name2) {
+                long evaluations1 = sortedTotals.get(name1)[1];
+                long evaluations2 = sortedTotals.get(name2)[1];
+                if (evaluations1 != evaluations2)
+                    return evaluations1 > evaluations2 ? -1 : 1;
+                return name1.compareTo(name2);
+            }
+        });
+
+        text.println();
+        text.println("Gate classes:");
+        text.println(String.format("%10s %14s %8s %12s %14s %14s  %s", "Instances",
+                                   "Evaluations", "Percent", "Ticks+tocks", "Pin changes",
+                                   "Bit toggles", "Class"));
+        for (int i = 0; i < classNames.length; i++) {
+            long[] totals = classTotals.get(classNames[i]);
+            text.println(String.format("%10d %14d %7.2f%% %12d %14d %14d  %s", totals[0],
+                                       totals[1], percent(totals[1], totalEvaluations),
+                                       totals[2], totals[3], totals[4], classNames[i]));
+        }
+
+        // the instances with the most evaluations (including their parts)
+        Integer[] gateIndice = new Integer[gatesCount];
+        for (int i = 0; i < gatesCount; i++)
+            gateIndice[i] = Integer.valueOf(i);
+        Arrays.sort(gateIndice, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                int index1 = o1.intValue();
+                int index2 = o2.intValue();
+                if (inclusive[index1] != inclusive[index2])
+                    return inclusive[index1] > inclusive[index2] ? -1 : 1;
+                return index1 - index2;
+            }
+        });
+
+        text.println();
+        text.println("Hot instances (top " + TOP_COUNT + "):");
+        text.println(String.format("%14s %8s %14s %12s  %s", "Inclusive", "Percent", "Self",
+                                   "Ticks+tocks", "Instance"));
+        for (int i = 0; i < Math.min(TOP_COUNT, gatesCount); i++) {
+            int index = gateIndice[i].intValue();
+            if (inclusive[index] == 0)
+                break;
+
+            text.println(String.format("%14d %7.2f%% %14d %12d  %s", inclusive[index],
+                                       percent(inclusive[index], totalEvaluations),
+                                       evaluations[index], ticks[index] + tocks[index],
+                                       paths[index]));
+        }
+
+        // the pins with the most changes
+        Integer[] nodeIndice = new Integer[nodesCount];
+        for (int i = 0; i < nodesCount; i++)
+            nodeIndice[i] = Integer.valueOf(i);
+        Arrays.sort(nodeIndice, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                int index1 = o1.intValue();
+                int index2 = o2.intValue();
+                if (changes[index1] != changes[index2])
+                    return changes[index1] > changes[index2] ? -1 : 1;
+                return index1 - index2;
+            }
+        });
+
+        text.println();
+        text.println("Hot pins (top " + TOP_COUNT + "):");
+        text.println(String.format("%14s %14s  %s", "Changes", "Bit toggles", "Pin"));
+        for (int i = 0; i < Math.min(TOP_COUNT, nodesCount); i++) {
+            int index = nodeIndice[i].intValue();
+            if (changes[index] == 0)
+                break;
+
+            text.println(String.format("%14d %14d  %s.%s", changes[index], toggles[index],
+                                       paths[nodeGates[index]], nodeNames[index]));
+        }
+
+        for (int i = 0; i < gatesCount; i++)
+            if (evaluations[i] > 0)
+                stacks.println(paths[i].replace('/', ';') + " " + evaluations[i]);
+    }
+
+    // Returns the given count as a percent of the given total.
+    private static double percent(long count, long total) {
+        return total > 0 ? 100.0 * count / total : 0;
+    }
+}
@@ -22,12 +22,18 @@ import java.util.Vector;
 
 /**
  * A singleton - manager for common gates properties.
+ * A thread may use a separate instance (see useSeparateInstance), so that
+ * several hardware simulations can run at the same time in different threads.
  */
 public class GatesManager {
 
-    // The single instance.
+    // The single (shared) instance.
     private static GatesManager singleton;
 
+    // The separate instance of the current thread (and of threads created by it)
+    private static InheritableThreadLocal<GatesManager> threadInstance =
+        new InheritableThreadLocal<GatesManager>();
+
     // The working HDL dir
     private File workingDir;
 
@@ -47,24 +53,48 @@ public class GatesManager {
     // otherwise, their gui shouldn't be created.
     private boolean updateChipsGUI;
 
+    // The clock node, to which all the clocked gates are connected
+    private Node clockNode;
+
     /**
      * Constructs a new GatesManager.
      */
     private GatesManager() {
         chips = new Vector();
         updateChipsGUI = true;
+        clockNode = new Node();
     }
 
     /**
-     * Returns the single instance of GatesManager.
+     * Returns the single instance of GatesManager, or the separate instance of
+     * the current thread if it uses one.
      */
     public static GatesManager getInstance() {
-        if (singleton == null)
-            singleton = new GatesManager();
+        GatesManager instance = threadInstance.get();
+        if (instance != null)
+            return instance;
+
+        synchronized (GatesManager.class) {
+            if (singleton == null)
+                singleton = new GatesManager();
+        }
 
         return singleton;
     }
 
+    /**
+     * Makes the current thread (and threads created by it afterwards) use a new,
+     * separate GatesManager instead of the single instance, so that a hardware
+     * simulator created in this thread doesn't share its gates and clock with
+     * others. If separate is false, the thread returns to using the single instance.
+     */
+    public static void useSeparateInstance(boolean separate) {
+        if (separate)
+            threadInstance.set(new GatesManager());
+        else
+            threadInstance.remove();
+    }
+
     /**
      * Returns the current HDL dir.
      */
@@ -180,6 +210,21 @@ public class GatesManager {
         return result;
     }
 
+    /**
+     * Returns the clock node, to which all the clocked gates are connected.
+     */
+    public Node getClockNode() {
+        return clockNode;
+    }
+
+    /**
+     * Restores the value of the clock node when a snapshot of the state is restored,
+     * without notifying the gates that are connected to it (which are restored as well).
+     */
+    public void restoreClock(short value) {
+        clockNode.restore(value);
+    }
+
     /**
      * Returns true if built in chips with gui should create and update their gui components.
      */
@@ -93,6 +93,20 @@ public class HDLTokenizer {
         }
     }
 
+    /**
+     * Constructs a new HDLTokenizer with the given file name, which reads the
+     * given contents of the file.
+     */
+    public HDLTokenizer(String fileName, byte[] contents) throws HDLException {
+        this.fileName = fileName;
+
+        try {
+            initizalizeInput(new InputStreamReader(new ByteArrayInputStream(contents)));
+        } catch (IOException ioe) {
+            throw new HDLException("Error while initializing for reading", fileName);
+        }
+    }
+
     public HDLTokenizer() {}
 
     /**
@@ -28,6 +28,11 @@ public class Node {
     // listeners list
     protected NodeSet listeners;
 
+    // The profiler that counts the changes of this node (null if not profiled), and the
+    // index of this node in it
+    GateProfiler profiler;
+    int profileIndex;
+
     /**
      * Constructs a new node.
      */
@@ -66,12 +71,31 @@ public class Node {
         return value;
     }
 
+    /**
+     * Sets the node's value with the given value, without notifying the listeners, when
+     * a snapshot of the state is restored. The sub-nodes that listen to this node keep
+     * their own copy of its value, so they are restored as well.
+     */
+    void restore(short value) {
+        this.value = value;
+
+        if (listeners != null)
+            for (int i = 0; i < listeners.size(); i++) {
+                Node listener = listeners.getNodeAt(i);
+                if (listener instanceof SubNode)
+                    listener.value = get();
+            }
+    }
+
     /**
      * Sets the node's value with the given value.
      * Notifies the listeners on the change by calling their set() method.
      */
     public void set(short value) {
         if (this.value != value) {
+            if (profiler != null)
+                profiler.nodeChanged(profileIndex, this.value ^ value);
+
             this.value = value;
 
             if (listeners != null)
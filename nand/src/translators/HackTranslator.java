@@ -113,7 +113,7 @@ public abstract class HackTranslator implements HackTranslatorEventListener, Act
      */
     public HackTranslator(String fileName, boolean save)
      throws HackTranslatorException {
-        if (fileName.indexOf(".") < 0)
+        if (fileName.indexOf(".") < 0 && !new File(fileName).isDirectory())
             fileName = fileName + "." + getSourceExtension();
 
         checkSourceFile(fileName);
@@ -219,9 +219,11 @@ public abstract class HackTranslator implements HackTranslatorEventListener, Act
         programSize = 0;
     }
 
-	// Checks the given source file name and throws a HackTranslatorException
-    // if not legal.
-    private void checkSourceFile(String fileName) throws HackTranslatorException {
+    /**
+     * Checks the given source file name and throws a HackTranslatorException
+     * if not legal.
+     */
+    protected void checkSourceFile(String fileName) throws HackTranslatorException {
         if (!fileName.endsWith("." + getSourceExtension()))
             throw new HackTranslatorException(fileName + " is not a ." + getSourceExtension() +
                                               " file");
@@ -265,9 +267,8 @@ public abstract class HackTranslator implements HackTranslatorEventListener, Act
 
     // Loads the given source file and displays it in the Source GUI
     private void loadSource(String fileName) throws HackTranslatorException {
-        String line;
-        Vector formattedLines = new Vector();
-        Vector lines = null;
+        Vector<String> formattedLines = new Vector<String>();
+        Vector<String> lines = null;
         String errorMessage = null;
 
         try {
@@ -287,17 +288,11 @@ public abstract class HackTranslator implements HackTranslatorEventListener, Act
             checkSourceFile(fileName);
             sourceFileName = fileName;
 
-            lines = new Vector();
-            BufferedReader sourceReader = new BufferedReader(new FileReader(sourceFileName));
+            lines = new Vector<String>();
+            readSource(formattedLines);
 
-            while((line = sourceReader.readLine()) != null) {
-                formattedLines.addElement(line);
-
-                if (gui != null)
-                    lines.addElement(line);
-            }
-
-            sourceReader.close();
+            if (gui != null)
+                lines.addAll(formattedLines);
 
             source = new String[formattedLines.size()];
             formattedLines.toArray(source);
@@ -308,8 +303,7 @@ public abstract class HackTranslator implements HackTranslatorEventListener, Act
                 gui.getSource().setContents(linesArray);
             }
 
-            destFileName = sourceFileName.substring(0,sourceFileName.indexOf('.')) +
-                             "." + getDestinationExtension();
+            destFileName = getDestinationFileName();
 
             initSource();
             restartCompilation();
@@ -336,6 +330,27 @@ public abstract class HackTranslator implements HackTranslatorEventListener, Act
         }
     }
 
+    /**
+     * Reads the lines of the source file into the given vector.
+     */
+    protected void readSource(Vector<String> lines) throws IOException, HackTranslatorException {
+        String line;
+        BufferedReader sourceReader = new BufferedReader(new FileReader(sourceFileName));
+
+        while((line = sourceReader.readLine()) != null)
+            lines.addElement(line);
+
+        sourceReader.close();
+    }
+
+    /**
+     * Returns the name of the destination file of the current source file.
+     */
+    protected String getDestinationFileName() {
+        return sourceFileName.substring(0,sourceFileName.indexOf('.')) +
+               "." + getDestinationExtension();
+    }
+
     /**
      * Initializes the source file.
      */
@@ -586,7 +601,7 @@ public abstract class HackTranslator implements HackTranslatorEventListener, Act
      */
     private void dumpToFile() {
         for (short i = 0; i < programSize; i++)
-            writer.println(getCodeString(program.getLine(i).value(), i, false));
+            writer.println(getCodeString(program.getValue(i), i, false));
         writer.close();
     }
 
@@ -297,8 +297,8 @@ public class HVMInstructionSet {
      */
     public final static String POINTER_SEGMENT_VM_STRING = "pointer";
 
-    // the single instance
-    private static HVMInstructionSet instance;
+    // the single instance (created eagerly, so that it is safely shared by threads)
+    private static final HVMInstructionSet instance = new HVMInstructionSet();
 
     // the translation table from instruction strings to codes.
     private Hashtable instructionToCode;
@@ -317,7 +317,6 @@ public class HVMInstructionSet {
 
     // Constructs the singlton HVMInstructionSet
     private HVMInstructionSet() {
-        instance = this;
         initInstructions();
         initSegmentStrings();
         initSegmentCodes();
@@ -327,8 +326,6 @@ public class HVMInstructionSet {
      * Returns the single instance of the instruction set.
      */
     public static HVMInstructionSet getInstance() {
-        if (instance == null)
-            new HVMInstructionSet();
         return instance;
     }
 
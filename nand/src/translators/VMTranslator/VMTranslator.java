@@ -0,0 +1,978 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package translators.VMTranslator;
+
+import java.io.*;
+import java.util.*;
+
+import translators.*;
+
+import common.Definitions;
+import common.fileFilters.FileFilters;
+
+/**
+ * A translator from VM code (.vm) to hack assembly (.asm).
+ * The source may be a single vm file or a directory of vm files. If the source
+ * contains a Sys.init function, the translated program starts with a bootstrap
+ * code that sets the stack pointer and calls Sys.init.
+ *
+ * The generated code is meant to run fast on the CPU Emulator:
+ * - The code for call and return is shared by all functions: each call site only
+ *   sets the number of arguments, the called function and the return address
+ *   and jumps to a common call routine, and each return jumps to a common return
+ *   routine.
+ * - Constants 0 and 1 are used directly by the ALU, without loading them.
+ * - A push followed by a pop moves the value without touching the stack, and a push
+ *   followed by a binary operation, a comparison or an if-goto uses the pushed
+ *   value directly.
+ * - A comparison (optionally followed by not) followed by an if-goto jumps on
+ *   the comparison result directly, without computing a boolean value.
+ * Comparisons are computed by subtraction. gt and lt first compare the signs of
+ * the operands, and subtract only operands of the same sign, so the subtraction
+ * never overflows.
+ */
+public class VMTranslator extends HackTranslator {
+
+    // The label of the common call routine
+    private static final String CALL_LABEL = "VM$CALL";
+
+    // The label of the common return routine
+    private static final String RETURN_LABEL = "VM$RETURN";
+
+    // The label of the halting loop after Sys.init returns
+    private static final String HALT_LABEL = "VM$HALT";
+
+    // The label of the translated code, when jumping over the common routines
+    private static final String START_LABEL = "VM$START";
+
+    // The maximal segment index that is reached by incrementing the base address
+    // (larger indice are added to the base address)
+    private static final int MAX_INCREMENTED_INDEX = 6;
+
+    // The translated assembly lines, by destination pc
+    private Vector<String> asmLines;
+
+    // The parsed source instructions, by source line (null for empty lines)
+    private HVMInstruction[] commands;
+
+    // The class name of each source line, used for static variables
+    private Vector<String> classNames;
+
+    // True if the source contains a Sys.init function
+    private boolean hasSysInit;
+
+    // True if the source contains call or return instructions
+    private boolean hasCalls;
+
+    // True after the code that precedes the translated source was written
+    private boolean startWritten;
+
+    // The index of the next source line that wasn't translated yet
+    // (lines may be translated together with a preceding line)
+    private int nextSourcePC;
+
+    // The counter of the generated labels
+    private int labelCount;
+
+    /**
+     * Constructs a new VMTranslator for the given .vm file or directory.
+     * The translated program can later be fetched using the getProgram() method.
+     * If save is true, the translated program will be saved automatically into a
+     * ".asm" file that will have the same name as the source but with the .asm
+     * extension. The file of a directory is saved in the directory, with the
+     * name of the directory.
+     */
+    public VMTranslator(String fileName, boolean save) throws HackTranslatorException {
+        super(fileName, save);
+    }
+
+    protected String getSourceExtension() {
+        return "vm";
+    }
+
+    protected String getDestinationExtension() {
+        return "asm";
+    }
+
+    protected String getName() {
+        return "VM Translator";
+    }
+
+    protected void checkSourceFile(String fileName) throws HackTranslatorException {
+        if (!new File(fileName).isDirectory())
+            super.checkSourceFile(fileName);
+    }
+
+    protected String getDestinationFileName() {
+        File file = new File(sourceFileName);
+        if (file.isDirectory())
+            return new File(file, file.getName() + "." + getDestinationExtension()).getPath();
+        else
+            return sourceFileName.substring(0, sourceFileName.lastIndexOf('.')) + "." +
+                   getDestinationExtension();
+    }
+
+    protected void readSource(Vector<String> lines) throws IOException, HackTranslatorException {
+        File file = new File(sourceFileName);
+        File[] files;
+
+        if (file.isDirectory()) {
+            files = file.listFiles(FileFilters.getFilenameFilter(getSourceExtension()));
+            if (files == null || files.length == 0)
+                throw new HackTranslatorException("No vm files found in " + sourceFileName);
+            Arrays.sort(files);
+        }
+        else
+            files = new File[]{file};
+
+        classNames = new Vector<String>();
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            String className = name.substring(0, name.indexOf("."));
+            String line;
+            BufferedReader reader = new BufferedReader(new FileReader(files[i]));
+
+            while ((line = reader.readLine()) != null) {
+                lines.addElement(line);
+                classNames.addElement(className);
+            }
+
+            reader.close();
+        }
+    }
+
+    protected void initSource() throws HackTranslatorException {
+        HVMInstructionSet instructionSet = HVMInstructionSet.getInstance();
+        Hashtable<String, String> labels = new Hashtable<String, String>();
+        String currentFunction = null;
+        boolean isSlashStar = false;
+
+        commands = new HVMInstruction[source.length];
+        hasSysInit = false;
+        hasCalls = false;
+
+        // First scan: parse the lines and collect the labels & function names
+        for (int i = 0; i < source.length; i++) {
+            String line = source[i];
+
+            // remove comments
+            if (isSlashStar) {
+                int posStarSlash = line.indexOf("*/");
+                if (posStarSlash < 0)
+                    continue;
+                isSlashStar = false;
+                line = line.substring(posStarSlash + 2);
+            }
+            int posSlashSlash = line.indexOf("//");
+            if (posSlashSlash >= 0)
+                line = line.substring(0, posSlashSlash);
+            int posSlashStar = line.indexOf("/*");
+            if (posSlashStar >= 0) {
+                int posStarSlash = line.indexOf("*/", posSlashStar + 2);
+                if (posStarSlash >= 0)
+                    line = line.substring(0, posSlashStar) + " " + line.substring(posStarSlash + 2);
+                else {
+                    isSlashStar = true;
+                    line = line.substring(0, posSlashStar);
+                }
+            }
+
+            StringTokenizer tokenizer = new StringTokenizer(line);
+            if (!tokenizer.hasMoreTokens())
+                continue;
+
+            try {
+                String instructionName = tokenizer.nextToken();
+                byte opCode = instructionSet.instructionStringToCode(instructionName);
+                HVMInstruction command;
+
+                switch (opCode) {
+                    case HVMInstructionSet.PUSH_CODE:
+                    case HVMInstructionSet.POP_CODE:
+                        String segment = tokenizer.nextToken();
+                        byte segmentCode = instructionSet.segmentVMStringToCode(segment);
+                        short index = Short.parseShort(tokenizer.nextToken());
+
+                        if (segmentCode == HVMInstructionSet.UNKNOWN_SEGMENT)
+                            throw new HackTranslatorException("Illegal memory segment - " + segment, i);
+                        if (index < 0 ||
+                            (segmentCode == HVMInstructionSet.TEMP_SEGMENT_CODE &&
+                             index >= Definitions.TEMP_END_ADDRESS - Definitions.TEMP_START_ADDRESS + 1) ||
+                            (segmentCode == HVMInstructionSet.POINTER_SEGMENT_CODE && index > 1) ||
+                            (segmentCode == HVMInstructionSet.CONST_SEGMENT_CODE &&
+                             opCode == HVMInstructionSet.POP_CODE))
+                            throw new HackTranslatorException("Illegal argument - " + source[i], i);
+
+                        command = new HVMInstruction(opCode, segmentCode, index);
+                        if (segmentCode == HVMInstructionSet.STATIC_SEGMENT_CODE)
+                            command.setStringArg(classNames.elementAt(i) + "." + index);
+                        break;
+
+                    case HVMInstructionSet.FUNCTION_CODE:
+                        currentFunction = tokenizer.nextToken();
+                        short localsCount = Short.parseShort(tokenizer.nextToken());
+                        if (localsCount < 0)
+                            throw new HackTranslatorException("Illegal argument - " + source[i], i);
+                        if (labels.containsKey(currentFunction))
+                            throw new HackTranslatorException("subroutine " + currentFunction +
+                                                              " already exists", i);
+                        labels.put(currentFunction, currentFunction);
+                        if (currentFunction.equals("Sys.init"))
+                            hasSysInit = true;
+
+                        command = new HVMInstruction(opCode, localsCount);
+                        command.setStringArg(currentFunction);
+                        break;
+
+                    case HVMInstructionSet.CALL_CODE:
+                        String functionName = tokenizer.nextToken();
+                        short argumentsCount = Short.parseShort(tokenizer.nextToken());
+                        if (argumentsCount < 0)
+                            throw new HackTranslatorException("Illegal argument - " + source[i], i);
+                        hasCalls = true;
+
+                        command = new HVMInstruction(opCode, argumentsCount);
+                        command.setStringArg(functionName);
+                        break;
+
+                    case HVMInstructionSet.LABEL_CODE:
+                    case HVMInstructionSet.GOTO_CODE:
+                    case HVMInstructionSet.IF_GOTO_CODE:
+                        String label = tokenizer.nextToken();
+                        if (currentFunction != null)
+                            label = currentFunction + "$" + label;
+                        if (opCode == HVMInstructionSet.LABEL_CODE)
+                            labels.put(label, label);
+
+                        command = new HVMInstruction(opCode);
+                        command.setStringArg(label);
+                        break;
+
+                    case HVMInstructionSet.UNKNOWN_INSTRUCTION:
+                        throw new HackTranslatorException("unknown instruction - " + instructionName, i);
+
+                    default:
+                        if (opCode == HVMInstructionSet.RETURN_CODE)
+                            hasCalls = true;
+                        command = new HVMInstruction(opCode);
+                        break;
+                }
+
+                if (tokenizer.hasMoreTokens())
+                    throw new HackTranslatorException("Too many arguments - " + source[i], i);
+
+                commands[i] = command;
+            } catch (NumberFormatException nfe) {
+                throw new HackTranslatorException("Illegal 16-bit value", i);
+            } catch (NoSuchElementException nsee) {
+                throw new HackTranslatorException("unexpected end of command", i);
+            }
+        }
+
+        if (isSlashStar)
+            throw new HackTranslatorException("Unterminated /* comment at end of file");
+
+        // Second scan: check that all the jumps and calls have targets
+        for (int i = 0; i < commands.length; i++) {
+            if (commands[i] != null) {
+                switch (commands[i].getOpCode()) {
+                    case HVMInstructionSet.GOTO_CODE:
+                    case HVMInstructionSet.IF_GOTO_CODE:
+                        if (!labels.containsKey(commands[i].getStringArg()))
+                            throw new HackTranslatorException("Unknown label - " +
+                                                              commands[i].getStringArg(), i);
+                        break;
+                    case HVMInstructionSet.CALL_CODE:
+                        if (!labels.containsKey(commands[i].getStringArg()))
+                            throw new HackTranslatorException("Unknown function - " +
+                                                              commands[i].getStringArg(), i);
+                        break;
+                }
+            }
+        }
+    }
+
+    protected void restartCompilation() {
+        super.restartCompilation();
+
+        asmLines = new Vector<String>();
+        startWritten = false;
+        nextSourcePC = 0;
+        labelCount = 0;
+    }
+
+    protected void initCompilation() throws HackTranslatorException {
+    }
+
+    protected void finalizeCompilation() {
+    }
+
+    protected String getCodeString(short code, int pc, boolean display) {
+        return asmLines.elementAt(pc);
+    }
+
+    protected void compileLine(String line) throws HackTranslatorException {
+        if (!startWritten) {
+            writeStart();
+            startWritten = true;
+        }
+
+        if (sourcePC < nextSourcePC || commands[sourcePC] == null)
+            return;
+
+        int lastPC;
+        HVMInstruction command = commands[sourcePC];
+
+        switch (command.getOpCode()) {
+            case HVMInstructionSet.PUSH_CODE:
+                lastPC = writePush(sourcePC);
+                break;
+
+            case HVMInstructionSet.POP_CODE:
+                writePop(command);
+                lastPC = sourcePC;
+                break;
+
+            case HVMInstructionSet.EQUAL_CODE:
+            case HVMInstructionSet.GREATER_THAN_CODE:
+            case HVMInstructionSet.LESS_THAN_CODE:
+                lastPC = writeComparison(sourcePC, null);
+                break;
+
+            case HVMInstructionSet.NOT_CODE:
+                int next = nextCommand(sourcePC);
+                if (next >= 0 && commands[next].getOpCode() == HVMInstructionSet.IF_GOTO_CODE) {
+                    // jump if the bitwise not of the top of the stack isn't 0
+                    write("@SP");
+                    write("AM=M-1");
+                    write("D=!M");
+                    write("@" + commands[next].getStringArg());
+                    write("D;JNE");
+                    lastPC = next;
+                }
+                else {
+                    writeUnary("!M");
+                    lastPC = sourcePC;
+                }
+                break;
+
+            case HVMInstructionSet.NEGATE_CODE:
+                writeUnary("-M");
+                lastPC = sourcePC;
+                break;
+
+            case HVMInstructionSet.ADD_CODE:
+            case HVMInstructionSet.SUBSTRACT_CODE:
+            case HVMInstructionSet.AND_CODE:
+            case HVMInstructionSet.OR_CODE:
+                write("@SP");
+                write("AM=M-1");
+                write("D=M");
+                write("A=A-1");
+                write("M=" + binaryExpression(command.getOpCode(), "D"));
+                lastPC = sourcePC;
+                break;
+
+            case HVMInstructionSet.LABEL_CODE:
+                write("(" + command.getStringArg() + ")");
+                lastPC = sourcePC;
+                break;
+
+            case HVMInstructionSet.GOTO_CODE:
+                write("@" + command.getStringArg());
+                write("0;JMP");
+                lastPC = sourcePC;
+                break;
+
+            case HVMInstructionSet.IF_GOTO_CODE:
+                write("@SP");
+                write("AM=M-1");
+                write("D=M");
+                write("@" + command.getStringArg());
+                write("D;JNE");
+                lastPC = sourcePC;
+                break;
+
+            case HVMInstructionSet.FUNCTION_CODE:
+                writeFunction(command);
+                lastPC = sourcePC;
+                break;
+
+            case HVMInstructionSet.CALL_CODE:
+                writeCall(command.getStringArg(), command.getArg0());
+                lastPC = sourcePC;
+                break;
+
+            default: // RETURN_CODE
+                write("@" + RETURN_LABEL);
+                write("0;JMP");
+                lastPC = sourcePC;
+                break;
+        }
+
+        nextSourcePC = lastPC + 1;
+    }
+
+    // Adds the given assembly line to the program
+    private void write(String line) throws HackTranslatorException {
+        asmLines.addElement(line);
+        addCommand((short)0);
+    }
+
+    // Returns a new unique label with the given prefix
+    private String newLabel(String prefix) {
+        return prefix + "." + (labelCount++);
+    }
+
+    // Returns the index of the next source line with a command after the given
+    // line, or -1 if there is none.
+    private int nextCommand(int pc) {
+        for (pc++; pc < commands.length; pc++)
+            if (commands[pc] != null)
+                return pc;
+        return -1;
+    }
+
+    // Returns the opcode of the command in the given source line, or
+    // UNKNOWN_INSTRUCTION if the line is -1.
+    private int opCodeAt(int pc) {
+        return pc >= 0 ? commands[pc].getOpCode() : HVMInstructionSet.UNKNOWN_INSTRUCTION;
+    }
+
+    // Returns true if the given opcode is of a comparison instruction
+    private static boolean isComparison(int opCode) {
+        return opCode == HVMInstructionSet.EQUAL_CODE ||
+               opCode == HVMInstructionSet.GREATER_THAN_CODE ||
+               opCode == HVMInstructionSet.LESS_THAN_CODE;
+    }
+
+    // Returns true if the given opcode is of an add, sub, and or or instruction
+    private static boolean isBinary(int opCode) {
+        return opCode == HVMInstructionSet.ADD_CODE ||
+               opCode == HVMInstructionSet.SUBSTRACT_CODE ||
+               opCode == HVMInstructionSet.AND_CODE ||
+               opCode == HVMInstructionSet.OR_CODE;
+    }
+
+    // Returns the ALU expression of the given binary instruction with M as the
+    // first operand and the given expression (D or 1) as the second.
+    private static String binaryExpression(int opCode, String operand) {
+        switch (opCode) {
+            case HVMInstructionSet.ADD_CODE:
+                return "M+" + operand;
+            case HVMInstructionSet.SUBSTRACT_CODE:
+                return "M-" + operand;
+            case HVMInstructionSet.AND_CODE:
+                return operand + "&M";
+            default: // OR_CODE
+                return operand + "|M";
+        }
+    }
+
+    // Returns the jump mnemonic of the given comparison (negated if negate is true)
+    private static String comparisonJump(int opCode, boolean negate) {
+        switch (opCode) {
+            case HVMInstructionSet.EQUAL_CODE:
+                return negate ? "JNE" : "JEQ";
+            case HVMInstructionSet.GREATER_THAN_CODE:
+                return negate ? "JLE" : "JGT";
+            default: // LESS_THAN_CODE
+                return negate ? "JGE" : "JLT";
+        }
+    }
+
+    // Writes the code that precedes the translated source: the bootstrap code,
+    // and the common call & return routines.
+    private void writeStart() throws HackTranslatorException {
+        if (hasSysInit) {
+            write("@" + Definitions.STACK_START_ADDRESS);
+            write("D=A");
+            write("@SP");
+            write("M=D");
+            writeCall("Sys.init", 0);
+            write("(" + HALT_LABEL + ")");
+            write("@" + HALT_LABEL);
+            write("0;JMP");
+        }
+        else if (hasCalls) {
+            write("@" + START_LABEL);
+            write("0;JMP");
+        }
+
+        if (hasSysInit || hasCalls) {
+            // The call routine: R13 = number of arguments, R14 = function address,
+            // D = return address
+            write("(" + CALL_LABEL + ")");
+            write("@SP");
+            write("A=M");
+            write("M=D");
+            writeSaveSegment("LCL");
+            writeSaveSegment("ARG");
+            writeSaveSegment("THIS");
+            writeSaveSegment("THAT");
+            write("@SP");
+            write("MD=M+1");
+            write("@LCL");
+            write("M=D");
+            write("@R13");
+            write("D=D-M");
+            write("@5");
+            write("D=D-A");
+            write("@ARG");
+            write("M=D");
+            write("@R14");
+            write("A=M");
+            write("0;JMP");
+
+            // The return routine
+            write("(" + RETURN_LABEL + ")");
+            write("@5");
+            write("D=A");
+            write("@LCL");
+            write("A=M-D");
+            write("D=M");
+            write("@R14");
+            write("M=D");
+            write("@SP");
+            write("AM=M-1");
+            write("D=M");
+            write("@ARG");
+            write("A=M");
+            write("M=D");
+            write("D=A+1");
+            write("@SP");
+            write("M=D");
+            writeRestoreSegment("THAT");
+            writeRestoreSegment("THIS");
+            writeRestoreSegment("ARG");
+            writeRestoreSegment("LCL");
+            write("@R14");
+            write("A=M");
+            write("0;JMP");
+        }
+
+        if (!hasSysInit && hasCalls)
+            write("(" + START_LABEL + ")");
+    }
+
+    // Writes the code that pushes the given pointer in the call routine
+    // (the top of the stack is the last written value).
+    private void writeSaveSegment(String pointer) throws HackTranslatorException {
+        write("@" + pointer);
+        write("D=M");
+        write("@SP");
+        write("AM=M+1");
+        write("M=D");
+    }
+
+    // Writes the code that restores the given pointer from the frame in
+    // the return routine.
+    private void writeRestoreSegment(String pointer) throws HackTranslatorException {
+        write("@LCL");
+        write("AM=M-1");
+        write("D=M");
+        write("@" + pointer);
+        write("M=D");
+    }
+
+    // Writes the code of a call to the given function with the given number
+    // of arguments.
+    private void writeCall(String functionName, int argumentsCount)
+     throws HackTranslatorException {
+        String returnLabel = newLabel("VM$RET");
+
+        if (argumentsCount <= 1) {
+            write("@R13");
+            write("M=" + argumentsCount);
+        }
+        else {
+            write("@" + argumentsCount);
+            write("D=A");
+            write("@R13");
+            write("M=D");
+        }
+        write("@" + functionName);
+        write("D=A");
+        write("@R14");
+        write("M=D");
+        write("@" + returnLabel);
+        write("D=A");
+        write("@" + CALL_LABEL);
+        write("0;JMP");
+        write("(" + returnLabel + ")");
+    }
+
+    // Writes the code of the given function instruction
+    private void writeFunction(HVMInstruction command) throws HackTranslatorException {
+        int localsCount = command.getArg0();
+
+        write("(" + command.getStringArg() + ")");
+        if (localsCount == 1) {
+            write("@SP");
+            write("M=M+1");
+            write("A=M-1");
+            write("M=0");
+        }
+        else if (localsCount > 1) {
+            write("@SP");
+            write("A=M");
+            for (int i = 0; i < localsCount; i++) {
+                write("M=0");
+                write("A=A+1");
+            }
+            write("D=A");
+            write("@SP");
+            write("M=D");
+        }
+    }
+
+    // Writes the code of a unary operation on the top of the stack with the
+    // given ALU expression.
+    private void writeUnary(String expression) throws HackTranslatorException {
+        write("@SP");
+        write("A=M-1");
+        write("M=" + expression);
+    }
+
+    // Writes the code of the push instruction in the given source line, fused
+    // with the following instructions when possible. Returns the last source line
+    // that was translated.
+    private int writePush(int pc) throws HackTranslatorException {
+        HVMInstruction command = commands[pc];
+        int next = nextCommand(pc);
+        int nextOpCode = opCodeAt(next);
+
+        if (nextOpCode == HVMInstructionSet.POP_CODE) {
+            // move the value directly
+            writeStore(commands[next], writeLoad(command));
+            return next;
+        }
+
+        if (isBinary(nextOpCode)) {
+            // apply the operation with the pushed value as the second operand
+            String value = writeLoad(command);
+            if (value.equals("0") && (nextOpCode == HVMInstructionSet.ADD_CODE ||
+                                      nextOpCode == HVMInstructionSet.SUBSTRACT_CODE ||
+                                      nextOpCode == HVMInstructionSet.OR_CODE))
+                return next; // nothing to do
+
+            if (value.equals("0")) { // and with 0
+                write("@SP");
+                write("A=M-1");
+                write("M=0");
+            }
+            else {
+                if (value.equals("1") && nextOpCode != HVMInstructionSet.ADD_CODE &&
+                    nextOpCode != HVMInstructionSet.SUBSTRACT_CODE) {
+                    write("D=1");
+                    value = "D";
+                }
+                write("@SP");
+                write("A=M-1");
+                write("M=" + binaryExpression(nextOpCode, value));
+            }
+            return next;
+        }
+
+        if (isComparison(nextOpCode)) {
+            // compare the top of the stack with the pushed value
+            writeLoadD(command);
+            return writeComparison(next, "D");
+        }
+
+        if (nextOpCode == HVMInstructionSet.IF_GOTO_CODE) {
+            // jump on the pushed value
+            String value = writeLoad(command);
+            if (value.equals("1")) {
+                write("@" + commands[next].getStringArg());
+                write("0;JMP");
+            }
+            else if (value.equals("D")) {
+                write("@" + commands[next].getStringArg());
+                write("D;JNE");
+            }
+            return next;
+        }
+
+        String value = writeLoad(command);
+        write("@SP");
+        write("M=M+1");
+        write("A=M-1");
+        write("M=" + value);
+        return pc;
+    }
+
+    // Writes the code of the comparison instruction in the given source line, fused
+    // with the following not and if-goto when possible. If secondOperand is "D",
+    // D holds the second operand of the comparison (which isn't in the stack).
+    // Returns the last source line that was translated.
+    private int writeComparison(int pc, String secondOperand) throws HackTranslatorException {
+        int opCode = commands[pc].getOpCode();
+        int next = nextCommand(pc);
+        boolean negate = false;
+
+        if (opCodeAt(next) == HVMInstructionSet.NOT_CODE &&
+            opCodeAt(nextCommand(next)) == HVMInstructionSet.IF_GOTO_CODE) {
+            negate = true;
+            next = nextCommand(next);
+        }
+
+        write("@SP");
+        if (secondOperand == null) {
+            write("AM=M-1");
+            write("D=M");
+            write("A=A-1");
+        }
+        else
+            write("A=M-1");
+
+        boolean addressed = writeDifference(opCode);
+
+        if (opCodeAt(next) == HVMInstructionSet.IF_GOTO_CODE) {
+            // jump on the comparison result, removing the first operand
+            write("@SP");
+            write("M=M-1");
+            write("@" + commands[next].getStringArg());
+            write("D;" + comparisonJump(opCode, negate));
+            return next;
+        }
+
+        String trueLabel = newLabel("VM$CMP");
+        if (!addressed) {
+            write("@SP");
+            write("A=M-1");
+        }
+        write("M=-1");
+        write("@" + trueLabel);
+        write("D;" + comparisonJump(opCode, false));
+        write("@SP");
+        write("A=M-1");
+        write("M=0");
+        write("(" + trueLabel + ")");
+        return pc;
+    }
+
+    // Writes the code that sets D to a value whose sign is the sign of the
+    // difference between the first operand of the given comparison (in M, at the
+    // top of the stack) and the second operand (in D). For eq the difference is
+    // computed directly, since a wrapped difference is 0 only if the operands are
+    // equal. For gt and lt operands of different signs are compared by their signs,
+    // so the subtraction never overflows. Returns true if A still addresses the
+    // first operand when the code ends.
+    private boolean writeDifference(int opCode) throws HackTranslatorException {
+        if (opCode == HVMInstructionSet.EQUAL_CODE) {
+            write("D=M-D");
+            return true;
+        }
+
+        String negativeLabel = newLabel("VM$NEG");
+        String sameSignLabel = newLabel("VM$SAME");
+        String endLabel = newLabel("VM$DIFF");
+
+        write("@R13");
+        write("M=D");
+        write("@SP");
+        write("A=M-1");
+        write("D=M");
+        write("@" + negativeLabel);
+        write("D;JLT");
+
+        // the first operand isn't negative: it is greater if the second is
+        write("@R13");
+        write("D=M");
+        write("@" + sameSignLabel);
+        write("D;JGE");
+        write("D=1");
+        write("@" + endLabel);
+        write("0;JMP");
+
+        // the first operand is negative: it is less if the second isn't
+        write("(" + negativeLabel + ")");
+        write("@R13");
+        write("D=M");
+        write("@" + sameSignLabel);
+        write("D;JLT");
+        write("D=-1");
+        write("@" + endLabel);
+        write("0;JMP");
+
+        write("(" + sameSignLabel + ")");
+        write("@SP");
+        write("A=M-1");
+        write("D=M");
+        write("@R13");
+        write("D=D-M");
+        write("(" + endLabel + ")");
+        return false;
+    }
+
+    // Writes the code of the given pop instruction
+    private void writePop(HVMInstruction command) throws HackTranslatorException {
+        int index = command.getArg1();
+        String pointer = segmentPointer(command);
+
+        if (pointer != null && index > MAX_INCREMENTED_INDEX) {
+            // compute the address before popping
+            write("@" + index);
+            write("D=A");
+            write("@" + pointer);
+            write("D=D+M");
+            write("@R13");
+            write("M=D");
+            write("@SP");
+            write("AM=M-1");
+            write("D=M");
+            write("@R13");
+            write("A=M");
+            write("M=D");
+        }
+        else {
+            write("@SP");
+            write("AM=M-1");
+            write("D=M");
+            writeStore(command, "D");
+        }
+    }
+
+    // Returns the name of the pointer of the segment of the given push or pop
+    // instruction, or null if the segment is not pointed.
+    private static String segmentPointer(HVMInstruction command) {
+        switch (command.getArg0()) {
+            case HVMInstructionSet.LOCAL_SEGMENT_CODE:
+                return "LCL";
+            case HVMInstructionSet.ARG_SEGMENT_CODE:
+                return "ARG";
+            case HVMInstructionSet.THIS_SEGMENT_CODE:
+                return "THIS";
+            case HVMInstructionSet.THAT_SEGMENT_CODE:
+                return "THAT";
+            default:
+                return null;
+        }
+    }
+
+    // Returns the symbol of the address of the given push or pop instruction if
+    // the segment is not pointed (and not constant).
+    private static String directAddress(HVMInstruction command) {
+        switch (command.getArg0()) {
+            case HVMInstructionSet.TEMP_SEGMENT_CODE:
+                return "R" + (Definitions.TEMP_START_ADDRESS + command.getArg1());
+            case HVMInstructionSet.POINTER_SEGMENT_CODE:
+                return command.getArg1() == 0 ? "THIS" : "THAT";
+            default: // STATIC_SEGMENT_CODE
+                return command.getStringArg();
+        }
+    }
+
+    // Writes the code that sets A to the address of the given pointed segment
+    // entry. D is used if the index is too large to be incremented.
+    private void writePointedAddress(String pointer, int index) throws HackTranslatorException {
+        if (index > MAX_INCREMENTED_INDEX) {
+            write("@" + index);
+            write("D=A");
+            write("@" + pointer);
+            write("A=D+M");
+        }
+        else {
+            write("@" + pointer);
+            if (index == 0)
+                write("A=M");
+            else {
+                write("A=M+1");
+                for (int i = 1; i < index; i++)
+                    write("A=A+1");
+            }
+        }
+    }
+
+    // Writes the code that loads the value of the given push instruction and
+    // returns the ALU expression of the value: "0" or "1" for these constants
+    // (no code is written), and "D" for any other value, which is loaded to D.
+    private String writeLoad(HVMInstruction command) throws HackTranslatorException {
+        int index = command.getArg1();
+        String pointer = segmentPointer(command);
+
+        if (command.getArg0() == HVMInstructionSet.CONST_SEGMENT_CODE) {
+            if (index <= 1)
+                return String.valueOf(index);
+            write("@" + index);
+            write("D=A");
+        }
+        else {
+            if (pointer != null)
+                writePointedAddress(pointer, index);
+            else
+                write("@" + directAddress(command));
+            write("D=M");
+        }
+
+        return "D";
+    }
+
+    // Writes the code that loads the value of the given push instruction to D
+    private void writeLoadD(HVMInstruction command) throws HackTranslatorException {
+        String value = writeLoad(command);
+        if (!value.equals("D"))
+            write("D=" + value);
+    }
+
+    // Writes the code that stores the given ALU expression ("0", "1" or "D")
+    // according to the given pop instruction.
+    private void writeStore(HVMInstruction command, String value) throws HackTranslatorException {
+        int index = command.getArg1();
+        String pointer = segmentPointer(command);
+
+        if (pointer == null)
+            write("@" + directAddress(command));
+        else if (index <= MAX_INCREMENTED_INDEX || !value.equals("D"))
+            writePointedAddress(pointer, index);
+        else {
+            // D holds the value: keep it aside while computing the address
+            write("@R13");
+            write("M=D");
+            write("@" + index);
+            write("D=A");
+            write("@" + pointer);
+            write("D=D+M");
+            write("@R14");
+            write("M=D");
+            write("@R13");
+            write("D=M");
+            write("@R14");
+            write("A=M");
+        }
+        write("M=" + value);
+    }
+
+    /**
+     * The command line VM Translator program.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: java VMTranslator <.vm file or directory name>");
+            System.exit(-1);
+        }
+
+        try {
+            new VMTranslator(args[0], true);
+        } catch (HackTranslatorException hte) {
+            System.err.println(hte.getMessage());
+            System.exit(1);
+        }
+    }
+}
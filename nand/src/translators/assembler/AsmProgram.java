@@ -17,22 +17,41 @@
 
 package translators.assembler;
 
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
 
 import common.Conversions;
 import common.Definitions;
 import common.collections.BidiMap;
 
 /**
- * Represents an assembly program
+ * Represents an assembly program.
+ * The lines are kept in arrays (code values, comments, labels and line numbers),
+ * so that each line can be accessed directly by its index.
  * 
  * @author shaide
  */
 public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	
-	private LinkedList<AsmLine> program;
+	//the initial capacity of the line arrays
+	private static final int INITIAL_CAPACITY = 256;
+	
+	//the code value of each line
+	private short[] values;
+	
+	//the comment and label of each line (null until the first line that has one)
+	private String[] comments;
+	private String[] labels;
+	
+	//the line number (without comments) of each line
+	private int[] lineNumbers;
+	
+	//the number of lines
+	private int size;
 	
 	//current line number (without comments)
 	private int line;
@@ -40,7 +59,11 @@ public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	//Symbol table
 	private BidiMap<String, Short> symbols;
 	
-	private AsmLine lastLine;
+	//the symbols which were added by addLabel (the variables)
+	private Set<String> variables;
+	
+	//the index of the last line with assembly logic (-1 if none)
+	private int lastLine;
 	
 	
 	/** A numeric value which represents a line with no assembly logic */
@@ -54,9 +77,7 @@ public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	 * Instantiates a new assembly program with the default symbol table
 	 */
 	public AsmProgram() {
-		symbols = Definitions.getInstance().getAddressesTable();
-		program = new LinkedList<AsmLine>();
-		line = 0;
+		this(Definitions.getInstance().getAddressesTable());
 	}
 	
 	/**
@@ -64,8 +85,12 @@ public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	 */
 	public AsmProgram(BidiMap<String, Short> symbols) {
 		this.symbols = symbols;
-		program = new LinkedList<AsmLine>();
+		variables = new HashSet<String>();
+		values = new short[INITIAL_CAPACITY];
+		lineNumbers = new int[INITIAL_CAPACITY];
+		size = 0;
 		line = 0;
+		lastLine = -1;
 	}
 	
 	/**
@@ -76,9 +101,29 @@ public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	public boolean addLabel(short line, String label){
 		if (symbols.containsKey(label)) return false;
 		symbols.put(label, line);
+		variables.add(label);
 		return true;
 	}
 	
+	/**
+	 * Returns the labels of program lines: the symbols which are neither
+	 * predefined nor added by addLabel. A line with several labels gets the
+	 * first one in alphabetical order.
+	 * 
+	 * @return the labels, sorted by their line numbers
+	 */
+	public TreeMap<Short, String> getCodeLabels(){
+		Set<String> predefined = Definitions.getInstance().getAddressesTable().keySet();
+		TreeMap<Short, String> result = new TreeMap<Short, String>();
+		for (Map.Entry<String, Short> symbol : symbols.entrySet()) {
+			String name = symbol.getKey();
+			if (predefined.contains(name) || variables.contains(name)) continue;
+			String other = result.get(symbol.getValue());
+			if (other == null || name.compareTo(other) < 0) result.put(symbol.getValue(), name);
+		}
+		return result;
+	}
+	
 	/**
 	 * returns a copy of the symbol Table
 	 * 
@@ -93,19 +138,20 @@ public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	 * 
 	 * @param value the short value of the hack command
 	 * @param comment a comment to the line
-	 * @param label a label to the line
 	 */
 	public void addLine(short value, String comment){
-		AsmLine added = new AsmLine(value, comment, symbols.getKey((short) line), line);
-		program.add(added);
+		if (size == values.length) grow();
+		putLine(size, value, comment, symbols.getKey((short) line), line);
 		if (value!=NULL_VALUE) {
-			lastLine = added;
+			lastLine = size;
 			line++;
 		}
+		size++;
 	}
 	
 	/**
-	 * Changes an existing line in the program
+	 * Changes an existing line in the program, or adds it if the line number
+	 * is the size of the program
 	 * 
 	 * @param line the line number
 	 * @param value the short value of the hack command
@@ -113,7 +159,12 @@ public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	 * @param label a label to the line
 	 */
 	public void setLine(int line, short value, String comment, String label){
-		program.add(line, new AsmLine(value, comment, label, line));
+		if (line < 0 || line > size) throw new IndexOutOfBoundsException("Line: " + line);
+		if (line == size) {
+			if (size == values.length) grow();
+			size++;
+		}
+		putLine(line, value, comment, label, line);
 	}
 	
 	/**
@@ -123,7 +174,34 @@ public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	 * @return the line
 	 */
 	public AsmLine getLine(int index){
-		return program.get(index);
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index);
+		return new AsmLine(values[index], comments != null ? comments[index] : null,
+				labels != null ? labels[index] : null, lineNumbers[index]);
+	}
+	
+	/**
+	 * Returns the value of a program line, without creating its AsmLine
+	 * 
+	 * @param index the line index
+	 * @return the short value of the hack command
+	 */
+	public short getValue(int index){
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index);
+		return values[index];
+	}
+	
+	/**
+	 * Copies the values of the lines with assembly logic (in order) into the
+	 * given array, as far as it fits
+	 * 
+	 * @param code the destination array
+	 * @return the number of values copied
+	 */
+	public int getCode(short[] code){
+		int count = 0;
+		for (int i = 0; i < size && count < code.length; i++)
+			if (values[i] != NULL_VALUE) code[count++] = values[i];
+		return count;
 	}
 	
 	/**
@@ -132,7 +210,7 @@ public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	 * @return the last line added
 	 */
 	public AsmLine lastLine() {
-		return lastLine;
+		return lastLine != -1 ? getLine(lastLine) : null;
 	}
 	
 	/**
@@ -141,7 +219,7 @@ public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	 * @return the length of the program
 	 */
 	public int size(){
-		return program.size();
+		return size;
 	}
 	
 	/**
@@ -150,34 +228,73 @@ public class AsmProgram implements Iterable<AsmProgram.AsmLine>{
 	 * @return an iterator of the assembly lines
 	 */
 	public Iterator<AsmLine> iteratorWithComments() {
-		return program.iterator();
+		return new LineIterator(false);
 	}
 	
 	
 	@Override
 	public Iterator<AsmLine> iterator() {
-		return new Iterator<AsmLine>(){
-
-			Iterator<AsmLine> program = iterator();
-			AsmLine current;
+		return new LineIterator(true);
+	}
+	
+	//puts the given line at the given index (which must be in the arrays)
+	private void putLine(int index, short value, String comment, String label, int lineNumber) {
+		values[index] = value;
+		lineNumbers[index] = lineNumber;
+		if (comment != null && comments == null) comments = new String[values.length];
+		if (comments != null) comments[index] = comment;
+		if (label != null && labels == null) labels = new String[values.length];
+		if (labels != null) labels[index] = label;
+	}
+	
+	//doubles the capacity of the line arrays
+	private void grow() {
+		int capacity = values.length * 2;
+		short[] newValues = new short[capacity];
+		System.arraycopy(values, 0, newValues, 0, size);
+		values = newValues;
+		int[] newLineNumbers = new int[capacity];
+		System.arraycopy(lineNumbers, 0, newLineNumbers, 0, size);
+		lineNumbers = newLineNumbers;
+		if (comments != null) {
+			String[] newComments = new String[capacity];
+			System.arraycopy(comments, 0, newComments, 0, size);
+			comments = newComments;
+		}
+		if (labels != null) {
+			String[] newLabels = new String[capacity];
+			System.arraycopy(labels, 0, newLabels, 0, size);
+			labels = newLabels;
+		}
+	}
+	
+	//an iterator of the lines, which may skip the lines with no assembly logic
+	private class LineIterator implements Iterator<AsmLine> {
+		
+		private final boolean skipComments;
+		private int next;
+		
+		LineIterator(boolean skipComments) {
+			this.skipComments = skipComments;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (skipComments)
+				while (next < size && values[next] == NULL_VALUE) next++;
+			return next < size;
+		}
+		
+		@Override
+		public AsmLine next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return getLine(next++);
+		}
+		
+		@Override
+		public void remove() {
 			
-			@Override
-			public boolean hasNext() {
-				while (program.hasNext()) if ((current = program.next()).value() != NULL_VALUE) return true;
-				return false;
-			}
-
-			@Override
-			public AsmLine next() {
-				if (hasNext()) return current;
-				else throw new NoSuchElementException();
-			}
-
-			@Override
-			public void remove() {
-
-			}
-		};
+		}
 	}
 	
 	/**
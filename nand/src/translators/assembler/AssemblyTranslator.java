@@ -19,6 +19,8 @@ package translators.assembler;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import simulators.GUI.components.ProgramComponent;
 import translators.*;
@@ -87,8 +89,8 @@ public class AssemblyTranslator {
 	private static final Short JMP_LESS_EQUAL   = new Short((short)0x6);
 	private static final Short JMP_GREATER_EQUAL = new Short((short)0x3);
 
-	// the single instance
-	private static AssemblyTranslator instance;
+	// the single instance (created eagerly, so that it is safely shared by threads)
+	private static final AssemblyTranslator instance = new AssemblyTranslator();
 
 	// The translation tables from text to codes
 	private Hashtable<String,Short> expToCode, destToCode, jmpToCode;
@@ -101,7 +103,6 @@ public class AssemblyTranslator {
 	 * Creates a new translator.
 	 */
 	private AssemblyTranslator() {
-		instance = this;
 		initExp();
 		initDest();
 		initJmp();
@@ -111,8 +112,6 @@ public class AssemblyTranslator {
 	 * Returns the single instance of the translator.
 	 */
 	public static AssemblyTranslator getInstance() {
-		if (instance == null)
-			new AssemblyTranslator();
 		return instance;
 	}
 
@@ -310,27 +309,14 @@ public class AssemblyTranslator {
 
 		if (fileName.endsWith(".hack")) {
 			try {
-				BufferedReader reader = new BufferedReader(new FileReader(fileName));
-				String line;
-				int pc = 0;
-
-				while ((line = reader.readLine()) != null) {
-
-					short value = 0;
-
-					if (pc >= AsmProgram.MAXIMUM_PROGRAM_SIZE)
-						throw new AssemblerException("Program too large");
-
-					try {
-						value = (short)Conversions.binaryToInt(line);
-					} catch (NumberFormatException nfe) {
-						throw new AssemblerException("Illegal character");
-					}
-					prog.addLine(value, null);
-					pc++;
+				RandomAccessFile input = new RandomAccessFile(file, "r");
+				try {
+					FileChannel channel = input.getChannel();
+					loadHackProgram(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+									prog);
+				} finally {
+					input.close();
 				}
-
-				reader.close();
 			} catch (IOException ioe) {
 				throw new AssemblerException("IO error while reading " + fileName);
 			}
@@ -348,6 +334,40 @@ public class AssemblyTranslator {
 
 		return prog;
 	}
+
+	// Adds the binary lines of a .hack file in the given buffer to the given program.
+	// A line is ended by \n, \r or \r\n, and its value is given by its last 16 bits.
+	private static void loadHackProgram(ByteBuffer buffer, AsmProgram prog)
+	throws AssemblerException {
+		int pc = 0;
+		int limit = buffer.limit();
+		int position = 0;
+
+		while (position < limit) {
+			if (pc >= AsmProgram.MAXIMUM_PROGRAM_SIZE)
+				throw new AssemblerException("Program too large");
+
+			int value = 0;
+			byte c;
+			while (position < limit && (c = buffer.get(position)) != '\n' && c != '\r') {
+				if (c == '1')
+					value = (value << 1) | 1;
+				else if (c == '0')
+					value = value << 1;
+				else
+					throw new AssemblerException("Illegal character");
+				position++;
+			}
+
+			if (position < limit && buffer.get(position++) == '\r' &&
+					position < limit && buffer.get(position) == '\n')
+				position++;
+
+			prog.addLine((short)value, null);
+			pc++;
+		}
+	}
+
 	//    public static short[] loadProgram(String fileName)
 	//     throws AssemblerException {
 	//        short[] memory = null;
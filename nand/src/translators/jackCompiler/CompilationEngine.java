@@ -1,5 +1,6 @@
 package translators.jackCompiler;
 
+import java.io.*;
 import java.util.*;
 
 import translators.VMTranslator.*;
@@ -29,13 +30,13 @@ public class CompilationEngine {
     private SymbolTable identifiers;
 
 	// All declared subroutines so far
-	private HashMap subroutines;
+	private HashMap<String, Object[]> subroutines;
 
 	// All classes compiled successfully so far
-	private HashSet classes;
+	private HashSet<String> classes;
 
 	// All called internal subroutines so far
-	private Vector subroutineCalls;
+	private Vector<Object[]> subroutineCalls;
 
     // Counts the number of "if" statements in a method - used to create
     // unique labels
@@ -61,13 +62,53 @@ public class CompilationEngine {
 	// (= in the current file / current validation)
 	private boolean validJack;
 
+	// If true, constant expressions are folded and unreachable branches
+	// are not written
+	private boolean optimize;
+
+	// The stream to which errors and warnings are reported
+	private PrintStream errorStream;
+
 /*************************************************************************************************/
 public /* Constructor
 /*************************************************************************************************/
 	CompilationEngine() {
-		classes = new HashSet();
-		subroutines = new HashMap();
-		subroutineCalls = new Vector();
+		classes = new HashSet<String>();
+		subroutines = new HashMap<String, Object[]>();
+		subroutineCalls = new Vector<Object[]>();
+		errorStream = System.err;
+	}
+
+	/**
+	 * Sets whether the compiled code is optimized: constant expressions are
+	 * folded (including * and / without calling the OS), multiplications
+	 * by powers of two are reduced to additions, and branches of if and
+	 * while statements with constant conditions are not written when
+	 * unreachable.
+	 */
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
+	}
+
+	/**
+	 * Sets the stream to which errors and warnings are reported
+	 * (System.err by default).
+	 */
+	public void setErrorStream(PrintStream errorStream) {
+		this.errorStream = errorStream;
+	}
+
+	/**
+	 * Adds the subroutine declarations, the successfully compiled classes
+	 * and the subroutine calls collected by the given CompilationEngine to
+	 * the ones of this CompilationEngine, as if its classes were compiled
+	 * by this CompilationEngine. Calls are verified by verifySubroutineCalls
+	 * after the calls already collected, in the order they were collected.
+	 */
+	public void merge(CompilationEngine engine) {
+		subroutines.putAll(engine.subroutines);
+		classes.addAll(engine.classes);
+		subroutineCalls.addAll(engine.subroutineCalls);
 	}
 
 /*************************************************************************************************/
@@ -143,10 +184,10 @@ public /* Constructor
 	 */
 	public boolean verifySubroutineCalls() {
 		validJack = true;
-		Iterator i = subroutineCalls.iterator();
+		Iterator<Object[]> i = subroutineCalls.iterator();
 		while (i.hasNext()) {
 			// Call data
-			Object[] o = (Object[])i.next();
+			Object[] o = i.next();
 			String subroutine = (String)o[0];
 			boolean calledAsMethod = ((Boolean)o[1]).booleanValue();
 			short numberOfCalledParameters = ((Short)o[2]).shortValue();
@@ -168,7 +209,7 @@ public /* Constructor
 							  subroutine + " doesn't exist", lineNumber,
 						      callingSubroutine, callingFileName);
 			} else {
-				o = (Object[])subroutines.get(subroutine);
+				o = subroutines.get(subroutine);
 				int declaredType = ((Integer)o[0]).intValue();
 				short numberOfDeclaredParameters = ((Short)o[1]).shortValue();
 
@@ -586,7 +627,7 @@ public /* Constructor
         output.callFunction(fullName,
 							(short)(numberOfArguments + (isMethod? 1 : 0)));
 
-		Object callData =
+		Object[] callData =
 			new Object[]{fullName,
 						 new Boolean(isMethod),
 						 new Short(numberOfArguments),
@@ -620,7 +661,7 @@ public /* Constructor
                              " called as a method from within a function",
                              lineNumber);
 		} else {
-			Object callData =
+			Object[] callData =
 				new Object[]{fullName,
 							 Boolean.TRUE,
 							 new Short(numberOfArguments),
@@ -655,10 +696,9 @@ public /* Constructor
             recoverableError("Expected (");
         }
 
+		ExpressionNode condition = null;
 		try {
-			output.label("WHILE_EXP" + currentWhileCounter);
-			compileNewExpression(GENERAL_TYPE);
-			output.not();
+			condition = compileNewExpressionTree(GENERAL_TYPE);
 			if (isSymbol(')')) {
 				input.advance();
 			} else {
@@ -677,8 +717,24 @@ public /* Constructor
 			recoverableError("Expected {");
 		}
 
-        output.ifGoTo("WHILE_END" + currentWhileCounter);
-        reachable = compileStatements(reachable);
+		boolean constantCondition = optimize && condition != null &&
+									condition.isConstant();
+		if (constantCondition && condition.getValue() == 0) {
+			// The loop is never entered
+			reachable = compileDiscardedStatements(reachable);
+		} else {
+			output.label("WHILE_EXP" + currentWhileCounter);
+			if (!constantCondition) {
+				if (condition != null) {
+					condition.write(output);
+				}
+				output.not();
+				output.ifGoTo("WHILE_END" + currentWhileCounter);
+			}
+			reachable = compileStatements(reachable);
+			output.goTo("WHILE_EXP" + currentWhileCounter);
+			output.label("WHILE_END" + currentWhileCounter);
+		}
 
 		if (isSymbol('}')) {
 			input.advance();
@@ -686,9 +742,6 @@ public /* Constructor
 			recoverableError("Expected }");
 		}
 
-		output.goTo("WHILE_EXP" + currentWhileCounter);
-		output.label("WHILE_END" + currentWhileCounter);
-
 		return reachable;
     }
 
@@ -706,8 +759,9 @@ public /* Constructor
             recoverableError("Expected (");
         }
 
+		ExpressionNode condition = null;
 		try {
-			compileNewExpression(GENERAL_TYPE);
+			condition = compileNewExpressionTree(GENERAL_TYPE);
 			if (isSymbol(')')) {
 				input.advance();
 			} else {
@@ -726,6 +780,13 @@ public /* Constructor
 			recoverableError("Expected {");
 		}
 
+		if (optimize && condition != null && condition.isConstant()) {
+			return compileConstantIf(condition.getValue() != 0, reachable);
+		}
+
+		if (condition != null) {
+			condition.write(output);
+		}
 		output.ifGoTo("IF_TRUE" + currentIfCounter);
 		output.goTo("IF_FALSE" + currentIfCounter);
 		output.label("IF_TRUE" + currentIfCounter);
@@ -766,6 +827,58 @@ public /* Constructor
 		return ifEndReachable || elseEndReachable;
     }
 
+	// Compiles the rest of an If statement with a constant condition, starting
+	// after the '{' of the if block. Only the block that is executed is written.
+	// Returns the reachability of the end of the statement, like compileIf.
+	private boolean compileConstantIf(boolean conditionValue,
+									  boolean reachable) throws JackException {
+		boolean ifEndReachable = conditionValue ?
+			compileStatements(reachable) :
+			compileDiscardedStatements(reachable);
+
+		if (isSymbol('}')) {
+			input.advance();
+		} else {
+			recoverableError("Expected }");
+		}
+
+		if (isKeywordElse()) {
+			input.advance();
+		} else {
+			return true; // end of if with no else is always reachable
+		}
+
+		if (isSymbol('{')) {
+			input.advance();
+		} else {
+			recoverableError("Expected {");
+		}
+
+		boolean elseEndReachable = conditionValue ?
+			compileDiscardedStatements(reachable) :
+			compileStatements(reachable);
+
+		if (isSymbol('}')) {
+			input.advance();
+		} else {
+			recoverableError("Expected }");
+		}
+
+		return ifEndReachable || elseEndReachable;
+	}
+
+	// Compiles a sequence of statements like compileStatements, checking
+	// them for errors without writing their code.
+	private boolean compileDiscardedStatements(boolean reachable)
+			throws JackException {
+		output.startCapture();
+		try {
+			return compileStatements(reachable);
+		} finally {
+			output.endCapture();
+		}
+	}
+
     // Compiles a return statement with or without a return value
     private void compileReturn() throws JackException {
         input.advance();
@@ -917,14 +1030,22 @@ public /* Constructor
 		return numberOfExpressions;
     }
 
-    // Starts compiling an expression
+    // Starts compiling an expression, writes its code and returns its type
     private int compileNewExpression(int expectedType) throws JackException {
+        compileNewExpressionTree(expectedType).write(output);
+
+        return expTypes[expIndex + 1];
+    }
+
+    // Starts compiling an expression and returns its tree (without writing it)
+    private ExpressionNode compileNewExpressionTree(int expectedType)
+			throws JackException {
         expIndex++;
         setExpType(expectedType);
-        compileExpression();
+        ExpressionNode expression = compileExpression();
         expIndex--;
 
-        return expTypes[expIndex + 1];
+        return expression;
     }
 
 
@@ -934,11 +1055,11 @@ public /* Constructor
      2. unary-op expression, where unary-op is one of "-,~".
      3. term op expression, where op is one of "+,-,*,/,&,|,>,<,="
     */
-    private void compileExpression() throws JackException {
+    private ExpressionNode compileExpression() throws JackException {
 
         boolean cont = false;
 
-        compileTerm();
+        ExpressionNode expression = compileTerm();
 
         do {
             if (input.getTokenType() == input.TYPE_SYMBOL) {
@@ -951,31 +1072,13 @@ public /* Constructor
 
                 if (cont) {
                     input.advance();
-                    compileTerm();
-
-                    switch (symbol) {
-                        case '+':
-                            output.add(); break;
-                        case '-':
-                            output.substract(); break;
-                        case '*':
-                            output.callFunction("Math.multiply",(short)2); break;
-                        case '/':
-                            output.callFunction("Math.divide",(short)2); break;
-                        case '&':
-                            output.and(); break;
-                        case '|':
-                            output.or(); break;
-                        case '>':
-                            output.greaterThan(); break;
-                        case '<':
-                            output.lessThan(); break;
-                        case '=':
-                            output.equal(); break;
-                    }
+                    expression = ExpressionNode.binary(symbol, expression,
+                                                       compileTerm(), optimize);
                 }
             }
         } while (cont);
+
+        return expression;
     }
 
     /*
@@ -988,32 +1091,41 @@ public /* Constructor
      6. Variable-name.method-name(expression-list) - The method does not return void
      7. (expression)
     */
-    private void compileTerm() throws JackException {
+    private ExpressionNode compileTerm() throws JackException {
+        ExpressionNode term = null;
         switch (input.getTokenType()) {
             case JackTokenizer.TYPE_INT_CONST:
-                compileIntConst();
+                term = compileIntConst();
                 break;
             case JackTokenizer.TYPE_STRING_CONST:
-                compileStringConst();
+                output.startCapture();
+                try {
+                    compileStringConst();
+                } finally {
+                    term = ExpressionNode.code(output.endCapture());
+                }
                 break;
             case JackTokenizer.TYPE_KEYWORD:
-                compileKeywordConst();
+                term = compileKeywordConst();
                 break;
             case JackTokenizer.TYPE_IDENTIFIER:
-                compileIdentifierTerm();
+                output.startCapture();
+                try {
+                    compileIdentifierTerm();
+                } finally {
+                    term = ExpressionNode.code(output.endCapture());
+                }
                 break;
             default:
                 if (isSymbol('-')) { // a term of the form -term (negation)
                     input.advance();
-                    compileTerm();
-                    output.negate();
+                    term = ExpressionNode.unary('-', compileTerm(), optimize);
                 } else if (isSymbol('~')) { // a term of the form ~term (not)
                     input.advance();
-                    compileTerm();
-                    output.not();
+                    term = ExpressionNode.unary('~', compileTerm(), optimize);
                 } else if (isSymbol('(')) { // a term of the form (expression)
                     input.advance();
-                    compileNewExpression(GENERAL_TYPE);
+                    term = compileNewExpressionTree(GENERAL_TYPE);
                     if (isSymbol(')')) {
                         input.advance();
                     } else {
@@ -1023,16 +1135,17 @@ public /* Constructor
                     terminalError("Expected - or ~ or ( in term");
                 }
         }
+        return term;
     }
 
     // Compiles an Int constant
-    private void compileIntConst() throws JackException {
+    private ExpressionNode compileIntConst() throws JackException {
         if (input.getIntValue() > 32767) {
             recoverableError("Integer constant too big");
 		}
 
         short value = (short)input.getIntValue();
-        output.push(HVMInstructionSet.CONST_SEGMENT_VM_STRING, value);
+        ExpressionNode constant = ExpressionNode.constant(value);
 
         if (getExpType() < NUMERIC_TYPE) {
             setExpType(NUMERIC_TYPE);
@@ -1041,6 +1154,7 @@ public /* Constructor
 		}
 
         input.advance();
+        return constant;
     }
 
     // Compiles an String constant
@@ -1064,23 +1178,25 @@ public /* Constructor
     }
 
     // Compiles a keyword-constant (true, false,null,this)
-    private void compileKeywordConst() throws JackException {
+    private ExpressionNode compileKeywordConst() throws JackException {
         int keywordType = input.getKeywordType();
+        ExpressionNode constant = null;
 
 		switch (keywordType) {
 			case JackTokenizer.KW_TRUE:
-				output.push(HVMInstructionSet.CONST_SEGMENT_VM_STRING, (short)0);
-				output.not();
+				constant = ExpressionNode.constant((short)-1);
 				break;
 			case JackTokenizer.KW_FALSE: /* FALLTHRU */
 			case JackTokenizer.KW_NULL:
-				output.push(HVMInstructionSet.CONST_SEGMENT_VM_STRING, (short)0);
+				constant = ExpressionNode.constant((short)0);
 				break;
 			case JackTokenizer.KW_THIS:
 				if (subroutineType == identifiers.SUBROUTINE_TYPE_FUNCTION) {
 					recoverableError("'this' can't be referenced in a function");
 				}
+				output.startCapture();
 				output.push(HVMInstructionSet.POINTER_SEGMENT_VM_STRING, (short)0);
+				constant = ExpressionNode.code(output.endCapture());
 				break;
 			default:
 				terminalError("Illegal keyword in term");
@@ -1113,6 +1229,7 @@ public /* Constructor
         }
 
 		input.advance();
+		return constant;
     }
 
     /*
@@ -1420,7 +1537,7 @@ public /* Constructor
 	// at the given line number, method and file name
 	private void warning(String warning, int lineNumber,
 						 String subroutine, String fileName) {
-		System.err.println(generateMessage("Warning: "+warning, lineNumber,
+		errorStream.println(generateMessage("Warning: "+warning, lineNumber,
 					                       subroutine, fileName));
 	}
 	
@@ -1443,7 +1560,7 @@ public /* Constructor
 	// line number, method and file name
 	private void recoverableError(String error, int lineNumber,
 								  String subroutine, String fileName) {
-		System.err.println(generateMessage(error, lineNumber, subroutine,
+		errorStream.println(generateMessage(error, lineNumber, subroutine,
 					                       fileName));
 		validJack = false;
 	}
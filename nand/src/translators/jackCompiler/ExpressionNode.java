@@ -0,0 +1,236 @@
+package translators.jackCompiler;
+
+import translators.VMTranslator.*;
+
+/**
+ * A node of the tree of a compiled Jack expression. A node is either a constant,
+ * the VM code of a term that can't be evaluated in compile time (a variable,
+ * an array entry, a subroutine call, a string etc.), or a unary or binary
+ * operation on other nodes.
+ * When the tree is built with optimization, operations on constants are
+ * folded into constants (with the semantics of the VM and of Math.multiply and
+ * Math.divide), and multiplications by small powers of two are reduced to
+ * additions.
+ */
+class ExpressionNode {
+
+    // Node kinds
+    private static final int CONSTANT = 0;
+    private static final int CODE = 1;
+    private static final int UNARY = 2;
+    private static final int BINARY = 3;
+    private static final int DOUBLE = 4;
+
+    // The maximal number of doublings that replace a multiplication (each takes 4 VM
+    // instructions, so larger powers of two are left to Math.multiply)
+    private static final int MAX_DOUBLINGS = 4;
+
+    // The kind of the node
+    private int kind;
+
+    // The value of a constant node, or the number of doublings of a DOUBLE node
+    private short value;
+
+    // The VM code of a CODE node
+    private String code;
+
+    // The operator of a UNARY ('-', '~') or a BINARY node
+    private char operator;
+
+    // The operands of the node (right is null for UNARY and DOUBLE nodes)
+    private ExpressionNode left;
+    private ExpressionNode right;
+
+    // Constructs a new node of the given kind
+    private ExpressionNode(int kind) {
+        this.kind = kind;
+    }
+
+    /**
+     * Returns a constant node with the given value.
+     */
+    static ExpressionNode constant(short value) {
+        ExpressionNode node = new ExpressionNode(CONSTANT);
+        node.value = value;
+        return node;
+    }
+
+    /**
+     * Returns a node of the given VM code, which was returned by VMWriter.endCapture().
+     */
+    static ExpressionNode code(String code) {
+        ExpressionNode node = new ExpressionNode(CODE);
+        node.code = code;
+        return node;
+    }
+
+    /**
+     * Returns a node of the given unary operator ('-' or '~') on the given operand.
+     * If optimize is true, a constant operand is folded.
+     */
+    static ExpressionNode unary(char operator, ExpressionNode operand, boolean optimize) {
+        if (optimize && operand.isConstant())
+            return constant((short)(operator == '-' ? -operand.value : ~operand.value));
+
+        ExpressionNode node = new ExpressionNode(UNARY);
+        node.operator = operator;
+        node.left = operand;
+        return node;
+    }
+
+    /**
+     * Returns a node of the given binary operator (+, -, *, /, &, |, <, > or =) on
+     * the given operands. If optimize is true, constant operands are folded and
+     * trivial operations are simplified.
+     */
+    static ExpressionNode binary(char operator, ExpressionNode left, ExpressionNode right,
+                                 boolean optimize) {
+        if (optimize) {
+            if (left.isConstant() && right.isConstant() &&
+                !(operator == '/' && right.value == 0)) // leave the error to Math.divide
+                return constant(fold(operator, left.value, right.value));
+
+            if (right.isConstant()) {
+                if (right.value == 0 && (operator == '+' || operator == '-' || operator == '|'))
+                    return left;
+                if (right.value == 1 && (operator == '*' || operator == '/'))
+                    return left;
+                if (operator == '*' && doublings(right.value) > 0)
+                    return doubled(left, doublings(right.value));
+            }
+
+            if (left.isConstant()) { // the constant has no side effects - reorder
+                if (left.value == 0 && (operator == '+' || operator == '|'))
+                    return right;
+                if (left.value == 1 && operator == '*')
+                    return right;
+                if (operator == '*' && doublings(left.value) > 0)
+                    return doubled(right, doublings(left.value));
+            }
+        }
+
+        ExpressionNode node = new ExpressionNode(BINARY);
+        node.operator = operator;
+        node.left = left;
+        node.right = right;
+        return node;
+    }
+
+    // Returns a node that doubles the given operand the given number of times
+    private static ExpressionNode doubled(ExpressionNode operand, int times) {
+        ExpressionNode node = new ExpressionNode(DOUBLE);
+        node.value = (short)times;
+        node.left = operand;
+        return node;
+    }
+
+    // Returns the number of doublings that multiply by the given value: k if the value
+    // is 2^k (0 < k <= MAX_DOUBLINGS), or -1 otherwise
+    private static int doublings(short value) {
+        if (value <= 1 || (value & (value - 1)) != 0)
+            return -1;
+        int power = Integer.numberOfTrailingZeros(value);
+        return power <= MAX_DOUBLINGS ? power : -1;
+    }
+
+    // Returns the value of the given binary operator on the given constants
+    private static short fold(char operator, short x, short y) {
+        switch (operator) {
+            case '+':
+                return (short)(x + y);
+            case '-':
+                return (short)(x - y);
+            case '*':
+                return (short)(x * y);
+            case '/':
+                return (short)(x / y);
+            case '&':
+                return (short)(x & y);
+            case '|':
+                return (short)(x | y);
+            case '<':
+                return (short)(x < y ? -1 : 0);
+            case '>':
+                return (short)(x > y ? -1 : 0);
+            default: // '='
+                return (short)(x == y ? -1 : 0);
+        }
+    }
+
+    /**
+     * Returns true if this node is a constant.
+     */
+    boolean isConstant() {
+        return kind == CONSTANT;
+    }
+
+    /**
+     * Returns the value of this constant node.
+     */
+    short getValue() {
+        return value;
+    }
+
+    /**
+     * Writes the VM code of this expression to the given VMWriter.
+     */
+    void write(VMWriter output) {
+        switch (kind) {
+            case CONSTANT:
+                if (value >= 0)
+                    output.push(HVMInstructionSet.CONST_SEGMENT_VM_STRING, value);
+                else { // constants are not negative: push the bitwise not and negate it
+                    output.push(HVMInstructionSet.CONST_SEGMENT_VM_STRING, (short)~value);
+                    output.not();
+                }
+                break;
+
+            case CODE:
+                output.writeCaptured(code);
+                break;
+
+            case UNARY:
+                left.write(output);
+                if (operator == '-')
+                    output.negate();
+                else
+                    output.not();
+                break;
+
+            case DOUBLE:
+                left.write(output);
+                for (int i = 0; i < value; i++) {
+                    output.pop(HVMInstructionSet.TEMP_SEGMENT_VM_STRING, (short)1);
+                    output.push(HVMInstructionSet.TEMP_SEGMENT_VM_STRING, (short)1);
+                    output.push(HVMInstructionSet.TEMP_SEGMENT_VM_STRING, (short)1);
+                    output.add();
+                }
+                break;
+
+            default: // BINARY
+                left.write(output);
+                right.write(output);
+                switch (operator) {
+                    case '+':
+                        output.add(); break;
+                    case '-':
+                        output.substract(); break;
+                    case '*':
+                        output.callFunction("Math.multiply",(short)2); break;
+                    case '/':
+                        output.callFunction("Math.divide",(short)2); break;
+                    case '&':
+                        output.and(); break;
+                    case '|':
+                        output.or(); break;
+                    case '>':
+                        output.greaterThan(); break;
+                    case '<':
+                        output.lessThan(); break;
+                    case '=':
+                        output.equal(); break;
+                }
+                break;
+        }
+    }
+}
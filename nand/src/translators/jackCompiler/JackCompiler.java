@@ -1,6 +1,7 @@
 package translators.jackCompiler;
 
 import java.io.*;
+import java.util.concurrent.*;
 
 
 import common.fileFilters.FileFilters;
@@ -14,6 +15,12 @@ public class JackCompiler {
     // The Compilation Engine
     private CompilationEngine compilationEngine;
 
+    // True if the compiled code is optimized
+    private boolean optimize;
+
+    // True if the files of a directory are compiled in parallel
+    private boolean parallel;
+
     /**
      * Constructs a new JackCompiler
      */
@@ -21,32 +28,57 @@ public class JackCompiler {
         compilationEngine = new CompilationEngine();
     }
 
+    /**
+     * Sets whether the compiled code is optimized (constant folding and
+     * removal of unreachable branches).
+     */
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+        compilationEngine.setOptimize(optimize);
+    }
+
+    /**
+     * Sets whether compileDirectory compiles the files of the directory in
+     * parallel. The resulting .vm files, the printed messages and the
+     * result of verify() are the same as in a sequential compilation.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
     /**
      * Compiles the given file. The resulting file will have the same name,
      * but with the .vm extension. Upon unsuccessful compilation (had errors)
 	 * a .vm file is not created and false is returned. 
      */
     public boolean compileFile(File file) {
-        String className = file.getName().substring(0, file.getName().indexOf('.'));
-        String path = file.getParent();
-
         try {
-            JackTokenizer input = new JackTokenizer(new FileReader(file.getPath()));
-			File outfile = new File(path + File.separator + className + ".vm");
-            VMWriter output = new VMWriter(new PrintWriter(new FileWriter(outfile)));
-            		System.out.println(outfile.getAbsolutePath());
-            if (compilationEngine.compileClass(input, output, className, file.getName())) {
-				return true;
-			} else {
-				outfile.delete();
-				return false;
-			}
+            return compileFile(file, compilationEngine, System.out);
         } catch (IOException ioe) {
             System.err.println("Error reading/writing while compiling " + file);
             System.exit(-1);
 			return false; // unreachable
         }
+    }
 
+    // Compiles the given file using the given CompilationEngine and prints
+    // the name of the resulting file to the given stream.
+    private static boolean compileFile(File file, CompilationEngine engine,
+                                       PrintStream messages)
+            throws IOException {
+        String className = file.getName().substring(0, file.getName().indexOf('.'));
+        String path = file.getParent();
+
+        JackTokenizer input = new JackTokenizer(new FileReader(file.getPath()));
+		File outfile = new File(path + File.separator + className + ".vm");
+        VMWriter output = new VMWriter(new PrintWriter(new FileWriter(outfile)));
+        		messages.println(outfile.getAbsolutePath());
+        if (engine.compileClass(input, output, className, file.getName())) {
+			return true;
+		} else {
+			outfile.delete();
+			return false;
+		}
     }
 
     /**
@@ -58,12 +90,85 @@ public class JackCompiler {
 		boolean success = true;
         File directory = new File(jackDirectory);
         File[] files = directory.listFiles(FileFilters.getFilenameFilter("jack"));
+        if (parallel) {
+            return compileInParallel(files);
+        }
+
         for (int i=0; i<files.length; i++) {
             success &= compileFile(files[i]);
 		}
 		return success;
     }
 
+    // Compiles the given files in parallel, each file with its own
+    // CompilationEngine. The messages of each file are buffered and printed,
+    // and the declarations and calls collected from it are merged into the
+    // CompilationEngine of this compiler, in the order of the files - so the
+    // output is deterministic and verify() checks the calls as usual.
+    private boolean compileInParallel(File[] files) {
+        ForkJoinPool pool = new ForkJoinPool();
+        FileCompilation[] compilations = new FileCompilation[files.length];
+        for (int i=0; i<files.length; i++) {
+            compilations[i] = new FileCompilation(files[i]);
+            pool.execute(compilations[i]);
+        }
+
+		boolean success = true;
+        for (int i=0; i<files.length; i++) {
+            compilations[i].join();
+            System.out.print(compilations[i].messages.toString());
+            System.err.print(compilations[i].errors.toString());
+            if (compilations[i].exception != null) {
+                System.err.println("Error reading/writing while compiling " + files[i]);
+                System.exit(-1);
+            }
+            compilationEngine.merge(compilations[i].engine);
+            success &= compilations[i].success;
+		}
+        pool.shutdown();
+		return success;
+    }
+
+    // The compilation of a single file in a parallel compilation
+    private class FileCompilation extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        // The compiled file
+        private File file;
+
+        // The CompilationEngine of the file
+        private CompilationEngine engine;
+
+        // The buffered messages and errors of the compilation
+        private ByteArrayOutputStream messages;
+        private ByteArrayOutputStream errors;
+
+        // True if the file was compiled successfully
+        private boolean success;
+
+        // The exception thrown while reading or writing, if any
+        private IOException exception;
+
+        // Constructs a new compilation of the given file
+        private FileCompilation(File file) {
+            this.file = file;
+            engine = new CompilationEngine();
+            engine.setOptimize(optimize);
+            messages = new ByteArrayOutputStream();
+            errors = new ByteArrayOutputStream();
+            engine.setErrorStream(new PrintStream(errors, true));
+        }
+
+        protected void compute() {
+            try {
+                success = compileFile(file, engine, new PrintStream(messages, true));
+            } catch (IOException ioe) {
+                exception = ioe;
+            }
+        }
+    }
+
     /**
      * Performs some error cross-checking between the files compiled until now.
 	 * returns true if no errors were found.
@@ -77,7 +182,20 @@ public class JackCompiler {
      in the vm directory
     */
     public static void main(String[] args) {
-        if (args.length != 1) {
+        boolean optimize = false;
+        boolean parallel = false;
+        int argIndex = 0;
+        for (; argIndex < args.length - 1; argIndex++) {
+            if (args[argIndex].equals("-O")) {
+                optimize = true;
+            } else if (args[argIndex].equals("-p")) {
+                parallel = true;
+            } else {
+                break;
+            }
+        }
+
+        if (args.length - argIndex != 1) {
 			try {
 				BufferedReader message = new BufferedReader(new FileReader(new File("bin/help/compiler.txt")));
 				String line;
@@ -89,20 +207,23 @@ public class JackCompiler {
 			} catch (IOException e) {
 			}
 
-            System.out.println("Usage: java JackCompiler <Jack-dir or Jack-file-name>");
+            System.out.println("Usage: java JackCompiler [-O] [-p] <Jack-dir or Jack-file-name>");
             System.exit(-1);
         }
 
+        String fileName = args[argIndex];
         JackCompiler jackCompiler = new JackCompiler();
-        File file = new File(args[0]);
+        jackCompiler.setOptimize(optimize);
+        jackCompiler.setParallel(parallel);
+        File file = new File(fileName);
         if (!file.exists()) {
-            System.err.println("Could not find file or directory: " + args[0]);
+            System.err.println("Could not find file or directory: " + fileName);
             System.exit(-1);
         }
 
 		boolean success;
         if (file.isDirectory())
-            success = jackCompiler.compileDirectory(args[0]);
+            success = jackCompiler.compileDirectory(fileName);
         else
             success = jackCompiler.compileFile(file);
 
@@ -56,10 +56,10 @@ public class SymbolTable {
     public final static int SUBROUTINE_TYPE_CONSTRUCTOR = 3;
 
     // Numbering for the different scopes
-    private static short staticsNumbering;
-    private static short fieldsNumbering;
-    private static short parametersNumbering;
-    private static short localsNumbering;
+    private short staticsNumbering;
+    private short fieldsNumbering;
+    private short parametersNumbering;
+    private short localsNumbering;
 
     // The current class name
     private String className;
@@ -1,6 +1,7 @@
 package translators.jackCompiler;
 
 import java.io.*;
+import java.util.Vector;
 
 import translators.VMTranslator.*;
 
@@ -12,6 +13,12 @@ public class VMWriter implements VirtualMachine {
     // The PrintWriter of this VMWriter
     private PrintWriter writer;
 
+    // The writers that were replaced by the current captures (innermost last)
+    private Vector<PrintWriter> outerWriters;
+
+    // The buffers of the current captures (innermost last)
+    private Vector<StringWriter> captureBuffers;
+
     /**
      * Constructs a new VMWriter with the given PrintWriter
      *
@@ -19,6 +26,36 @@ public class VMWriter implements VirtualMachine {
      */
     public VMWriter(PrintWriter writer) {
         this.writer = writer;
+        outerWriters = new Vector<PrintWriter>();
+        captureBuffers = new Vector<StringWriter>();
+    }
+
+    /**
+     * Starts capturing the written commands instead of writing them.
+     * Captures may be nested: each capture holds the commands written until
+     * the matching endCapture().
+     */
+    public void startCapture() {
+        StringWriter buffer = new StringWriter();
+        outerWriters.addElement(writer);
+        captureBuffers.addElement(buffer);
+        writer = new PrintWriter(buffer);
+    }
+
+    /**
+     * Ends the innermost capture and returns the commands written during it.
+     */
+    public String endCapture() {
+        writer.flush();
+        writer = outerWriters.remove(outerWriters.size() - 1);
+        return captureBuffers.remove(captureBuffers.size() - 1).toString();
+    }
+
+    /**
+     * Writes the given commands, which were returned by endCapture().
+     */
+    public void writeCaptured(String commands) {
+        writer.print(commands);
     }
 
     /**
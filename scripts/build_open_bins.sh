@@ -15,7 +15,7 @@ echo "cleaning up"
 find $BUILDROOT -name "*.class" | xargs rm -f 
 find $BUILDROOT -name "*.jar" | xargs rm -f
 
-for package in common simulators translators; do
+for package in common simulators translators benchmarks; do
     echo "Copying package ${package}"
     cp -Rf $BINPATH/$package $TARGETBINPATH
 done
@@ -37,7 +37,7 @@ echo "Handling built in VM code"
 cp $VMSOURCE/*.class $VMDIR
 
 cd $TARGETBINPATH
-for package in common simulators translators; do
+for package in common simulators translators benchmarks; do
     echo "Packaging package $package"
     [[ -a lib/$package.jar ]] && jar -uMf lib/$package.jar $package || jar -cMf lib/$package.jar $package
     rm -rf $package